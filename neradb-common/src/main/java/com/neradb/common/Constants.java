@@ -151,6 +151,24 @@ public class Constants {
      */
     public static final int ALLOW_LITERALS_NUMBERS = 1;
 
+    /**
+     * The synchronous commit mode that means commit records are only buffered
+     * in memory; they are written by the next group commit or checkpoint.
+     */
+    public static final int SYNCHRONOUS_OFF = 0;
+
+    /**
+     * The synchronous commit mode that means commit records are written to the
+     * operating system before the commit returns, but not forced to disk.
+     */
+    public static final int SYNCHRONOUS_LOCAL = 1;
+
+    /**
+     * The synchronous commit mode that means commit records are forced to disk
+     * (fsync) before the commit returns.
+     */
+    public static final int SYNCHRONOUS_FULL = 2;
+
     /**
      * Whether searching in Blob values should be supported.
      */
@@ -419,6 +437,17 @@ public class Constants {
      */
     public static final String SUFFIX_DB_FILE = ".db";
 
+    /**
+     * The file name suffix of the commit log.
+     */
+    public static final String SUFFIX_COMMIT_LOG_FILE = ".commit.db";
+
+    /**
+     * The file name suffix of the log of the coordinator of distributed
+     * transactions.
+     */
+    public static final String SUFFIX_COORDINATOR_LOG_FILE = ".2pc.db";
+
     /**
      * The file name suffix of large object files.
      */
@@ -350,6 +350,15 @@ public class SysProperties {
             Utils.getProperty("h2.oldStyleOuterJoin",
                     Constants.VERSION_MINOR >= 4 ? false : true);
 
+    /**
+     * System property <code>h2.patternCacheSize</code> (default: 256).<br />
+     * The number of compiled regular expressions that are kept for REGEXP,
+     * REGEXP_LIKE and REGEXP_REPLACE. The cache is shared by all databases
+     * in the JVM. Set to 0 to disable the cache.
+     */
+    public static final int PATTERN_CACHE_SIZE =
+            Utils.getProperty("h2.patternCacheSize", 256);
+
     /**
      * System property <code>h2.pgClientEncoding</code> (default: UTF-8).<br />
      * Default client encoding for PG server. It is used if the client does not
@@ -365,6 +374,28 @@ public class SysProperties {
     public static final String PREFIX_TEMP_FILE =
             Utils.getProperty("h2.prefixTempFile", "h2.temp");
 
+    /**
+     * System property <code>h2.fileEncryptionCipher</code> (default: AES_JCE).
+     * <br />
+     * The block cipher used for files of the "encrypt:" file system (the
+     * algorithm is always AES). AES_JCE uses the AES implementation of the
+     * JDK, which is compiled to AES-NI instructions where available; AES uses
+     * the pure Java implementation. Both produce the same data.
+     */
+    public static final String FILE_ENCRYPTION_CIPHER =
+            Utils.getProperty("h2.fileEncryptionCipher", "AES_JCE");
+
+    /**
+     * System property <code>h2.scriptThreads</code> (default: the number of
+     * processors).<br />
+     * The number of threads that generate the INSERT statements of the SCRIPT
+     * command in multi-threaded databases, one table per thread. Set to 1 to
+     * dump the tables one after the other.
+     */
+    public static final int SCRIPT_THREADS =
+            Utils.getProperty("h2.scriptThreads",
+                    Runtime.getRuntime().availableProcessors());
+
     /**
      * System property <code>h2.serverCachedObjects</code> (default: 64).<br />
      * TCP Server: number of cached objects per session.
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.common.compress;
+
+import java.util.Arrays;
+
+import com.neradb.common.DbException;
+import com.neradb.common.ErrorCode;
+
+/**
+ * A fast compression algorithm using the LZ4 block format.
+ * <p>
+ * The compressed data is a list of sequences. Each sequence starts with a
+ * token byte: the high 4 bits are the number of literal bytes, the low 4 bits
+ * are the length of the match minus 4. A value of 15 means more length bytes
+ * follow (each 255 means yet another byte follows). Then the literal bytes
+ * follow, and then the offset of the match (2 bytes, little endian). The last
+ * sequence only contains literals.
+ * </p>
+ * <p>
+ * Compared to LZF, the window is larger (64 KB instead of 8 KB), and long
+ * matches and long runs of literals are encoded with less overhead, so that
+ * both compression and decompression are faster for most data.
+ * </p>
+ */
+public final class CompressLZ4 implements Compressor {
+
+    private static final int HASH_LOG = 12;
+    private static final int HASH_SIZE = 1 << HASH_LOG;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+
+    /**
+     * The last 5 bytes are always literals.
+     */
+    private static final int LAST_LITERALS = 5;
+
+    /**
+     * A match must start at least 12 bytes before the end.
+     */
+    private static final int MF_LIMIT = 12;
+
+    /**
+     * The number of misses after which the search step is increased, as a
+     * power of two. This speeds up compressing data that is not
+     * compressible.
+     */
+    private static final int SKIP_TRIGGER = 6;
+
+    /**
+     * The hash table (position + 1, or 0 if not set).
+     */
+    private int[] hashTab;
+
+    @Override
+    public int getAlgorithm() {
+        return Compressor.LZ4;
+    }
+
+    @Override
+    public void setOptions(String options) {
+        // nothing to do
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        int anchor = 0;
+        if (inLen >= MF_LIMIT + 1) {
+            if (hashTab == null) {
+                hashTab = new int[HASH_SIZE];
+            } else {
+                Arrays.fill(hashTab, 0);
+            }
+            int[] tab = hashTab;
+            int limit = inLen - MF_LIMIT;
+            int matchLimit = inLen - LAST_LITERALS;
+            int pos = 0;
+            int misses = 1 << SKIP_TRIGGER;
+            while (pos < limit) {
+                int seq = readInt(in, pos);
+                int h = hash(seq);
+                int ref = tab[h] - 1;
+                tab[h] = pos + 1;
+                if (ref < 0 || pos - ref > MAX_OFFSET || readInt(in, ref) != seq) {
+                    pos += misses++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                misses = 1 << SKIP_TRIGGER;
+                // extend the match backwards
+                while (pos > anchor && ref > 0 && in[pos - 1] == in[ref - 1]) {
+                    pos--;
+                    ref--;
+                }
+                int len = MIN_MATCH;
+                while (pos + len < matchLimit && in[pos + len] == in[ref + len]) {
+                    len++;
+                }
+                outPos = writeSequence(in, anchor, pos - anchor, out, outPos,
+                        pos - ref, len);
+                pos += len;
+                anchor = pos;
+                if (pos - 2 < limit) {
+                    tab[hash(readInt(in, pos - 2))] = pos - 2 + 1;
+                }
+            }
+        }
+        // the last literals
+        int litLen = inLen - anchor;
+        int token = Math.min(litLen, 15) << 4;
+        out[outPos++] = (byte) token;
+        outPos = writeLength(out, outPos, litLen);
+        System.arraycopy(in, anchor, out, outPos, litLen);
+        return outPos + litLen;
+    }
+
+    private static int writeSequence(byte[] in, int litPos, int litLen,
+            byte[] out, int outPos, int offset, int matchLen) {
+        int m = matchLen - MIN_MATCH;
+        out[outPos++] = (byte) ((Math.min(litLen, 15) << 4) | Math.min(m, 15));
+        outPos = writeLength(out, outPos, litLen);
+        System.arraycopy(in, litPos, out, outPos, litLen);
+        outPos += litLen;
+        out[outPos++] = (byte) offset;
+        out[outPos++] = (byte) (offset >>> 8);
+        return writeLength(out, outPos, m);
+    }
+
+    /**
+     * Write the remaining length if the length is 15 or more.
+     *
+     * @param out the output array
+     * @param outPos the position
+     * @param len the length
+     * @return the new position
+     */
+    private static int writeLength(byte[] out, int outPos, int len) {
+        if (len >= 15) {
+            len -= 15;
+            while (len >= 255) {
+                out[outPos++] = (byte) 255;
+                len -= 255;
+            }
+            out[outPos++] = (byte) len;
+        }
+        return outPos;
+    }
+
+    private static int readInt(byte[] in, int pos) {
+        return (in[pos] & 0xff) | ((in[pos + 1] & 0xff) << 8) |
+                ((in[pos + 2] & 0xff) << 16) | (in[pos + 3] << 24);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out,
+            int outPos, int outLen) {
+        int inEnd = inPos + inLen;
+        int outStart = outPos;
+        int outEnd = outPos + outLen;
+        if (inPos < 0 || inEnd > in.length || outPos < 0 ||
+                outEnd > out.length) {
+            throw corrupt(inPos);
+        }
+        while (true) {
+            if (inPos >= inEnd) {
+                throw corrupt(inPos);
+            }
+            int token = in[inPos++] & 0xff;
+            int litLen = token >>> 4;
+            if (litLen == 15) {
+                int b;
+                do {
+                    if (inPos >= inEnd) {
+                        throw corrupt(inPos);
+                    }
+                    b = in[inPos++] & 0xff;
+                    litLen += b;
+                } while (b == 255);
+            }
+            if (litLen > inEnd - inPos || litLen > outEnd - outPos) {
+                throw corrupt(inPos);
+            }
+            System.arraycopy(in, inPos, out, outPos, litLen);
+            inPos += litLen;
+            outPos += litLen;
+            if (inPos >= inEnd) {
+                break;
+            }
+            if (inEnd - inPos < 2) {
+                throw corrupt(inPos);
+            }
+            int offset = (in[inPos++] & 0xff) | ((in[inPos++] & 0xff) << 8);
+            int matchLen = token & 15;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    if (inPos >= inEnd) {
+                        throw corrupt(inPos);
+                    }
+                    b = in[inPos++] & 0xff;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+            int ref = outPos - offset;
+            if (offset == 0 || ref < outStart || matchLen > outEnd - outPos) {
+                throw corrupt(inPos);
+            }
+            if (offset >= matchLen) {
+                System.arraycopy(out, ref, out, outPos, matchLen);
+                outPos += matchLen;
+            } else {
+                // overlapping copy (a repeated pattern)
+                for (int i = 0; i < matchLen; i++) {
+                    out[outPos++] = out[ref++];
+                }
+            }
+        }
+        if (outPos != outEnd) {
+            throw DbException.get(ErrorCode.COMPRESSION_ERROR,
+                    new IllegalArgumentException("Corrupt input, length " +
+                    (outPos - outStart) + " expected " + outLen));
+        }
+    }
+
+    private static DbException corrupt(int pos) {
+        return DbException.get(ErrorCode.COMPRESSION_ERROR,
+                new IllegalArgumentException("Corrupt input at " + pos));
+    }
+
+}
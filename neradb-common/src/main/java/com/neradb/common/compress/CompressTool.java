@@ -29,8 +29,25 @@ public class CompressTool {
 
     private static final int MAX_BUFFER_SIZE =
             3 * Constants.IO_BUFFER_SIZE_COMPRESS;
+    /**
+     * The maximum number of blocks that are stored uncompressed after a block
+     * could not be compressed.
+     */
+    private static final int MAX_SKIP = 64;
+
     private byte[] cachedBuffer;
 
+    /**
+     * The number of blocks to store without trying to compress them.
+     */
+    private int skip;
+
+    /**
+     * The number of blocks to skip the next time a block can not be
+     * compressed. Doubles each time, up to MAX_SKIP.
+     */
+    private int nextSkip = 1;
+
     private CompressTool() {
         // don't allow construction
     }
@@ -58,20 +75,47 @@ public class CompressTool {
 
     /**
      * Compressed the data using the specified algorithm. If no algorithm is
-     * supplied, LZF is used
+     * supplied, LZF is used.
+     * <p>
+     * If an instance is used for many blocks (for example when writing a
+     * stream), blocks that can not be compressed are detected: such a block
+     * (saving less than 1/16) is stored without compression, and so are the
+     * next blocks, without trying to compress them. The number of
+     * blocks skipped doubles each time (up to 64 blocks), and is reset as
+     * soon as a block can be compressed again.
+     * </p>
      *
      * @param in the byte array with the original data
-     * @param algorithm the algorithm (LZF, DEFLATE)
+     * @param algorithm the algorithm (LZF, LZ4, DEFLATE)
      * @return the compressed data
      */
     public byte[] compress(byte[] in, String algorithm) {
         int len = in.length;
+        boolean adaptive = false;
         if (in.length < 5) {
             algorithm = "NO";
+        } else if (skip > 0) {
+            skip--;
+            algorithm = "NO";
+        } else {
+            adaptive = len >= 64;
         }
         Compressor compress = getCompressor(algorithm);
         byte[] buff = getBuffer((len < 100 ? len + 100 : len) * 2);
         int newLen = compress(in, in.length, compress, buff);
+        if (adaptive && compress.getAlgorithm() != Compressor.NO) {
+            // less than 1/16 saved: not worth the time to expand
+            if (newLen > len - (len >>> 4)) {
+                int start = 1 + getVariableIntLength(len);
+                buff[0] = Compressor.NO;
+                System.arraycopy(in, 0, buff, start, len);
+                newLen = len + start;
+                skip = nextSkip;
+                nextSkip = Math.min(nextSkip * 2, MAX_SKIP);
+            } else {
+                nextSkip = 1;
+            }
+        }
         byte[] out = DataUtils.newBytes(newLen);
         System.arraycopy(buff, 0, out, 0, newLen);
         return out;
@@ -253,6 +297,8 @@ public class CompressTool {
             return Compressor.LZF;
         } else if ("DEFLATE".equals(algorithm)) {
             return Compressor.DEFLATE;
+        } else if ("LZ4".equals(algorithm)) {
+            return Compressor.LZ4;
         } else {
             throw DbException.get(
                     ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1,
@@ -268,6 +314,8 @@ public class CompressTool {
             return new CompressLZF();
         case Compressor.DEFLATE:
             return new CompressDeflate();
+        case Compressor.LZ4:
+            return new CompressLZ4();
         default:
             throw DbException.get(
                     ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1,
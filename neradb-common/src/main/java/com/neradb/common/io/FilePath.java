@@ -70,16 +70,16 @@ public abstract class FilePath {
             Map<String, FilePath> map = Collections.synchronizedMap(
                     New.<String, FilePath>hashMap());
             for (String c : new String[] {
-                    "org.h2.store.fs.FilePathDisk",
-                    "org.h2.store.fs.FilePathMem",
-                    "org.h2.store.fs.FilePathMemLZF",
-                    "org.h2.store.fs.FilePathNioMem",
-                    "org.h2.store.fs.FilePathNioMemLZF",
-                    "org.h2.store.fs.FilePathSplit",
-                    "org.h2.store.fs.FilePathNio",
-                    "org.h2.store.fs.FilePathNioMapped",
-                    "org.h2.store.fs.FilePathZip",
-                    "org.h2.store.fs.FilePathRetryOnInterrupt"
+                    "com.neradb.common.io.FilePathDisk",
+                    "com.neradb.common.io.FilePathMem",
+                    "com.neradb.common.io.FilePathMemLZF",
+                    "com.neradb.common.io.FilePathNioMem",
+                    "com.neradb.common.io.FilePathNioMemLZF",
+                    "com.neradb.common.io.FilePathSplit",
+                    "com.neradb.common.io.FilePathNio",
+                    "com.neradb.common.io.FilePathNioMapped",
+                    "com.neradb.common.io.FilePathZip",
+                    "com.neradb.common.io.FilePathRetryOnInterrupt"
             }) {
                 try {
                     FilePath p = (FilePath) Class.forName(c).newInstance();
@@ -15,8 +15,11 @@ import java.nio.channels.FileLock;
 import java.util.Arrays;
 
 import com.neradb.common.Constants;
-import com.neradb.common.security.AES;
+import com.neradb.common.DbException;
+import com.neradb.common.ErrorCode;
+import com.neradb.common.SysProperties;
 import com.neradb.common.security.BlockCipher;
+import com.neradb.common.security.CipherFactory;
 import com.neradb.common.security.SHA256;
 import com.neradb.common.utils.DataUtils;
 import com.neradb.common.utils.MathUtils;
@@ -170,7 +173,7 @@ public class FilePathEncrypt extends FilePathWrapper {
 
         private final String name;
 
-        private XTS xts;
+        private volatile XTS xts;
 
         private byte[] encryptionKey;
 
@@ -184,9 +187,17 @@ public class FilePathEncrypt extends FilePathWrapper {
         }
 
         private void init() throws IOException {
-            if (xts != null) {
-                return;
+            if (xts == null) {
+                // the first reads may be concurrent
+                synchronized (this) {
+                    if (xts == null) {
+                        initKey();
+                    }
+                }
             }
+        }
+
+        private void initKey() throws IOException {
             this.size = base.size() - HEADER_LENGTH;
             boolean newFile = size < 0;
             byte[] salt;
@@ -203,13 +214,23 @@ public class FilePathEncrypt extends FilePathWrapper {
                     size -= BLOCK_SIZE;
                 }
             }
-            AES cipher = new AES();
+            BlockCipher cipher = createCipher();
             cipher.setKey(SHA256.getPBKDF2(
                     encryptionKey, salt, HASH_ITERATIONS, 16));
             encryptionKey = null;
             xts = new XTS(cipher);
         }
 
+        private static BlockCipher createCipher() {
+            String algorithm = SysProperties.FILE_ENCRYPTION_CIPHER;
+            if (!"AES".equalsIgnoreCase(algorithm) &&
+                    !"AES_JCE".equalsIgnoreCase(algorithm)) {
+                // the file format is defined for AES only
+                throw DbException.get(ErrorCode.UNSUPPORTED_CIPHER, algorithm);
+            }
+            return CipherFactory.getBlockCipher(algorithm);
+        }
+
         @Override
         protected void implCloseChannel() throws IOException {
             base.close();
@@ -249,8 +270,9 @@ public class FilePathEncrypt extends FilePathWrapper {
                 throw new IllegalArgumentException("pos: " + position);
             }
             if ((position & BLOCK_SIZE_MASK) != 0 ||
-                    (len & BLOCK_SIZE_MASK) != 0) {
-                // either the position or the len is unaligned:
+                    (len & BLOCK_SIZE_MASK) != 0 || !dst.hasArray()) {
+                // either the position or the len is unaligned
+                // (or the buffer is a direct buffer):
                 // read aligned, and then truncate
                 long p = position / BLOCK_SIZE * BLOCK_SIZE;
                 int offset = (int) (position - p);
@@ -271,12 +293,9 @@ public class FilePathEncrypt extends FilePathWrapper {
                 throws IOException {
             int x = dst.position();
             readFully(base, position + HEADER_LENGTH, dst);
-            long block = position / BLOCK_SIZE;
-            while (len > 0) {
-                xts.decrypt(block++, BLOCK_SIZE, dst.array(), dst.arrayOffset() + x);
-                x += BLOCK_SIZE;
-                len -= BLOCK_SIZE;
-            }
+            // all blocks at once
+            xts.decryptSectors(position / BLOCK_SIZE, BLOCK_SIZE, len,
+                    dst.array(), dst.arrayOffset() + x);
         }
 
         private static void readFully(FileChannel file, long pos, ByteBuffer dst)
@@ -334,13 +353,8 @@ public class FilePathEncrypt extends FilePathWrapper {
             ByteBuffer crypt = ByteBuffer.allocate(len);
             crypt.put(src);
             crypt.flip();
-            long block = position / BLOCK_SIZE;
-            int x = 0, l = len;
-            while (l > 0) {
-                xts.encrypt(block++, BLOCK_SIZE, crypt.array(), crypt.arrayOffset() + x);
-                x += BLOCK_SIZE;
-                l -= BLOCK_SIZE;
-            }
+            xts.encryptSectors(position / BLOCK_SIZE, BLOCK_SIZE, len,
+                    crypt.array(), crypt.arrayOffset());
             writeFully(base, position + HEADER_LENGTH, crypt);
         }
 
@@ -426,102 +440,112 @@ public class FilePathEncrypt extends FilePathWrapper {
 
         private final BlockCipher cipher;
 
+        /**
+         * The buffer for the tweak values, per thread (reused to avoid
+         * allocating memory), so that sectors can be encrypted and decrypted
+         * concurrently.
+         */
+        private final ThreadLocal<byte[]> tweaks = new ThreadLocal<byte[]>();
+
         XTS(BlockCipher cipher) {
             this.cipher = cipher;
         }
 
         /**
-         * Encrypt the data.
+         * Encrypt a number of complete sectors. All tweak values are
+         * calculated first, so that the cipher can encrypt all blocks in one
+         * call (which is much faster for ciphers that use AES-NI).
          *
-         * @param id the (sector) id
-         * @param len the number of bytes
+         * @param id the id of the first sector
+         * @param sectorLen the length of a sector (a multiple of 16)
+         * @param len the number of bytes (a multiple of the sector length)
          * @param data the data
          * @param offset the offset within the data
          */
-        void encrypt(long id, int len, byte[] data, int offset) {
-            byte[] tweak = initTweak(id);
-            int i = 0;
-            for (; i + CIPHER_BLOCK_SIZE <= len; i += CIPHER_BLOCK_SIZE) {
-                if (i > 0) {
-                    updateTweak(tweak);
-                }
-                xorTweak(data, i + offset, tweak);
-                cipher.encrypt(data, i + offset, CIPHER_BLOCK_SIZE);
-                xorTweak(data, i + offset, tweak);
-            }
-            if (i < len) {
-                updateTweak(tweak);
-                swap(data, i + offset, i - CIPHER_BLOCK_SIZE + offset, len - i);
-                xorTweak(data, i - CIPHER_BLOCK_SIZE + offset, tweak);
-                cipher.encrypt(data, i - CIPHER_BLOCK_SIZE + offset, CIPHER_BLOCK_SIZE);
-                xorTweak(data, i - CIPHER_BLOCK_SIZE + offset, tweak);
-            }
+        void encryptSectors(long id, int sectorLen, int len,
+                byte[] data, int offset) {
+            byte[] t = initTweaks(id, sectorLen, len);
+            xorTweaks(data, offset, t, len);
+            cipher.encrypt(data, offset, len);
+            xorTweaks(data, offset, t, len);
         }
 
         /**
-         * Decrypt the data.
+         * Decrypt a number of complete sectors.
          *
-         * @param id the (sector) id
-         * @param len the number of bytes
+         * @param id the id of the first sector
+         * @param sectorLen the length of a sector (a multiple of 16)
+         * @param len the number of bytes (a multiple of the sector length)
          * @param data the data
          * @param offset the offset within the data
          */
-        void decrypt(long id, int len, byte[] data, int offset) {
-            byte[] tweak = initTweak(id), tweakEnd = tweak;
-            int i = 0;
-            for (; i + CIPHER_BLOCK_SIZE <= len; i += CIPHER_BLOCK_SIZE) {
-                if (i > 0) {
-                    updateTweak(tweak);
-                    if (i + CIPHER_BLOCK_SIZE + CIPHER_BLOCK_SIZE > len &&
-                            i + CIPHER_BLOCK_SIZE < len) {
-                        tweakEnd = tweak.clone();
-                        updateTweak(tweak);
-                    }
-                }
-                xorTweak(data, i + offset, tweak);
-                cipher.decrypt(data, i + offset, CIPHER_BLOCK_SIZE);
-                xorTweak(data, i + offset, tweak);
-            }
-            if (i < len) {
-                swap(data, i, i - CIPHER_BLOCK_SIZE + offset, len - i + offset);
-                xorTweak(data, i - CIPHER_BLOCK_SIZE  + offset, tweakEnd);
-                cipher.decrypt(data, i - CIPHER_BLOCK_SIZE + offset, CIPHER_BLOCK_SIZE);
-                xorTweak(data, i - CIPHER_BLOCK_SIZE + offset, tweakEnd);
-            }
+        void decryptSectors(long id, int sectorLen, int len,
+                byte[] data, int offset) {
+            byte[] t = initTweaks(id, sectorLen, len);
+            xorTweaks(data, offset, t, len);
+            cipher.decrypt(data, offset, len);
+            xorTweaks(data, offset, t, len);
         }
 
-        private byte[] initTweak(long id) {
-            byte[] tweak = new byte[CIPHER_BLOCK_SIZE];
-            for (int j = 0; j < CIPHER_BLOCK_SIZE; j++, id >>>= 8) {
-                tweak[j] = (byte) (id & 0xff);
+        /**
+         * Calculate the tweak values for each cipher block of the given
+         * sectors.
+         *
+         * @param id the id of the first sector
+         * @param sectorLen the length of a sector
+         * @param len the number of bytes
+         * @return the tweak values (at least len bytes)
+         */
+        private byte[] initTweaks(long id, int sectorLen, int len) {
+            byte[] t = tweaks.get();
+            if (t == null || t.length < len) {
+                t = new byte[len];
+                tweaks.set(t);
+            }
+            int count = len / sectorLen;
+            // encrypt the sector ids in one call
+            for (int i = 0; i < count; i++) {
+                writeLong(t, i * CIPHER_BLOCK_SIZE, id + i);
+                writeLong(t, i * CIPHER_BLOCK_SIZE + 8, 0);
+            }
+            cipher.encrypt(t, 0, count * CIPHER_BLOCK_SIZE);
+            // move them to the start of each sector (backwards, as the target
+            // is never before the source), and derive the following tweaks
+            for (int i = count - 1; i >= 0; i--) {
+                int start = i * sectorLen;
+                long lo = readLong(t, i * CIPHER_BLOCK_SIZE);
+                long hi = readLong(t, i * CIPHER_BLOCK_SIZE + 8);
+                for (int p = start; p < start + sectorLen; p += CIPHER_BLOCK_SIZE) {
+                    if (p > start) {
+                        // multiply by alpha in GF(2^128)
+                        long carry = hi >> 63;
+                        hi = (hi << 1) | (lo >>> 63);
+                        lo = (lo << 1) ^ (carry & GF_128_FEEDBACK);
+                    }
+                    writeLong(t, p, lo);
+                    writeLong(t, p + 8, hi);
+                }
             }
-            cipher.encrypt(tweak, 0, CIPHER_BLOCK_SIZE);
-            return tweak;
+            return t;
         }
 
-        private static void xorTweak(byte[] data, int pos, byte[] tweak) {
-            for (int i = 0; i < CIPHER_BLOCK_SIZE; i++) {
-                data[pos + i] ^= tweak[i];
+        private static void xorTweaks(byte[] data, int offset, byte[] t, int len) {
+            for (int i = 0; i < len; i++) {
+                data[offset + i] ^= t[i];
             }
         }
 
-        private static void updateTweak(byte[] tweak) {
-            byte ci = 0, co = 0;
-            for (int i = 0; i < CIPHER_BLOCK_SIZE; i++) {
-                co = (byte) ((tweak[i] >> 7) & 1);
-                tweak[i] = (byte) (((tweak[i] << 1) + ci) & 255);
-                ci = co;
-            }
-            if (co != 0) {
-                tweak[0] ^= GF_128_FEEDBACK;
+        private static long readLong(byte[] b, int pos) {
+            long x = 0;
+            for (int i = 7; i >= 0; i--) {
+                x = (x << 8) | (b[pos + i] & 0xff);
             }
+            return x;
         }
 
-        private static void swap(byte[] data, int source, int target, int len) {
-            for (int i = 0; i < len; i++) {
-                byte temp = data[source + i];
-                data[source + i] = data[target + i];
-                data[target + i] = temp;
+        private static void writeLong(byte[] b, int pos, long x) {
+            for (int i = 0; i < 8; i++, x >>>= 8) {
+                b[pos + i] = (byte) x;
             }
         }
 
@@ -5,20 +5,23 @@
  */
 package com.neradb.common.io;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.NonWritableChannelException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.neradb.common.SysProperties;
+import com.neradb.common.utils.New;
 
 /**
  * This file system stores files on disk and uses java.nio to access the files.
@@ -39,23 +42,49 @@ public class FilePathNioMapped extends FilePathNio {
 }
 
 /**
- * Uses memory mapped files.
- * The file size is limited to 2 GB.
+ * Uses memory mapped files. Files larger than 1 GB are mapped using multiple
+ * buffers (segments).
+ * <p>
+ * The mapping is an immutable snapshot that is replaced when the file size
+ * changes, so that positional reads don't need to synchronize: they read from
+ * a duplicate of the mapped buffers of the current snapshot. Each snapshot
+ * counts the readers that use it. A replaced snapshot is retired (it accepts
+ * no new readers), and before the file is truncated or the buffers are
+ * released, the file waits until the retired snapshots have no readers, so
+ * no reader can touch memory that is no longer backed by the file. Writes,
+ * changing the file size, and the relative read and write operations are
+ * synchronized.
+ * </p>
  */
 class FileNioMapped extends FileBase {
 
+    /**
+     * The size of a segment is 1 GB.
+     */
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
     private static final long GC_TIMEOUT_MS = 10000;
     private final String name;
     private final MapMode mode;
     private RandomAccessFile file;
-    private MappedByteBuffer mapped;
-    private long fileLength;
+
+    /**
+     * The current mapping, or null if the file is closed or is being
+     * re-mapped.
+     */
+    private volatile Mapping mapping;
+
+    /**
+     * The replaced mappings that may still have readers.
+     */
+    private final ArrayList<Mapping> retired = New.arrayList();
 
     /**
      * The position within the file. Can't use the position of the mapped buffer
      * because it doesn't support seeking past the end of the file.
      */
-    private int pos;
+    private long pos;
 
     FileNioMapped(String fileName, String mode) throws IOException {
         if ("r".equals(mode)) {
@@ -65,87 +94,180 @@ class FileNioMapped extends FileBase {
         }
         this.name = fileName;
         file = new RandomAccessFile(fileName, mode);
-        reMap();
+        reMap(file.length());
     }
 
     private void unMap() throws IOException {
-        if (mapped == null) {
+        Mapping m = mapping;
+        if (m == null) {
             return;
         }
+        mapping = null;
+        retire(m);
+        // no reader may use a buffer once it is cleaned
+        awaitReaders();
         // first write all data
-        mapped.force();
+        m.force();
 
         // need to dispose old direct buffer, see bug
         // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4724038
 
-        boolean useSystemGc = true;
-        if (SysProperties.NIO_CLEANER_HACK) {
-            try {
-                Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+        if (SysProperties.NIO_CLEANER_HACK && clean(m.segments)) {
+            return;
+        }
+        ArrayList<WeakReference<MappedByteBuffer>> bufferWeakRefs =
+                getWeakReferences(m.segments);
+        m = null;
+        long start = System.nanoTime();
+        while (isReachable(bufferWeakRefs)) {
+            long waited = System.nanoTime() - start;
+            if (waited > TimeUnit.MILLISECONDS.toNanos(GC_TIMEOUT_MS)) {
+                throw new IOException("Timeout (" + GC_TIMEOUT_MS
+                        + " ms) reached while trying to GC mapped buffer");
+            }
+            System.gc();
+            Thread.yield();
+        }
+    }
+
+    private static boolean clean(MappedByteBuffer[] buffers) {
+        try {
+            for (MappedByteBuffer buff : buffers) {
+                Method cleanerMethod = buff.getClass().getMethod("cleaner");
                 cleanerMethod.setAccessible(true);
-                Object cleaner = cleanerMethod.invoke(mapped);
+                Object cleaner = cleanerMethod.invoke(buff);
                 if (cleaner != null) {
                     Method clearMethod = cleaner.getClass().getMethod("clean");
                     clearMethod.invoke(cleaner);
                 }
-                useSystemGc = false;
-            } catch (Throwable e) {
-                // useSystemGc is already true
-            } finally {
-                mapped = null;
             }
+            return true;
+        } catch (Throwable e) {
+            return false;
         }
-        if (useSystemGc) {
-            WeakReference<MappedByteBuffer> bufferWeakRef =
-                    new WeakReference<MappedByteBuffer>(mapped);
-            mapped = null;
-            long start = System.nanoTime();
-            while (bufferWeakRef.get() != null) {
-                if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(GC_TIMEOUT_MS)) {
-                    throw new IOException("Timeout (" + GC_TIMEOUT_MS
-                            + " ms) reached while trying to GC mapped buffer");
-                }
-                System.gc();
-                Thread.yield();
+    }
+
+    private static ArrayList<WeakReference<MappedByteBuffer>> getWeakReferences(
+            MappedByteBuffer[] buffers) {
+        // a separate method, so that no local variable of the caller keeps
+        // a buffer reachable
+        ArrayList<WeakReference<MappedByteBuffer>> refs = New.arrayList();
+        for (MappedByteBuffer buff : buffers) {
+            refs.add(new WeakReference<MappedByteBuffer>(buff));
+        }
+        return refs;
+    }
+
+    /**
+     * Stop new readers from using a mapping that was replaced.
+     *
+     * @param m the mapping
+     */
+    private void retire(Mapping m) {
+        m.retire();
+        for (Iterator<Mapping> it = retired.iterator(); it.hasNext();) {
+            if (!it.next().hasReaders()) {
+                it.remove();
             }
         }
+        retired.add(m);
     }
 
     /**
-     * Re-map byte buffer into memory, called when file size has changed or file
-     * was created.
+     * Wait until no reader uses a replaced mapping.
      */
-    private void reMap() throws IOException {
-        int oldPos = 0;
-        if (mapped != null) {
-            oldPos = pos;
-            unMap();
+    private void awaitReaders() {
+        for (Mapping m : retired) {
+            m.awaitReaders();
         }
-        fileLength = file.length();
-        checkFileSizeLimit(fileLength);
-        // maps new MappedByteBuffer; the old one is disposed during GC
-        mapped = file.getChannel().map(mode, 0, fileLength);
-        int limit = mapped.limit();
-        int capacity = mapped.capacity();
-        if (limit < fileLength || capacity < fileLength) {
-            throw new IOException("Unable to map: length=" + limit +
-                    " capacity=" + capacity + " length=" + fileLength);
+        retired.clear();
+    }
+
+    private static boolean isReachable(
+            ArrayList<WeakReference<MappedByteBuffer>> refs) {
+        for (WeakReference<MappedByteBuffer> ref : refs) {
+            if (ref.get() != null) {
+                return true;
+            }
         }
-        if (SysProperties.NIO_LOAD_MAPPED) {
-            mapped.load();
+        return false;
+    }
+
+    /**
+     * Map the given length of the file into memory, called when file size has
+     * changed or file was created. Segments that didn't change are re-used.
+     * The old mapping is not retired; this is up to the caller.
+     *
+     * @param length the length to map
+     * @return the old mapping, or null
+     */
+    private Mapping reMap(long length) throws IOException {
+        Mapping old = mapping;
+        int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] segments = new MappedByteBuffer[count];
+        FileChannel channel = file.getChannel();
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            long size = Math.min(SEGMENT_SIZE, length - start);
+            if (old != null && i < old.segments.length &&
+                    old.segments[i].capacity() == size) {
+                segments[i] = old.segments[i];
+                continue;
+            }
+            MappedByteBuffer buff = channel.map(mode, start, size);
+            int limit = buff.limit();
+            int capacity = buff.capacity();
+            if (limit < size || capacity < size) {
+                throw new IOException("Unable to map: length=" + limit +
+                        " capacity=" + capacity + " length=" + size);
+            }
+            if (SysProperties.NIO_LOAD_MAPPED) {
+                buff.load();
+            }
+            segments[i] = buff;
         }
-        this.pos = Math.min(oldPos, (int) fileLength);
+        mapping = new Mapping(segments, length);
+        return old;
     }
 
-    private static void checkFileSizeLimit(long length) throws IOException {
-        if (length > Integer.MAX_VALUE) {
-            throw new IOException(
-                    "File over 2GB is not supported yet when using this file system");
+    /**
+     * Get the current mapping. While the file is re-mapped without a mapping
+     * (only if truncating a mapped file is not possible), this waits.
+     *
+     * @return the mapping
+     */
+    private Mapping getMapping() throws IOException {
+        while (true) {
+            Mapping m = mapping;
+            if (m != null) {
+                return m;
+            }
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Get the current mapping and register as a reader. The caller needs to
+     * call Mapping.release when done.
+     *
+     * @return the mapping
+     */
+    private Mapping acquireMapping() throws IOException {
+        while (true) {
+            Mapping m = getMapping();
+            if (m.acquire()) {
+                return m;
+            }
+            // just replaced
+            Thread.yield();
         }
     }
 
     @Override
-    public void implCloseChannel() throws IOException {
+    public synchronized void implCloseChannel() throws IOException {
         if (file != null) {
             unMap();
             file.close();
@@ -164,41 +286,53 @@ class FileNioMapped extends FileBase {
     }
 
     @Override
-    public synchronized long size() throws IOException {
-        return fileLength;
+    public long size() throws IOException {
+        return getMapping().length;
     }
 
     @Override
     public synchronized int read(ByteBuffer dst) throws IOException {
+        int len = read(dst, pos);
+        if (len > 0) {
+            pos += len;
+        }
+        return len;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("pos: " + position);
+        }
+        int len = dst.remaining();
+        if (len == 0) {
+            return 0;
+        }
+        Mapping m = acquireMapping();
         try {
-            int len = dst.remaining();
-            if (len == 0) {
-                return 0;
-            }
-            len = (int) Math.min(len, fileLength - pos);
+            len = (int) Math.min(len, m.length - position);
             if (len <= 0) {
                 return -1;
             }
-            mapped.position(pos);
-            mapped.get(dst.array(), dst.arrayOffset() + dst.position(), len);
-            dst.position(dst.position() + len);
-            pos += len;
-            return len;
-        } catch (IllegalArgumentException e) {
-            EOFException e2 = new EOFException("EOF");
-            e2.initCause(e);
-            throw e2;
-        } catch (BufferUnderflowException e) {
-            EOFException e2 = new EOFException("EOF");
-            e2.initCause(e);
-            throw e2;
+            for (int remaining = len; remaining > 0;) {
+                ByteBuffer buff = m.getSegment(position);
+                int offset = (int) (position & (SEGMENT_SIZE - 1));
+                int l = Math.min(remaining, buff.capacity() - offset);
+                buff.limit(offset + l);
+                buff.position(offset);
+                dst.put(buff);
+                position += l;
+                remaining -= l;
+            }
+        } finally {
+            m.release();
         }
+        return len;
     }
 
     @Override
     public FileChannel position(long pos) throws IOException {
-        checkFileSizeLimit(pos);
-        this.pos = (int) pos;
+        this.pos = pos;
         return this;
     }
 
@@ -215,9 +349,31 @@ class FileNioMapped extends FileBase {
     }
 
     public synchronized void setFileLength(long newLength) throws IOException {
-        checkFileSizeLimit(newLength);
-        int oldPos = pos;
-        unMap();
+        if (newLength < size()) {
+            // new readers only see the remaining part; once the readers of
+            // the old mapping are done, the removed part is not accessed
+            retire(reMap(newLength));
+            awaitReaders();
+            try {
+                file.setLength(newLength);
+            } catch (IOException e) {
+                // the mapping needs to be released first; readers wait
+                unMap();
+                setLength(newLength);
+                reMap(newLength);
+            }
+        } else {
+            setLength(newLength);
+            // the old mapping stays valid for its readers
+            Mapping old = reMap(newLength);
+            if (old != null) {
+                retire(old);
+            }
+        }
+        pos = Math.min(newLength, pos);
+    }
+
+    private void setLength(long newLength) throws IOException {
         for (int i = 0;; i++) {
             try {
                 file.setLength(newLength);
@@ -229,26 +385,46 @@ class FileNioMapped extends FileBase {
             }
             System.gc();
         }
-        reMap();
-        pos = (int) Math.min(newLength, oldPos);
     }
 
     @Override
     public void force(boolean metaData) throws IOException {
-        mapped.force();
+        Mapping m = acquireMapping();
+        try {
+            m.force();
+        } finally {
+            m.release();
+        }
         file.getFD().sync();
     }
 
     @Override
     public synchronized int write(ByteBuffer src) throws IOException {
+        int len = write(src, pos);
+        pos += len;
+        return len;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src, long position)
+            throws IOException {
         int len = src.remaining();
         // check if need to expand file
-        if (mapped.capacity() < pos + len) {
-            setFileLength(pos + len);
+        if (size() < position + len) {
+            setFileLength(position + len);
+        }
+        Mapping m = getMapping();
+        int oldLimit = src.limit();
+        while (src.hasRemaining()) {
+            ByteBuffer buff = m.getSegment(position);
+            int offset = (int) (position & (SEGMENT_SIZE - 1));
+            int l = Math.min(src.remaining(), buff.capacity() - offset);
+            buff.position(offset);
+            src.limit(src.position() + l);
+            buff.put(src);
+            src.limit(oldLimit);
+            position += l;
         }
-        mapped.position(pos);
-        mapped.put(src);
-        pos += len;
         return len;
     }
 
@@ -258,4 +434,95 @@ class FileNioMapped extends FileBase {
         return file.getChannel().tryLock(position, size, shared);
     }
 
+    /**
+     * An immutable snapshot of the mapped segments of the file, with the
+     * number of readers that currently use it.
+     */
+    private static final class Mapping {
+
+        /**
+         * The bit of the reader count that is set once the mapping was
+         * replaced.
+         */
+        private static final int RETIRED = Integer.MIN_VALUE;
+
+        final MappedByteBuffer[] segments;
+        final long length;
+        private final AtomicInteger readers = new AtomicInteger();
+
+        Mapping(MappedByteBuffer[] segments, long length) {
+            this.segments = segments;
+            this.length = length;
+        }
+
+        /**
+         * Register a reader.
+         *
+         * @return false if the mapping was already retired
+         */
+        boolean acquire() {
+            while (true) {
+                int x = readers.get();
+                if (x < 0) {
+                    return false;
+                }
+                if (readers.compareAndSet(x, x + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Unregister a reader.
+         */
+        void release() {
+            readers.decrementAndGet();
+        }
+
+        /**
+         * Don't accept new readers. The mapping must no longer be the current
+         * mapping.
+         */
+        void retire() {
+            while (true) {
+                int x = readers.get();
+                if (readers.compareAndSet(x, x | RETIRED)) {
+                    break;
+                }
+            }
+        }
+
+        boolean hasReaders() {
+            return (readers.get() & ~RETIRED) != 0;
+        }
+
+        /**
+         * Wait until all readers are done.
+         */
+        void awaitReaders() {
+            while (hasReaders()) {
+                Thread.yield();
+            }
+        }
+
+        /**
+         * Get a duplicate of the segment that contains the given position, so
+         * that the position and limit can be changed without affecting other
+         * threads.
+         *
+         * @param position the position within the file
+         * @return the buffer
+         */
+        ByteBuffer getSegment(long position) {
+            return segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+        }
+
+        void force() {
+            for (MappedByteBuffer buff : segments) {
+                buff.force();
+            }
+        }
+
+    }
+
 }
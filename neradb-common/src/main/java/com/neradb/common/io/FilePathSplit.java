@@ -250,9 +250,15 @@ class FileSplit extends FileBase {
     private final FilePathSplit file;
     private final String mode;
     private final long maxLength;
-    private FileChannel[] list;
+
+    /**
+     * The part files. The array is replaced (not changed) when parts are
+     * added or removed, so that positional reads can use it without
+     * synchronization.
+     */
+    private volatile FileChannel[] list;
     private long filePointer;
-    private long length;
+    private volatile long length;
 
     FileSplit(FilePathSplit file, String mode, FileChannel[] list, long length,
             long maxLength) {
@@ -281,7 +287,7 @@ class FileSplit extends FileBase {
     }
 
     @Override
-    public synchronized int read(ByteBuffer dst, long position)
+    public int read(ByteBuffer dst, long position)
             throws IOException {
         int len = dst.remaining();
         if (len == 0) {
@@ -293,8 +299,20 @@ class FileSplit extends FileBase {
         }
         long offset = position % maxLength;
         len = (int) Math.min(len, maxLength - offset);
-        FileChannel channel = getFileChannel(position);
-        return channel.read(dst, offset);
+        int id = (int) (position / maxLength);
+        FileChannel[] l = list;
+        // positional reads of the part files don't need a lock
+        FileChannel channel = id < l.length ? l[id] : getFileChannel(position);
+        if (len == dst.remaining()) {
+            return channel.read(dst, offset);
+        }
+        int oldLimit = dst.limit();
+        dst.limit(dst.position() + len);
+        try {
+            return channel.read(dst, offset);
+        } finally {
+            dst.limit(oldLimit);
+        }
     }
 
     @Override
@@ -322,7 +340,8 @@ class FileSplit extends FileBase {
         return this;
     }
 
-    private FileChannel getFileChannel(long position) throws IOException {
+    private synchronized FileChannel getFileChannel(long position)
+            throws IOException {
         int id = (int) (position / maxLength);
         while (id >= list.length) {
             int i = list.length;
@@ -336,7 +355,7 @@ class FileSplit extends FileBase {
     }
 
     @Override
-    public FileChannel truncate(long newLength) throws IOException {
+    public synchronized FileChannel truncate(long newLength) throws IOException {
         if (newLength >= length) {
             return this;
         }
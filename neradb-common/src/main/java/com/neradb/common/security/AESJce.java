@@ -0,0 +1,104 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.common.security;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.neradb.common.DbException;
+
+/**
+ * An AES-128 block cipher that uses the AES implementation of the JDK
+ * (javax.crypto, in ECB mode without padding). The JVM compiles this to the
+ * AES instructions of the processor where available (AES-NI), so that it is
+ * much faster than the pure Java {@link AES} implementation, specially if
+ * many blocks are encrypted in one call. The result is the same.
+ * <p>
+ * A Cipher object can't be used concurrently, so each thread has its own.
+ * </p>
+ */
+public class AESJce implements BlockCipher {
+
+    private static final String TRANSFORMATION = "AES/ECB/NoPadding";
+
+    private volatile ThreadLocal<Cipher> encryptCipher;
+    private volatile ThreadLocal<Cipher> decryptCipher;
+
+    /**
+     * Check whether the JDK supports AES in ECB mode.
+     *
+     * @return true if yes
+     */
+    public static boolean isAvailable() {
+        try {
+            Cipher.getInstance(TRANSFORMATION);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void setKey(byte[] key) {
+        SecretKeySpec spec = new SecretKeySpec(key, 0, 16, "AES");
+        // fail early if the key is not supported
+        createCipher(Cipher.ENCRYPT_MODE, spec);
+        encryptCipher = createCiphers(Cipher.ENCRYPT_MODE, spec);
+        decryptCipher = createCiphers(Cipher.DECRYPT_MODE, spec);
+    }
+
+    private static ThreadLocal<Cipher> createCiphers(final int mode,
+            final SecretKeySpec spec) {
+        return new ThreadLocal<Cipher>() {
+            @Override
+            protected Cipher initialValue() {
+                return createCipher(mode, spec);
+            }
+        };
+    }
+
+    private static Cipher createCipher(int mode, SecretKeySpec spec) {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, spec);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    @Override
+    public void encrypt(byte[] bytes, int off, int len) {
+        update(encryptCipher.get(), bytes, off, len);
+    }
+
+    @Override
+    public void decrypt(byte[] bytes, int off, int len) {
+        update(decryptCipher.get(), bytes, off, len);
+    }
+
+    private static void update(Cipher cipher, byte[] bytes, int off, int len) {
+        if (len == 0) {
+            return;
+        }
+        try {
+            // in ECB mode without padding, all complete blocks are processed
+            // immediately, and there is no state between calls
+            cipher.update(bytes, off, len, bytes, off);
+        } catch (ShortBufferException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    @Override
+    public int getKeyLength() {
+        return 16;
+    }
+
+}
@@ -90,6 +90,9 @@ public class CipherFactory {
             return new XTEA();
         } else if ("AES".equalsIgnoreCase(algorithm)) {
             return new AES();
+        } else if ("AES_JCE".equalsIgnoreCase(algorithm)) {
+            // same result as AES, but faster if the JDK uses AES-NI
+            return AESJce.isAvailable() ? new AESJce() : new AES();
         } else if ("FOG".equalsIgnoreCase(algorithm)) {
             return new Fog();
         }
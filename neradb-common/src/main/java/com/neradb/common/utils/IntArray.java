@@ -69,6 +69,21 @@ public class IntArray {
         return data[index];
     }
 
+    /**
+     * Replace the value at the given index.
+     *
+     * @param index the index
+     * @param value the new value
+     */
+    public void set(int index, int value) {
+        if (SysProperties.CHECK) {
+            if (index >= size) {
+                throw new ArrayIndexOutOfBoundsException("i=" + index + " size=" + size);
+            }
+        }
+        data[index] = value;
+    }
+
     /**
      * Remove the value at the given index.
      *
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.common.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies (or any other non-negative long values).
+ * Values are counted in log-linear buckets: each power of two is split into
+ * 16 linear sub-buckets, so that the relative error of a reported percentile
+ * is at most about 6%, independent of the magnitude of the value. Recording a
+ * value never blocks: the bucket is incremented atomically, and the total
+ * count and sum are striped counters, so that many threads can record values
+ * at the same time without contention.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT =
+            (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalSum = new LongAdder();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are counted as 0.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(getBucket(value));
+        totalCount.increment();
+        totalSum.add(value);
+        long max;
+        do {
+            max = maxValue.get();
+        } while (value > max && !maxValue.compareAndSet(max, value));
+    }
+
+    /**
+     * Add all values of the other histogram to this histogram.
+     *
+     * @param other the other histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        totalCount.add(other.totalCount.sum());
+        totalSum.add(other.totalSum.sum());
+        long otherMax = other.maxValue.get();
+        long max;
+        do {
+            max = maxValue.get();
+        } while (otherMax > max && !maxValue.compareAndSet(max, otherMax));
+    }
+
+    /**
+     * Remove all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalSum.reset();
+        maxValue.set(0);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * Get the arithmetic mean of all recorded values.
+     *
+     * @return the mean, or 0 if no values were recorded
+     */
+    public double getMean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalSum.sum() / count;
+    }
+
+    /**
+     * Get the value at the given percentile. The returned value is the upper
+     * bound of the bucket that contains the percentile, but never more than
+     * the largest recorded value.
+     *
+     * @param percentile the percentile (0 to 100, for example 99.9)
+     * @return the value, or 0 if no values were recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.sum();
+        if (count == 0) {
+            return 0;
+        }
+        double p = Math.min(100, Math.max(0, percentile));
+        long target = Math.max(1, (long) Math.ceil(p / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(getBucketUpperBound(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + sub;
+    }
+
+    private static long getBucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        long sub = SUB_BUCKET_COUNT + bucket % SUB_BUCKET_COUNT;
+        long upper = ((sub + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + getCount() +
+                " mean: " + (long) getMean() +
+                " p50: " + getValueAtPercentile(50) +
+                " p99: " + getValueAtPercentile(99) +
+                " p999: " + getValueAtPercentile(99.9) +
+                " max: " + getMax();
+    }
+
+}
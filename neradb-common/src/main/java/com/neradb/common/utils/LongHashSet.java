@@ -0,0 +1,97 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.common.utils;
+
+import com.neradb.common.DbException;
+
+/**
+ * A hash set of long values, using open addressing. The key 0 is stored
+ * separately, so that 0 can mark an empty slot. Elements can not be removed.
+ */
+public class LongHashSet extends HashBase {
+
+    private long[] keys;
+
+    @Override
+    protected void reset(int newLevel) {
+        super.reset(newLevel);
+        keys = new long[len];
+    }
+
+    /**
+     * Add a value to the set.
+     *
+     * @param key the value
+     */
+    public void add(long key) {
+        if (key == 0) {
+            zeroKey = true;
+            return;
+        }
+        checkSizePut();
+        internalAdd(key);
+    }
+
+    private void internalAdd(long key) {
+        int index = getIndex(hash(key));
+        int plus = 1;
+        do {
+            long k = keys[index];
+            if (k == 0) {
+                size++;
+                keys[index] = key;
+                return;
+            } else if (k == key) {
+                return;
+            }
+            index = (index + plus++) & mask;
+        } while (plus <= len);
+        // no space
+        DbException.throwInternalError("hashset is full");
+    }
+
+    /**
+     * Check whether the set contains the given value.
+     *
+     * @param key the value
+     * @return true if it does
+     */
+    public boolean contains(long key) {
+        if (key == 0) {
+            return zeroKey;
+        }
+        int index = getIndex(hash(key));
+        int plus = 1;
+        do {
+            long k = keys[index];
+            if (k == key) {
+                return true;
+            } else if (k == 0) {
+                return false;
+            }
+            index = (index + plus++) & mask;
+        } while (plus <= len);
+        return false;
+    }
+
+    @Override
+    protected void rehash(int newLevel) {
+        long[] oldKeys = keys;
+        reset(newLevel);
+        for (long k : oldKeys) {
+            if (k != 0) {
+                internalAdd(k);
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        // spread the bits, as only the lowest bits are used as the index
+        int h = (int) (key ^ (key >>> 32));
+        return h * 0x9e3779b9;
+    }
+
+}
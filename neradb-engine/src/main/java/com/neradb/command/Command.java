@@ -6,6 +6,7 @@
 package com.neradb.command;
 
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 
 import com.neradb.command.expression.ParameterInterface;
@@ -17,6 +18,8 @@ import com.neradb.dbobject.Database;
 import com.neradb.engine.Session;
 import com.neradb.message.Trace;
 import com.neradb.result.ResultInterface;
+import com.neradb.value.Value;
+import com.neradb.value.ValueNull;
 
 /**
  * Represents a SQL statement. This object is only used on the server side.
@@ -295,6 +298,96 @@ public abstract class Command implements CommandInterface {
         }
     }
 
+    @Override
+    public int[] executeBatchUpdate(ArrayList<Value[]> batchParameters,
+            ArrayList<Value> generatedKeys, DbException[] errors) {
+        int size = batchParameters.size();
+        int[] result = new int[size];
+        Database database = session.getDatabase();
+        Object sync = database.isMultiThreaded() ? (Object) session : (Object) database;
+        session.waitIfExclusiveModeEnabled();
+        boolean callStop = true;
+        boolean writing = !isReadOnly();
+        if (writing) {
+            while (!database.beforeWriting()) {
+                // wait
+            }
+        }
+        synchronized (sync) {
+            session.setCurrentCommand(this);
+            try {
+                ArrayList<? extends ParameterInterface> parameters = getParameters();
+                for (int i = 0; i < size; i++) {
+                    Value[] set = batchParameters.get(i);
+                    for (int j = 0; j < set.length; j++) {
+                        parameters.get(j).setValue(set[j], false);
+                    }
+                    Session.Savepoint rollback = session.setSavepoint();
+                    long start = 0;
+                    try {
+                        while (true) {
+                            database.checkPowerOff();
+                            try {
+                                result[i] = update();
+                                break;
+                            } catch (DbException e) {
+                                start = filterConcurrentUpdate(e, start);
+                            }
+                        }
+                        if (generatedKeys != null) {
+                            Value key = session.getLastScopeIdentity();
+                            if (key != null && key != ValueNull.INSTANCE) {
+                                generatedKeys.add(key);
+                            }
+                        }
+                    } catch (OutOfMemoryError e) {
+                        callStop = false;
+                        database.shutdownImmediately();
+                        throw DbException.convert(e);
+                    } catch (Throwable t) {
+                        DbException e = DbException.convert(t).addSQL(sql);
+                        SQLException s = e.getSQLException();
+                        database.exceptionThrown(s, sql);
+                        if (s.getErrorCode() == ErrorCode.OUT_OF_MEMORY) {
+                            callStop = false;
+                            database.shutdownImmediately();
+                            throw e;
+                        }
+                        database.checkPowerOff();
+                        if (s.getErrorCode() == ErrorCode.DEADLOCK_1) {
+                            session.rollback();
+                            if (session.getAutoCommit()) {
+                                // the earlier executions of this batch were
+                                // not committed yet, and are now lost as well
+                                for (int k = 0; k < i; k++) {
+                                    if (errors[k] == null) {
+                                        result[k] = Statement.EXECUTE_FAILED;
+                                        errors[k] = e;
+                                    }
+                                }
+                            }
+                        } else {
+                            session.rollbackTo(rollback, false);
+                        }
+                        result[i] = Statement.EXECUTE_FAILED;
+                        errors[i] = e;
+                    }
+                }
+                return result;
+            } finally {
+                try {
+                    if (callStop) {
+                        stop();
+                    }
+                } finally {
+                    if (writing) {
+                        database.afterWriting();
+                    }
+                }
+            }
+        }
+    }
+
     private long filterConcurrentUpdate(DbException e, long start) {
         int errorCode = e.getErrorCode();
         if (errorCode != ErrorCode.CONCURRENT_UPDATE_1 &&
@@ -8,7 +8,9 @@ package com.neradb.command;
 import java.util.ArrayList;
 
 import com.neradb.command.expression.ParameterInterface;
+import com.neradb.common.DbException;
 import com.neradb.result.ResultInterface;
+import com.neradb.value.Value;
 
 /**
  * Represents a SQL statement.
@@ -504,6 +506,22 @@ public interface CommandInterface {
      */
     int executeUpdate();
 
+    /**
+     * Execute the statement once for each set of parameter values, as one
+     * unit: the statement is started and stopped (and committed, if auto
+     * commit is enabled) only once. A failed execution is rolled back and
+     * does not stop the remaining executions.
+     *
+     * @param batchParameters the parameter values, one array per execution
+     * @param generatedKeys the list to add the generated keys to, or null
+     * @param errors the array to store the exception of each failed
+     *            execution (same size as the batch)
+     * @return the update counts, or java.sql.Statement.EXECUTE_FAILED for a
+     *         failed execution
+     */
+    int[] executeBatchUpdate(ArrayList<Value[]> batchParameters,
+            ArrayList<Value> generatedKeys, DbException[] errors);
+
     /**
      * Stop the command execution, release all locks and resources
      */
@@ -5347,6 +5347,10 @@ public class Parser {
         } else if (readIf("JAVA_OBJECT_SERIALIZER")) {
             readIfEqualOrTo();
             return parseSetJavaObjectSerializer();
+        } else if (readIf("SYNCHRONOUS")) {
+            return parseSetSynchronous(SetTypes.SYNCHRONOUS);
+        } else if (readIf("DEFAULT_SYNCHRONOUS")) {
+            return parseSetSynchronous(SetTypes.DEFAULT_SYNCHRONOUS);
         } else {
             if (isToken("LOGSIZE")) {
                 // HSQLDB compatibility
@@ -5421,6 +5425,21 @@ public class Parser {
         return command;
     }
 
+    private Set parseSetSynchronous(int type) {
+        readIfEqualOrTo();
+        Set command = new Set(session, type);
+        if (readIf("OFF")) {
+            command.setInt(Constants.SYNCHRONOUS_OFF);
+        } else if (readIf("LOCAL")) {
+            command.setInt(Constants.SYNCHRONOUS_LOCAL);
+        } else if (readIf("FULL") || readIf("ON")) {
+            command.setInt(Constants.SYNCHRONOUS_FULL);
+        } else {
+            command.setExpression(readExpression());
+        }
+        return command;
+    }
+
     private RunScriptCommand parseRunScript() {
         RunScriptCommand command = new RunScriptCommand(session);
         read("FROM");
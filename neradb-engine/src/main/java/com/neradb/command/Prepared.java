@@ -13,6 +13,8 @@ import com.neradb.common.DbException;
 import com.neradb.common.ErrorCode;
 import com.neradb.common.utils.StatementBuilder;
 import com.neradb.dbobject.Database;
+import com.neradb.dbobject.table.TableFilter;
+import com.neradb.engine.QueryStatisticsData;
 import com.neradb.engine.Session;
 import com.neradb.message.Trace;
 import com.neradb.result.ResultInterface;
@@ -317,11 +319,24 @@ public abstract class Prepared {
         // statistics
         if (session.getDatabase().getQueryStatistics() && startTimeNanos != 0) {
             long deltaTimeNanos = System.nanoTime() - startTimeNanos;
-            session.getDatabase().getQueryStatisticsData().
-                    update(toString(), deltaTimeNanos, rowCount);
+            QueryStatisticsData data = session.getDatabase().getQueryStatisticsData();
+            if (data != null) {
+                data.update(toString(), deltaTimeNanos, rowCount, getTableFilters());
+            }
         }
     }
 
+    /**
+     * Get the table filters of this statement, to collect statistics about
+     * the rows read from each table.
+     *
+     * @return the table filters, or null if this statement doesn't read
+     *         tables
+     */
+    public ArrayList<TableFilter> getTableFilters() {
+        return null;
+    }
+
     /**
      * Set the prepare always flag.
      * If set, the statement is re-compiled whenever it is executed.
@@ -5,10 +5,13 @@
  */
 package com.neradb.command.dml;
 
+import java.util.ArrayList;
+
 import com.neradb.command.CommandInterface;
 import com.neradb.command.Prepared;
 import com.neradb.command.expression.Expression;
 import com.neradb.command.expression.ExpressionVisitor;
+import com.neradb.common.utils.New;
 import com.neradb.common.utils.StringUtils;
 import com.neradb.dbobject.Right;
 import com.neradb.dbobject.table.PlanItem;
@@ -108,6 +111,13 @@ public class Delete extends Prepared {
         }
     }
 
+    @Override
+    public ArrayList<TableFilter> getTableFilters() {
+        ArrayList<TableFilter> list = New.arrayList();
+        list.add(tableFilter);
+        return list;
+    }
+
     @Override
     public String getPlanSQL() {
         StringBuilder buff = new StringBuilder();
@@ -20,6 +20,13 @@ import com.neradb.value.ValueString;
 /**
  * This class represents the statement
  * EXPLAIN
+ * <p>
+ * For EXPLAIN ANALYZE, the statement is executed, and the plan contains the
+ * actual number of rows, the number of index lookups (loops) and the time per
+ * table, the number of groups and the time to group, the number of rows
+ * sorted or buffered with the time, memory used and whether the rows were
+ * spilled to disk, and the total rows and time of the statement.
+ * </p>
  */
 public class Explain extends Prepared {
 
@@ -71,12 +78,27 @@ public class Explain extends Prepared {
         if (maxrows >= 0) {
             String plan;
             if (executeCommand) {
-                if (command.isQuery()) {
-                    command.query(maxrows);
-                } else {
-                    command.update();
+                boolean lazy = session.isLazyQueryExecution();
+                // a lazy result would only be executed when it is read
+                session.setLazyQueryExecution(false);
+                session.setExplainAnalyze(true);
+                long start = System.nanoTime();
+                int rowCount;
+                try {
+                    if (command.isQuery()) {
+                        ResultInterface r = command.query(maxrows);
+                        rowCount = r.getRowCount();
+                        r.close();
+                    } else {
+                        rowCount = command.update();
+                    }
+                } finally {
+                    session.setExplainAnalyze(false);
+                    session.setLazyQueryExecution(lazy);
                 }
-                plan = command.getPlanSQL(); 
+                long time = System.nanoTime() - start;
+                plan = command.getPlanSQL() + "\n/* actual rows: " + rowCount +
+                        ", time: " + formatNanos(time) + " */";
             } else {
                 plan = command.getPlanSQL();
             }
@@ -86,6 +108,16 @@ public class Explain extends Prepared {
         return result;
     }
 
+    /**
+     * Format a duration for EXPLAIN ANALYZE.
+     *
+     * @param nanos the duration in nanoseconds
+     * @return the text, in milliseconds
+     */
+    public static String formatNanos(long nanos) {
+        return nanos / 1000 / 1000.0 + " ms";
+    }
+
     private void add(String text) {
         Value[] row = { ValueString.get(text) };
         result.addRow(row);
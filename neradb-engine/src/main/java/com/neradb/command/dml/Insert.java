@@ -7,6 +7,7 @@ package com.neradb.command.dml;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 import com.neradb.command.Command;
 import com.neradb.command.CommandInterface;
@@ -16,6 +17,7 @@ import com.neradb.command.expression.ConditionAndOr;
 import com.neradb.command.expression.Expression;
 import com.neradb.command.expression.ExpressionColumn;
 import com.neradb.command.expression.Parameter;
+import com.neradb.command.expression.ValueExpression;
 import com.neradb.common.DbException;
 import com.neradb.common.ErrorCode;
 import com.neradb.common.utils.New;
@@ -27,6 +29,7 @@ import com.neradb.dbobject.table.Table;
 import com.neradb.engine.Session;
 import com.neradb.engine.UndoLogRecord;
 import com.neradb.engine.spi.Trigger;
+import com.neradb.message.Trace;
 import com.neradb.mvstore.db.MVPrimaryIndex;
 import com.neradb.result.ResultInterface;
 import com.neradb.result.ResultTarget;
@@ -40,6 +43,12 @@ import com.neradb.value.ValueNull;
  */
 public class Insert extends Prepared implements ResultTarget {
 
+    /**
+     * The number of rows that are added to the table at once in bulk load
+     * mode.
+     */
+    private static final int BULK_LOAD_BATCH_SIZE = 1024;
+
     private Table table;
     private Column[] columns;
     private final ArrayList<Expression[]> list = New.arrayList();
@@ -48,6 +57,16 @@ public class Insert extends Prepared implements ResultTarget {
     private int rowNumber;
     private boolean insertFromSelect;
 
+    /**
+     * The rows that are not yet added to the table (bulk load mode only).
+     */
+    private ArrayList<Row> batch;
+
+    /**
+     * The row numbers of the rows in the batch, for error messages.
+     */
+    private IdentityHashMap<Row, Integer> batchRowNumbers;
+
     /**
      * For MySQL-style INSERT ... ON DUPLICATE KEY UPDATE ....
      */
@@ -77,6 +96,36 @@ public class Insert extends Prepared implements ResultTarget {
         this.query = query;
     }
 
+    Table getTable() {
+        return table;
+    }
+
+    Column[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * Check whether this prepared statement only inserts constant values
+     * (without ON DUPLICATE KEY UPDATE), so that other values can be inserted
+     * into the same columns without parsing the statement again.
+     *
+     * @return true if only constant values are inserted
+     */
+    boolean isConstantValues() {
+        if (query != null || list.isEmpty() || duplicateKeyAssignmentMap != null ||
+                sortedInsertMode) {
+            return false;
+        }
+        for (Expression[] expr : list) {
+            for (Expression e : expr) {
+                if (!(e instanceof ValueExpression)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Keep a collection of the columns to pass to update if a duplicate key
      * happens, for MySQL-style INSERT ... ON DUPLICATE KEY UPDATE ....
@@ -126,57 +175,133 @@ public class Insert extends Prepared implements ResultTarget {
         table.fire(session, Trigger.INSERT, true);
         rowNumber = 0;
         int listSize = list.size();
-        if (listSize > 0) {
-            int columnLen = columns.length;
-            for (int x = 0; x < listSize; x++) {
-                session.startStatementWithinTransaction();
-                Row newRow = table.getTemplateRow();
-                Expression[] expr = list.get(x);
-                setCurrentRowNumber(x + 1);
-                for (int i = 0; i < columnLen; i++) {
-                    Column c = columns[i];
-                    int index = c.getColumnId();
-                    Expression e = expr[i];
-                    if (e != null) {
-                        // e can be null (DEFAULT)
-                        e = e.optimize(session);
-                        try {
-                            Value v = c.convert(e.getValue(session));
-                            newRow.setValue(index, v);
-                        } catch (DbException ex) {
-                            throw setRow(ex, x, getSQL(expr));
-                        }
+        long start = 0;
+        try {
+            if (listSize != 1 && isBulkLoadPossible()) {
+                table.lock(session, true, false);
+                start = System.nanoTime();
+                startBulkLoad();
+            }
+            if (listSize > 0) {
+                insertValues();
+            } else {
+                table.lock(session, true, false);
+                if (insertFromSelect) {
+                    query.query(0, this);
+                } else {
+                    ResultInterface rows = query.query(0);
+                    while (rows.next()) {
+                        Value[] r = rows.currentRow();
+                        addRow(r);
                     }
+                    rows.close();
                 }
-                rowNumber++;
-                table.validateConvertUpdateSequence(session, newRow);
-                boolean done = table.fireBeforeRow(session, null, newRow);
-                if (!done) {
-                    table.lock(session, true, false);
+            }
+            if (batch != null) {
+                addBatch();
+            }
+        } finally {
+            endBulkLoad();
+        }
+        if (start != 0) {
+            Trace trace = session.getTrace();
+            if (trace.isInfoEnabled()) {
+                long nanos = Math.max(1, System.nanoTime() - start);
+                trace.info("bulk load into {0}: {1} rows, {2} rows/s",
+                        table.getSQL(), rowNumber,
+                        rowNumber * 1000000000L / nanos);
+            }
+        }
+        table.fire(session, Trigger.INSERT, false);
+        return rowNumber;
+    }
+
+    private void insertValues() {
+        int columnLen = columns.length;
+        for (int x = 0, listSize = list.size(); x < listSize; x++) {
+            session.startStatementWithinTransaction();
+            Row newRow = table.getTemplateRow();
+            Expression[] expr = list.get(x);
+            setCurrentRowNumber(x + 1);
+            for (int i = 0; i < columnLen; i++) {
+                Column c = columns[i];
+                int index = c.getColumnId();
+                Expression e = expr[i];
+                if (e != null) {
+                    // e can be null (DEFAULT)
+                    e = e.optimize(session);
                     try {
-                        table.addRow(session, newRow);
-                    } catch (DbException de) {
-                        handleOnDuplicate(de);
+                        Value v = c.convert(e.getValue(session));
+                        newRow.setValue(index, v);
+                    } catch (DbException ex) {
+                        throw setRow(ex, x, getSQL(expr));
                     }
-                    session.log(table, UndoLogRecord.INSERT, newRow);
-                    table.fireAfterRow(session, null, newRow, false);
                 }
             }
-        } else {
-            table.lock(session, true, false);
-            if (insertFromSelect) {
-                query.query(0, this);
-            } else {
-                ResultInterface rows = query.query(0);
-                while (rows.next()) {
-                    Value[] r = rows.currentRow();
-                    addRow(r);
+            rowNumber++;
+            table.validateConvertUpdateSequence(session, newRow);
+            boolean done = table.fireBeforeRow(session, null, newRow);
+            if (!done) {
+                if (batch != null) {
+                    addToBatch(newRow);
+                    continue;
                 }
-                rows.close();
+                table.lock(session, true, false);
+                try {
+                    table.addRow(session, newRow);
+                } catch (DbException de) {
+                    handleOnDuplicate(de);
+                }
+                session.log(table, UndoLogRecord.INSERT, newRow);
+                table.fireAfterRow(session, null, newRow, false);
             }
         }
-        table.fire(session, Trigger.INSERT, false);
-        return rowNumber;
+    }
+
+    /**
+     * Check whether the rows can be added in batches. This is possible if
+     * there are no row triggers or constraints that need to see each row
+     * right after it was added, and no ON DUPLICATE KEY UPDATE clause.
+     *
+     * @return true if bulk load mode can be used
+     */
+    private boolean isBulkLoadPossible() {
+        return (duplicateKeyAssignmentMap == null ||
+                duplicateKeyAssignmentMap.isEmpty()) &&
+                table.canAddRowsInBatches();
+    }
+
+    private void startBulkLoad() {
+        batch = New.arrayList();
+        batchRowNumbers = new IdentityHashMap<Row, Integer>();
+    }
+
+    private void endBulkLoad() {
+        batch = null;
+        batchRowNumbers = null;
+    }
+
+    private void addToBatch(Row row) {
+        batch.add(row);
+        batchRowNumbers.put(row, rowNumber);
+        if (batch.size() >= BULK_LOAD_BATCH_SIZE) {
+            addBatch();
+        }
+    }
+
+    private void addBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            table.addRows(session, batch);
+        } catch (DbException e) {
+            // the failed row is the first one now
+            Row row = batch.get(0);
+            throw setRow(e, batchRowNumbers.get(row) - 1, getSQL(row.getValueList()));
+        }
+        batch.clear();
+        batchRowNumbers.clear();
     }
 
     @Override
@@ -196,6 +321,10 @@ public class Insert extends Prepared implements ResultTarget {
         table.validateConvertUpdateSequence(session, newRow);
         boolean done = table.fireBeforeRow(session, null, newRow);
         if (!done) {
+            if (batch != null) {
+                addToBatch(newRow);
+                return;
+            }
             table.addRow(session, newRow);
             session.log(table, UndoLogRecord.INSERT, newRow);
             table.fireAfterRow(session, null, newRow, false);
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.command.dml;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+
+import com.neradb.common.utils.New;
+import com.neradb.common.utils.StringUtils;
+import com.neradb.value.Value;
+import com.neradb.value.ValueBoolean;
+import com.neradb.value.ValueBytes;
+import com.neradb.value.ValueDate;
+import com.neradb.value.ValueDecimal;
+import com.neradb.value.ValueInt;
+import com.neradb.value.ValueLong;
+import com.neradb.value.ValueNull;
+import com.neradb.value.ValueString;
+import com.neradb.value.ValueTime;
+import com.neradb.value.ValueTimestamp;
+
+/**
+ * Reads the rows of an INSERT statement as generated by the SCRIPT command,
+ * without using the parser. Only the literals that SCRIPT generates for
+ * common data types are supported: NULL, TRUE, FALSE, numbers without
+ * exponent, strings, binary, date, time and timestamp literals. For anything
+ * else, the statement needs to be parsed.
+ */
+final class InsertValuesReader {
+
+    private static final String INSERT = "INSERT INTO ";
+    private static final String VALUES = ") VALUES";
+
+    private final String sql;
+    private final int length;
+    private int pos;
+
+    private InsertValuesReader(String sql, int pos) {
+        this.sql = sql;
+        this.length = sql.length();
+        this.pos = pos;
+    }
+
+    /**
+     * Get the part of the statement up to and including the keyword VALUES,
+     * if this is an INSERT statement with a column list.
+     *
+     * @param sql the statement
+     * @return the header, or null
+     */
+    static String getHeader(String sql) {
+        if (!sql.startsWith(INSERT)) {
+            return null;
+        }
+        int idx = sql.indexOf(VALUES, INSERT.length());
+        if (idx < 0) {
+            return null;
+        }
+        return sql.substring(0, idx + VALUES.length());
+    }
+
+    /**
+     * Read the rows after the header.
+     *
+     * @param sql the statement
+     * @param header the header
+     * @param columnCount the number of values per row
+     * @return the rows, or null if the statement needs to be parsed
+     */
+    static ArrayList<Value[]> readRows(String sql, String header,
+            int columnCount) {
+        try {
+            return new InsertValuesReader(sql, header.length()).
+                    readRows(columnCount);
+        } catch (RuntimeException e) {
+            // let the parser report the error
+            return null;
+        }
+    }
+
+    private ArrayList<Value[]> readRows(int columnCount) {
+        ArrayList<Value[]> rows = New.arrayList();
+        while (true) {
+            if (!readIf('(')) {
+                return null;
+            }
+            Value[] row = new Value[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                if (i > 0 && !readIf(',')) {
+                    return null;
+                }
+                skipWhitespace();
+                Value v = readValue();
+                if (v == null) {
+                    return null;
+                }
+                row[i] = v;
+            }
+            if (!readIf(')')) {
+                return null;
+            }
+            rows.add(row);
+            skipWhitespace();
+            if (pos == length) {
+                return rows;
+            }
+            if (!readIf(',')) {
+                return null;
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < length && Character.isWhitespace(sql.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private boolean readIf(char c) {
+        skipWhitespace();
+        if (pos < length && sql.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private Value readValue() {
+        if (pos == length) {
+            return null;
+        }
+        char c = sql.charAt(pos);
+        if (c == '\'') {
+            return ValueString.get(readString());
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            return readNumber();
+        }
+        int start = pos;
+        while (pos < length && Character.isLetter(sql.charAt(pos))) {
+            pos++;
+        }
+        String word = sql.substring(start, pos);
+        if ("NULL".equals(word)) {
+            return ValueNull.INSTANCE;
+        } else if ("TRUE".equals(word)) {
+            return ValueBoolean.get(true);
+        } else if ("FALSE".equals(word)) {
+            return ValueBoolean.get(false);
+        }
+        skipWhitespace();
+        if (pos == length || sql.charAt(pos) != '\'') {
+            return null;
+        }
+        if ("X".equals(word)) {
+            return ValueBytes.getNoCopy(StringUtils.convertHexToBytes(readString()));
+        } else if ("DATE".equals(word)) {
+            return ValueDate.parse(readString());
+        } else if ("TIME".equals(word)) {
+            return ValueTime.parse(readString());
+        } else if ("TIMESTAMP".equals(word)) {
+            return ValueTimestamp.parse(readString());
+        }
+        return null;
+    }
+
+    private String readString() {
+        // skip the opening quote
+        pos++;
+        StringBuilder buff = null;
+        int start = pos;
+        while (true) {
+            int end = sql.indexOf('\'', pos);
+            if (end < 0) {
+                throw new IllegalArgumentException(sql);
+            }
+            if (end + 1 < length && sql.charAt(end + 1) == '\'') {
+                // escaped quote
+                if (buff == null) {
+                    buff = new StringBuilder();
+                }
+                buff.append(sql, start, end + 1);
+                pos = start = end + 2;
+                continue;
+            }
+            pos = end + 1;
+            if (buff == null) {
+                return sql.substring(start, end);
+            }
+            return buff.append(sql, start, end).toString();
+        }
+    }
+
+    private Value readNumber() {
+        int start = pos;
+        if (sql.charAt(pos) == '-') {
+            pos++;
+        }
+        int digits = readDigits();
+        boolean decimal = false;
+        if (pos < length && sql.charAt(pos) == '.') {
+            pos++;
+            digits += readDigits();
+            decimal = true;
+        }
+        if (digits == 0 || (pos < length &&
+                Character.isLetterOrDigit(sql.charAt(pos)))) {
+            // for example an exponent
+            return null;
+        }
+        String s = sql.substring(start, pos);
+        if (!decimal && digits < 19) {
+            long x = Long.parseLong(s);
+            if (x >= Integer.MIN_VALUE && x <= Integer.MAX_VALUE) {
+                return ValueInt.get((int) x);
+            }
+            return ValueLong.get(x);
+        }
+        return ValueDecimal.get(new BigDecimal(s));
+    }
+
+    private int readDigits() {
+        int start = pos;
+        while (pos < length) {
+            char c = sql.charAt(pos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            pos++;
+        }
+        return pos - start;
+    }
+
+}
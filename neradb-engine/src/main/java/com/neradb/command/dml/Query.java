@@ -348,7 +348,7 @@ public abstract class Query extends Prepared {
         }
         fireBeforeSelectTriggers();
         if (noCache || !session.getDatabase().getOptimizeReuseResults() ||
-                session.isLazyQueryExecution()) {
+                session.isLazyQueryExecution() || session.isExplainAnalyze()) {
             return queryWithoutCacheLazyCheck(limit, target);
         }
         Value[] params = getParameterValues();
@@ -9,14 +9,21 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import com.neradb.command.CommandInterface;
 import com.neradb.command.Prepared;
+import com.neradb.command.expression.Expression;
+import com.neradb.command.expression.ValueExpression;
 import com.neradb.common.Constants;
 import com.neradb.common.DbException;
+import com.neradb.common.utils.New;
 import com.neradb.common.utils.ScriptReader;
+import com.neradb.dbobject.table.Column;
 import com.neradb.engine.Session;
 import com.neradb.result.ResultInterface;
+import com.neradb.value.Value;
 
 /**
  * This class represents the statement
@@ -33,6 +40,14 @@ public class RunScriptCommand extends ScriptBase {
 
     private Charset charset = Constants.UTF8;
 
+    /**
+     * The prepared INSERT statements with constant values, by the statement
+     * text up to the keyword VALUES. Further rows for the same columns are
+     * inserted without parsing the statement. The map is cleared when any
+     * other statement is run, as it could change the tables.
+     */
+    private final HashMap<String, Insert> inserts = New.hashMap();
+
     public RunScriptCommand(Session session) {
         super(session);
     }
@@ -72,7 +87,17 @@ public class RunScriptCommand extends ScriptBase {
 
     private void execute(String sql) {
         try {
+            String header = InsertValuesReader.getHeader(sql);
+            if (header != null && insertValues(sql, header)) {
+                return;
+            }
             Prepared command = session.prepare(sql);
+            if (header != null && command instanceof Insert &&
+                    ((Insert) command).isConstantValues()) {
+                inserts.put(header, (Insert) command);
+            } else {
+                inserts.clear();
+            }
             if (command.isQuery()) {
                 command.query(0);
             } else {
@@ -86,6 +111,44 @@ public class RunScriptCommand extends ScriptBase {
         }
     }
 
+    /**
+     * Insert the rows of a statement generated by the SCRIPT command, if the
+     * same table and columns were already used by a parsed statement.
+     *
+     * @param sql the statement
+     * @param header the statement text up to the keyword VALUES
+     * @return false if the statement needs to be parsed
+     */
+    private boolean insertValues(String sql, String header) {
+        Insert prepared = inserts.get(header);
+        if (prepared == null) {
+            return false;
+        }
+        Column[] columns = prepared.getColumns();
+        ArrayList<Value[]> rows = InsertValuesReader.readRows(sql, header,
+                columns.length);
+        if (rows == null) {
+            return false;
+        }
+        Insert insert = new Insert(session);
+        insert.setSQL(sql);
+        insert.setTable(prepared.getTable());
+        insert.setColumns(columns);
+        for (Value[] row : rows) {
+            Expression[] expr = new Expression[row.length];
+            for (int i = 0; i < row.length; i++) {
+                expr[i] = ValueExpression.get(row[i]);
+            }
+            insert.addRow(expr);
+        }
+        insert.prepare();
+        insert.update();
+        if (session.getAutoCommit()) {
+            session.commit(false);
+        }
+        return true;
+    }
+
     public void setCharset(Charset charset) {
         this.charset = charset;
     }
@@ -19,7 +19,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.neradb.command.CommandInterface;
 import com.neradb.command.Parser;
@@ -31,6 +38,7 @@ import com.neradb.common.ErrorCode;
 import com.neradb.common.SysProperties;
 import com.neradb.common.utils.IOUtils;
 import com.neradb.common.utils.MathUtils;
+import com.neradb.common.utils.New;
 import com.neradb.common.utils.StatementBuilder;
 import com.neradb.common.utils.StringUtils;
 import com.neradb.common.utils.Utils;
@@ -59,6 +67,7 @@ import com.neradb.engine.Session;
 import com.neradb.result.LocalResult;
 import com.neradb.result.ResultInterface;
 import com.neradb.result.Row;
+import com.neradb.value.DataType;
 import com.neradb.value.Value;
 import com.neradb.value.ValueString;
 
@@ -68,6 +77,23 @@ import com.neradb.value.ValueString;
  */
 public class ScriptCommand extends ScriptBase {
 
+    /**
+     * The number of statements a table dump thread may generate ahead of the
+     * statements that are written.
+     */
+    private static final int DUMP_QUEUE_SIZE = 64;
+
+    /**
+     * Marks the end of the statements of a table dump.
+     */
+    private static final Object DUMP_END = new Object();
+
+    /**
+     * How long the threads wait for the queue of a table dump before
+     * checking whether the script command was canceled or stopped.
+     */
+    private static final long DUMP_WAIT_MILLIS = 100;
+
     private Charset charset = Constants.UTF8;
     private Set<String> schemaNames;
     private Collection<Table> tables;
@@ -87,6 +113,8 @@ public class ScriptCommand extends ScriptBase {
     private boolean tempLobTableCreated;
     private int nextLobId;
     private int lobBlockSize = Constants.IO_BUFFER_SIZE;
+    private ExecutorService executor;
+    private HashMap<Table, Dump> dumps;
 
     public ScriptCommand(Session session) {
         super(session);
@@ -262,6 +290,9 @@ public class ScriptCommand extends ScriptBase {
             }
 
             // Generate CREATE TABLE and INSERT...VALUES
+            if (data && db.isMultiThreaded() && SysProperties.SCRIPT_THREADS > 1) {
+                dumps = startDumps(tables);
+            }
             int count = 0;
             for (Table table : tables) {
                 if (excludeSchema(table.getSchema())) {
@@ -298,7 +329,13 @@ public class ScriptCommand extends ScriptBase {
                         add(rowcount, false);
                     }
                     if (data) {
-                        count = generateInsertValues(count, table);
+                        Dump dump = dumps == null ? null : dumps.get(table);
+                        if (dump != null) {
+                            writeDump(dump);
+                        } else {
+                            count = generateInsertValues(count, table,
+                                    openCursor(table), null);
+                        }
                     }
                 }
                 final ArrayList<Index> indexes = table.getIndexes();
@@ -381,6 +418,16 @@ public class ScriptCommand extends ScriptBase {
         } catch (IOException e) {
             throw DbException.convertIOException(e, getFileName());
         } finally {
+            if (dumps != null) {
+                for (Dump dump : dumps.values()) {
+                    dump.stopped = true;
+                }
+                dumps = null;
+            }
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
             closeIO();
         }
         result.done();
@@ -389,10 +436,132 @@ public class ScriptCommand extends ScriptBase {
         return r;
     }
 
-    private int generateInsertValues(int count, Table table) throws IOException {
+    /**
+     * Start generating the INSERT statements of the tables in background
+     * threads, one table per thread. Tables with LOB columns are dumped
+     * by the calling thread, as their LOB data is split into separate
+     * statements.
+     * <p>
+     * All tables are locked, and the cursors are opened, by the calling
+     * thread before the first thread starts, so that the dump is consistent.
+     * The threads only iterate over their cursor and format the rows; they
+     * don't use the session otherwise. Cancellation is checked by the
+     * calling thread while it writes the statements.
+     * </p>
+     *
+     * @param tables the tables and views
+     * @return the generated statements per table
+     */
+    private HashMap<Table, Dump> startDumps(ArrayList<Table> tables) {
+        HashMap<Table, Dump> result = New.hashMap();
+        HashMap<Table, Cursor> cursors = New.hashMap();
+        for (Table table : tables) {
+            if (excludeSchema(table.getSchema()) || excludeTable(table) ||
+                    table.isHidden()) {
+                continue;
+            }
+            table.lock(session, false, false);
+            if (table.getTableType() == TableType.TABLE &&
+                    !hasLargeObjects(table)) {
+                cursors.put(table, openCursor(table));
+            }
+        }
+        for (final Table table : tables) {
+            final Cursor cursor = cursors.get(table);
+            if (cursor == null) {
+                continue;
+            }
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(
+                        SysProperties.SCRIPT_THREADS, new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "H2 Script Dump");
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+            }
+            final Dump dump = new Dump();
+            result.put(table, dump);
+            // the tasks are started in the order of the tables, so the table
+            // that is written next is always being dumped
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Object end = DUMP_END;
+                    try {
+                        generateInsertValues(0, table, cursor, dump);
+                    } catch (Throwable e) {
+                        end = e;
+                    }
+                    // nobody reads the queue any more if the script command
+                    // was stopped
+                    dump.put(end);
+                }
+            });
+        }
+        return result;
+    }
+
+    private static boolean hasLargeObjects(Table table) {
+        for (Column col : table.getColumns()) {
+            if (DataType.isLargeObject(col.getType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the statements generated by a table dump thread.
+     *
+     * @param dump the table dump
+     */
+    private void writeDump(Dump dump) throws IOException {
+        while (true) {
+            Object o;
+            try {
+                o = dump.queue.poll(DUMP_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw DbException.convert(e);
+            }
+            if (o == null) {
+                checkCanceled();
+            } else if (o == DUMP_END) {
+                return;
+            } else if (o instanceof String) {
+                add((String) o, true);
+            } else {
+                throw DbException.convert((Throwable) o);
+            }
+        }
+    }
+
+    /**
+     * Open a cursor over all rows of a table.
+     *
+     * @param table the table
+     * @return the cursor
+     */
+    private Cursor openCursor(Table table) {
         PlanItem plan = table.getBestPlanItem(session, null, null, -1, null, null);
         Index index = plan.getIndex();
-        Cursor cursor = index.find(session, null, null);
+        return index.find(session, null, null);
+    }
+
+    /**
+     * Generate the INSERT statements for all rows of a table.
+     *
+     * @param count the number of rows generated so far
+     * @param table the table
+     * @param cursor the cursor over the rows of the table
+     * @param dump the table dump to add the statements to, or null to write
+     *            them directly
+     * @return the new number of rows
+     */
+    private int generateInsertValues(int count, Table table, Cursor cursor,
+            Dump dump) throws IOException {
         Column[] columns = table.getColumns();
         StatementBuilder buff = new StatementBuilder("INSERT INTO ");
         buff.append(table.getSQL()).append('(');
@@ -436,20 +605,29 @@ public class ScriptCommand extends ScriptBase {
             }
             buff.append(')');
             count++;
-            if ((count & 127) == 0) {
+            if (dump == null && (count & 127) == 0) {
+                // dump threads don't use the session
                 checkCanceled();
             }
             if (simple || buff.length() > Constants.IO_BUFFER_SIZE) {
-                add(buff.toString(), true);
+                addInsert(buff.toString(), dump);
                 buff = null;
             }
         }
         if (buff != null) {
-            add(buff.toString(), true);
+            addInsert(buff.toString(), dump);
         }
         return count;
     }
 
+    private void addInsert(String sql, Dump dump) throws IOException {
+        if (dump == null) {
+            add(sql, true);
+        } else if (!dump.put(sql)) {
+            throw DbException.get(ErrorCode.STATEMENT_WAS_CANCELED);
+        }
+    }
+
     private int writeLobStream(Value v) throws IOException {
         if (!tempLobTableCreated) {
             add("CREATE TABLE IF NOT EXISTS SYSTEM_LOB_STREAM" +
@@ -726,4 +904,43 @@ public class ScriptCommand extends ScriptBase {
         return CommandInterface.SCRIPT;
     }
 
+    /**
+     * The statements generated by a table dump thread.
+     */
+    private static final class Dump {
+
+        /**
+         * The statements, followed by the end marker or an exception.
+         */
+        final BlockingQueue<Object> queue =
+                new ArrayBlockingQueue<Object>(DUMP_QUEUE_SIZE);
+
+        /**
+         * Set when the script command stopped, so that nobody reads the
+         * queue any more.
+         */
+        volatile boolean stopped;
+
+        /**
+         * Add an object to the queue, and wait while the queue is full.
+         *
+         * @param o the object
+         * @return false if the script command stopped in the meantime
+         */
+        boolean put(Object o) {
+            try {
+                while (!queue.offer(o, DUMP_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (stopped) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                // the threads are interrupted when the command stops
+                return false;
+            }
+        }
+
+    }
+
 }
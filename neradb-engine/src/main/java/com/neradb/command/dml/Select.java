@@ -11,6 +11,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 
 import com.neradb.command.CommandInterface;
+import com.neradb.command.expression.Aggregate;
 import com.neradb.command.expression.Comparison;
 import com.neradb.command.expression.ConditionAndOr;
 import com.neradb.command.expression.Expression;
@@ -86,6 +87,28 @@ public class Select extends Query {
     private SortOrder sort;
     private int currentGroupRowId;
 
+    /**
+     * The group columns and the aggregates, if the groups can be computed
+     * where the rows are stored (see {@link Index#aggregate}).
+     */
+    private Column[] distributedGroupColumns;
+    private ArrayList<Aggregate> distributedAggregates;
+
+    /**
+     * The number of rows of the top table filter that are needed, or -1.
+     */
+    private int scanLimit = -1;
+
+    /**
+     * The statistics of the last execution, only measured for EXPLAIN
+     * ANALYZE. The group count is -1 if unknown, the result row count is -1
+     * if the rows were not buffered.
+     */
+    private boolean analyzed;
+    private int analyzeGroupCount, analyzeResultRows;
+    private long analyzeGroupNanos, analyzeResultNanos, analyzeResultMemory;
+    private boolean analyzeResultExternal;
+
     public Select(Session session) {
         super(session);
     }
@@ -119,6 +142,11 @@ public class Select extends Query {
         return topFilters;
     }
 
+    @Override
+    public ArrayList<TableFilter> getTableFilters() {
+        return filters;
+    }
+
     public void setExpressions(ArrayList<Expression> expressions) {
         this.expressions = expressions;
     }
@@ -169,6 +197,10 @@ public class Select extends Query {
         }
     }
 
+    public Expression getCondition() {
+        return condition;
+    }
+
     private LazyResult queryGroupSorted(int columnCount, ResultTarget result) {
         LazyResultGroupSorted lazyResult = new LazyResultGroupSorted(expressionArray, columnCount);
         if (result == null) {
@@ -309,50 +341,64 @@ public class Select extends Query {
         currentGroup = null;
         ValueArray defaultGroup = ValueArray.get(new Value[0]);
         int sampleSize = getSampleSizeValue(session);
-        while (topTableFilter.next()) {
-            setCurrentRowNumber(rowNumber + 1);
-            if (isConditionMet()) {
-                Value key;
-                rowNumber++;
-                if (groupIndex == null) {
-                    key = defaultGroup;
-                } else {
-                    Value[] keyValues = new Value[groupIndex.length];
-                    // update group
-                    for (int i = 0; i < groupIndex.length; i++) {
-                        int idx = groupIndex[i];
-                        Expression expr = expressions.get(idx);
-                        keyValues[i] = expr.getValue(session);
+        ArrayList<Value[]> partialGroups = null;
+        if (distributedAggregates != null && sampleSize == 0) {
+            partialGroups = topTableFilter.aggregate(condition,
+                    distributedGroupColumns, distributedAggregates);
+        }
+        if (partialGroups != null) {
+            mergeGroups(groups, partialGroups);
+        } else {
+            while (topTableFilter.next()) {
+                setCurrentRowNumber(rowNumber + 1);
+                if (isConditionMet()) {
+                    Value key;
+                    rowNumber++;
+                    if (groupIndex == null) {
+                        key = defaultGroup;
+                    } else {
+                        Value[] keyValues = new Value[groupIndex.length];
+                        // update group
+                        for (int i = 0; i < groupIndex.length; i++) {
+                            int idx = groupIndex[i];
+                            Expression expr = expressions.get(idx);
+                            keyValues[i] = expr.getValue(session);
+                        }
+                        key = ValueArray.get(keyValues);
                     }
-                    key = ValueArray.get(keyValues);
-                }
-                HashMap<Expression, Object> values = groups.get(key);
-                if (values == null) {
-                    values = new HashMap<Expression, Object>();
-                    groups.put(key, values);
-                }
-                currentGroup = values;
-                currentGroupRowId++;
-                int len = columnCount;
-                for (int i = 0; i < len; i++) {
-                    if (groupByExpression == null || !groupByExpression[i]) {
-                        Expression expr = expressions.get(i);
-                        expr.updateAggregate(session);
+                    HashMap<Expression, Object> values = groups.get(key);
+                    if (values == null) {
+                        values = new HashMap<Expression, Object>();
+                        groups.put(key, values);
+                    }
+                    currentGroup = values;
+                    currentGroupRowId++;
+                    int len = columnCount;
+                    for (int i = 0; i < len; i++) {
+                        if (groupByExpression == null || !groupByExpression[i]) {
+                            Expression expr = expressions.get(i);
+                            expr.updateAggregate(session);
+                        }
+                    }
+                    if (sampleSize > 0 && rowNumber >= sampleSize) {
+                        break;
                     }
-                }
-                if (sampleSize > 0 && rowNumber >= sampleSize) {
-                    break;
                 }
             }
         }
         if (groupIndex == null && groups.size() == 0) {
             groups.put(defaultGroup, new HashMap<Expression, Object>());
         }
+        analyzeGroupCount = groups.size();
         ArrayList<Value> keys = groups.keys();
         for (Value v : keys) {
             ValueArray key = (ValueArray) v;
             currentGroup = groups.get(key);
             Value[] keyValues = key.getList();
+            if (partialGroups != null) {
+                // other expressions read the group columns from the table
+                topTableFilter.set(createGroupRow(keyValues));
+            }
             Value[] row = new Value[columnCount];
             for (int j = 0; groupIndex != null && j < groupIndex.length; j++) {
                 row[groupIndex[j]] = keyValues[j];
@@ -370,6 +416,77 @@ public class Select extends Query {
             row = keepOnlyDistinct(row, columnCount);
             result.addRow(row);
         }
+        if (partialGroups != null) {
+            topTableFilter.set(null);
+        }
+    }
+
+    private void mergeGroups(ValueHashMap<HashMap<Expression, Object>> groups,
+            ArrayList<Value[]> partialGroups) {
+        int groupCount = distributedGroupColumns.length;
+        for (Value[] partial : partialGroups) {
+            Value[] keyValues = new Value[groupCount];
+            System.arraycopy(partial, 0, keyValues, 0, groupCount);
+            Value key = ValueArray.get(keyValues);
+            HashMap<Expression, Object> values = groups.get(key);
+            if (values == null) {
+                values = new HashMap<Expression, Object>();
+                groups.put(key, values);
+            }
+            currentGroup = values;
+            for (int i = 0, size = distributedAggregates.size(); i < size; i++) {
+                distributedAggregates.get(i).mergeAggregate(session,
+                        partial[groupCount + i]);
+            }
+        }
+    }
+
+    private Row createGroupRow(Value[] keyValues) {
+        Row row = topTableFilter.getTable().getTemplateRow();
+        for (int i = 0; i < keyValues.length; i++) {
+            row.setValue(distributedGroupColumns[i].getColumnId(), keyValues[i]);
+        }
+        return row;
+    }
+
+    /**
+     * Check if the groups can be computed where the rows are stored: all
+     * group expressions are columns of the table, and all aggregates are
+     * supported (see {@link ExpressionVisitor#DISTRIBUTED_AGGREGATE}).
+     * Whether the condition can be evaluated there is decided by the index
+     * when the query is run.
+     */
+    private void prepareDistributedAggregate() {
+        int groupCount = groupIndex == null ? 0 : groupIndex.length;
+        Column[] groupColumns = new Column[groupCount];
+        HashSet<Column> set = New.hashSet();
+        for (int i = 0; i < groupCount; i++) {
+            Expression expr = expressions.get(groupIndex[i]).getNonAliasExpression();
+            if (!(expr instanceof ExpressionColumn)) {
+                return;
+            }
+            ExpressionColumn col = (ExpressionColumn) expr;
+            Column column = col.getColumn();
+            if (col.getTableFilter() != topTableFilter || column.getColumnId() < 0 ||
+                    column.getEnumerators() != null) {
+                return;
+            }
+            groupColumns[i] = column;
+            set.add(column);
+        }
+        ArrayList<Aggregate> aggregates = New.arrayList();
+        ExpressionVisitor visitor = ExpressionVisitor.getDistributedAggregateVisitor(
+                topTableFilter, set, aggregates);
+        for (int i = 0, size = expressions.size(); i < size; i++) {
+            if (groupByExpression != null && groupByExpression[i]) {
+                continue;
+            }
+            if (!expressions.get(i).isEverything(visitor)) {
+                return;
+            }
+        }
+        distributedGroupColumns = groupColumns;
+        distributedAggregates = aggregates;
     }
 
     /**
@@ -562,6 +679,12 @@ public class Select extends Query {
                 limitRows = Math.min(l, limitRows);
             }
         }
+        scanLimit = -1;
+        if (limitRows > 0 && !isGroupQuery && !isQuickAggregateQuery && !distinct &&
+                filters.size() == 1) {
+            long offset = offsetExpr == null ? 0 : offsetExpr.getValue(session).getInt();
+            scanLimit = (int) Math.min(Integer.MAX_VALUE, limitRows + Math.max(0, offset));
+        }
         boolean lazy = session.isLazyQueryExecution() &&
                 target == null && !isForUpdate && !isQuickAggregateQuery &&
                 limitRows != 0 && offsetExpr == null && isReadOnly();
@@ -588,6 +711,10 @@ public class Select extends Query {
         if (!lazy && (limitRows >= 0 || offsetExpr != null)) {
             result = createLocalResult(result);
         }
+        analyzed = session.isExplainAnalyze();
+        analyzeGroupCount = analyzeResultRows = -1;
+        analyzeGroupNanos = analyzeResultNanos = analyzeResultMemory = 0;
+        analyzeResultExternal = false;
         topTableFilter.startQuery(session);
         topTableFilter.reset();
         boolean exclusive = isForUpdate && !isForUpdateMvcc;
@@ -615,11 +742,15 @@ public class Select extends Query {
                 if (isQuickAggregateQuery) {
                     queryQuick(columnCount, to);
                 } else if (isGroupQuery) {
+                    long start = analyzed ? System.nanoTime() : 0;
                     if (isGroupSortedQuery) {
                         lazyResult = queryGroupSorted(columnCount, to);
                     } else {
                         queryGroup(columnCount, result);
                     }
+                    if (analyzed) {
+                        analyzeGroupNanos = System.nanoTime() - start;
+                    }
                 } else if (isDistinctQuery) {
                     queryDistinct(to, limitRows);
                 } else {
@@ -645,7 +776,16 @@ public class Select extends Query {
             result.setLimit(limitRows);
         }
         if (result != null) {
-            result.done();
+            if (analyzed) {
+                analyzeResultRows = result.getRowCount();
+                long start = System.nanoTime();
+                result.done();
+                analyzeResultNanos = System.nanoTime() - start;
+                analyzeResultMemory = result.getMaxMemory();
+                analyzeResultExternal = result.isExternal();
+            } else {
+                result.done();
+            }
             if (target != null) {
                 while (result.next()) {
                     target.addRow(result.currentRow());
@@ -931,7 +1071,13 @@ public class Select extends Query {
                 }
             }
         }
-        if (!isQuickAggregateQuery && isGroupQuery &&
+        distributedGroupColumns = null;
+        distributedAggregates = null;
+        if (isGroupQuery && !isQuickAggregateQuery && !isForUpdate &&
+                filters.size() == 1 && topTableFilter.getTable().canAggregate()) {
+            prepareDistributedAggregate();
+        }
+        if (!isQuickAggregateQuery && isGroupQuery && distributedAggregates == null &&
                 getGroupByExpressionCount() > 0) {
             Index index = getGroupSortedIndex();
             Index current = topTableFilter.getIndex();
@@ -1190,6 +1336,28 @@ public class Select extends Query {
                 buff.append("\n/* group sorted */");
             }
         }
+        if (analyzed) {
+            if (isGroupQuery && !isQuickAggregateQuery) {
+                buff.append("\n/* group: ");
+                if (analyzeGroupCount >= 0) {
+                    buff.append(analyzeGroupCount).append(" groups, ");
+                }
+                buff.append("time: ").append(Explain.formatNanos(analyzeGroupNanos)).
+                    append(" */");
+            }
+            if (analyzeResultRows >= 0) {
+                buff.append(sort != null && !sortUsingIndex ?
+                        "\n/* sort: " : "\n/* result: ").
+                    append(analyzeResultRows).append(" rows, time: ").
+                    append(Explain.formatNanos(analyzeResultNanos)).
+                    append(", memory: ").append(analyzeResultMemory / 1024).
+                    append(" KB");
+                if (analyzeResultExternal) {
+                    buff.append(", spilled to disk");
+                }
+                buff.append(" */");
+            }
+        }
         // buff.append("\n/* cost: " + cost + " */");
         return buff.toString();
     }
@@ -1256,6 +1424,36 @@ public class Select extends Query {
         return isQuickAggregateQuery;
     }
 
+    public boolean isGroupQuery() {
+        return isGroupQuery;
+    }
+
+    public boolean isForUpdate() {
+        return isForUpdate;
+    }
+
+    /**
+     * Check if the rows are read in the order of the query, from the index
+     * of the top table filter.
+     *
+     * @return true if the index is used for sorting
+     */
+    public boolean isSortUsingIndex() {
+        return sortUsingIndex;
+    }
+
+    /**
+     * Get the number of rows of the top table filter that are needed for the
+     * current execution, if all rows match the condition: the limit plus the
+     * offset. If the rows are not read in the order of the query, the rows
+     * need to be sorted first. Indexes can use it to read fewer rows at once.
+     *
+     * @return the number of rows, or -1 if all rows may be needed
+     */
+    public int getScanLimit() {
+        return scanLimit;
+    }
+
     @Override
     public void addGlobalCondition(Parameter param, int columnId,
             int comparisonType) {
@@ -1316,6 +1514,9 @@ public class Select extends Query {
     @Override
     public boolean isEverything(ExpressionVisitor visitor) {
         switch (visitor.getType()) {
+        case ExpressionVisitor.DISTRIBUTED_AGGREGATE:
+            // not supported for subqueries
+            return false;
         case ExpressionVisitor.DETERMINISTIC: {
             if (isForUpdate) {
                 return false;
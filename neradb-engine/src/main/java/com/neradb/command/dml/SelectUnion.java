@@ -96,6 +96,20 @@ public class SelectUnion extends Query {
         right = select;
     }
 
+    @Override
+    public ArrayList<TableFilter> getTableFilters() {
+        ArrayList<TableFilter> l = left.getTableFilters();
+        ArrayList<TableFilter> r = right.getTableFilters();
+        if (l == null) {
+            return r;
+        } else if (r == null) {
+            return l;
+        }
+        ArrayList<TableFilter> list = New.arrayList(l);
+        list.addAll(r);
+        return list;
+    }
+
     public Query getLeft() {
         return left;
     }
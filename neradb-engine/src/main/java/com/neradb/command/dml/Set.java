@@ -27,6 +27,7 @@ import com.neradb.result.ResultInterface;
 import com.neradb.result.RowFactory;
 import com.neradb.util.CompareMode;
 import com.neradb.util.JdbcUtils;
+import com.neradb.value.Value;
 import com.neradb.value.ValueInt;
 
 /**
@@ -62,6 +63,7 @@ public class Set extends Prepared {
         case SetTypes.SCHEMA:
         case SetTypes.SCHEMA_SEARCH_PATH:
         case SetTypes.RETENTION_TIME:
+        case SetTypes.SYNCHRONOUS:
             return true;
         default:
         }
@@ -174,10 +176,30 @@ public class Set extends Prepared {
         }
         case SetTypes.COMPRESS_LOB: {
             session.getUser().checkAdmin();
-            int algo = CompressTool.getCompressAlgorithm(stringValue);
-            database.setLobCompressionAlgorithm(algo == Compressor.NO ?
-                    null : stringValue);
-            addOrUpdateSetting(name, stringValue, 0);
+            if (stringValue.indexOf('=') < 0) {
+                database.setLobCompressionAlgorithm(
+                        getCompressAlgorithm(stringValue));
+                addOrUpdateSetting(name, stringValue, 0);
+                break;
+            }
+            // per type, for example 'CLOB=LZ4,BLOB=NO'
+            String blob = null, clob = null;
+            for (String pair : StringUtils.arraySplit(stringValue, ',', true)) {
+                int idx = pair.indexOf('=');
+                String type = idx < 0 ? pair : StringUtils.toUpperEnglish(
+                        pair.substring(0, idx).trim());
+                if (idx >= 0 && "BLOB".equals(type)) {
+                    blob = getCompressAlgorithm(pair.substring(idx + 1).trim());
+                } else if (idx >= 0 && "CLOB".equals(type)) {
+                    clob = getCompressAlgorithm(pair.substring(idx + 1).trim());
+                } else {
+                    throw DbException.getInvalidValueException("COMPRESS_LOB",
+                            stringValue);
+                }
+            }
+            database.setLobCompressionAlgorithm(Value.BLOB, blob);
+            database.setLobCompressionAlgorithm(Value.CLOB, clob);
+            addOrUpdateSetting(name, StringUtils.quoteStringSQL(stringValue), 0);
             break;
         }
         case SetTypes.CREATE_BUILD: {
@@ -463,6 +485,27 @@ public class Set extends Prepared {
             session.setLazyQueryExecution(value == 1);
             break;
         }
+        case SetTypes.SYNCHRONOUS: {
+            int value = getIntValue();
+            if (value < Constants.SYNCHRONOUS_OFF ||
+                    value > Constants.SYNCHRONOUS_FULL) {
+                throw DbException.getInvalidValueException("SYNCHRONOUS",
+                        value);
+            }
+            session.setSynchronousCommit(value);
+            break;
+        }
+        case SetTypes.DEFAULT_SYNCHRONOUS: {
+            int value = getIntValue();
+            if (value < Constants.SYNCHRONOUS_OFF ||
+                    value > Constants.SYNCHRONOUS_FULL) {
+                throw DbException.getInvalidValueException(
+                        "DEFAULT_SYNCHRONOUS", value);
+            }
+            session.getUser().checkAdmin();
+            addOrUpdateSetting(name, null, value);
+            break;
+        }
         default:
             DbException.throwInternalError("type="+type);
         }
@@ -474,6 +517,17 @@ public class Set extends Prepared {
         return 0;
     }
 
+    /**
+     * Check the compression algorithm name.
+     *
+     * @param algorithm the algorithm
+     * @return the algorithm, or null for no compression
+     */
+    private static String getCompressAlgorithm(String algorithm) {
+        int algo = CompressTool.getCompressAlgorithm(algorithm);
+        return algo == Compressor.NO ? null : algorithm;
+    }
+
     private int getIntValue() {
         expression = expression.optimize(session);
         return expression.getValue(session).getInt();
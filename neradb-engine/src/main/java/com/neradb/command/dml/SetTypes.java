@@ -244,6 +244,16 @@ public class SetTypes {
      */
     public static final int LAZY_QUERY_EXECUTION = 46;
 
+    /**
+     * The type of SET SYNCHRONOUS statement.
+     */
+    public static final int SYNCHRONOUS = 47;
+
+    /**
+     * The type of SET DEFAULT_SYNCHRONOUS statement.
+     */
+    public static final int DEFAULT_SYNCHRONOUS = 48;
+
     private static final ArrayList<String> TYPES = New.arrayList();
 
     private SetTypes() {
@@ -299,6 +309,8 @@ public class SetTypes {
         list.add(BATCH_JOINS, "BATCH_JOINS");
         list.add(FORCE_JOIN_ORDER, "FORCE_JOIN_ORDER");
         list.add(LAZY_QUERY_EXECUTION, "LAZY_QUERY_EXECUTION");
+        list.add(SYNCHRONOUS, "SYNCHRONOUS");
+        list.add(DEFAULT_SYNCHRONOUS, "DEFAULT_SYNCHRONOUS");
     }
 
     /**
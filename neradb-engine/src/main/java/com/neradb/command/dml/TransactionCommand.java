@@ -55,6 +55,10 @@ public class TransactionCommand extends Prepared {
         case CommandInterface.ROLLBACK_TO_SAVEPOINT:
             session.rollbackToSavepoint(savepointName);
             break;
+        case CommandInterface.CHECKPOINT:
+            session.getUser().checkAdmin();
+            session.getDatabase().checkpoint();
+            break;
         case CommandInterface.CHECKPOINT_SYNC:
             session.getUser().checkAdmin();
             session.getDatabase().sync();
@@ -159,6 +159,13 @@ public class Update extends Prepared {
         }
     }
 
+    @Override
+    public ArrayList<TableFilter> getTableFilters() {
+        ArrayList<TableFilter> list = New.arrayList();
+        list.add(tableFilter);
+        return list;
+    }
+
     @Override
     public String getPlanSQL() {
         StatementBuilder buff = new StatementBuilder("UPDATE ");
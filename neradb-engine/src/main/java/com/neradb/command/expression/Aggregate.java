@@ -59,22 +59,22 @@ public class Aggregate extends Expression {
     /**
      * The aggregate type for SUM(expression).
      */
-    static final int SUM = 3;
+    public static final int SUM = 3;
 
     /**
      * The aggregate type for MIN(expression).
      */
-    static final int MIN = 4;
+    public static final int MIN = 4;
 
     /**
      * The aggregate type for MAX(expression).
      */
-    static final int MAX = 5;
+    public static final int MAX = 5;
 
     /**
      * The aggregate type for AVG(expression).
      */
-    static final int AVG = 6;
+    public static final int AVG = 6;
 
     /**
      * The aggregate type for STDDEV_POP(expression).
@@ -220,6 +220,28 @@ public class Aggregate extends Expression {
         this.groupConcatSeparator = separator;
     }
 
+    /**
+     * Get the aggregate type.
+     *
+     * @return the type (for example COUNT_ALL)
+     */
+    public int getAggregateType() {
+        return type;
+    }
+
+    /**
+     * Get the expression the aggregate is computed for.
+     *
+     * @return the expression, or null for COUNT(*)
+     */
+    public Expression getOn() {
+        return on;
+    }
+
+    public boolean isDistinct() {
+        return distinct;
+    }
+
     private SortOrder initOrder(Session session) {
         int size = groupConcatOrderList.size();
         int[] index = new int[size];
@@ -276,6 +298,26 @@ public class Aggregate extends Expression {
         data.add(session.getDatabase(), dataType, distinct, v);
     }
 
+    /**
+     * Merge a partial result of this aggregate into the current group. The
+     * partial result was computed for a part of the rows, where the rows are
+     * stored. The partial result of COUNT(*) and COUNT is the number of rows;
+     * of SUM, MIN and MAX the sum, the minimum or the maximum (NULL if there
+     * are no rows); and of AVG an array of the sum and the number of rows.
+     *
+     * @param session the session
+     * @param partial the partial result
+     */
+    public void mergeAggregate(Session session, Value partial) {
+        HashMap<Expression, Object> group = select.getCurrentGroup();
+        AggregateData data = (AggregateData) group.get(this);
+        if (data == null) {
+            data = AggregateData.create(type);
+            group.put(this, data);
+        }
+        data.merge(session.getDatabase(), dataType, partial);
+    }
+
     @Override
     public Value getValue(Session session) {
         if (select.isQuickAggregateQuery()) {
@@ -608,6 +650,29 @@ public class Aggregate extends Expression {
                 return false;
             }
         }
+        if (visitor.getType() == ExpressionVisitor.DISTRIBUTED_AGGREGATE) {
+            switch (type) {
+            case COUNT:
+            case SUM:
+            case MIN:
+            case MAX:
+            case AVG:
+                if (!(on instanceof ExpressionColumn) ||
+                        ((ExpressionColumn) on).getTableFilter() != visitor.getResolver()) {
+                    return false;
+                }
+                break;
+            case COUNT_ALL:
+                break;
+            default:
+                return false;
+            }
+            if (distinct) {
+                return false;
+            }
+            visitor.addAggregate(this);
+            return true;
+        }
         if (on != null && !on.isEverything(visitor)) {
             return false;
         }
@@ -5,6 +5,7 @@
  */
 package com.neradb.command.expression;
 
+import com.neradb.common.DbException;
 import com.neradb.dbobject.Database;
 import com.neradb.value.Value;
 
@@ -54,4 +55,16 @@ abstract class AggregateData {
      * @return the value
      */
     abstract Value getValue(Database database, int dataType, boolean distinct);
+
+    /**
+     * Merge a partial result that was computed for a part of the rows (see
+     * {@link Aggregate#mergeAggregate(com.neradb.engine.Session, Value)}).
+     *
+     * @param database the database
+     * @param dataType the datatype of the computed result
+     * @param partial the partial result
+     */
+    void merge(Database database, int dataType, Value partial) {
+        throw DbException.throwInternalError("merge " + getClass().getSimpleName());
+    }
 }
@@ -33,6 +33,11 @@ class AggregateDataCount extends AggregateData {
         }
     }
 
+    @Override
+    void merge(Database database, int dataType, Value partial) {
+        count += partial.getLong();
+    }
+
     @Override
     Value getValue(Database database, int dataType, boolean distinct) {
         if (distinct) {
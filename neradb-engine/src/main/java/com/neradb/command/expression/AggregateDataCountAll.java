@@ -25,6 +25,11 @@ class AggregateDataCountAll extends AggregateData {
         count++;
     }
 
+    @Override
+    void merge(Database database, int dataType, Value partial) {
+        count += partial.getLong();
+    }
+
     @Override
     Value getValue(Database database, int dataType, boolean distinct) {
         if (distinct) {
@@ -10,6 +10,7 @@ import com.neradb.dbobject.Database;
 import com.neradb.util.ValueHashMap;
 import com.neradb.value.DataType;
 import com.neradb.value.Value;
+import com.neradb.value.ValueArray;
 import com.neradb.value.ValueBoolean;
 import com.neradb.value.ValueDouble;
 import com.neradb.value.ValueLong;
@@ -127,6 +128,45 @@ class AggregateDataDefault extends AggregateData {
         }
     }
 
+    @Override
+    void merge(Database database, int dataType, Value partial) {
+        switch (aggregateType) {
+        case Aggregate.SUM:
+            if (partial == ValueNull.INSTANCE) {
+                return;
+            }
+            add(partial.convertTo(dataType));
+            break;
+        case Aggregate.AVG: {
+            Value[] list = ((ValueArray) partial).getList();
+            if (list[0] == ValueNull.INSTANCE) {
+                return;
+            }
+            count += list[1].getLong();
+            add(list[0].convertTo(DataType.getAddProofType(dataType)));
+            break;
+        }
+        case Aggregate.MIN:
+            if (partial != ValueNull.INSTANCE &&
+                    (value == null || database.compare(partial, value) < 0)) {
+                value = partial;
+            }
+            break;
+        case Aggregate.MAX:
+            if (partial != ValueNull.INSTANCE &&
+                    (value == null || database.compare(partial, value) > 0)) {
+                value = partial;
+            }
+            break;
+        default:
+            super.merge(database, dataType, partial);
+        }
+    }
+
+    private void add(Value v) {
+        value = value == null ? v : value.add(v.convertTo(value.getType()));
+    }
+
     @Override
     Value getValue(Database database, int dataType, boolean distinct) {
         if (distinct) {
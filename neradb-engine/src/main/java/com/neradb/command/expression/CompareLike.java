@@ -5,6 +5,7 @@
  */
 package com.neradb.command.expression;
 
+import java.util.Arrays;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -16,6 +17,7 @@ import com.neradb.dbobject.table.ColumnResolver;
 import com.neradb.dbobject.table.TableFilter;
 import com.neradb.engine.Session;
 import com.neradb.util.CompareMode;
+import com.neradb.util.PatternCache;
 import com.neradb.value.Value;
 import com.neradb.value.ValueBoolean;
 import com.neradb.value.ValueNull;
@@ -28,6 +30,15 @@ public class CompareLike extends Condition {
 
     private static final int MATCH = 0, ONE = 1, ANY = 2;
 
+    /**
+     * The minimum length of the literal in LIKE '%literal%' to use the
+     * Boyer-Moore-Horspool search for case sensitive comparison. For shorter
+     * literals, String.contains is faster.
+     */
+    private static final int MIN_HORSPOOL_LENGTH = 16;
+
+    private static final int SHIFT_TABLE_SIZE = 256;
+
     private final CompareMode compareMode;
     private final String defaultEscape;
     private Expression left;
@@ -54,6 +65,19 @@ public class CompareLike extends Condition {
     private boolean shortcutToEndsWith;
     /** indicates that we can shortcut the comparison and use contains */
     private boolean shortcutToContains;
+    /** the literal for shortcutToContains */
+    private String containsString;
+    /** the literal for the Horspool search (case folded if ignoreCase) */
+    private char[] containsChars;
+    /** the Horspool shift table, or null if String.contains is used */
+    private int[] containsShift;
+
+    /**
+     * The pattern and escape character the current state was built for, so
+     * that a non-constant pattern is only parsed again if it changes.
+     */
+    private String lastPattern;
+    private Character lastEscape;
 
     public CompareLike(Database db, Expression left, Expression right,
             Expression escape, boolean regexp) {
@@ -271,11 +295,10 @@ public class CompareLike extends Condition {
             result = value.regionMatches(ignoreCase, value.length() -
                     patternLength + 1, patternString, 1, patternLength - 1);
         } else if (shortcutToContains) {
-            String p = patternString.substring(1, patternString.length() - 1);
-            if (ignoreCase) {
-                result = containsIgnoreCase(value, p);
+            if (containsShift != null) {
+                result = containsHorspool(value);
             } else {
-                result = value.contains(p);
+                result = value.contains(containsString);
             }
         } else {
             result = compareAt(value, 0, 0, value.length(), patternChars, patternTypes);
@@ -283,27 +306,57 @@ public class CompareLike extends Condition {
         return ValueBoolean.get(result);
     }
 
-    private static boolean containsIgnoreCase(String src, String what) {
-        final int length = what.length();
-        if (length == 0) {
-            // Empty string is contained
-            return true;
+    private void initContains() {
+        String p = patternString.substring(1, patternLength - 1);
+        containsString = p;
+        int m = p.length();
+        if (!ignoreCase && m < MIN_HORSPOOL_LENGTH) {
+            return;
+        }
+        char[] chars = new char[m];
+        for (int i = 0; i < m; i++) {
+            chars[i] = fold(p.charAt(i));
+        }
+        int[] shift = new int[SHIFT_TABLE_SIZE];
+        Arrays.fill(shift, m);
+        for (int i = 0; i < m - 1; i++) {
+            // characters with the same low bits share an entry: the later
+            // (smaller) shift wins, which is always safe
+            shift[chars[i] & (SHIFT_TABLE_SIZE - 1)] = m - 1 - i;
         }
+        containsChars = chars;
+        containsShift = shift;
+    }
 
-        final char firstLo = Character.toLowerCase(what.charAt(0));
-        final char firstUp = Character.toUpperCase(what.charAt(0));
+    private char fold(char c) {
+        // the same rule as String.regionMatches(true, ...)
+        return ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c;
+    }
 
-        for (int i = src.length() - length; i >= 0; i--) {
-            // Quick check before calling the more expensive regionMatches()
-            final char ch = src.charAt(i);
-            if (ch != firstLo && ch != firstUp) {
-                continue;
-            }
-            if (src.regionMatches(true, i, what, 0, length)) {
-                return true;
+    /**
+     * Check if the value contains the literal, using the Boyer-Moore-Horspool
+     * algorithm.
+     *
+     * @param s the value
+     * @return true if the value contains the literal
+     */
+    private boolean containsHorspool(String s) {
+        char[] p = containsChars;
+        int[] shift = containsShift;
+        int last = p.length - 1;
+        for (int i = 0, end = s.length() - p.length; i <= end;) {
+            char c = fold(s.charAt(i + last));
+            if (c == p[last]) {
+                int j = last - 1;
+                while (j >= 0 && fold(s.charAt(i + j)) == p[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return true;
+                }
             }
+            i += shift[c & (SHIFT_TABLE_SIZE - 1)];
         }
-
         return false;
     }
 
@@ -363,17 +416,32 @@ public class CompareLike extends Condition {
     }
 
     private void initPattern(String p, Character escapeChar) {
+        if (p != null && p.equals(lastPattern) && (escapeChar == null ?
+                lastEscape == null : escapeChar.equals(lastEscape))) {
+            // the same pattern as before (for example the same parameter
+            // value, or the same column value in the previous row)
+            return;
+        }
+        lastPattern = null;
+        invalidPattern = false;
+        shortcutToStartsWith = false;
+        shortcutToEndsWith = false;
+        shortcutToContains = false;
+        containsShift = null;
+        parsePattern(p, escapeChar);
+        lastPattern = p;
+        lastEscape = escapeChar;
+    }
+
+    private void parsePattern(String p, Character escapeChar) {
         if (compareMode.getName().equals(CompareMode.OFF) && !ignoreCase) {
             fastCompare = true;
         }
         if (regexp) {
             patternString = p;
             try {
-                if (ignoreCase) {
-                    patternRegexp = Pattern.compile(p, Pattern.CASE_INSENSITIVE);
-                } else {
-                    patternRegexp = Pattern.compile(p);
-                }
+                patternRegexp = PatternCache.compile(p,
+                        ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
             } catch (PatternSyntaxException e) {
                 throw DbException.get(ErrorCode.LIKE_ESCAPE_ERROR_1, e, p);
             }
@@ -456,6 +524,7 @@ public class CompareLike extends Condition {
                 }
                 if (maxMatch == patternLength - 1 && patternTypes[patternLength - 1] == ANY) {
                     shortcutToContains = true;
+                    initContains();
                 }
             }
         }
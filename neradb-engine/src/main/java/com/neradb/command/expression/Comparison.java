@@ -556,6 +556,15 @@ public class Comparison extends Condition {
         return null;
     }
 
+    /**
+     * Get the comparison type.
+     *
+     * @return the comparison type (for example {@link #EQUAL})
+     */
+    public int getCompareType() {
+        return compareType;
+    }
+
     /**
      * Get the left or the right sub-expression of this condition.
      *
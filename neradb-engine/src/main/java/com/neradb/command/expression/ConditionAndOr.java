@@ -284,6 +284,15 @@ public class ConditionAndOr extends Condition {
         return left.getCost() + right.getCost();
     }
 
+    /**
+     * Get the type of this condition.
+     *
+     * @return {@link #AND} or {@link #OR}
+     */
+    public int getAndOrType() {
+        return andOrType;
+    }
+
     /**
      * Get the left or the right sub-expression of this condition.
      *
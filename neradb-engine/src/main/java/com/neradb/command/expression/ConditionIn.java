@@ -7,6 +7,7 @@ package com.neradb.command.expression;
 
 import java.util.ArrayList;
 
+import com.neradb.common.DbException;
 import com.neradb.common.utils.StatementBuilder;
 import com.neradb.dbobject.Database;
 import com.neradb.dbobject.index.IndexCondition;
@@ -22,11 +23,34 @@ import com.neradb.value.ValueNull;
  */
 public class ConditionIn extends Condition {
 
+    /**
+     * The minimum number of values to check the list using a hash set if the
+     * list contains parameters.
+     */
+    private static final int MIN_HASH_SET_SIZE = 8;
+
     private final Database database;
     private Expression left;
     private final ArrayList<Expression> valueList;
     private int queryLevel;
 
+    /**
+     * Whether all values are parameters or constants, so that the values only
+     * change between executions.
+     */
+    private boolean parametersOnly;
+
+    /**
+     * The execution the hash set was built for.
+     */
+    private long setExecutionId = -1;
+    private int setType;
+
+    /**
+     * The set, or null if a value could not be converted.
+     */
+    private InValueSet valueSet;
+
     /**
      * Create a new IN(..) condition.
      *
@@ -47,6 +71,13 @@ public class ConditionIn extends Condition {
         if (l == ValueNull.INSTANCE) {
             return l;
         }
+        if (parametersOnly && valueList.size() >= MIN_HASH_SET_SIZE) {
+            return getValueUsingSet(session, l);
+        }
+        return getValueUsingLoop(session, l);
+    }
+
+    private Value getValueUsingLoop(Session session, Value l) {
         boolean result = false;
         boolean hasNull = false;
         for (Expression e : valueList) {
@@ -67,6 +98,50 @@ public class ConditionIn extends Condition {
         return ValueBoolean.get(result);
     }
 
+    private Value getValueUsingSet(Session session, Value l) {
+        long executionId = session.getExecutionId();
+        if (executionId != setExecutionId || setType != l.getType()) {
+            // parameters are only set between executions
+            int size = valueList.size();
+            Value[] values = new Value[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = valueList.get(i).getValue(session);
+            }
+            setExecutionId = executionId;
+            setType = l.getType();
+            valueSet = createSet(values, setType);
+        }
+        if (valueSet == null) {
+            return getValueUsingLoop(session, l);
+        }
+        boolean result = valueSet.contains(l);
+        if (!result && valueSet.hasNull()) {
+            return ValueNull.INSTANCE;
+        }
+        return ValueBoolean.get(result);
+    }
+
+    /**
+     * Convert the values to the given type and build the set. If a value
+     * can't be converted, null is returned, and the values are compared one
+     * at a time instead, which stops at the first match as before.
+     *
+     * @param values the values
+     * @param type the type of the left hand side
+     * @return the set, or null
+     */
+    private InValueSet createSet(Value[] values, int type) {
+        InValueSet set = new InValueSet(database, type);
+        try {
+            for (Value v : values) {
+                set.add(v == ValueNull.INSTANCE ? v : v.convertTo(type));
+            }
+        } catch (DbException e) {
+            return null;
+        }
+        return set;
+    }
+
     @Override
     public void mapColumns(ColumnResolver resolver, int level) {
         left.mapColumns(resolver, level);
@@ -85,6 +160,7 @@ public class ConditionIn extends Condition {
         }
         boolean allValuesConstant = true;
         boolean allValuesNull = true;
+        boolean allValuesParameters = true;
         int size = valueList.size();
         for (int i = 0; i < size; i++) {
             Expression e = valueList.get(i);
@@ -95,6 +171,9 @@ public class ConditionIn extends Condition {
             if (allValuesConstant && !e.isConstant()) {
                 allValuesConstant = false;
             }
+            if (!e.isConstant() && !(e instanceof Parameter)) {
+                allValuesParameters = false;
+            }
             if (left instanceof ExpressionColumn && e instanceof Parameter) {
                 ((Parameter) e)
                         .setColumn(((ExpressionColumn) left).getColumn());
@@ -119,6 +198,9 @@ public class ConditionIn extends Condition {
             expr = expr.optimize(session);
             return expr;
         }
+        parametersOnly = allValuesParameters;
+        setExecutionId = -1;
+        valueSet = null;
         return this;
     }
 
@@ -207,6 +289,9 @@ public class ConditionIn extends Condition {
         Expression add = other.getIfEquals(left);
         if (add != null) {
             valueList.add(add);
+            if (!add.isConstant() && !(add instanceof Parameter)) {
+                parametersOnly = false;
+            }
             return this;
         }
         return null;
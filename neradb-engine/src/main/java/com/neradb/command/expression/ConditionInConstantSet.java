@@ -6,8 +6,6 @@
 package com.neradb.command.expression;
 
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.TreeSet;
 
 import com.neradb.common.DbException;
 import com.neradb.common.utils.StatementBuilder;
@@ -23,15 +21,15 @@ import com.neradb.value.ValueNull;
  * Used for optimised IN(...) queries where the contents of the IN list are all
  * constant and of the same type.
  * <p>
- * Checking using a HashSet is has time complexity O(1), instead of O(n) for
- * checking using an array.
+ * Checking using a hash set has time complexity O(1), instead of O(n) for
+ * checking using an array (see {@link InValueSet}).
  */
 public class ConditionInConstantSet extends Condition {
 
     private Expression left;
     private int queryLevel;
     private final ArrayList<Expression> valueList;
-    private final TreeSet<Value> valueSet;
+    private final InValueSet valueSet;
 
     /**
      * Create a new IN(..) condition.
@@ -40,17 +38,12 @@ public class ConditionInConstantSet extends Condition {
      * @param left the expression before IN
      * @param valueList the value list (at least two elements)
      */
-    public ConditionInConstantSet(final Session session, Expression left,
+    public ConditionInConstantSet(Session session, Expression left,
             ArrayList<Expression> valueList) {
         this.left = left;
         this.valueList = valueList;
-        this.valueSet = new TreeSet<Value>(new Comparator<Value>() {
-            @Override
-            public int compare(Value o1, Value o2) {
-                return session.getDatabase().compare(o1, o2);
-            }
-        });
         int type = left.getType();
+        this.valueSet = new InValueSet(session.getDatabase(), type);
         for (Expression expression : valueList) {
             valueSet.add(expression.getValue(session).convertTo(type));
         }
@@ -63,11 +56,8 @@ public class ConditionInConstantSet extends Condition {
             return x;
         }
         boolean result = valueSet.contains(x);
-        if (!result) {
-            boolean setHasNull = valueSet.contains(ValueNull.INSTANCE);
-            if (setHasNull) {
-                return ValueNull.INSTANCE;
-            }
+        if (!result && valueSet.hasNull()) {
+            return ValueNull.INSTANCE;
         }
         return ValueBoolean.get(result);
     }
@@ -136,6 +126,7 @@ public class ConditionInConstantSet extends Condition {
         case ExpressionVisitor.GET_DEPENDENCIES:
         case ExpressionVisitor.QUERY_COMPARABLE:
         case ExpressionVisitor.GET_COLUMNS:
+        case ExpressionVisitor.DISTRIBUTED_AGGREGATE:
             return true;
         default:
             throw DbException.throwInternalError("type=" + visitor.getType());
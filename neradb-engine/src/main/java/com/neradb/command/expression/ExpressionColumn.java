@@ -310,6 +310,11 @@ public class ExpressionColumn extends Expression {
         case ExpressionVisitor.GET_COLUMNS:
             visitor.addColumn(column);
             return true;
+        case ExpressionVisitor.DISTRIBUTED_AGGREGATE:
+            // the rows are not read, so only the values of the group columns
+            // are known; a column of an outer query is like a parameter
+            return columnResolver != visitor.getResolver() ||
+                    visitor.isGroupColumn(column);
         default:
             throw DbException.throwInternalError("type=" + visitor.getType());
         }
@@ -5,6 +5,7 @@
  */
 package com.neradb.command.expression;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 
 import com.neradb.common.utils.New;
@@ -102,6 +103,14 @@ public class ExpressionVisitor {
      */
     public static final int GET_COLUMNS = 9;
 
+    /**
+     * Can the expression be computed from the values of the group columns
+     * (getColumns) and from the partial results of the aggregates, if the
+     * aggregates are computed where the rows of the table filter
+     * (getResolver) are stored? The aggregates are collected (addAggregate).
+     */
+    public static final int DISTRIBUTED_AGGREGATE = 10;
+
     /**
      * The visitor singleton for the type QUERY_COMPARABLE.
      */
@@ -115,6 +124,7 @@ public class ExpressionVisitor {
     private final Table table;
     private final long[] maxDataModificationId;
     private final ColumnResolver resolver;
+    private final ArrayList<Aggregate> aggregates;
 
     private ExpressionVisitor(int type,
             int queryLevel,
@@ -122,6 +132,17 @@ public class ExpressionVisitor {
             HashSet<Column> columns,
             Table table, ColumnResolver resolver,
             long[] maxDataModificationId) {
+        this(type, queryLevel, dependencies, columns, table, resolver,
+                maxDataModificationId, null);
+    }
+
+    private ExpressionVisitor(int type,
+            int queryLevel,
+            HashSet<DbObject> dependencies,
+            HashSet<Column> columns,
+            Table table, ColumnResolver resolver,
+            long[] maxDataModificationId,
+            ArrayList<Aggregate> aggregates) {
         this.type = type;
         this.queryLevel = queryLevel;
         this.dependencies = dependencies;
@@ -129,6 +150,7 @@ public class ExpressionVisitor {
         this.table = table;
         this.resolver = resolver;
         this.maxDataModificationId = maxDataModificationId;
+        this.aggregates = aggregates;
     }
 
     private ExpressionVisitor(int type) {
@@ -139,6 +161,7 @@ public class ExpressionVisitor {
         this.table = null;
         this.resolver = null;
         this.maxDataModificationId = null;
+        this.aggregates = null;
     }
 
     /**
@@ -171,7 +194,7 @@ public class ExpressionVisitor {
      * @param resolver the resolver
      * @return the new visitor
      */
-    static ExpressionVisitor getNotFromResolverVisitor(ColumnResolver resolver) {
+    public static ExpressionVisitor getNotFromResolverVisitor(ColumnResolver resolver) {
         return new ExpressionVisitor(NOT_FROM_RESOLVER, 0, null, null, null,
                 resolver, null);
     }
@@ -186,6 +209,23 @@ public class ExpressionVisitor {
         return new ExpressionVisitor(GET_COLUMNS, 0, null, columns, null, null, null);
     }
 
+    /**
+     * Create a new visitor to check if the expressions can be computed from
+     * the group columns and from partial aggregates that are computed where
+     * the rows of the table filter are stored.
+     *
+     * @param filter the table filter
+     * @param groupColumns the group columns
+     * @param aggregates the list where the aggregates are added
+     * @return the new visitor
+     */
+    public static ExpressionVisitor getDistributedAggregateVisitor(
+            TableFilter filter, HashSet<Column> groupColumns,
+            ArrayList<Aggregate> aggregates) {
+        return new ExpressionVisitor(DISTRIBUTED_AGGREGATE, 0, null,
+                groupColumns, null, filter, null, aggregates);
+    }
+
     public static ExpressionVisitor getMaxModificationIdVisitor() {
         return new ExpressionVisitor(SET_MAX_DATA_MODIFICATION_ID, 0, null,
                 null, null, null, new long[1]);
@@ -211,6 +251,29 @@ public class ExpressionVisitor {
         columns.add(column);
     }
 
+    /**
+     * Check whether the column is a group column.
+     * This is used for DISTRIBUTED_AGGREGATE visitors.
+     *
+     * @param column the column
+     * @return true if it is
+     */
+    boolean isGroupColumn(Column column) {
+        return columns.contains(column);
+    }
+
+    /**
+     * Add an aggregate to the list of aggregates.
+     * This is used for DISTRIBUTED_AGGREGATE visitors.
+     *
+     * @param aggregate the aggregate
+     */
+    void addAggregate(Aggregate aggregate) {
+        if (!aggregates.contains(aggregate)) {
+            aggregates.add(aggregate);
+        }
+    }
+
     /**
      * Get the dependency set.
      * This is used for GET_DEPENDENCIES visitors.
@@ -229,12 +292,12 @@ public class ExpressionVisitor {
      */
     public ExpressionVisitor incrementQueryLevel(int offset) {
         return new ExpressionVisitor(type, queryLevel + offset, dependencies,
-                columns, table, resolver, maxDataModificationId);
+                columns, table, resolver, maxDataModificationId, aggregates);
     }
 
     /**
      * Get the column resolver.
-     * This is used for NOT_FROM_RESOLVER visitors.
+     * This is used for NOT_FROM_RESOLVER and DISTRIBUTED_AGGREGATE visitors.
      *
      * @return the column resolver
      */
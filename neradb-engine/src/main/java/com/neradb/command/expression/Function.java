@@ -10,7 +10,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
@@ -25,6 +24,7 @@ import java.util.regex.PatternSyntaxException;
 
 import com.neradb.command.Command;
 import com.neradb.command.Parser;
+import com.neradb.command.Prepared;
 import com.neradb.common.Constants;
 import com.neradb.common.DbException;
 import com.neradb.common.ErrorCode;
@@ -55,6 +55,7 @@ import com.neradb.engine.Session;
 import com.neradb.util.Csv;
 import com.neradb.util.DateTimeUtils;
 import com.neradb.util.JdbcUtils;
+import com.neradb.util.PatternCache;
 import com.neradb.value.DataType;
 import com.neradb.value.Value;
 import com.neradb.value.ValueArray;
@@ -1398,7 +1399,7 @@ public class Function extends Expression implements FunctionCall {
             int flags = makeRegexpFlags(regexpMode);
             try {
                 result = ValueString.get(
-                        Pattern.compile(regexp, flags).matcher(v0.getString())
+                        PatternCache.compile(regexp, flags).matcher(v0.getString())
                                 .replaceAll(replacement),
                         database.getMode().treatEmptyStringsAsNull);
             } catch (StringIndexOutOfBoundsException e) {
@@ -1567,7 +1568,6 @@ public class Function extends Expression implements FunctionCall {
         }
         case CSVWRITE: {
             session.getUser().checkAdmin();
-            Connection conn = session.createConnection(false);
             Csv csv = new Csv();
             String options = v2 == null ? null : v2.getString();
             String charset = null;
@@ -1589,9 +1589,19 @@ public class Function extends Expression implements FunctionCall {
                     csv.setLineSeparator(lineSeparator);
                 }
             }
+            // the query runs nested in the statement that calls CSVWRITE:
+            // it is prepared separately (no shared query cache entry or
+            // result), does not replace the current command, and its result
+            // is read to the end and closed before returning, so the open
+            // result of the caller is not touched; table locks of the same
+            // session are re-entrant and the tables used here don't wait
+            String sql = v1.getString();
+            Prepared query = session.prepare(sql);
+            if (!query.isQuery()) {
+                throw DbException.get(ErrorCode.METHOD_ONLY_ALLOWED_FOR_QUERY);
+            }
             try {
-                int rows = csv.write(conn, v0.getString(), v1.getString(),
-                        charset);
+                int rows = csv.write(v0.getString(), query.query(0), charset);
                 result = ValueInt.get(rows);
             } catch (SQLException e) {
                 throw DbException.convert(e);
@@ -1665,7 +1675,7 @@ public class Function extends Expression implements FunctionCall {
                     v2.getString();
             int flags = makeRegexpFlags(regexpMode);
             try {
-                result = ValueBoolean.get(Pattern.compile(regexp, flags)
+                result = ValueBoolean.get(PatternCache.compile(regexp, flags)
                         .matcher(v0.getString()).find());
             } catch (PatternSyntaxException e) {
                 throw DbException.get(ErrorCode.LIKE_ESCAPE_ERROR_1, e, regexp);
@@ -2762,6 +2772,7 @@ public class Function extends Expression implements FunctionCall {
         case ExpressionVisitor.OPTIMIZABLE_MIN_MAX_COUNT_ALL:
         case ExpressionVisitor.SET_MAX_DATA_MODIFICATION_ID:
         case ExpressionVisitor.GET_COLUMNS:
+        case ExpressionVisitor.DISTRIBUTED_AGGREGATE:
             return true;
         default:
             throw DbException.throwInternalError("type=" + visitor.getType());
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.command.expression;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+import com.neradb.common.utils.LongHashSet;
+import com.neradb.common.utils.New;
+import com.neradb.dbobject.Database;
+import com.neradb.util.CompareMode;
+import com.neradb.value.Value;
+import com.neradb.value.ValueNull;
+
+/**
+ * The values of an IN(...) list, converted to the type of the left hand side.
+ * Values of the integer types are kept in a hash set of long values, strings
+ * in a hash set of strings if the database compares strings binary. All other
+ * values are kept in a tree set ordered by the database's comparison rules,
+ * as their hash codes are not consistent with those rules (for example
+ * decimals with different scale, or strings with a collation).
+ */
+final class InValueSet {
+
+    private final Database database;
+    private final int type;
+    private final ArrayList<Value> values = New.arrayList();
+    private LongHashSet longSet;
+    private HashSet<String> stringSet;
+    private TreeSet<Value> valueSet;
+    private boolean hasNull;
+
+    InValueSet(Database database, int type) {
+        this.database = database;
+        this.type = type;
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            longSet = new LongHashSet();
+            break;
+        case Value.STRING:
+            if (CompareMode.OFF.equals(database.getCompareMode().getName())) {
+                stringSet = new HashSet<String>();
+            } else {
+                valueSet = createValueSet(database);
+            }
+            break;
+        default:
+            valueSet = createValueSet(database);
+        }
+    }
+
+    private static TreeSet<Value> createValueSet(final Database database) {
+        return new TreeSet<Value>(new Comparator<Value>() {
+            @Override
+            public int compare(Value o1, Value o2) {
+                return database.compare(o1, o2);
+            }
+        });
+    }
+
+    int getType() {
+        return type;
+    }
+
+    /**
+     * Add a value. Except for NULL, the value must be of the type of this set.
+     *
+     * @param v the value
+     */
+    void add(Value v) {
+        if (v == ValueNull.INSTANCE) {
+            hasNull = true;
+            return;
+        }
+        values.add(v);
+        if (longSet != null) {
+            longSet.add(v.getLong());
+        } else if (stringSet != null) {
+            stringSet.add(v.getString());
+        } else {
+            valueSet.add(v);
+        }
+    }
+
+    /**
+     * Check if the set contains the given value.
+     *
+     * @param v the value (not NULL)
+     * @return true if the value is in the set
+     */
+    boolean contains(Value v) {
+        if (v.getType() != type) {
+            // the values can't be hashed as they are, use the comparison
+            // rules of the database
+            for (Value x : values) {
+                if (database.areEqual(v, x)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (longSet != null) {
+            return longSet.contains(v.getLong());
+        } else if (stringSet != null) {
+            return stringSet.contains(v.getString());
+        }
+        return valueSet.contains(v);
+    }
+
+    /**
+     * Check whether NULL was added.
+     *
+     * @return true if the list contains NULL
+     */
+    boolean hasNull() {
+        return hasNull;
+    }
+
+}
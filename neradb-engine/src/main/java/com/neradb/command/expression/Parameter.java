@@ -160,6 +160,7 @@ public class Parameter extends Expression implements ParameterInterface {
         case ExpressionVisitor.DETERMINISTIC:
         case ExpressionVisitor.READONLY:
         case ExpressionVisitor.GET_COLUMNS:
+        case ExpressionVisitor.DISTRIBUTED_AGGREGATE:
             return true;
         case ExpressionVisitor.INDEPENDENT:
             return value != null;
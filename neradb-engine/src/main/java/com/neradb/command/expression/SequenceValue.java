@@ -84,6 +84,7 @@ public class SequenceValue extends Expression {
         case ExpressionVisitor.OPTIMIZABLE_MIN_MAX_COUNT_ALL:
         case ExpressionVisitor.NOT_FROM_RESOLVER:
         case ExpressionVisitor.GET_COLUMNS:
+        case ExpressionVisitor.DISTRIBUTED_AGGREGATE:
             return true;
         case ExpressionVisitor.DETERMINISTIC:
         case ExpressionVisitor.READONLY:
@@ -160,6 +160,7 @@ public class ValueExpression extends Expression {
         case ExpressionVisitor.GET_DEPENDENCIES:
         case ExpressionVisitor.QUERY_COMPARABLE:
         case ExpressionVisitor.GET_COLUMNS:
+        case ExpressionVisitor.DISTRIBUTED_AGGREGATE:
             return true;
         default:
             throw DbException.throwInternalError("type=" + visitor.getType());
@@ -76,6 +76,7 @@ public class Variable extends Expression {
         case ExpressionVisitor.QUERY_COMPARABLE:
         case ExpressionVisitor.GET_DEPENDENCIES:
         case ExpressionVisitor.GET_COLUMNS:
+        case ExpressionVisitor.DISTRIBUTED_AGGREGATE:
             return true;
         case ExpressionVisitor.DETERMINISTIC:
             return false;
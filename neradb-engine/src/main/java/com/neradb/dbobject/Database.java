@@ -6,8 +6,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.neradb.command.CommandInterface;
 import com.neradb.command.ddl.CreateTableData;
@@ -16,9 +21,11 @@ import com.neradb.common.DbException;
 import com.neradb.common.ErrorCode;
 import com.neradb.common.SysProperties;
 import com.neradb.common.io.FileUtils;
+import com.neradb.common.io.InDoubtTransaction;
 import com.neradb.common.utils.BitField;
 import com.neradb.common.utils.CaseInsensitiveConcurrentMap;
 import com.neradb.common.utils.CaseInsensitiveMap;
+import com.neradb.common.utils.MathUtils;
 import com.neradb.common.utils.New;
 import com.neradb.common.utils.NullableKeyConcurrentMap;
 import com.neradb.common.utils.SmallLRUCache;
@@ -46,6 +53,8 @@ import com.neradb.engine.MetaRecord;
 import com.neradb.engine.Mode;
 import com.neradb.engine.QueryStatisticsData;
 import com.neradb.engine.Session;
+import com.neradb.engine.SharedCatalog;
+import com.neradb.engine.TransactionCoordinator;
 import com.neradb.engine.UndoLogRecord;
 import com.neradb.engine.spi.JavaObjectSerializer;
 import com.neradb.engine.spi.TableEngine;
@@ -54,6 +63,8 @@ import com.neradb.message.TraceSystem;
 import com.neradb.result.Row;
 import com.neradb.result.RowFactory;
 import com.neradb.result.SearchRow;
+import com.neradb.store.BufferPool;
+import com.neradb.store.CommitLog;
 import com.neradb.store.DataHandler;
 import com.neradb.store.FileStore;
 import com.neradb.store.LobStorageFrontend;
@@ -113,7 +124,8 @@ public class Database implements DataHandler {
 
 	private volatile boolean closing;
 	private boolean ignoreCase;
-	private String lobCompressionAlgorithm;
+	private String blobCompressionAlgorithm;
+	private String clobCompressionAlgorithm;
 	private boolean optimizeReuseResults = true;
 	private boolean referentialIntegrity = true;
 	private boolean multiVersion;
@@ -137,6 +149,12 @@ public class Database implements DataHandler {
 	private int queryStatisticsMaxEntries = Constants.QUERY_STATISTICS_MAX_ENTRIES;
 	private QueryStatisticsData queryStatisticsData;
 	private RowFactory rowFactory = RowFactory.DEFAULT;
+	private volatile CommitLog commitLog;
+	private volatile BufferPool bufferPool;
+	private volatile ExecutorService lookupExecutor;
+	private SharedCatalog sharedCatalog;
+	private final CopyOnWriteArrayList<TransactionCoordinator> coordinators =
+			new CopyOnWriteArrayList<TransactionCoordinator>();
 
 	public Database(ConnectionInfo ci, String cipher) {
 		String name = ci.getName();
@@ -353,10 +371,16 @@ public class Database implements DataHandler {
 		traceSystem = new TraceSystem(databaseName + Constants.SUFFIX_TRACE_FILE);
 		traceSystem.setLevelFile(traceLevelFile);
 		traceSystem.setLevelSystemOut(traceLevelSystemOut);
+		if (dbSettings.traceAsync) {
+			traceSystem.setAsync(dbSettings.traceBufferSize, dbSettings.traceBlockWhenFull);
+		}
 		trace = traceSystem.getTrace(Trace.DATABASE);
 		trace.info("opening {0} (build {1})", databaseName, Constants.BUILD_ID);
  
 		deleteOldTempFiles();
+		if (dbSettings.commitLog) {
+			commitLog = CommitLog.open(this, databaseName + Constants.SUFFIX_COMMIT_LOG_FILE, trace);
+		}
 
 		starting = false;
 
@@ -412,6 +436,10 @@ public class Database implements DataHandler {
 
 		getLobStorage().init();
 		systemSession.commit(true);
+		if (dbSettings.metaServer.length() > 0) {
+			sharedCatalog = new SharedCatalog(this, dbSettings.metaServer);
+			sharedCatalog.load(systemSession);
+		}
 
 		trace.info("opened {0}", databaseName);
 	}
@@ -466,6 +494,9 @@ public class Database implements DataHandler {
 				// moment
 				session.log(meta, UndoLogRecord.INSERT, r);
 			}
+			if (sharedCatalog != null) {
+				sharedCatalog.publish(obj);
+			}
 		}
 	}
 
@@ -876,6 +907,22 @@ public class Database implements DataHandler {
 	 */
 	private synchronized void closeOpenFilesAndUnlock(boolean flush) {
 		deleteOldTempFiles();
+		if (sharedCatalog != null) {
+			sharedCatalog.close();
+			sharedCatalog = null;
+		}
+		for (TransactionCoordinator c : coordinators) {
+			try {
+				c.close();
+			} catch (DbException e) {
+				trace.error(e, "close");
+			}
+		}
+		coordinators.clear();
+		if (lookupExecutor != null) {
+			lookupExecutor.shutdownNow();
+			lookupExecutor = null;
+		}
 		if (systemSession != null) {
 			systemSession.close();
 			systemSession = null;
@@ -884,6 +931,13 @@ public class Database implements DataHandler {
 			lobSession.close();
 			lobSession = null;
 		}
+		if (commitLog != null) {
+			try {
+				commitLog.close();
+			} finally {
+				commitLog = null;
+			}
+		}
 	}
 
  
@@ -1101,6 +1155,9 @@ public class Database implements DataHandler {
 	 */
 	public synchronized void renameSchemaObject(Session session, SchemaObject obj, String newName) {
 		checkWritingAllowed();
+		if (sharedCatalog != null) {
+			sharedCatalog.unpublish(obj);
+		}
 		obj.getSchema().rename(obj, newName);
 		updateMetaAndFirstLevelChildren(session, obj);
 	}
@@ -1148,6 +1205,9 @@ public class Database implements DataHandler {
 		int id = obj.getId();
 		lockMeta(session);
 		removeMeta(session, id);
+		if (sharedCatalog != null) {
+			sharedCatalog.unpublish(obj);
+		}
 		map.remove(obj.getName());
 		obj.rename(newName);
 		map.put(newName, obj);
@@ -1220,6 +1280,9 @@ public class Database implements DataHandler {
 		obj.removeChildrenAndResources(session);
 		map.remove(objName);
 		removeMeta(session, id);
+		if (sharedCatalog != null) {
+			sharedCatalog.unpublish(obj);
+		}
 	}
 
 	/**
@@ -1307,6 +1370,9 @@ public class Database implements DataHandler {
 				obj.removeChildrenAndResources(session);
 			}
 			removeMeta(session, id);
+			if (sharedCatalog != null) {
+				sharedCatalog.unpublish(obj);
+			}
 		}
 	}
 
@@ -1384,11 +1450,141 @@ public class Database implements DataHandler {
 		}
 	}
 
+	/**
+	 * Commit the current transaction of the given session. This method is not
+	 * synchronized on the database, so that concurrent sessions can share one
+	 * write to the commit log.
+	 *
+	 * @param session
+	 *            the session
+	 */
+	public void commit(Session session) {
+		throwLastBackgroundException();
+		CommitLog log = commitLog;
+		if (log != null) {
+			log.commit(session.getId(), session.getSynchronousCommit());
+		}
+		session.setAllCommitted();
+	}
+
+	public CommitLog getCommitLog() {
+		return commitLog;
+	}
+
+	/**
+	 * Prepare the transaction of the given session, so that it can be
+	 * committed later (PREPARE COMMIT). The changes of tables on other nodes
+	 * are prepared by their transaction coordinators; the changes of local
+	 * tables are written when the transaction is committed.
+	 *
+	 * @param session
+	 *            the session
+	 * @param transaction
+	 *            the name of the transaction
+	 */
+	public void prepareCommit(Session session, String transaction) {
+		throwLastBackgroundException();
+		CommitLog log = commitLog;
+		if (log != null) {
+			log.flush(true);
+		}
+	}
+
+	/**
+	 * Register a coordinator of transactions on other nodes. It is closed when
+	 * the database is closed.
+	 *
+	 * @param coordinator
+	 *            the coordinator
+	 */
+	public void addTransactionCoordinator(TransactionCoordinator coordinator) {
+		coordinators.addIfAbsent(coordinator);
+	}
+
+	/**
+	 * Get the prepared transactions that were not committed or rolled back by
+	 * the session that prepared them.
+	 *
+	 * @return the list of transactions, or null if there are none
+	 */
+	public ArrayList<InDoubtTransaction> getInDoubtTransactions() {
+		ArrayList<InDoubtTransaction> list = null;
+		for (TransactionCoordinator c : coordinators) {
+			List<InDoubtTransaction> l = c.getInDoubtTransactions();
+			if (!l.isEmpty()) {
+				if (list == null) {
+					list = New.arrayList();
+				}
+				list.addAll(l);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Get the buffer pool that caches pages of files of this database. It is
+	 * created when it is first used.
+	 *
+	 * @return the buffer pool, or null if disabled (BUFFER_POOL_SIZE 0)
+	 */
+	public BufferPool getBufferPool() {
+		BufferPool pool = bufferPool;
+		if (pool == null && dbSettings.bufferPoolSize > 0) {
+			synchronized (this) {
+				pool = bufferPool;
+				if (pool == null) {
+					int pageSize = MathUtils.roundUpInt(dbSettings.bufferPoolPageSize,
+							Constants.FILE_BLOCK_SIZE);
+					pool = bufferPool = new BufferPool(pageSize, dbSettings.bufferPoolSize * 1024L);
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Get the buffer pool if it was already created.
+	 *
+	 * @return the buffer pool, or null
+	 */
+	public BufferPool getBufferPoolIfCreated() {
+		return bufferPool;
+	}
+
+	/**
+	 * Get the thread pool that runs asynchronous index lookups. It is created
+	 * when it is first used, and stopped when the database is closed.
+	 *
+	 * @return the executor
+	 */
+	public ExecutorService getLookupExecutor() {
+		ExecutorService executor = lookupExecutor;
+		if (executor == null) {
+			synchronized (this) {
+				executor = lookupExecutor;
+				if (executor == null) {
+					executor = lookupExecutor = Executors.newFixedThreadPool(
+							Math.max(1, dbSettings.lookupThreads), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "H2 Lookup " + getShortName());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+				}
+			}
+		}
+		return executor;
+	}
+
 	/**
 	 * Flush all pending changes to the transaction log.
 	 */
 	public synchronized void flush() {
-	    
+		if (commitLog != null) {
+			commitLog.flush(false);
+		}
 	}
 
 	/**
@@ -1404,12 +1600,22 @@ public class Database implements DataHandler {
 
 	}
 
+	/**
+	 * Write all pending changes, and truncate the commit log. This method is
+	 * called when executing the SQL statement CHECKPOINT.
+	 */
+	public synchronized void checkpoint() {
+		if (commitLog != null) {
+			commitLog.checkpoint();
+		}
+	}
+
 	/**
 	 * Synchronize the files with the file system. This method is called when
 	 * executing the SQL statement CHECKPOINT SYNC.
 	 */
 	public synchronized void sync() {
-	    
+		checkpoint();
 	}
 
 	public int getMaxMemoryRows() {
@@ -1488,11 +1694,26 @@ public class Database implements DataHandler {
 
 	@Override
 	public String getLobCompressionAlgorithm(int type) {
-		return lobCompressionAlgorithm;
+		return type == Value.CLOB ? clobCompressionAlgorithm : blobCompressionAlgorithm;
 	}
 
 	public void setLobCompressionAlgorithm(String stringValue) {
-		this.lobCompressionAlgorithm = stringValue;
+		this.blobCompressionAlgorithm = stringValue;
+		this.clobCompressionAlgorithm = stringValue;
+	}
+
+	/**
+	 * Set the compression algorithm for new BLOB or CLOB values.
+	 *
+	 * @param type the value type (Value.BLOB or Value.CLOB)
+	 * @param algorithm the algorithm, or null for no compression
+	 */
+	public void setLobCompressionAlgorithm(int type, String algorithm) {
+		if (type == Value.CLOB) {
+			clobCompressionAlgorithm = algorithm;
+		} else {
+			blobCompressionAlgorithm = algorithm;
+		}
 	}
 
 	public void setAllowLiterals(int value) {
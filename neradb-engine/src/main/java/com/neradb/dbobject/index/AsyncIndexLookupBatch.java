@@ -0,0 +1,143 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.dbobject.index;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.neradb.common.utils.New;
+import com.neradb.dbobject.Database;
+import com.neradb.result.Row;
+import com.neradb.result.SearchRow;
+
+/**
+ * An index lookup batch that runs the lookups in the lookup thread pool of
+ * the database, so that they run concurrently with each other and with the
+ * join. This is useful for indexes where a lookup has a high latency, for
+ * example indexes of remote tables or of a custom table engine.
+ * <p>
+ * The batch is full when it contains the configured number of search rows
+ * (the prefetch depth). {@link #find()} opens one cursor per search row in
+ * the session thread, and then reads the cursors in the thread pool; it
+ * returns immediately, and the join only waits when it needs the rows of a
+ * lookup that is not done yet. Each task reads all rows of its lookup, so
+ * that the rows should be few (for example, a lookup by primary key).
+ * </p>
+ * <p>
+ * Opening a cursor should be cheap: the rows should only be read when the
+ * cursor is used. Reading the cursors happens in the worker threads,
+ * possibly at the same time, so the cursors must not change the state of
+ * the session.
+ * </p>
+ */
+public abstract class AsyncIndexLookupBatch implements IndexLookupBatch {
+
+    private final ExecutorService executor;
+    private final int batchSize;
+    private final ArrayList<SearchRow> searchRows = New.arrayList();
+
+    /**
+     * The lookups that may still be running.
+     */
+    private final ArrayList<Future<Cursor>> pending = New.arrayList();
+
+    /**
+     * Create a new batch. The prefetch depth is the database setting
+     * <code>LOOKUP_BATCH_SIZE</code>.
+     *
+     * @param database the database
+     */
+    protected AsyncIndexLookupBatch(Database database) {
+        this(database, database.getSettings().lookupBatchSize);
+    }
+
+    /**
+     * Create a new batch.
+     *
+     * @param database the database
+     * @param batchSize the maximum number of lookups per batch
+     */
+    protected AsyncIndexLookupBatch(Database database, int batchSize) {
+        this.executor = database.getLookupExecutor();
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Open a cursor over the rows in the given range. This method is called
+     * in the session thread, and the cursor is read in a worker thread.
+     *
+     * @param first the first row, or null for no limit
+     * @param last the last row, or null for no limit
+     * @return the cursor, or null if there are no rows
+     */
+    protected abstract Cursor lookup(SearchRow first, SearchRow last);
+
+    @Override
+    public boolean addSearchRows(SearchRow first, SearchRow last) {
+        searchRows.add(first);
+        searchRows.add(last);
+        return true;
+    }
+
+    @Override
+    public boolean isBatchFull() {
+        return searchRows.size() >= batchSize * 2;
+    }
+
+    @Override
+    public List<Future<Cursor>> find() {
+        for (Iterator<Future<Cursor>> it = pending.iterator(); it.hasNext();) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        int size = searchRows.size() / 2;
+        ArrayList<Future<Cursor>> result = New.arrayList(size);
+        for (int i = 0; i < searchRows.size(); i += 2) {
+            final Cursor c = lookup(searchRows.get(i), searchRows.get(i + 1));
+            if (c == null) {
+                result.add(null);
+                continue;
+            }
+            result.add(executor.submit(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    ArrayList<Row> rows = New.arrayList();
+                    while (c.next()) {
+                        rows.add(c.get());
+                    }
+                    return new MetaCursor(rows);
+                }
+            }));
+        }
+        searchRows.clear();
+        pending.addAll(result);
+        return result;
+    }
+
+    @Override
+    public String getPlanSQL() {
+        return "async(" + batchSize + ")";
+    }
+
+    @Override
+    public void reset(boolean beforeQuery) {
+        searchRows.clear();
+        if (!beforeQuery) {
+            // lookups that were not used any more (for example because of
+            // LIMIT) are not needed
+            for (Future<Cursor> f : pending) {
+                f.cancel(true);
+            }
+        }
+        pending.clear();
+    }
+
+}
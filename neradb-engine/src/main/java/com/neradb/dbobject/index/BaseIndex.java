@@ -5,8 +5,12 @@
  */
 package com.neradb.dbobject.index;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 
+import com.neradb.command.expression.Aggregate;
+import com.neradb.command.expression.Expression;
+
 import com.neradb.common.Constants;
 import com.neradb.common.DbException;
 import com.neradb.common.ErrorCode;
@@ -482,4 +486,12 @@ public abstract class BaseIndex extends SchemaObjectBase implements Index {
         // Lookup batching is not supported.
         return null;
     }
+
+    @Override
+    public ArrayList<Value[]> aggregate(TableFilter filter, Expression condition,
+            SearchRow first, SearchRow last, Column[] groupColumns,
+            ArrayList<Aggregate> aggregates) {
+        // Computing aggregates where the rows are stored is not supported.
+        return null;
+    }
 }
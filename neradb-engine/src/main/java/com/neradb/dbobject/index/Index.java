@@ -5,8 +5,11 @@
  */
 package com.neradb.dbobject.index;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 
+import com.neradb.command.expression.Aggregate;
+import com.neradb.command.expression.Expression;
 import com.neradb.dbobject.schema.SchemaObject;
 import com.neradb.dbobject.table.Column;
 import com.neradb.dbobject.table.IndexColumn;
@@ -16,6 +19,7 @@ import com.neradb.engine.Session;
 import com.neradb.result.Row;
 import com.neradb.result.SearchRow;
 import com.neradb.result.SortOrder;
+import com.neradb.value.Value;
 
 /**
  * An index. Indexes are used to speed up searching data.
@@ -278,4 +282,27 @@ public interface Index extends SchemaObject {
      *         by this index.
      */
     IndexLookupBatch createLookupBatch(TableFilter[] filters, int filter);
+
+    /**
+     * Compute the groups and the partial results of the aggregates where the
+     * rows are stored, for the rows in the given range that match the
+     * condition. The condition must be evaluated completely; if this is not
+     * possible, or if the aggregates are not supported, null is returned and
+     * the rows are read instead. A group may be returned multiple times, with
+     * the partial results of different parts of the rows.
+     *
+     * @param filter the table filter
+     * @param condition the condition, or null
+     * @param first the first row, or null for no limit
+     * @param last the last row, or null for no limit
+     * @param groupColumns the group columns
+     * @param aggregates the aggregates (see
+     *            {@link Aggregate#mergeAggregate(Session, Value)})
+     * @return the values of the group columns followed by the partial results
+     *         of the aggregates, or {@code null} if not supported by this
+     *         index
+     */
+    ArrayList<Value[]> aggregate(TableFilter filter, Expression condition,
+            SearchRow first, SearchRow last, Column[] groupColumns,
+            ArrayList<Aggregate> aggregates);
 }
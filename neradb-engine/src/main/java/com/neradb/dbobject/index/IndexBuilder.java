@@ -0,0 +1,279 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.dbobject.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import com.neradb.common.Constants;
+import com.neradb.common.utils.MathUtils;
+import com.neradb.common.utils.New;
+import com.neradb.dbobject.Database;
+import com.neradb.dbobject.table.IndexColumn;
+import com.neradb.dbobject.table.Table;
+import com.neradb.engine.Session;
+import com.neradb.result.Row;
+import com.neradb.store.Data;
+import com.neradb.store.FileStore;
+import com.neradb.value.Value;
+
+/**
+ * Adds the existing rows of a table to a new index, in index order.
+ * <p>
+ * The rows are read from the scan index in chunks of at most
+ * {@link Database#getMaxMemoryRows()} rows. Each chunk is sorted (large chunks
+ * are sorted in parallel). If the table fits in one chunk, the rows are added
+ * directly; otherwise each chunk is written as a sorted run to a temporary
+ * file, and the runs are merged. The index is in sorted insert mode while the
+ * rows are added, so that index implementations can fill their pages
+ * bottom-up instead of splitting them.
+ * </p>
+ */
+public class IndexBuilder {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Session session;
+    private final Database database;
+    private final Table table;
+    private final Index index;
+    private final int[] columnIds;
+    private final Comparator<Row> comparator;
+
+    /**
+     * The sorted runs: start position, end position, and row count.
+     */
+    private final ArrayList<long[]> runs = New.arrayList();
+    private FileStore file;
+    private long rowCount;
+
+    public IndexBuilder(Session session, Table table, Index index) {
+        this.session = session;
+        this.database = session.getDatabase();
+        this.table = table;
+        this.index = index;
+        IndexColumn[] cols = index.getIndexColumns();
+        columnIds = new int[cols.length];
+        for (int i = 0; i < cols.length; i++) {
+            columnIds[i] = cols[i].column.getColumnId();
+        }
+        final Index idx = index;
+        comparator = new Comparator<Row>() {
+            @Override
+            public int compare(Row r1, Row r2) {
+                int comp = idx.compareRows(r1, r2);
+                if (comp == 0) {
+                    comp = Long.compare(r1.getKey(), r2.getKey());
+                }
+                return comp;
+            }
+        };
+    }
+
+    /**
+     * Add all rows of the table to the index.
+     *
+     * @return the number of rows added
+     */
+    public long build() {
+        int maxRows = Math.max(1, database.getMaxMemoryRows());
+        Row[] chunk = new Row[Math.min(maxRows, 1024)];
+        int n = 0;
+        index.setSortedInsertMode(true);
+        try {
+            Cursor cursor = table.getScanIndex(session).find(session, null, null);
+            while (cursor.next()) {
+                if (n == chunk.length) {
+                    if (n >= maxRows) {
+                        writeRun(chunk, n);
+                        n = 0;
+                    } else {
+                        chunk = Arrays.copyOf(chunk, Math.min(maxRows, n * 2));
+                    }
+                }
+                chunk[n++] = cursor.get();
+            }
+            if (runs.isEmpty()) {
+                Arrays.parallelSort(chunk, 0, n, comparator);
+                for (int i = 0; i < n; i++) {
+                    add(chunk[i]);
+                }
+            } else {
+                if (n > 0) {
+                    writeRun(chunk, n);
+                }
+                chunk = null;
+                merge();
+            }
+        } finally {
+            index.setSortedInsertMode(false);
+            if (file != null) {
+                file.closeAndDeleteSilently();
+                file = null;
+            }
+        }
+        return rowCount;
+    }
+
+    private void add(Row row) {
+        index.add(session, row);
+        rowCount++;
+    }
+
+    private void writeRun(Row[] chunk, int n) {
+        Arrays.parallelSort(chunk, 0, n, comparator);
+        if (file == null) {
+            String fileName = database.createTempFile();
+            file = database.openFile(fileName, "rw", false);
+            file.setCheckedWriting(false);
+            file.setLength(FileStore.HEADER_LENGTH);
+            file.seek(FileStore.HEADER_LENGTH);
+            file.autoDelete();
+        }
+        long start = file.getFilePointer();
+        Data buff = Data.create(database, READ_BUFFER_SIZE);
+        for (int i = 0; i < n; i++) {
+            Row row = chunk[i];
+            chunk[i] = null;
+            int len = Data.getVarLongLen(row.getKey());
+            for (int c : columnIds) {
+                len += buff.getValueLen(row.getValue(c));
+            }
+            buff.checkCapacity(Data.LENGTH_INT + len);
+            buff.writeInt(len);
+            buff.writeVarLong(row.getKey());
+            for (int c : columnIds) {
+                buff.writeValue(row.getValue(c));
+            }
+            if (buff.length() >= READ_BUFFER_SIZE) {
+                write(buff, false);
+            }
+        }
+        write(buff, true);
+        runs.add(new long[] { start, file.getFilePointer(), n });
+    }
+
+    /**
+     * Write the buffer to the file. Only complete blocks are written, the
+     * rest is kept in the buffer, except for the last call of a run, which
+     * pads the data to a complete block.
+     *
+     * @param buff the buffer
+     * @param last whether this is the end of the run
+     */
+    private void write(Data buff, boolean last) {
+        int len = buff.length();
+        int aligned;
+        if (last) {
+            aligned = MathUtils.roundUpInt(len, Constants.FILE_BLOCK_SIZE);
+            buff.checkCapacity(aligned - len);
+        } else {
+            aligned = len / Constants.FILE_BLOCK_SIZE * Constants.FILE_BLOCK_SIZE;
+        }
+        byte[] bytes = buff.getBytes();
+        file.write(bytes, 0, aligned);
+        int rest = Math.max(0, len - aligned);
+        System.arraycopy(bytes, aligned, bytes, 0, rest);
+        buff.setPos(rest);
+    }
+
+    private void merge() {
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(runs.size(),
+                new Comparator<Run>() {
+                    @Override
+                    public int compare(Run r1, Run r2) {
+                        return comparator.compare(r1.current, r2.current);
+                    }
+                });
+        for (long[] r : runs) {
+            Run run = new Run(r[0], r[1], r[2]);
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Run run = queue.poll();
+            add(run.current);
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+    }
+
+    /**
+     * A sorted run in the temporary file.
+     */
+    private final class Run {
+
+        private long filePos;
+        private final long end;
+        private long remaining;
+        private final Data buff;
+        private int limit;
+        Row current;
+
+        Run(long start, long end, long count) {
+            this.filePos = start;
+            this.end = end;
+            this.remaining = count;
+            buff = Data.create(database, Constants.FILE_BLOCK_SIZE);
+        }
+
+        /**
+         * Read the next row.
+         *
+         * @return false if there are no more rows
+         */
+        boolean next() {
+            if (remaining == 0) {
+                current = null;
+                return false;
+            }
+            remaining--;
+            fill(Data.LENGTH_INT);
+            int len = buff.readInt();
+            fill(len);
+            Row row = table.getTemplateRow();
+            row.setKey(buff.readVarLong());
+            for (int c : columnIds) {
+                Value v = buff.readValue();
+                row.setValue(c, v);
+            }
+            current = row;
+            return true;
+        }
+
+        /**
+         * Make sure the buffer contains at least the given number of bytes
+         * after the current position.
+         *
+         * @param len the number of bytes
+         */
+        private void fill(int len) {
+            int pos = buff.length();
+            int rest = limit - pos;
+            if (rest >= len) {
+                return;
+            }
+            byte[] bytes = buff.getBytes();
+            System.arraycopy(bytes, pos, bytes, 0, rest);
+            int read = MathUtils.roundUpInt(Math.max(len - rest, READ_BUFFER_SIZE),
+                    Constants.FILE_BLOCK_SIZE);
+            read = (int) Math.min(read, end - filePos);
+            buff.setPos(rest);
+            buff.checkCapacity(read);
+            file.seek(filePos);
+            file.readFully(buff.getBytes(), rest, read);
+            filePos += read;
+            limit = rest + read;
+            buff.setPos(0);
+        }
+
+    }
+
+}
@@ -7,6 +7,9 @@ package com.neradb.dbobject.index;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.neradb.command.expression.Comparison;
 import com.neradb.common.DbException;
@@ -32,6 +35,12 @@ import com.neradb.value.ValueNull;
  */
 public class IndexCursor implements Cursor {
 
+    /**
+     * The minimum number of values in an IN(..) list to look them up using an
+     * index lookup batch, if the index supports it.
+     */
+    private static final int MIN_IN_LIST_BATCH_SIZE = 16;
+
     private Session session;
     private final TableFilter tableFilter;
     private Index index;
@@ -47,12 +56,22 @@ public class IndexCursor implements Cursor {
     private ResultInterface inResult;
     private HashSet<Value> inResultTested;
 
+    /**
+     * The lookup batch for the IN(..) list, null if not used.
+     */
+    private IndexLookupBatch inListBatch;
+    private boolean inListBatchCreated;
+    private List<Future<Cursor>> inListCursors;
+    private int inListCursorIndex;
+
     public IndexCursor(TableFilter filter) {
         this.tableFilter = filter;
     }
 
     public void setIndex(Index index) {
         this.index = index;
+        inListBatch = null;
+        inListBatchCreated = false;
         this.table = index.getTable();
         Column[] columns = table.getColumns();
         indexColumns = new IndexColumn[columns.length];
@@ -76,11 +95,14 @@ public class IndexCursor implements Cursor {
     public void prepare(Session s, ArrayList<IndexCondition> indexConditions) {
         this.session = s;
         alwaysFalse = false;
+        // whether a start or end condition can't be combined with IN(..)
+        boolean inExcluded = false;
         start = end = null;
         inList = null;
         inColumn = null;
         inResult = null;
         inResultTested = null;
+        inListCursors = null;
         intersects = null;
         // don't use enhanced for loop to avoid creating objects
         for (int i = 0, size = indexConditions.size(); i < size; i++) {
@@ -91,7 +113,7 @@ public class IndexCursor implements Cursor {
             }
             Column column = condition.getColumn();
             if (condition.getCompareType() == Comparison.IN_LIST) {
-                if (start == null && end == null) {
+                if (!inExcluded) {
                     if (canUseIndexForIn(column)) {
                         this.inColumn = column;
                         inList = condition.getCurrentValueList(s);
@@ -99,7 +121,7 @@ public class IndexCursor implements Cursor {
                     }
                 }
             } else if (condition.getCompareType() == Comparison.IN_QUERY) {
-                if (start == null && end == null) {
+                if (!inExcluded) {
                     if (canUseIndexForIn(column)) {
                         this.inColumn = column;
                         inResult = condition.getCurrentResult();
@@ -127,9 +149,10 @@ public class IndexCursor implements Cursor {
                 if (isEnd) {
                     end = getSearchRow(end, columnId, v, false);
                 }
-                if (isStart || isEnd) {
+                if ((isStart || isEnd) && !canCombineWithIn(column)) {
                     // an X=? condition will produce less rows than
                     // an X IN(..) condition
+                    inExcluded = true;
                     inColumn = null;
                     inList = null;
                     inResult = null;
@@ -154,10 +177,11 @@ public class IndexCursor implements Cursor {
      */
     public void find(Session s, ArrayList<IndexCondition> indexConditions) {
         prepare(s, indexConditions);
-        if (inColumn != null) {
-            return;
-        }
-        if (!alwaysFalse) {
+        if (alwaysFalse) {
+            // don't look up the IN(..) values either
+            inList = null;
+            inResult = null;
+        } else if (inColumn == null) {
             cursor = index.find(tableFilter, start, end);
         }
     }
@@ -179,6 +203,43 @@ public class IndexCursor implements Cursor {
         return idxCol == null || idxCol.column == column;
     }
 
+    /**
+     * Check whether a start or end condition on this column can be used
+     * together with an IN(..) condition on the first column of the index.
+     * The IN(..) values are then combined with the start and end rows.
+     *
+     * @param column the column of the start or end condition
+     * @return true if it can
+     */
+    private boolean canCombineWithIn(Column column) {
+        IndexColumn[] cols = index.getIndexColumns();
+        if (cols == null || cols[0] == null || column.getColumnId() < 0) {
+            return false;
+        }
+        return cols[0].column != column && index.getColumnIndex(column) > 0;
+    }
+
+    /**
+     * Copy the start or end row and set the value of the IN(..) column.
+     *
+     * @param row the start or end row, or null
+     * @param v the value of the IN(..) column
+     * @return the new search row
+     */
+    private SearchRow getInSearchRow(SearchRow row, Value v) {
+        SearchRow r = table.getTemplateRow();
+        if (row != null) {
+            for (int i = 0, len = row.getColumnCount(); i < len; i++) {
+                Value x = row.getValue(i);
+                if (x != null) {
+                    r.setValue(i, x);
+                }
+            }
+        }
+        r.setValue(inColumn.getColumnId(), v);
+        return r;
+    }
+
 
     private SearchRow getSearchRow(SearchRow row, int columnId, Value v,
             boolean max) {
@@ -283,6 +344,10 @@ public class IndexCursor implements Cursor {
 
     private void nextCursor() {
         if (inList != null) {
+            if (inList.length >= MIN_IN_LIST_BATCH_SIZE && useInListBatch()) {
+                nextBatchedCursor();
+                return;
+            }
             while (inListIndex < inList.length) {
                 Value v = inList[inListIndex++];
                 if (v != ValueNull.INSTANCE) {
@@ -307,14 +372,73 @@ public class IndexCursor implements Cursor {
         }
     }
 
+    private boolean useInListBatch() {
+        if (!inListBatchCreated) {
+            inListBatchCreated = true;
+            if (index instanceof ViewIndex) {
+                // view lookup batches only work within a join batch
+                return false;
+            }
+            inListBatch = index.createLookupBatch(
+                    new TableFilter[] { tableFilter }, 0);
+            if (inListBatch != null) {
+                inListBatch.reset(true);
+            }
+        }
+        return inListBatch != null;
+    }
+
+    /**
+     * Get the next cursor of the current lookup batch, and look up the next
+     * values of the IN(..) list as one batch if the current batch is done.
+     */
+    private void nextBatchedCursor() {
+        while (true) {
+            if (inListCursors != null && inListCursorIndex < inListCursors.size()) {
+                Future<Cursor> f = inListCursors.get(inListCursorIndex++);
+                if (f == null) {
+                    // no rows
+                    continue;
+                }
+                try {
+                    cursor = f.get();
+                } catch (ExecutionException e) {
+                    throw DbException.convert(e.getCause());
+                } catch (Exception e) {
+                    throw DbException.convert(e);
+                }
+                if (cursor != null) {
+                    return;
+                }
+                continue;
+            }
+            inListCursors = null;
+            if (inListIndex >= inList.length) {
+                return;
+            }
+            inListBatch.reset(false);
+            boolean added = false;
+            while (inListIndex < inList.length && !inListBatch.isBatchFull()) {
+                Value v = inList[inListIndex++];
+                if (v != ValueNull.INSTANCE) {
+                    // each search row must be a separate object, as the batch
+                    // keeps them until find is called
+                    v = inColumn.convert(v);
+                    added |= inListBatch.addSearchRows(getInSearchRow(start, v),
+                            getInSearchRow(end, v));
+                }
+            }
+            if (added) {
+                inListCursors = inListBatch.find();
+                inListCursorIndex = 0;
+            }
+        }
+    }
+
     private void find(Value v) {
         v = inColumn.convert(v);
-        int id = inColumn.getColumnId();
-        if (start == null) {
-            start = table.getTemplateRow();
-        }
-        start.setValue(id, v);
-        cursor = index.find(tableFilter, start, start);
+        cursor = index.find(tableFilter, getInSearchRow(start, v),
+                getInSearchRow(end, v));
     }
 
     @Override
@@ -19,6 +19,12 @@ import com.neradb.result.SearchRow;
  * lookup. Note that a single instance of {@link IndexLookupBatch} can be reused
  * for multiple sequential batched lookups, moreover it can be reused for
  * multiple queries for the same prepared statement.
+ * <p>
+ * The returned futures may still be running when {@link #find()} returns;
+ * the engine only waits for a cursor when it needs its rows. See
+ * {@link AsyncIndexLookupBatch} for an implementation that runs the lookups
+ * in a thread pool.
+ * </p>
  *
  * @see Index#createLookupBatch(org.h2.table.TableFilter[], int)
  * @author Sergi Vladykin
@@ -6,6 +6,7 @@
 package com.neradb.dbobject.schema;
 
 import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.neradb.common.DbException;
 import com.neradb.common.ErrorCode;
@@ -17,6 +18,15 @@ import com.neradb.message.Trace;
 /**
  * A sequence is created using the statement
  * CREATE SEQUENCE
+ * <p>
+ * Values are handed out without locking: the next value is taken with a
+ * compare-and-set on the current value, as long as it is within the range
+ * that was already persisted (the value with margin, which is <code>CACHE</code>
+ * values ahead). The session that takes the value in the middle of the
+ * current range persists the next range ahead of time, so that other sessions
+ * usually never wait for the meta data to be written. Only the session that
+ * finds the persisted range used up persists a range itself.
+ * </p>
  */
 public class Sequence extends SchemaObjectBase {
 
@@ -25,16 +35,41 @@ public class Sequence extends SchemaObjectBase {
      */
     public static final int DEFAULT_CACHE_SIZE = 32;
 
-    private long value;
-    private long valueWithMargin;
-    private long increment;
-    private long cacheSize;
-    private long minValue;
-    private long maxValue;
-    private boolean cycle;
+    private final AtomicLong value = new AtomicLong();
+
+    /**
+     * The end of the persisted range (exclusive). Values up to this value can
+     * be handed out without writing to disk.
+     */
+    private volatile long valueWithMargin;
+
+    /**
+     * The end of the range that is persisted or currently being persisted.
+     */
+    private final AtomicLong reservedMargin = new AtomicLong();
+
+    /**
+     * The session that gets this value persists the next range.
+     */
+    private volatile long prefetchValue;
+
+    /**
+     * Incremented whenever the value is reset, so that ranges reserved
+     * before are not used.
+     */
+    private volatile int generation;
+
+    private volatile long increment;
+    private volatile long cacheSize;
+    private volatile long minValue;
+    private volatile long maxValue;
+    private volatile boolean cycle;
     private boolean belongsToTable;
     private final Object flushSync = new Object();
     private boolean writeWithMargin;
+    private long marginToWrite;
+    private long persistedMargin;
+    private int persistedGeneration = -1;
 
     /**
      * Creates a new sequence for an auto-increment column.
@@ -76,16 +111,16 @@ public class Sequence extends SchemaObjectBase {
                 minValue : getDefaultMinValue(startValue, this.increment);
         this.maxValue = maxValue != null ?
                 maxValue : getDefaultMaxValue(startValue, this.increment);
-        this.value = startValue != null ?
+        long start = startValue != null ?
                 startValue : getDefaultStartValue(this.increment);
-        this.valueWithMargin = value;
         this.cacheSize = cacheSize != null ?
                 Math.max(1, cacheSize) : DEFAULT_CACHE_SIZE;
         this.cycle = cycle;
         this.belongsToTable = belongsToTable;
-        if (!isValid(this.value, this.minValue, this.maxValue, this.increment)) {
+        reset(start);
+        if (!isValid(start, this.minValue, this.maxValue, this.increment)) {
             throw DbException.get(ErrorCode.SEQUENCE_ATTRIBUTES_INVALID, name,
-                    String.valueOf(this.value), String.valueOf(this.minValue),
+                    String.valueOf(start), String.valueOf(this.minValue),
                     String.valueOf(this.maxValue),
                     String.valueOf(this.increment));
         }
@@ -106,7 +141,7 @@ public class Sequence extends SchemaObjectBase {
     public synchronized void modify(Long startValue, Long minValue,
             Long maxValue, Long increment) {
         if (startValue == null) {
-            startValue = this.value;
+            startValue = this.value.get();
         }
         if (minValue == null) {
             minValue = this.minValue;
@@ -124,11 +159,24 @@ public class Sequence extends SchemaObjectBase {
                     String.valueOf(maxValue),
                     String.valueOf(increment));
         }
-        this.value = startValue;
-        this.valueWithMargin = startValue;
         this.minValue = minValue;
         this.maxValue = maxValue;
         this.increment = increment;
+        reset(startValue);
+    }
+
+    /**
+     * Set the next value to return, and drop the ranges that were reserved
+     * so far. The caller must synchronize on this object.
+     *
+     * @param start the next value
+     */
+    private void reset(long start) {
+        generation++;
+        value.set(start);
+        valueWithMargin = start;
+        reservedMargin.set(start);
+        prefetchValue = start;
     }
 
     /**
@@ -213,7 +261,7 @@ public class Sequence extends SchemaObjectBase {
 
     @Override
     public synchronized String getCreateSQL() {
-        long v = writeWithMargin ? valueWithMargin : value;
+        long v = writeWithMargin ? marginToWrite : value.get();
         StringBuilder buff = new StringBuilder("CREATE SEQUENCE ");
         buff.append(getSQL()).append(" START WITH ").append(v);
         if (increment != 1) {
@@ -244,41 +292,124 @@ public class Sequence extends SchemaObjectBase {
      * @return the next value
      */
     public long getNext(Session session) {
-        boolean needsFlush = false;
-        long result;
-        synchronized (this) {
-            if ((increment > 0 && value >= valueWithMargin) ||
-                    (increment < 0 && value <= valueWithMargin)) {
-                valueWithMargin += increment * cacheSize;
-                needsFlush = true;
+        while (true) {
+            long inc = increment;
+            long v = value.get();
+            if (inc > 0 ? v > maxValue : v < minValue) {
+                restart(v);
+                continue;
+            }
+            long margin = valueWithMargin;
+            int gen = generation;
+            if (!isBeyond(margin, v, inc)) {
+                // the persisted range is used up
+                reserve(session, gen, inc, false);
+                continue;
             }
-            if ((increment > 0 && value > maxValue) ||
-                    (increment < 0 && value < minValue)) {
-                if (cycle) {
-                    value = increment > 0 ? minValue : maxValue;
-                    valueWithMargin = value + (increment * cacheSize);
-                    needsFlush = true;
-                } else {
-                    throw DbException.get(ErrorCode.SEQUENCE_EXHAUSTED, getName());
+            if (value.compareAndSet(v, v + inc)) {
+                if (v == prefetchValue) {
+                    reserve(session, gen, inc, true);
                 }
+                return v;
             }
-            result = value;
-            value += increment;
         }
-        if (needsFlush) {
-            flush(session);
+    }
+
+    /**
+     * Start again with the min value (or max value), or throw an exception if
+     * this sequence does not cycle.
+     *
+     * @param v the value that is out of range
+     */
+    private synchronized void restart(long v) {
+        if (value.get() != v) {
+            // another session already restarted
+            return;
+        }
+        if (!cycle) {
+            throw DbException.get(ErrorCode.SEQUENCE_EXHAUSTED, getName());
+        }
+        reset(increment > 0 ? minValue : maxValue);
+    }
+
+    /**
+     * Persist the next range of values, and then allow them to be used.
+     *
+     * @param session the session
+     * @param gen the generation the range belongs to
+     * @param inc the increment
+     * @param prefetch whether the current range is not used up yet, in which
+     *            case nothing is done if another session already reserves
+     */
+    private void reserve(Session session, int gen, long inc, boolean prefetch) {
+        long margin = valueWithMargin;
+        long reserved, newMargin;
+        do {
+            reserved = reservedMargin.get();
+            if (prefetch && reserved != margin) {
+                return;
+            }
+            newMargin = add(reserved, multiply(inc, cacheSize));
+        } while (!reservedMargin.compareAndSet(reserved, newMargin));
+        flush(session, newMargin, gen, false);
+        publish(newMargin, gen, inc);
+    }
+
+    private synchronized void publish(long newMargin, int gen, long inc) {
+        if (gen != generation || !isBeyond(newMargin, valueWithMargin, inc)) {
+            return;
+        }
+        valueWithMargin = newMargin;
+        prefetchValue = add(newMargin, -multiply(inc, cacheSize / 2));
+    }
+
+    private static boolean isBeyond(long a, long b, long inc) {
+        return inc > 0 ? a > b : a < b;
+    }
+
+    private static long add(long a, long b) {
+        long x = a + b;
+        if (((a ^ x) & (b ^ x)) < 0) {
+            return b > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        return x;
+    }
+
+    private static long multiply(long a, long b) {
+        try {
+            return Math.multiplyExact(a, b);
+        } catch (ArithmeticException e) {
+            return (a > 0) == (b > 0) ? Long.MAX_VALUE : -Long.MAX_VALUE;
         }
-        return result;
     }
 
     /**
      * Flush the current value to disk.
      */
     public void flushWithoutMargin() {
-        if (valueWithMargin != value) {
-            valueWithMargin = value;
-            flush(null);
+        long v;
+        int gen;
+        synchronized (this) {
+            v = value.get();
+            if (valueWithMargin == v) {
+                return;
+            }
+            // the value itself is not set: a value that is handed out
+            // concurrently must not be handed out again
+            while (true) {
+                generation++;
+                valueWithMargin = v;
+                reservedMargin.set(v);
+                prefetchValue = v;
+                long current = value.get();
+                if (current == v) {
+                    break;
+                }
+                v = current;
+            }
+            gen = generation;
         }
+        flush(null, v, gen, true);
     }
 
     /**
@@ -287,6 +418,10 @@ public class Sequence extends SchemaObjectBase {
      * @param session the session
      */
     public void flush(Session session) {
+        flush(session, valueWithMargin, generation, true);
+    }
+
+    private void flush(Session session, long margin, int gen, boolean force) {
         if (isTemporary()) {
             return;
         }
@@ -296,26 +431,41 @@ public class Sequence extends SchemaObjectBase {
             // other threads can not access the sys table.
             Session sysSession = database.getSystemSession();
             synchronized (database.isMultiThreaded() ?  sysSession : database) {
-                flushInternal(sysSession);
+                flushInternal(sysSession, margin, gen, force);
                 sysSession.commit(false);
             }
         } else {
             synchronized (database.isMultiThreaded() ? session : database) {
-                flushInternal(session);
+                flushInternal(session, margin, gen, force);
             }
         }
     }
 
-    private void flushInternal(Session session) {
+    private void flushInternal(Session session, long margin, int gen,
+            boolean force) {
         synchronized (flushSync) {
+            if (!force) {
+                if (gen != generation) {
+                    // the sequence was reset in the meantime
+                    return;
+                }
+                if (gen == persistedGeneration &&
+                        !isBeyond(margin, persistedMargin, increment)) {
+                    // a range further ahead is already persisted
+                    return;
+                }
+            }
             final boolean metaWasLocked = database.lockMeta(session);
             // just for this case, use the value with the margin
             try {
                 writeWithMargin = true;
+                marginToWrite = margin;
                 database.updateMeta(session, this);
             } finally {
                 writeWithMargin = false;
             }
+            persistedMargin = margin;
+            persistedGeneration = gen;
             if (!metaWasLocked) {
                 database.unlockMeta(session);
             }
@@ -345,8 +495,8 @@ public class Sequence extends SchemaObjectBase {
         // nothing to do
     }
 
-    public synchronized long getCurrentValue() {
-        return value - increment;
+    public long getCurrentValue() {
+        return value.get() - increment;
     }
 
     public void setBelongsToTable(boolean b) {
@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 import com.neradb.command.dml.Query;
@@ -246,7 +247,10 @@ public final class JoinBatch {
     private static Cursor get(Future<Cursor> f) {
         Cursor c;
         try {
+            // an asynchronous lookup may still be running
             c = f.get();
+        } catch (ExecutionException e) {
+            throw DbException.convert(e.getCause());
         } catch (Exception e) {
             throw DbException.convert(e);
         }
@@ -23,6 +23,7 @@ import com.neradb.command.expression.ValueExpression;
 import com.neradb.common.Constants;
 import com.neradb.common.DbException;
 import com.neradb.common.io.InDoubtTransaction;
+import com.neradb.common.utils.LatencyHistogram;
 import com.neradb.common.utils.MathUtils;
 import com.neradb.common.utils.New;
 import com.neradb.common.utils.StatementBuilder;
@@ -57,6 +58,8 @@ import com.neradb.mvstore.db.MVTableEngine.Store;
 import com.neradb.result.Row;
 import com.neradb.result.SearchRow;
 import com.neradb.result.SortOrder;
+import com.neradb.store.BufferPool;
+import com.neradb.store.CommitLog;
 import com.neradb.store.FileStore;
 import com.neradb.util.CompareMode;
 import com.neradb.util.Csv;
@@ -107,7 +110,8 @@ public class MetaTable extends Table {
 	private static final int LOCKS = 26;
 	private static final int SESSION_STATE = 27;
 	private static final int QUERY_STATISTICS = 28;
-	private static final int META_TABLE_TYPE_COUNT = QUERY_STATISTICS + 1;
+	private static final int QUERY_OPERATOR_STATISTICS = 29;
+	private static final int META_TABLE_TYPE_COUNT = QUERY_OPERATOR_STATISTICS + 1;
 
 	private final int type;
 	private final int indexColumn;
@@ -295,7 +299,16 @@ public class MetaTable extends Table {
 			cols = createColumns("SQL_STATEMENT", "EXECUTION_COUNT INT", "MIN_EXECUTION_TIME DOUBLE",
 					"MAX_EXECUTION_TIME DOUBLE", "CUMULATIVE_EXECUTION_TIME DOUBLE", "AVERAGE_EXECUTION_TIME DOUBLE",
 					"STD_DEV_EXECUTION_TIME DOUBLE", "MIN_ROW_COUNT INT", "MAX_ROW_COUNT INT",
-					"CUMULATIVE_ROW_COUNT LONG", "AVERAGE_ROW_COUNT DOUBLE", "STD_DEV_ROW_COUNT DOUBLE");
+					"CUMULATIVE_ROW_COUNT LONG", "AVERAGE_ROW_COUNT DOUBLE", "STD_DEV_ROW_COUNT DOUBLE",
+					"P50_EXECUTION_TIME DOUBLE", "P99_EXECUTION_TIME DOUBLE", "P999_EXECUTION_TIME DOUBLE",
+					"ROWS_SCANNED LONG");
+			break;
+		}
+		case QUERY_OPERATOR_STATISTICS: {
+			setObjectName("QUERY_OPERATOR_STATISTICS");
+			cols = createColumns("SQL_STATEMENT", "TABLE_NAME", "TABLE_ALIAS", "INDEX_NAME",
+					"EXECUTION_COUNT LONG", "ROWS_SCANNED LONG", "AVERAGE_ROWS_SCANNED DOUBLE",
+					"CUMULATIVE_SCAN_TIME DOUBLE", "AVERAGE_SCAN_TIME DOUBLE");
 			break;
 		}
 		default:
@@ -711,6 +724,36 @@ public class MetaTable extends Table {
 				add(rows, k, s.get(k));
 			}
 
+			CommitLog commitLog = database.getCommitLog();
+			if (commitLog != null) {
+				LatencyHistogram latency = commitLog.getCommitLatency();
+				add(rows, "info.COMMIT_COUNT", "" + commitLog.getCommitCount());
+				add(rows, "info.COMMIT_GROUP_COUNT", "" + commitLog.getGroupCount());
+				add(rows, "info.COMMIT_SYNC_COUNT", "" + commitLog.getSyncCount());
+				add(rows, "info.COMMIT_LATENCY_P50_NS", "" + latency.getValueAtPercentile(50));
+				add(rows, "info.COMMIT_LATENCY_P99_NS", "" + latency.getValueAtPercentile(99));
+				add(rows, "info.COMMIT_LATENCY_P999_NS", "" + latency.getValueAtPercentile(99.9));
+				add(rows, "info.COMMIT_SYNC_P99_NS", "" + commitLog.getSyncLatency().getValueAtPercentile(99));
+			}
+			add(rows, "SYNCHRONOUS", "" + session.getSynchronousCommit());
+			if (database.getSettings().traceAsync) {
+				add(rows, "info.TRACE_DROPPED_MESSAGES", "" + database.getTraceSystem().getDroppedMessages());
+			}
+
+			BufferPool pool = database.getBufferPoolIfCreated();
+			if (pool != null) {
+				add(rows, "info.BUFFER_POOL_PAGE_SIZE", "" + pool.getPageSize());
+				add(rows, "info.BUFFER_POOL_MAX_PAGES", "" + pool.getMaxPages());
+				add(rows, "info.BUFFER_POOL_PAGES", "" + pool.getPageCount());
+				add(rows, "info.BUFFER_POOL_DIRTY_PAGES", "" + pool.getDirtyCount());
+				add(rows, "info.BUFFER_POOL_PINNED_PAGES", "" + pool.getPinnedCount());
+				add(rows, "info.BUFFER_POOL_HITS", "" + pool.getHitCount());
+				add(rows, "info.BUFFER_POOL_MISSES", "" + pool.getMissCount());
+				add(rows, "info.BUFFER_POOL_HIT_RATIO", "" + pool.getHitRatio());
+				add(rows, "info.BUFFER_POOL_EVICTIONS", "" + pool.getEvictCount());
+				add(rows, "info.BUFFER_POOL_WRITES", "" + pool.getWriteCount());
+			}
+
 			Store mvStore = database.getMvStore();
 			if (mvStore != null) {
 				FileStore fs = mvStore.getStore().getFileStore();
@@ -1500,31 +1543,70 @@ public class MetaTable extends Table {
 			QueryStatisticsData control = database.getQueryStatisticsData();
 			if (control != null) {
 				for (QueryStatisticsData.QueryEntry entry : control.getQueries()) {
+					LatencyHistogram time = entry.getExecutionTime();
 					add(rows,
 							// SQL_STATEMENT
 							entry.sqlStatement,
 							// EXECUTION_COUNT
-							"" + entry.count,
+							"" + entry.getCount(),
 							// MIN_EXECUTION_TIME
-							"" + entry.executionTimeMinNanos / 1000d / 1000,
+							"" + entry.getExecutionTimeMinNanos() / 1000d / 1000,
 							// MAX_EXECUTION_TIME
-							"" + entry.executionTimeMaxNanos / 1000d / 1000,
+							"" + entry.getExecutionTimeMaxNanos() / 1000d / 1000,
 							// CUMULATIVE_EXECUTION_TIME
-							"" + entry.executionTimeCumulativeNanos / 1000d / 1000,
+							"" + entry.getExecutionTimeCumulativeNanos() / 1000d / 1000,
 							// AVERAGE_EXECUTION_TIME
-							"" + entry.executionTimeMeanNanos / 1000d / 1000,
+							"" + entry.getExecutionTimeMeanNanos() / 1000d / 1000,
 							// STD_DEV_EXECUTION_TIME
 							"" + entry.getExecutionTimeStandardDeviation() / 1000d / 1000,
 							// MIN_ROW_COUNT
-							"" + entry.rowCountMin,
+							"" + entry.getRowCountMin(),
 							// MAX_ROW_COUNT
-							"" + entry.rowCountMax,
+							"" + entry.getRowCountMax(),
 							// CUMULATIVE_ROW_COUNT
-							"" + entry.rowCountCumulative,
+							"" + entry.getRowCountCumulative(),
 							// AVERAGE_ROW_COUNT
-							"" + entry.rowCountMean,
+							"" + entry.getRowCountMean(),
 							// STD_DEV_ROW_COUNT
-							"" + entry.getRowCountStandardDeviation());
+							"" + entry.getRowCountStandardDeviation(),
+							// P50_EXECUTION_TIME
+							"" + time.getValueAtPercentile(50) / 1000d / 1000,
+							// P99_EXECUTION_TIME
+							"" + time.getValueAtPercentile(99) / 1000d / 1000,
+							// P999_EXECUTION_TIME
+							"" + time.getValueAtPercentile(99.9) / 1000d / 1000,
+							// ROWS_SCANNED
+							"" + entry.getRowsScanned());
+				}
+			}
+			break;
+		}
+		case QUERY_OPERATOR_STATISTICS: {
+			QueryStatisticsData control = database.getQueryStatisticsData();
+			if (control != null) {
+				for (QueryStatisticsData.QueryEntry entry : control.getQueries()) {
+					for (QueryStatisticsData.OperatorEntry op : entry.getOperators()) {
+						long count = op.getCount();
+						add(rows,
+								// SQL_STATEMENT
+								entry.sqlStatement,
+								// TABLE_NAME
+								op.tableName,
+								// TABLE_ALIAS
+								op.alias,
+								// INDEX_NAME
+								op.indexName,
+								// EXECUTION_COUNT
+								"" + count,
+								// ROWS_SCANNED
+								"" + op.getRowsScanned(),
+								// AVERAGE_ROWS_SCANNED
+								"" + (count == 0 ? 0 : (double) op.getRowsScanned() / count),
+								// CUMULATIVE_SCAN_TIME
+								"" + op.getScanTimeNanos() / 1000d / 1000,
+								// AVERAGE_SCAN_TIME
+								"" + (count == 0 ? 0 : op.getScanTimeNanos() / 1000d / 1000 / count));
+					}
 				}
 			}
 			break;
@@ -28,6 +28,7 @@ import com.neradb.dbobject.schema.SchemaObjectBase;
 import com.neradb.dbobject.schema.Sequence;
 import com.neradb.dbobject.schema.TriggerObject;
 import com.neradb.engine.Session;
+import com.neradb.engine.TransactionCoordinator;
 import com.neradb.engine.UndoLogRecord;
 import com.neradb.message.Trace;
 import com.neradb.result.Row;
@@ -185,6 +186,77 @@ public abstract class Table extends SchemaObjectBase {
      */
     public abstract void addRow(Session session, Row row);
 
+    /**
+     * Add a batch of rows to the table and all indexes. Each row is logged in
+     * the undo log of the session once it was added, so that a failure in the
+     * middle of the batch can be rolled back. If a row can not be added, the
+     * rows before it are removed from the list, so that the failed row is the
+     * first one, and the exception is thrown. Table engines can override this
+     * method to maintain the indexes in bulk. The default implementation adds
+     * the rows one by one.
+     *
+     * @param session the session
+     * @param rows the rows
+     * @throws DbException if a constraint was violated
+     */
+    public void addRows(Session session, ArrayList<Row> rows) {
+        for (int i = 0, size = rows.size(); i < size; i++) {
+            Row row = rows.get(i);
+            try {
+                addRow(session, row);
+            } catch (DbException e) {
+                rows.subList(0, i).clear();
+                throw e;
+            }
+            session.log(this, UndoLogRecord.INSERT, row);
+        }
+    }
+
+    /**
+     * Check if rows can be added in batches using
+     * {@link #addRows(Session, ArrayList)}. This is not possible if there are
+     * triggers, or constraints that need to be checked after each row was
+     * added.
+     *
+     * @return true if batches are possible
+     */
+    public boolean canAddRowsInBatches() {
+        if (triggers != null && triggers.size() > 0) {
+            return false;
+        }
+        if (constraints != null) {
+            for (int i = 0, size = constraints.size(); i < size; i++) {
+                if (!constraints.get(i).isBefore()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the indexes of this table can compute aggregates where the rows
+     * are stored (see {@link Index#aggregate}). If yes, group queries don't
+     * read the rows in the order of an index.
+     *
+     * @return true if they can
+     */
+    public boolean canAggregate() {
+        return false;
+    }
+
+    /**
+     * Check if the changes of this table are reverted by a transaction
+     * coordinator (see {@link TransactionCoordinator}) when the transaction
+     * is rolled back completely. If yes, the undo log entries of this table
+     * are then not applied.
+     *
+     * @return true if yes
+     */
+    public boolean isRolledBackByCoordinator() {
+        return false;
+    }
+
     /**
      * Commit an operation (when using multi-version concurrency).
      *
@@ -9,10 +9,16 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.neradb.command.ddl.CreateTableData;
+import com.neradb.common.compress.CompressTool;
+import com.neradb.common.compress.Compressor;
 import com.neradb.common.utils.StatementBuilder;
 import com.neradb.common.utils.StringUtils;
 import com.neradb.dbobject.Database;
+import com.neradb.dbobject.index.Index;
+import com.neradb.dbobject.index.IndexBuilder;
 import com.neradb.engine.DbSettings;
+import com.neradb.engine.Session;
+import com.neradb.message.Trace;
 /**
  * The base class of a regular table, or a user defined table.
  *
@@ -25,11 +31,18 @@ public abstract class TableBase extends Table {
      * The table engine used (null for regular tables).
      */
     private final String tableEngine;
+
+    private static final String COMPRESS_PARAM = "COMPRESS=";
     /** Provided table parameters */
     private List<String> tableEngineParams = new ArrayList<String>();
 
     private final boolean globalTemporary;
 
+    /**
+     * The compression algorithm for the data of this table, or null.
+     */
+    private final String compressionAlgorithm;
+
     public TableBase(CreateTableData data) {
         super(data.schema, data.id, data.tableName,
                 data.persistIndexes, data.persistData);
@@ -38,12 +51,50 @@ public abstract class TableBase extends Table {
         if (data.tableEngineParams != null) {
             this.tableEngineParams = data.tableEngineParams;
         }
+        compressionAlgorithm = readCompressionAlgorithm(data);
         setTemporary(data.temporary);
         Column[] cols = new Column[data.columns.size()];
         data.columns.toArray(cols);
         setColumns(cols);
     }
 
+    private String readCompressionAlgorithm(CreateTableData data) {
+        String algorithm = null;
+        for (String parameter : tableEngineParams) {
+            if (parameter.regionMatches(true, 0, COMPRESS_PARAM, 0,
+                    COMPRESS_PARAM.length())) {
+                algorithm = parameter.substring(COMPRESS_PARAM.length()).trim();
+            }
+        }
+        if (algorithm == null) {
+            DbSettings s = data.schema.getDatabase().getSettings();
+            if (!s.compressData) {
+                return null;
+            }
+            algorithm = s.compressAlgorithm;
+        }
+        // also verifies the name
+        if (CompressTool.getCompressAlgorithm(algorithm) == Compressor.NO) {
+            return null;
+        }
+        return StringUtils.toUpperEnglish(algorithm);
+    }
+
+    /**
+     * Get the compression algorithm that the table engine should use for the
+     * data of this table. This is set per table using the table engine
+     * parameter <code>COMPRESS=&lt;algorithm&gt;</code> (for example
+     * <code>WITH "COMPRESS=LZ4"</code>), and otherwise the database setting
+     * <code>COMPRESS_ALGORITHM</code> is used if <code>COMPRESS</code> is
+     * enabled.
+     *
+     * @return the algorithm name (for example "LZF" or "LZ4"), or null for
+     *         no compression
+     */
+    public String getCompressionAlgorithm() {
+        return compressionAlgorithm;
+    }
+
     @Override
     public String getDropSQL() {
         return "DROP TABLE IF EXISTS " + getSQL() + " CASCADE";
@@ -116,4 +167,22 @@ public abstract class TableBase extends Table {
         return globalTemporary;
     }
 
+    /**
+     * Add the existing rows of this table to a newly created index, in index
+     * order (see {@link IndexBuilder}). Table engines call this method from
+     * addIndex if the table is not empty.
+     *
+     * @param session the session
+     * @param index the new index
+     */
+    protected void addRowsToIndex(Session session, Index index) {
+        long start = System.nanoTime();
+        long rows = new IndexBuilder(session, this, index).build();
+        Trace t = database.getTrace(Trace.INDEX);
+        if (t.isInfoEnabled()) {
+            t.info("build index {0}: {1} rows, {2} ms", index.getName(), rows,
+                    (System.nanoTime() - start) / 1000000);
+        }
+    }
+
 }
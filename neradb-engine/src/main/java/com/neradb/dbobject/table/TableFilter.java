@@ -9,7 +9,9 @@ import java.util.ArrayList;
 import java.util.HashSet;
 
 import com.neradb.command.Parser;
+import com.neradb.command.dml.Explain;
 import com.neradb.command.dml.Select;
+import com.neradb.command.expression.Aggregate;
 import com.neradb.command.expression.Comparison;
 import com.neradb.command.expression.ConditionAndOr;
 import com.neradb.command.expression.Expression;
@@ -59,6 +61,24 @@ public class TableFilter implements ColumnResolver {
     private final IndexHints indexHints;
     private int[] masks;
     private int scanCount;
+
+    /**
+     * The number of index lookups, and the number of rows of this table that
+     * matched the conditions, since the query was started.
+     */
+    private int loopCount, rowCount;
+
+    /**
+     * Whether the query is run for EXPLAIN ANALYZE.
+     */
+    private boolean analyzed;
+
+    /**
+     * Whether the time spent reading the index is measured (only if query
+     * statistics are enabled, or for EXPLAIN ANALYZE).
+     */
+    private boolean timed;
+    private long scanNanos;
     private boolean evaluatable;
 
     /**
@@ -341,6 +361,11 @@ public class TableFilter implements ColumnResolver {
     public void startQuery(Session s) {
         this.session = s;
         scanCount = 0;
+        scanNanos = 0;
+        loopCount = 0;
+        rowCount = 0;
+        analyzed = s.isExplainAnalyze();
+        timed = analyzed || s.getDatabase().getQueryStatistics();
         if (nestedJoin != null) {
             nestedJoin.startQuery(s);
         }
@@ -452,6 +477,38 @@ public class TableFilter implements ColumnResolver {
         return joinBatch;
     }
 
+    /**
+     * Compute the groups and the partial results of the aggregates in the
+     * index, instead of reading the rows. This is only possible for a single
+     * table, and if the index supports it.
+     *
+     * @param condition the condition, or null
+     * @param groupColumns the group columns
+     * @param aggregates the aggregates
+     * @return the groups (see {@link Index#aggregate}), or null if the rows
+     *         need to be read
+     */
+    public ArrayList<Value[]> aggregate(Expression condition, Column[] groupColumns,
+            ArrayList<Aggregate> aggregates) {
+        if (join != null || nestedJoin != null || joinBatch != null) {
+            return null;
+        }
+        cursor.prepare(session, indexConditions);
+        if (cursor.isAlwaysFalse()) {
+            return New.arrayList();
+        }
+        long start = timed ? System.nanoTime() : 0;
+        ArrayList<Value[]> groups = index.aggregate(this, condition, cursor.getStart(),
+                cursor.getEnd(), groupColumns, aggregates);
+        if (groups != null) {
+            loopCount++;
+            if (timed) {
+                scanNanos += System.nanoTime() - start;
+            }
+        }
+        return groups;
+    }
+
     /**
      * Check if there are more rows to read.
      *
@@ -466,7 +523,14 @@ public class TableFilter implements ColumnResolver {
         if (state == AFTER_LAST) {
             return false;
         } else if (state == BEFORE_FIRST) {
-            cursor.find(session, indexConditions);
+            loopCount++;
+            if (timed) {
+                long start = System.nanoTime();
+                cursor.find(session, indexConditions);
+                scanNanos += System.nanoTime() - start;
+            } else {
+                cursor.find(session, indexConditions);
+            }
             if (!cursor.isAlwaysFalse()) {
                 if (nestedJoin != null) {
                     nestedJoin.reset();
@@ -497,7 +561,15 @@ public class TableFilter implements ColumnResolver {
                 if ((++scanCount & 4095) == 0) {
                     checkTimeout();
                 }
-                if (cursor.next()) {
+                boolean found;
+                if (timed) {
+                    long start = System.nanoTime();
+                    found = cursor.next();
+                    scanNanos += System.nanoTime() - start;
+                } else {
+                    found = cursor.next();
+                }
+                if (found) {
                     currentSearchRow = cursor.getSearchRow();
                     current = null;
                     state = FOUND;
@@ -534,6 +606,7 @@ public class TableFilter implements ColumnResolver {
                     continue;
                 }
             }
+            rowCount++;
             if (join != null) {
                 join.reset();
                 if (!join.next()) {
@@ -889,7 +962,13 @@ public class TableFilter implements ColumnResolver {
             condition = "/* WHERE " + StringUtils.quoteRemarkSQL(condition) + "\n*/";
             buff.append(StringUtils.indent(condition, 4, false));
         }
-        if (scanCount > 0) {
+        if (analyzed) {
+            buff.append("\n    /* actual rows: ").append(rowCount).
+                append(", scanCount: ").append(scanCount).
+                append(", loops: ").append(loopCount).
+                append(", scan time: ").append(Explain.formatNanos(scanNanos)).
+                append(" */");
+        } else if (scanCount > 0) {
             buff.append("\n    /* scanCount: ").append(scanCount).append(" */");
         }
         return buff.toString();
@@ -916,6 +995,47 @@ public class TableFilter implements ColumnResolver {
         return indexConditions;
     }
 
+    /**
+     * Get the number of rows read from the index since the query was started.
+     *
+     * @return the number of rows
+     */
+    public int getScanCount() {
+        return scanCount;
+    }
+
+    /**
+     * Get the number of rows of this table that matched the conditions since
+     * the query was started.
+     *
+     * @return the number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Get the number of times the index was searched since the query was
+     * started (for the inner table of a join, once per row of the outer
+     * table).
+     *
+     * @return the number of lookups
+     */
+    public int getLoopCount() {
+        return loopCount;
+    }
+
+    /**
+     * Get the time spent reading the index since the query was started. This
+     * is only measured if query statistics are enabled, or for EXPLAIN
+     * ANALYZE.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getScanNanos() {
+        return scanNanos;
+    }
+
     public Index getIndex() {
         return index;
     }
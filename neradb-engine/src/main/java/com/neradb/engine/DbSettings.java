@@ -131,7 +131,12 @@ public class DbSettings extends SettingsBase {
 
     /**
      * Database setting <code>LARGE_TRANSACTIONS</code> (default: true).<br />
-     * Support very large transactions
+     * Support very large transactions. Once the undo log of a session contains
+     * more than MAX_MEMORY_UNDO records, the records are stored in a compact
+     * binary form outside of the Java heap, and in a temporary file once
+     * UNDO_LOG_MEMORY is exceeded. If disabled, the undo log still spills, but
+     * keeps only one segment outside of the Java heap, and writes the rest to
+     * the temporary file.
      */
     public final boolean largeTransactions = get("LARGE_TRANSACTIONS", true);
 
@@ -325,6 +330,14 @@ public class DbSettings extends SettingsBase {
     public final boolean shareLinkedConnections = get(
             "SHARE_LINKED_CONNECTIONS", true);
 
+    /**
+     * Database setting <code>UNDO_LOG_MEMORY</code>
+     * (default: 16 MB).<br />
+     * The maximum number of bytes of off-heap memory the undo log of a session
+     * may use for large transactions before it is written to a temporary file.
+     */
+    public final int undoLogMemory = get("UNDO_LOG_MEMORY", 16 * 1024 * 1024);
+
     /**
      * Database setting <code>DEFAULT_TABLE_ENGINE</code>
      * (default: null).<br />
@@ -332,6 +345,18 @@ public class DbSettings extends SettingsBase {
      */
     public final String defaultTableEngine = get("DEFAULT_TABLE_ENGINE", null);
 
+    /**
+     * Database setting <code>COMMIT_LOG</code>
+     * (default: false).<br />
+     * Write a commit record for each transaction to the commit log file. The
+     * records don't contain the changed rows. Commits of concurrent sessions
+     * are combined into one write (group commit); how long a commit waits for
+     * the record to be written is controlled per session with SET
+     * SYNCHRONOUS, and for new sessions with SET DEFAULT_SYNCHRONOUS. The log
+     * is truncated at each CHECKPOINT.
+     */
+    public final boolean commitLog = get("COMMIT_LOG", false);
+
     /**
      * Database setting <code>COMPRESS</code>
      * (default: false).<br />
@@ -339,12 +364,98 @@ public class DbSettings extends SettingsBase {
      */
     public final boolean compressData = get("COMPRESS", false);
 
+    /**
+     * Database setting <code>COMPRESS_ALGORITHM</code>
+     * (default: LZF).<br />
+     * The compression algorithm used for table data if <code>COMPRESS</code>
+     * is enabled (LZF, LZ4, or DEFLATE). Tables can override this with the
+     * table engine parameter <code>COMPRESS=&lt;algorithm&gt;</code>.
+     */
+    public final String compressAlgorithm = get("COMPRESS_ALGORITHM", "LZF");
+
     /**
      * Database setting <code>MULTI_THREADED</code>
      * (default: false).<br />
      */
     public final boolean multiThreaded = get("MULTI_THREADED", false);
 
+    /**
+     * Database setting <code>TRACE_ASYNC</code>
+     * (default: false).<br />
+     * Write the trace file in a background thread, so that tracing does not
+     * block the sessions that write trace messages.
+     */
+    public final boolean traceAsync = get("TRACE_ASYNC", false);
+
+    /**
+     * Database setting <code>TRACE_BUFFER_SIZE</code>
+     * (default: 8192).<br />
+     * The number of trace messages that are buffered if the trace file is
+     * written asynchronously.
+     */
+    public final int traceBufferSize = get("TRACE_BUFFER_SIZE", 8192);
+
+    /**
+     * Database setting <code>TRACE_BLOCK_WHEN_FULL</code>
+     * (default: false).<br />
+     * Whether writing a trace message waits if the trace buffer is full. By
+     * default, the message is dropped, and the number of dropped messages is
+     * written to the trace file later on.
+     */
+    public final boolean traceBlockWhenFull = get("TRACE_BLOCK_WHEN_FULL", false);
+
+    /**
+     * Database setting <code>BUFFER_POOL_SIZE</code>
+     * (default: 16384).<br />
+     * The maximum memory used by the buffer pool that caches pages of files,
+     * in KB. Temporary row lists that are read more than once (for example
+     * the rows of a large UPDATE or DELETE) read through the pool. Set to 0
+     * to disable the pool.
+     */
+    public final int bufferPoolSize = get("BUFFER_POOL_SIZE", 16 * 1024);
+
+    /**
+     * Database setting <code>BUFFER_POOL_PAGE_SIZE</code>
+     * (default: 4096).<br />
+     * The size of a page of the buffer pool, in bytes (a multiple of 16).
+     */
+    public final int bufferPoolPageSize = get("BUFFER_POOL_PAGE_SIZE", 4096);
+
+    /**
+     * Database setting <code>LOOKUP_BATCH_SIZE</code>
+     * (default: 32).<br />
+     * The maximum number of lookups of an asynchronous index lookup batch
+     * that run at the same time (the prefetch depth of batched joins).
+     */
+    public final int lookupBatchSize = get("LOOKUP_BATCH_SIZE", 32);
+
+    /**
+     * Database setting <code>LOOKUP_THREADS</code>
+     * (default: 8).<br />
+     * The number of threads that run asynchronous index lookups, for all
+     * queries of the database.
+     */
+    public final int lookupThreads = get("LOOKUP_THREADS", 8);
+
+    /**
+     * Database setting <code>META_SERVER</code>
+     * (default: empty).<br />
+     * The comma separated endpoints (<code>tcp://host:port</code>) of the
+     * meta server cluster. If set, the schema is shared with the other
+     * databases that use the same meta servers.
+     */
+    public final String metaServer = get("META_SERVER", "");
+
+    /**
+     * Database setting <code>STORAGE_NODES</code>
+     * (default: empty).<br />
+     * The comma separated endpoints (<code>tcp://host:port</code>) of the
+     * storage nodes of the range partitioned tables, if the meta server is
+     * not used. Can be overridden per table with the table engine parameter
+     * <code>NODES</code>.
+     */
+    public final String storageNodes = get("STORAGE_NODES", "");
+
     private DbSettings(HashMap<String, String> s) {
         super(s);
     }
@@ -107,7 +107,7 @@ public class Engine implements SessionFactory {
         if (ci.getProperty("JMX", false)) {
             try {
                 Utils.callStaticMethod(
-                        "org.h2.jmx.DatabaseInfo.registerMBean", ci, database);
+                        "com.neradb.jmx.DatabaseInfo.registerMBean", ci, database);
             } catch (Exception e) {
                 database.removeSession(session);
                 throw DbException.get(ErrorCode.FEATURE_NOT_SUPPORTED_1, e, "JMX");
@@ -258,7 +258,7 @@ public class Engine implements SessionFactory {
     void close(String name) {
         if (jmx) {
             try {
-                Utils.callStaticMethod("org.h2.jmx.DatabaseInfo.unregisterMBean", name);
+                Utils.callStaticMethod("com.neradb.jmx.DatabaseInfo.unregisterMBean", name);
             } catch (Exception e) {
                 throw DbException.get(ErrorCode.FEATURE_NOT_SUPPORTED_1, e, "JMX");
             }
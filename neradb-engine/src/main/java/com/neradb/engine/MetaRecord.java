@@ -38,6 +38,12 @@ public class MetaRecord implements Comparable<MetaRecord> {
         sql = obj.getCreateSQL();
     }
 
+    public MetaRecord(int id, int objectType, String sql) {
+        this.id = id;
+        this.objectType = objectType;
+        this.sql = sql;
+    }
+
     public void setRecord(SearchRow r) {
         r.setValue(0, ValueInt.get(id));
         r.setValue(1, ValueInt.get(0));
@@ -6,50 +6,101 @@
 package com.neradb.engine;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.neradb.common.utils.LatencyHistogram;
+import com.neradb.dbobject.index.Index;
+import com.neradb.dbobject.table.TableFilter;
 
 /**
  * Maintains query statistics.
+ * <p>
+ * Recording does not lock: the entries are kept in a concurrent map, and the
+ * statistics of an entry are striped counters and a lock-free latency
+ * histogram. If there are too many entries, the oldest third is removed by
+ * the thread that detected it, while the other threads continue recording.
+ * </p>
  */
 public class QueryStatisticsData {
 
-    private static final Comparator<QueryEntry> QUERY_ENTRY_COMPARATOR =
-            new Comparator<QueryEntry>() {
-        @Override
-        public int compare(QueryEntry o1, QueryEntry o2) {
-            return (int) Math.signum(o1.lastUpdateTime - o2.lastUpdateTime);
-        }
-    };
+    private final ConcurrentHashMap<String, QueryEntry> map =
+            new ConcurrentHashMap<String, QueryEntry>();
+
+    /**
+     * The execution times of all statements.
+     */
+    private final LatencyHistogram executionTime = new LatencyHistogram();
 
-    private final HashMap<String, QueryEntry> map =
-            new HashMap<String, QueryEntry>();
+    private final AtomicBoolean trimming = new AtomicBoolean();
 
-    private int maxQueryEntries;
+    private volatile int maxQueryEntries;
 
     public QueryStatisticsData(int maxQueryEntries) {
         this.maxQueryEntries = maxQueryEntries;
     }
 
-    public synchronized void setMaxQueryEntries(int maxQueryEntries) {
+    public void setMaxQueryEntries(int maxQueryEntries) {
         this.maxQueryEntries = maxQueryEntries;
     }
 
-    public synchronized List<QueryEntry> getQueries() {
+    /**
+     * Get the statistics of the most recently executed statements.
+     *
+     * @return the entries, newest first
+     */
+    public List<QueryEntry> getQueries() {
         // return a copy of the map so we don't have to
         // worry about external synchronization
-        ArrayList<QueryEntry> list = new ArrayList<QueryEntry>();
-        list.addAll(map.values());
-        // only return the newest 100 entries
-        Collections.sort(list, QUERY_ENTRY_COMPARATOR);
+        ArrayList<QueryEntry> list = sortByAge();
+        // only return the newest entries
         return list.subList(0, Math.min(list.size(), maxQueryEntries));
     }
 
+    /**
+     * Get all entries, sorted by the last update time, newest first. The
+     * times are read once before sorting, as they change concurrently.
+     *
+     * @return the sorted list
+     */
+    private ArrayList<QueryEntry> sortByAge() {
+        ArrayList<QueryEntry> list = new ArrayList<QueryEntry>(map.values());
+        int size = list.size();
+        long[] times = new long[size];
+        Integer[] index = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            times[i] = list.get(i).lastUpdateTime;
+            index[i] = i;
+        }
+        final long[] t = times;
+        Arrays.sort(index, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(t[o2], t[o1]);
+            }
+        });
+        ArrayList<QueryEntry> sorted = new ArrayList<QueryEntry>(size);
+        for (Integer i : index) {
+            sorted.add(list.get(i));
+        }
+        return sorted;
+    }
+
+    /**
+     * Get the execution times of all statements.
+     *
+     * @return the histogram (in nanoseconds)
+     */
+    public LatencyHistogram getExecutionTime() {
+        return executionTime;
+    }
+
     /**
      * Update query statistics.
      *
@@ -58,35 +109,58 @@ public class QueryStatisticsData {
      *            to execute
      * @param rowCount the query or update row count
      */
-    public synchronized void update(String sqlStatement, long executionTimeNanos,
+    public void update(String sqlStatement, long executionTimeNanos,
             int rowCount) {
+        update(sqlStatement, executionTimeNanos, rowCount, null);
+    }
+
+    /**
+     * Update query statistics.
+     *
+     * @param sqlStatement the statement being executed
+     * @param executionTimeNanos the time in nanoseconds the query/update took
+     *            to execute
+     * @param rowCount the query or update row count
+     * @param filters the table filters of the statement (to record the
+     *            scanned rows and scan time per table and index), or null
+     */
+    public void update(String sqlStatement, long executionTimeNanos,
+            int rowCount, ArrayList<TableFilter> filters) {
         QueryEntry entry = map.get(sqlStatement);
         if (entry == null) {
             entry = new QueryEntry(sqlStatement);
-            map.put(sqlStatement, entry);
-        }
-        entry.update(executionTimeNanos, rowCount);
-
-        // Age-out the oldest entries if the map gets too big.
-        // Test against 1.5 x max-size so we don't do this too often
-        if (map.size() > maxQueryEntries * 1.5f) {
-            // Sort the entries by age
-            ArrayList<QueryEntry> list = new ArrayList<QueryEntry>();
-            list.addAll(map.values());
-            Collections.sort(list, QUERY_ENTRY_COMPARATOR);
-            // Create a set of the oldest 1/3 of the entries
-            HashSet<QueryEntry> oldestSet =
-                    new HashSet<QueryEntry>(list.subList(0, list.size() / 3));
-            // Loop over the map using the set and remove
-            // the oldest 1/3 of the entries.
-            for (Iterator<Entry<String, QueryEntry>> it =
-                    map.entrySet().iterator(); it.hasNext();) {
-                Entry<String, QueryEntry> mapEntry = it.next();
-                if (oldestSet.contains(mapEntry.getValue())) {
-                    it.remove();
-                }
+            QueryEntry old = map.putIfAbsent(sqlStatement, entry);
+            if (old != null) {
+                entry = old;
+            } else if (map.size() > maxQueryEntries * 1.5f) {
+                trim();
             }
         }
+        entry.update(executionTimeNanos, rowCount, filters);
+        executionTime.record(executionTimeNanos);
+    }
+
+    /**
+     * Age-out the oldest third of the entries. Test against 1.5 x max-size so
+     * we don't do this too often. Only one thread at a time trims the map.
+     */
+    private void trim() {
+        if (!trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int size = map.size();
+            if (size <= maxQueryEntries * 1.5f) {
+                return;
+            }
+            ArrayList<QueryEntry> list = sortByAge();
+            // remove the oldest entries
+            for (QueryEntry e : list.subList(list.size() - list.size() / 3, list.size())) {
+                map.remove(e.sqlStatement, e);
+            }
+        } finally {
+            trimming.set(false);
+        }
     }
 
     /**
@@ -100,101 +174,246 @@ public class QueryStatisticsData {
         public final String sqlStatement;
 
         /**
-         * The number of times the statement was executed.
+         * The last time the statistics for this entry were updated,
+         * in milliseconds since 1970.
          */
-        public int count;
+        volatile long lastUpdateTime;
+
+        private final LatencyHistogram executionTime = new LatencyHistogram();
+        private final AtomicLong executionTimeMinNanos =
+                new AtomicLong(Long.MAX_VALUE);
+        private final DoubleAdder executionTimeSquares = new DoubleAdder();
+
+        private final LongAdder rowCountCumulative = new LongAdder();
+        private final DoubleAdder rowCountSquares = new DoubleAdder();
+        private final AtomicLong rowCountMin = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong rowCountMax = new AtomicLong(Long.MIN_VALUE);
+
+        private final LongAdder rowsScanned = new LongAdder();
+
+        private final ConcurrentHashMap<String, OperatorEntry> operators =
+                new ConcurrentHashMap<String, OperatorEntry>();
+
+        public QueryEntry(String sql) {
+            this.sqlStatement = sql;
+        }
 
         /**
-         * The last time the statistics for this entry were updated,
-         * in milliseconds since 1970.
+         * Update the statistics entry.
+         *
+         * @param timeNanos the execution time in nanos
+         * @param rows the number of rows
+         * @param filters the table filters, or null
          */
-        public long lastUpdateTime;
+        void update(long timeNanos, int rows, ArrayList<TableFilter> filters) {
+            executionTime.record(timeNanos);
+            executionTimeSquares.add((double) timeNanos * timeNanos);
+            updateMin(executionTimeMinNanos, timeNanos);
+            rowCountCumulative.add(rows);
+            rowCountSquares.add((double) rows * rows);
+            updateMin(rowCountMin, rows);
+            updateMax(rowCountMax, rows);
+            if (filters != null) {
+                for (TableFilter f : filters) {
+                    int scanned = f.getScanCount();
+                    rowsScanned.add(scanned);
+                    Index index = f.getIndex();
+                    String indexName = index == null ? null : index.getName();
+                    String key = f.getTableAlias() + '\u0000' + indexName;
+                    OperatorEntry op = operators.get(key);
+                    if (op == null) {
+                        op = new OperatorEntry(f.getTable().getSQL(),
+                                f.getTableAlias(), indexName);
+                        OperatorEntry old = operators.putIfAbsent(key, op);
+                        if (old != null) {
+                            op = old;
+                        }
+                    }
+                    op.update(scanned, f.getScanNanos());
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now != lastUpdateTime) {
+                // avoid writing the shared field if not needed
+                lastUpdateTime = now;
+            }
+        }
+
+        private static void updateMin(AtomicLong min, long x) {
+            long old;
+            do {
+                old = min.get();
+            } while (x < old && !min.compareAndSet(old, x));
+        }
+
+        private static void updateMax(AtomicLong max, long x) {
+            long old;
+            do {
+                old = max.get();
+            } while (x > old && !max.compareAndSet(old, x));
+        }
 
         /**
-         * The minimum execution time, in nanoseconds.
+         * Get the number of times the statement was executed.
+         *
+         * @return the count
          */
-        public long executionTimeMinNanos;
+        public long getCount() {
+            return executionTime.getCount();
+        }
+
+        public long getLastUpdateTime() {
+            return lastUpdateTime;
+        }
 
         /**
-         * The maximum execution time, in nanoseconds.
+         * Get the histogram of the execution times.
+         *
+         * @return the histogram (in nanoseconds)
          */
-        public long executionTimeMaxNanos;
+        public LatencyHistogram getExecutionTime() {
+            return executionTime;
+        }
+
+        public long getExecutionTimeMinNanos() {
+            long min = executionTimeMinNanos.get();
+            return min == Long.MAX_VALUE ? 0 : min;
+        }
+
+        public long getExecutionTimeMaxNanos() {
+            return executionTime.getMax();
+        }
+
+        public double getExecutionTimeMeanNanos() {
+            return executionTime.getMean();
+        }
 
         /**
-         * The total execution time.
+         * Get the total execution time.
+         *
+         * @return the sum of the execution times, in nanoseconds
          */
-        public long executionTimeCumulativeNanos;
+        public long getExecutionTimeCumulativeNanos() {
+            return Math.round(executionTime.getMean() * executionTime.getCount());
+        }
+
+        public double getExecutionTimeStandardDeviation() {
+            // population standard deviation
+            return getStandardDeviation(executionTimeSquares.sum(),
+                    executionTime.getMean(), getCount());
+        }
+
+        public int getRowCountMin() {
+            long min = rowCountMin.get();
+            return min == Long.MAX_VALUE ? 0 : (int) min;
+        }
+
+        public int getRowCountMax() {
+            long max = rowCountMax.get();
+            return max == Long.MIN_VALUE ? 0 : (int) max;
+        }
+
+        public long getRowCountCumulative() {
+            return rowCountCumulative.sum();
+        }
 
         /**
-         * The minimum number of rows.
+         * Get the mean number of rows.
+         *
+         * @return the mean
          */
-        public int rowCountMin;
+        public double getRowCountMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) rowCountCumulative.sum() / count;
+        }
+
+        public double getRowCountStandardDeviation() {
+            // population standard deviation
+            return getStandardDeviation(rowCountSquares.sum(),
+                    getRowCountMean(), getCount());
+        }
 
         /**
-         * The maximum number of rows.
+         * Get the total number of rows read from the tables.
+         *
+         * @return the number of rows
          */
-        public int rowCountMax;
+        public long getRowsScanned() {
+            return rowsScanned.sum();
+        }
 
         /**
-         * The total number of rows.
+         * Get the statistics per table and index.
+         *
+         * @return the list
          */
-        public long rowCountCumulative;
+        public List<OperatorEntry> getOperators() {
+            return new ArrayList<OperatorEntry>(operators.values());
+        }
+
+        private static double getStandardDeviation(double sumSquares,
+                double mean, long count) {
+            if (count == 0) {
+                return 0;
+            }
+            // the values are not read atomically
+            return Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+        }
+
+    }
+
+    /**
+     * The statistics of a table access (the table and index) of a query.
+     */
+    public static final class OperatorEntry {
 
         /**
-         * The mean execution time.
+         * The table name.
          */
-        public double executionTimeMeanNanos;
+        public final String tableName;
 
         /**
-         * The mean number of rows.
+         * The alias of the table in the statement.
          */
-        public double rowCountMean;
+        public final String alias;
 
-        // Using Welford's method, see also
-        // http://en.wikipedia.org/wiki/Algorithms_for_calculating_variance
-        // http://www.johndcook.com/standard_deviation.html
+        /**
+         * The index name, or null.
+         */
+        public final String indexName;
 
-        private double executionTimeM2Nanos;
-        private double rowCountM2;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder rowsScanned = new LongAdder();
+        private final LongAdder scanTimeNanos = new LongAdder();
 
-        public QueryEntry(String sql) {
-            this.sqlStatement = sql;
+        OperatorEntry(String tableName, String alias, String indexName) {
+            this.tableName = tableName;
+            this.alias = alias;
+            this.indexName = indexName;
         }
 
         /**
-         * Update the statistics entry.
+         * Add the statistics of one execution.
          *
-         * @param timeNanos the execution time in nanos
-         * @param rows the number of rows
+         * @param rows the number of rows read from the index
+         * @param nanos the time spent reading the index
          */
-        void update(long timeNanos, int rows) {
-            count++;
-            executionTimeMinNanos = Math.min(timeNanos, executionTimeMinNanos);
-            executionTimeMaxNanos = Math.max(timeNanos, executionTimeMaxNanos);
-            rowCountMin = Math.min(rows, rowCountMin);
-            rowCountMax = Math.max(rows, rowCountMax);
-
-            double rowDelta = rows - rowCountMean;
-            rowCountMean += rowDelta / count;
-            rowCountM2 += rowDelta * (rows - rowCountMean);
-
-            double timeDelta = timeNanos - executionTimeMeanNanos;
-            executionTimeMeanNanos += timeDelta / count;
-            executionTimeM2Nanos += timeDelta * (timeNanos - executionTimeMeanNanos);
+        void update(int rows, long nanos) {
+            count.increment();
+            rowsScanned.add(rows);
+            scanTimeNanos.add(nanos);
+        }
 
-            executionTimeCumulativeNanos += timeNanos;
-            rowCountCumulative += rows;
-            lastUpdateTime = System.currentTimeMillis();
+        public long getCount() {
+            return count.sum();
         }
 
-        public double getExecutionTimeStandardDeviation() {
-            // population standard deviation
-            return Math.sqrt(executionTimeM2Nanos / count);
+        public long getRowsScanned() {
+            return rowsScanned.sum();
         }
 
-        public double getRowCountStandardDeviation() {
-            // population standard deviation
-            return Math.sqrt(rowCountM2 / count);
+        public long getScanTimeNanos() {
+            return scanTimeNanos.sum();
         }
 
     }
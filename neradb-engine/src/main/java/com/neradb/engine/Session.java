@@ -85,6 +85,7 @@ public class Session extends SessionWithState {
     private boolean autoCommit = true;
     private Random random;
     private int lockTimeout;
+    private int readStaleness;
     private Value lastIdentity = ValueLong.get(0);
     private Value lastScopeIdentity = ValueLong.get(0);
     private Value lastTriggerIdentity;
@@ -106,6 +107,7 @@ public class Session extends SessionWithState {
     private HashMap<String, Procedure> procedures;
     private boolean undoLogEnabled = true;
     private boolean redoLogBinary = true;
+    private int synchronousCommit;
     private boolean autoCommitAtTransactionEnd;
     private String currentTransactionName;
     private volatile long cancelAtNs;
@@ -113,6 +115,7 @@ public class Session extends SessionWithState {
     private final long sessionStart = System.currentTimeMillis();
     private long transactionStart;
     private long currentCommandStart;
+    private long executionId;
     private HashMap<String, Value> variables;
     private HashSet<ResultInterface> temporaryResults;
     private int queryTimeout;
@@ -132,6 +135,11 @@ public class Session extends SessionWithState {
     private boolean joinBatchEnabled;
     private boolean forceJoinOrder;
     private boolean lazyQueryExecution;
+
+    /**
+     * Whether the statement that is executed is measured for EXPLAIN ANALYZE.
+     */
+    private boolean explainAnalyze;
     /**
      * Tables marked for ANALYZE after the current transaction is committed.
      * Prevents us calling ANALYZE repeatedly in large transactions.
@@ -154,6 +162,7 @@ public class Session extends SessionWithState {
     private ArrayList<Value> temporaryLobs;
 
     private Transaction transaction;
+    private ArrayList<TransactionCoordinator> coordinators;
     private long startStatement = -1;
 
     public Session(Database database, User user, int id) {
@@ -167,6 +176,10 @@ public class Session extends SessionWithState {
                 SetTypes.getTypeName(SetTypes.DEFAULT_LOCK_TIMEOUT));
         this.lockTimeout = setting == null ?
                 Constants.INITIAL_LOCK_TIMEOUT : setting.getIntValue();
+        setting = database.findSetting(
+                SetTypes.getTypeName(SetTypes.DEFAULT_SYNCHRONOUS));
+        this.synchronousCommit = setting == null ?
+                Constants.SYNCHRONOUS_FULL : setting.getIntValue();
         this.currentSchemaName = Constants.SCHEMA_MAIN;
     }
 
@@ -178,6 +191,14 @@ public class Session extends SessionWithState {
         return lazyQueryExecution;
     }
 
+    public void setExplainAnalyze(boolean explainAnalyze) {
+        this.explainAnalyze = explainAnalyze;
+    }
+
+    public boolean isExplainAnalyze() {
+        return explainAnalyze;
+    }
+
     public void setForceJoinOrder(boolean forceJoinOrder) {
         this.forceJoinOrder = forceJoinOrder;
     }
@@ -519,6 +540,23 @@ public class Session extends SessionWithState {
         this.lockTimeout = lockTimeout;
     }
 
+    public int getReadStaleness() {
+        return readStaleness;
+    }
+
+    /**
+     * Set how old the data may be that a new transaction reads from range
+     * partitioned tables. Such a transaction reads an older snapshot, which
+     * doesn't need a timestamp from the meta server and doesn't wait for
+     * transactions that are being committed, but it can not change data.
+     *
+     * @param readStaleness the staleness in milliseconds, or 0 to read the
+     *            latest data
+     */
+    public void setReadStaleness(int readStaleness) {
+        this.readStaleness = readStaleness;
+    }
+
     @Override
     public synchronized CommandInterface prepareCommand(String sql,
             int fetchSize) {
@@ -608,6 +646,18 @@ public class Session extends SessionWithState {
      */
     public void commit(boolean ddl) {
         checkCommitRollback();
+        if (coordinators != null) {
+            try {
+                for (TransactionCoordinator c : coordinators) {
+                    c.commit(this);
+                }
+            } catch (DbException e) {
+                // the coordinators rolled back the changes on the other nodes
+                rollback();
+                throw e;
+            }
+            coordinators = null;
+        }
         currentTransactionName = null;
         transactionStart = 0;
         if (transaction != null) {
@@ -625,7 +675,7 @@ public class Session extends SessionWithState {
             transaction.commit();
             transaction = null;
         }
-        if (containsUncommitted()) {
+        if (containsUncommitted() || undoLog.size() > 0) {
             // need to commit even if rollback is not possible
             // (create/drop table and so on)
             database.commit(this);
@@ -729,6 +779,13 @@ public class Session extends SessionWithState {
         checkCommitRollback();
         currentTransactionName = null;
         boolean needCommit = false;
+        if (coordinators != null) {
+            ArrayList<TransactionCoordinator> list = coordinators;
+            coordinators = null;
+            for (TransactionCoordinator c : list) {
+                c.rollback(this);
+            }
+        }
         if (undoLog.size() > 0) {
             rollbackTo(null, false);
             needCommit = true;
@@ -762,7 +819,9 @@ public class Session extends SessionWithState {
         int index = savepoint == null ? 0 : savepoint.logIndex;
         while (undoLog.size() > index) {
             UndoLogRecord entry = undoLog.getLast();
-            entry.undo(this);
+            if (savepoint != null || !entry.getTable().isRolledBackByCoordinator()) {
+                entry.undo(this);
+            }
             undoLog.removeLast(trimToSize);
         }
         if (transaction != null) {
@@ -866,6 +925,21 @@ public class Session extends SessionWithState {
         locks.add(table);
     }
 
+    /**
+     * Enlist a coordinator in the current transaction. It is called when the
+     * transaction is prepared, committed or rolled back.
+     *
+     * @param coordinator the coordinator
+     */
+    public void addTransactionCoordinator(TransactionCoordinator coordinator) {
+        if (coordinators == null) {
+            coordinators = New.arrayList();
+        }
+        if (!coordinators.contains(coordinator)) {
+            coordinators.add(coordinator);
+        }
+    }
+
     /**
      * Add an undo log entry to this session.
      *
@@ -1053,7 +1127,7 @@ public class Session extends SessionWithState {
      * This method is called after the transaction log has written the commit
      * entry for this session.
      */
-    void setAllCommitted() {
+    public void setAllCommitted() {
         firstUncommittedLog = Session.LOG_WRITTEN;
         firstUncommittedPos = Session.LOG_WRITTEN;
     }
@@ -1110,6 +1184,11 @@ public class Session extends SessionWithState {
      * @param transactionName the name of the transaction
      */
     public void prepareCommit(String transactionName) {
+        if (coordinators != null) {
+            for (TransactionCoordinator c : coordinators) {
+                c.prepare(this, transactionName);
+            }
+        }
         if (transaction != null) {
             database.prepareCommit(this, transactionName);
         }
@@ -1196,6 +1275,9 @@ public class Session extends SessionWithState {
      */
     public void setCurrentCommand(Command command) {
         this.currentCommand = command;
+        if (command != null) {
+            executionId++;
+        }
         if (queryTimeout > 0 && command != null) {
             currentCommandStart = System.currentTimeMillis();
             long now = System.nanoTime();
@@ -1238,6 +1320,17 @@ public class Session extends SessionWithState {
         return currentCommandStart;
     }
 
+    /**
+     * Get the id of the current execution of a command. The id changes each
+     * time a command is executed, so parameter values can not change while
+     * it stays the same.
+     *
+     * @return the execution id
+     */
+    public long getExecutionId() {
+        return executionId;
+    }
+
     public boolean getAllowLiterals() {
         return allowLiterals;
     }
@@ -1393,6 +1486,20 @@ public class Session extends SessionWithState {
         return undoLogEnabled;
     }
 
+    /**
+     * Set how long a commit waits for the commit record to be written. The
+     * initial value is the database setting DEFAULT_SYNCHRONOUS.
+     *
+     * @param mode the mode (see {@link Constants#SYNCHRONOUS_FULL})
+     */
+    public void setSynchronousCommit(int mode) {
+        this.synchronousCommit = mode;
+    }
+
+    public int getSynchronousCommit() {
+        return synchronousCommit;
+    }
+
     /**
      * Begin a transaction.
      */
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.engine;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.neradb.meta.CatalogChanges;
+import org.neradb.meta.CatalogEntry;
+import org.neradb.meta.client.MetaClient;
+
+import com.neradb.common.DbException;
+import com.neradb.dbobject.Database;
+import com.neradb.dbobject.DbObject;
+import com.neradb.message.Trace;
+
+/**
+ * The schema of a database that is shared with other databases through the
+ * meta server cluster.
+ * <p>
+ * Each database object is stored in the catalog of the meta server under the
+ * key <code>type:name</code>, with its create and drop statement. When
+ * opening, the objects that are missing locally are created (in the same
+ * order as when opening a database); afterwards a background thread watches
+ * the catalog and applies the changes of the other databases. Local changes
+ * are published when the object is added to or removed from the system table.
+ * </p>
+ * <p>
+ * Local changes are made while the database is locked, so they are only
+ * queued there, and sent to the meta server by a background thread in the
+ * same order.
+ * </p>
+ * <p>
+ * Settings, rights, and comments are not shared. An object that exists
+ * locally with a different definition (for example after an alter table on
+ * another database) is not changed, and a warning is written to the trace.
+ * </p>
+ */
+public class SharedCatalog implements Runnable {
+
+    private static final long WATCH_TIMEOUT = 10000;
+    private static final long RETRY_DELAY = 1000;
+
+    private final Database database;
+    private final Trace trace;
+    private final MetaClient client;
+    private final MetaClient watchClient;
+    private final ArrayDeque<CatalogEntry> queue = new ArrayDeque<CatalogEntry>();
+    private long version;
+    private Thread watcher;
+    private Thread publisher;
+    private volatile Thread applying;
+    private volatile boolean stop;
+
+    public SharedCatalog(Database database, String endpoints) {
+        this.database = database;
+        this.trace = database.getTrace(Trace.DATABASE);
+        this.client = MetaClient.create(endpoints);
+        this.watchClient = MetaClient.create(endpoints);
+    }
+
+    /**
+     * Check whether objects of this type are shared.
+     *
+     * @param obj the object
+     * @return true if they are
+     */
+    public static boolean isShared(DbObject obj) {
+        switch (obj.getType()) {
+        case DbObject.SETTING:
+        case DbObject.RIGHT:
+        case DbObject.COMMENT:
+            return false;
+        default:
+            return !obj.isTemporary() && obj.getId() > 0 &&
+                    obj.getCreateSQL() != null;
+        }
+    }
+
+    private static String getKey(DbObject obj) {
+        return obj.getType() + ":" + obj.getSQL();
+    }
+
+    /**
+     * Create the objects of the catalog that don't exist locally, publish the
+     * local objects if the catalog is empty, and start watching the catalog.
+     *
+     * @param systemSession the system session
+     */
+    public void load(Session systemSession) {
+        CatalogChanges changes;
+        try {
+            changes = client.getCatalog(0);
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, "meta server");
+        }
+        HashMap<String, DbObject> local = getLocalObjects();
+        if (changes.getEntries().isEmpty()) {
+            // the first database: its objects are the catalog
+            for (DbObject obj : local.values()) {
+                send(createEntry(obj, false));
+            }
+        } else {
+            ArrayList<MetaRecord> records = new ArrayList<MetaRecord>();
+            for (CatalogEntry e : changes.getEntries()) {
+                if (!local.containsKey(e.getKey())) {
+                    records.add(new MetaRecord(database.allocateObjectId(),
+                            e.getType(), e.getSQL()));
+                }
+            }
+            Collections.sort(records);
+            applying = Thread.currentThread();
+            try {
+                synchronized (systemSession) {
+                    for (MetaRecord rec : records) {
+                        rec.execute(database, systemSession);
+                    }
+                    systemSession.commit(true);
+                }
+            } finally {
+                applying = null;
+            }
+        }
+        version = changes.getVersion();
+        publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publishQueued();
+            }
+        }, "H2 Catalog Publisher " + database.getShortName());
+        publisher.setDaemon(true);
+        publisher.start();
+        watcher = new Thread(this, "H2 Catalog Watcher " + database.getShortName());
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private HashMap<String, DbObject> getLocalObjects() {
+        ArrayList<DbObject> list = new ArrayList<DbObject>();
+        list.addAll(database.getAllUsers());
+        list.addAll(database.getAllRoles());
+        list.addAll(database.getAllSchemas());
+        list.addAll(database.getAllAggregates());
+        list.addAll(database.getAllUserDataTypes());
+        list.addAll(database.getAllSchemaObjects());
+        HashMap<String, DbObject> map = new HashMap<String, DbObject>();
+        for (DbObject obj : list) {
+            if (isShared(obj)) {
+                map.put(getKey(obj), obj);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Publish an object that was added or changed locally. The change is
+     * sent in the background.
+     *
+     * @param obj the object
+     */
+    public void publish(DbObject obj) {
+        if (applying == Thread.currentThread() || !isShared(obj)) {
+            return;
+        }
+        enqueue(createEntry(obj, false));
+    }
+
+    /**
+     * Remove an object from the catalog, because it was dropped or is about
+     * to be renamed locally. The change is sent in the background.
+     *
+     * @param obj the object
+     */
+    public void unpublish(DbObject obj) {
+        if (applying == Thread.currentThread() || !isShared(obj)) {
+            return;
+        }
+        enqueue(createEntry(obj, true));
+    }
+
+    private static CatalogEntry createEntry(DbObject obj, boolean removed) {
+        // the statements are captured now, the object may be changed later
+        return new CatalogEntry(getKey(obj), obj.getType(),
+                removed ? null : obj.getCreateSQL(),
+                removed ? null : obj.getDropSQL(), 0, removed);
+    }
+
+    private void enqueue(CatalogEntry e) {
+        synchronized (queue) {
+            queue.add(e);
+            queue.notifyAll();
+        }
+    }
+
+    private void publishQueued() {
+        while (true) {
+            CatalogEntry e;
+            synchronized (queue) {
+                while (queue.isEmpty() && !stop) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e2) {
+                        // check the stop flag
+                    }
+                }
+                e = queue.poll();
+            }
+            if (e == null) {
+                break;
+            }
+            // a change that can't be sent is not retried
+            send(e);
+        }
+        client.close();
+    }
+
+    private void send(CatalogEntry e) {
+        try {
+            if (e.isRemoved()) {
+                client.removeCatalog(e.getKey());
+            } else {
+                client.putCatalog(e.getKey(), e.getType(), e.getSQL(),
+                        e.getDropSQL());
+            }
+        } catch (IOException ex) {
+            trace.error(ex, e.isRemoved() ? "unpublish {0}" : "publish {0}", e.getKey());
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!stop) {
+            try {
+                CatalogChanges changes = watchClient.watchCatalog(version, WATCH_TIMEOUT);
+                if (stop) {
+                    break;
+                }
+                // a change that can't be applied is not retried
+                version = changes.getVersion();
+                if (!changes.getEntries().isEmpty()) {
+                    apply(changes.getEntries());
+                }
+            } catch (IOException e) {
+                if (stop) {
+                    break;
+                }
+                trace.error(e, "watch catalog");
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException e2) {
+                    break;
+                }
+            } catch (DbException e) {
+                trace.error(e, "apply catalog changes");
+            }
+        }
+        watchClient.close();
+    }
+
+    private void apply(List<CatalogEntry> entries) {
+        Session systemSession = database.getSystemSession();
+        if (systemSession == null) {
+            // closing
+            return;
+        }
+        applying = Thread.currentThread();
+        try {
+            synchronized (systemSession) {
+                HashMap<String, DbObject> local = getLocalObjects();
+                ArrayList<MetaRecord> records = new ArrayList<MetaRecord>();
+                for (CatalogEntry e : entries) {
+                    DbObject obj = local.get(e.getKey());
+                    if (e.isRemoved()) {
+                        if (obj != null) {
+                            execute(systemSession, obj.getDropSQL());
+                        }
+                    } else if (obj == null) {
+                        records.add(new MetaRecord(database.allocateObjectId(),
+                                e.getType(), e.getSQL()));
+                    } else if (!obj.getCreateSQL().equals(e.getSQL())) {
+                        trace.info("catalog entry {0} differs from the local object",
+                                e.getKey());
+                    }
+                }
+                Collections.sort(records);
+                for (MetaRecord rec : records) {
+                    rec.execute(database, systemSession);
+                }
+                systemSession.commit(true);
+            }
+        } finally {
+            applying = null;
+        }
+    }
+
+    private void execute(Session systemSession, String sql) {
+        if (sql != null) {
+            systemSession.prepare(sql).update();
+        }
+    }
+
+    /**
+     * Stop watching the catalog and close the connections. The changes that
+     * are still queued are sent first.
+     */
+    public void close() {
+        stop = true;
+        if (watcher != null) {
+            watcher.interrupt();
+        }
+        if (publisher == null) {
+            client.close();
+            return;
+        }
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+        // the publisher closes its own connection
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.engine;
+
+import java.util.List;
+
+import com.neradb.common.io.InDoubtTransaction;
+
+/**
+ * Coordinates the transactions of tables that are stored on other nodes. A
+ * session enlists the coordinator when it changes such a table (see
+ * {@link Session#addTransactionCoordinator(TransactionCoordinator)}), and the
+ * coordinator then prepares, commits or rolls back the changes on these nodes
+ * together with the transaction of the session.
+ * <p>
+ * If a transaction is rolled back completely, the coordinator reverts the
+ * changes on the other nodes, so that the undo log of tables that return true
+ * for <code>Table.isRolledBackByCoordinator()</code> is not applied.
+ * </p>
+ */
+public interface TransactionCoordinator {
+
+    /**
+     * Prepare the transaction of the session (PREPARE COMMIT), so that it can
+     * be committed even if the database is closed in the meantime. If this
+     * fails, the changes on the other nodes are rolled back.
+     *
+     * @param session the session
+     * @param transactionName the name of the transaction
+     */
+    void prepare(Session session, String transactionName);
+
+    /**
+     * Commit the transaction of the session. If this fails, the changes on the
+     * other nodes are rolled back.
+     *
+     * @param session the session
+     */
+    void commit(Session session);
+
+    /**
+     * Roll back the transaction of the session.
+     *
+     * @param session the session
+     */
+    void rollback(Session session);
+
+    /**
+     * Get the transactions that were prepared, but not yet committed or
+     * rolled back, by a session that no longer exists.
+     *
+     * @return the transactions
+     */
+    List<InDoubtTransaction> getInDoubtTransactions();
+
+    /**
+     * Close the coordinator. This method is called when the database is
+     * closed.
+     */
+    void close();
+
+}
@@ -8,29 +8,23 @@ package com.neradb.engine;
 import java.util.ArrayList;
 import java.util.HashMap;
 
-import com.neradb.common.Constants;
-import com.neradb.common.DbException;
-import com.neradb.common.SysProperties;
 import com.neradb.common.utils.New;
 import com.neradb.dbobject.Database;
 import com.neradb.dbobject.table.Table;
-import com.neradb.store.Data;
-import com.neradb.store.FileStore;
 
 /**
- * Each session keeps a undo log if rollback is required.
+ * Each session keeps a undo log if rollback is required. The most recent
+ * records are kept as objects; older records are moved to compact binary
+ * segments outside of the Java heap, and from there to a temporary file (see
+ * {@link UndoLogSegments}). If large transactions are disabled, only one
+ * segment is kept in memory.
  */
 public class UndoLog {
 
     private final Database database;
-    private final ArrayList<Long> storedEntriesPos = New.arrayList();
     private final ArrayList<UndoLogRecord> records = New.arrayList();
-    private FileStore file;
-    private Data rowBuff;
-    private int memoryUndo;
-    private int storedEntries;
+    private UndoLogSegments segments;
     private HashMap<Integer, Table> tables;
-    private final boolean largeTransactions;
 
     /**
      * Create a new undo log for the given session.
@@ -39,7 +33,6 @@ public class UndoLog {
      */
     UndoLog(Session session) {
         this.database = session.getDatabase();
-        largeTransactions = database.getSettings().largeTransactions;
     }
 
     /**
@@ -48,11 +41,8 @@ public class UndoLog {
      * @return the number of rows
      */
     int size() {
-        if (largeTransactions) {
-            return storedEntries + records.size();
-        }
-        if (SysProperties.CHECK && memoryUndo > records.size()) {
-            DbException.throwInternalError();
+        if (segments != null) {
+            return segments.size() + records.size();
         }
         return records.size();
     }
@@ -63,13 +53,9 @@ public class UndoLog {
      */
     void clear() {
         records.clear();
-        storedEntries = 0;
-        storedEntriesPos.clear();
-        memoryUndo = 0;
-        if (file != null) {
-            file.closeAndDeleteSilently();
-            file = null;
-            rowBuff = null;
+        if (segments != null) {
+            segments.close();
+            segments = null;
         }
     }
 
@@ -80,57 +66,11 @@ public class UndoLog {
      */
     public UndoLogRecord getLast() {
         int i = records.size() - 1;
-        if (largeTransactions) {
-            if (i < 0 && storedEntries > 0) {
-                int last = storedEntriesPos.size() - 1;
-                long pos = storedEntriesPos.get(last);
-                storedEntriesPos.remove(last);
-                long end = file.length();
-                int bufferLength = (int) (end - pos);
-                Data buff = Data.create(database, bufferLength);
-                file.seek(pos);
-                file.readFully(buff.getBytes(), 0, bufferLength);
-                while (buff.length() < bufferLength) {
-                    UndoLogRecord e = UndoLogRecord.loadFromBuffer(buff, this);
-                    records.add(e);
-                    memoryUndo++;
-                }
-                storedEntries -= records.size();
-                file.setLength(pos);
-                file.seek(pos);
-            }
+        if (i < 0 && segments != null && segments.size() > 0) {
+            segments.removeLastSegment(records, this);
             i = records.size() - 1;
         }
-        UndoLogRecord entry = records.get(i);
-        if (entry.isStored()) {
-            int start = Math.max(0, i - database.getMaxMemoryUndo() / 2);
-            UndoLogRecord first = null;
-            for (int j = start; j <= i; j++) {
-                UndoLogRecord e = records.get(j);
-                if (e.isStored()) {
-                    e.load(rowBuff, file, this);
-                    memoryUndo++;
-                    if (first == null) {
-                        first = e;
-                    }
-                }
-            }
-            for (int k = 0; k < i; k++) {
-                UndoLogRecord e = records.get(k);
-                e.invalidatePos();
-            }
-            seek(first.getFilePos());
-        }
-        return entry;
-    }
-
-    /**
-     * Go to the right position in the file.
-     *
-     * @param filePos the position in the file
-     */
-    void seek(long filePos) {
-        file.seek(filePos * Constants.FILE_BLOCK_SIZE);
+        return records.get(i);
     }
 
     /**
@@ -140,10 +80,7 @@ public class UndoLog {
      */
     void removeLast(boolean trimToSize) {
         int i = records.size() - 1;
-        UndoLogRecord r = records.remove(i);
-        if (!r.isStored()) {
-            memoryUndo--;
-        }
+        records.remove(i);
         if (trimToSize && i > 1024 && (i & 1023) == 0) {
             records.trimToSize();
         }
@@ -156,62 +93,15 @@ public class UndoLog {
      */
     void add(UndoLogRecord entry) {
         records.add(entry);
-        if (largeTransactions) {
-            memoryUndo++;
-            if (memoryUndo > database.getMaxMemoryUndo() &&
-                    !database.isMultiVersion()) {
-                if (file == null) {
-                    String fileName = database.createTempFile();
-                    file = database.openFile(fileName, "rw", false);
-                    file.setCheckedWriting(false);
-                    file.setLength(FileStore.HEADER_LENGTH);
-                }
-                Data buff = Data.create(database, Constants.DEFAULT_PAGE_SIZE);
-                for (int i = 0; i < records.size(); i++) {
-                    UndoLogRecord r = records.get(i);
-                    buff.checkCapacity(Constants.DEFAULT_PAGE_SIZE);
-                    r.append(buff, this);
-                    if (i == records.size() - 1 || buff.length() > Constants.UNDO_BLOCK_SIZE) {
-                        storedEntriesPos.add(file.getFilePointer());
-                        file.write(buff.getBytes(), 0, buff.length());
-                        buff.reset();
-                    }
-                }
-                storedEntries += records.size();
-                memoryUndo = 0;
-                records.clear();
-                file.autoDelete();
-                return;
-            }
-        } else {
-            if (!entry.isStored()) {
-                memoryUndo++;
+        if (records.size() > database.getMaxMemoryUndo() &&
+                !database.isMultiVersion()) {
+            if (segments == null) {
+                segments = new UndoLogSegments(database);
             }
-            if (memoryUndo > database.getMaxMemoryUndo() &&
-                    !database.isMultiVersion()) {
-                if (file == null) {
-                    String fileName = database.createTempFile();
-                    file = database.openFile(fileName, "rw", false);
-                    file.setCheckedWriting(false);
-                    file.seek(FileStore.HEADER_LENGTH);
-                    rowBuff = Data.create(database, Constants.DEFAULT_PAGE_SIZE);
-                    Data buff = rowBuff;
-                    for (int i = 0; i < records.size(); i++) {
-                        UndoLogRecord r = records.get(i);
-                        saveIfPossible(r, buff);
-                    }
-                } else {
-                    saveIfPossible(entry, rowBuff);
-                }
-                file.autoDelete();
+            for (int i = 0, size = records.size(); i < size; i++) {
+                segments.append(records.get(i), this);
             }
-        }
-    }
-
-    private void saveIfPossible(UndoLogRecord r, Data buff) {
-        if (!r.isStored() && r.canStore()) {
-            r.save(buff, file, this);
-            memoryUndo--;
+            records.clear();
         }
     }
 
@@ -8,12 +8,10 @@ package com.neradb.engine;
 import com.neradb.common.Constants;
 import com.neradb.common.DbException;
 import com.neradb.common.ErrorCode;
-import com.neradb.common.SysProperties;
 import com.neradb.dbobject.Database;
 import com.neradb.dbobject.table.Table;
 import com.neradb.result.Row;
 import com.neradb.store.Data;
-import com.neradb.store.FileStore;
 import com.neradb.value.Value;
 
 /**
@@ -31,12 +29,9 @@ public class UndoLogRecord {
      */
     public static final short DELETE = 1;
 
-    private static final int IN_MEMORY = 0, STORED = 1, IN_MEMORY_INVALID = 2;
     private Table table;
     private Row row;
     private short operation;
-    private short state;
-    private int filePos;
 
     /**
      * Create a new undo log record
@@ -49,30 +44,6 @@ public class UndoLogRecord {
         this.table = table;
         this.row = row;
         this.operation = op;
-        this.state = IN_MEMORY;
-    }
-
-    /**
-     * Check if the log record is stored in the file.
-     *
-     * @return true if it is
-     */
-    boolean isStored() {
-        return state == STORED;
-    }
-
-    /**
-     * Check if this undo log record can be store. Only record can be stored if
-     * the table has a unique index.
-     *
-     * @return if it can be stored
-     */
-    boolean canStore() {
-        // if large transactions are enabled, this method is not called
-        if (table.getUniqueIndex() != null) {
-            return true;
-        }
-        return false;
     }
 
     /**
@@ -85,9 +56,6 @@ public class UndoLogRecord {
         Database db = session.getDatabase();
         switch (operation) {
         case INSERT:
-            if (state == IN_MEMORY_INVALID) {
-                state = IN_MEMORY;
-            }
             if (db.getLockMode() == Constants.LOCK_MODE_OFF) {
                 if (row.isDeleted()) {
                     // it might have been deleted by another thread
@@ -131,104 +99,54 @@ public class UndoLogRecord {
     }
 
     /**
-     * Append the row to the buffer.
+     * Append the row to the buffer, in a compact format without padding.
      *
      * @param buff the buffer
      * @param log the undo log
      */
     void append(Data buff, UndoLog log) {
-        int p = buff.length();
-        buff.writeInt(0);
-        buff.writeInt(operation);
-        buff.writeByte(row.isDeleted() ? (byte) 1 : (byte) 0);
-        buff.writeInt(log.getTableId(table));
-        buff.writeLong(row.getKey());
-        buff.writeInt(row.getSessionId());
         int count = row.getColumnCount();
-        buff.writeInt(count);
+        int op = operation << 1 | (row.isDeleted() ? 1 : 0);
+        int tableId = log.getTableId(table);
+        buff.checkCapacity(Data.getVarIntLen(op) + Data.getVarIntLen(tableId) +
+                Data.getVarLongLen(row.getKey()) +
+                Data.getVarIntLen(row.getSessionId()) + Data.getVarIntLen(count));
+        buff.writeVarInt(op);
+        buff.writeVarInt(tableId);
+        buff.writeVarLong(row.getKey());
+        buff.writeVarInt(row.getSessionId());
+        buff.writeVarInt(count);
         for (int i = 0; i < count; i++) {
             Value v = row.getValue(i);
             buff.checkCapacity(buff.getValueLen(v));
             buff.writeValue(v);
         }
-        buff.fillAligned();
-        buff.setInt(p, (buff.length() - p) / Constants.FILE_BLOCK_SIZE);
     }
 
     /**
-     * Save the row in the file using a buffer.
+     * Load an undo log record from a buffer. The buffer position is moved to
+     * the next record.
      *
      * @param buff the buffer
-     * @param file the file
      * @param log the undo log
-     */
-    void save(Data buff, FileStore file, UndoLog log) {
-        buff.reset();
-        append(buff, log);
-        filePos = (int) (file.getFilePointer() / Constants.FILE_BLOCK_SIZE);
-        file.write(buff.getBytes(), 0, buff.length());
-        row = null;
-        state = STORED;
-    }
-
-    /**
-     * Load an undo log record row using a buffer.
-     *
-     * @param buff the buffer
-     * @param log the log
      * @return the undo log record
      */
     static UndoLogRecord loadFromBuffer(Data buff, UndoLog log) {
-        UndoLogRecord rec = new UndoLogRecord(null, (short) 0, null);
-        int pos = buff.length();
-        int len = buff.readInt() * Constants.FILE_BLOCK_SIZE;
-        rec.load(buff, log);
-        buff.setPos(pos + len);
-        return rec;
-    }
-
-    /**
-     * Load an undo log record row using a buffer.
-     *
-     * @param buff the buffer
-     * @param file the source file
-     * @param log the log
-     */
-    void load(Data buff, FileStore file, UndoLog log) {
-        int min = Constants.FILE_BLOCK_SIZE;
-        log.seek(filePos);
-        buff.reset();
-        file.readFully(buff.getBytes(), 0, min);
-        int len = buff.readInt() * Constants.FILE_BLOCK_SIZE;
-        buff.checkCapacity(len);
-        if (len - min > 0) {
-            file.readFully(buff.getBytes(), min, len - min);
-        }
-        int oldOp = operation;
-        load(buff, log);
-        if (SysProperties.CHECK) {
-            if (operation != oldOp) {
-                DbException.throwInternalError("operation=" + operation + " op=" + oldOp);
-            }
-        }
-    }
-
-    private void load(Data buff, UndoLog log) {
-        operation = (short) buff.readInt();
-        boolean deleted = buff.readByte() == 1;
-        table = log.getTable(buff.readInt());
-        long key = buff.readLong();
-        int sessionId = buff.readInt();
-        int columnCount = buff.readInt();
+        int op = buff.readVarInt();
+        boolean deleted = (op & 1) != 0;
+        Table table = log.getTable(buff.readVarInt());
+        long key = buff.readVarLong();
+        int sessionId = buff.readVarInt();
+        int columnCount = buff.readVarInt();
         Value[] values = new Value[columnCount];
         for (int i = 0; i < columnCount; i++) {
             values[i] = buff.readValue();
         }
-        row = getTable().getDatabase().createRow(values, Row.MEMORY_CALCULATE);
+        Row row = table.getDatabase().createRow(values, Row.MEMORY_CALCULATE);
         row.setKey(key);
         row.setDeleted(deleted);
         row.setSessionId(sessionId);
-        state = IN_MEMORY_INVALID;
+        return new UndoLogRecord(table, (short) (op >>> 1), row);
     }
 
     /**
@@ -240,15 +158,6 @@ public class UndoLogRecord {
         return table;
     }
 
-    /**
-     * Get the position in the file.
-     *
-     * @return the file position
-     */
-    public long getFilePos() {
-        return filePos;
-    }
-
     /**
      * This method is called after the operation was committed.
      * It commits the change to the indexes.
@@ -265,15 +174,4 @@ public class UndoLogRecord {
     public Row getRow() {
         return row;
     }
-
-    /**
-     * Change the state from IN_MEMORY to IN_MEMORY_INVALID. This method is
-     * called if a later record was read from the temporary file, and therefore
-     * the position could have changed.
-     */
-    void invalidatePos() {
-        if (this.state == IN_MEMORY) {
-            state = IN_MEMORY_INVALID;
-        }
-    }
 }
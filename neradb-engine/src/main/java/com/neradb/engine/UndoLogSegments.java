@@ -0,0 +1,211 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.engine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import com.neradb.common.Constants;
+import com.neradb.common.utils.IntArray;
+import com.neradb.common.utils.MathUtils;
+import com.neradb.common.utils.New;
+import com.neradb.dbobject.Database;
+import com.neradb.store.Data;
+import com.neradb.store.FileStore;
+
+/**
+ * The serialized part of an undo log. Records are appended in their compact
+ * binary form to segments that are allocated outside of the Java heap. Once
+ * the segments use more than the memory budget of the session, the oldest
+ * segments are written sequentially to a temporary file, and their memory is
+ * reused. Records are only ever read in reverse order, one segment at a time
+ * (newest first), which is what a rollback or commit needs.
+ */
+class UndoLogSegments {
+
+    private final Database database;
+    private final int segmentSize;
+    private final long memoryBudget;
+
+    /**
+     * The segments in memory, oldest first. The last one is appended to. The
+     * memory used by these segments is memoryUsed.
+     */
+    private final ArrayList<ByteBuffer> segments = New.arrayList();
+    private final IntArray segmentCounts = new IntArray();
+
+    /**
+     * Unused segments that can be reused.
+     */
+    private final ArrayList<ByteBuffer> free = New.arrayList();
+
+    /**
+     * The start position of each spilled segment in the file, oldest first.
+     */
+    private final ArrayList<Long> storedPos = New.arrayList();
+    private final IntArray storedLengths = new IntArray();
+    private final IntArray storedCounts = new IntArray();
+
+    private final Data buff;
+    private FileStore file;
+    private long memoryUsed;
+    private int count;
+
+    UndoLogSegments(Database database) {
+        this.database = database;
+        DbSettings settings = database.getSettings();
+        this.segmentSize = Constants.UNDO_BLOCK_SIZE;
+        // without large transactions, the records are written to the file
+        // almost right away, as before
+        this.memoryBudget = settings.largeTransactions ?
+                Math.max(segmentSize, settings.undoLogMemory) : segmentSize;
+        this.buff = Data.create(database, Constants.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Get the number of records.
+     *
+     * @return the number of records
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param r the record
+     * @param log the undo log
+     */
+    void append(UndoLogRecord r, UndoLog log) {
+        buff.reset();
+        r.append(buff, log);
+        int len = buff.length();
+        int last = segments.size() - 1;
+        ByteBuffer segment = last < 0 ? null : segments.get(last);
+        if (segment == null || segment.remaining() < len) {
+            segment = allocate(len);
+            segments.add(segment);
+            segmentCounts.add(0);
+            spillIfRequired();
+            last = segments.size() - 1;
+        }
+        segment.put(buff.getBytes(), 0, len);
+        segmentCounts.set(last, segmentCounts.get(last) + 1);
+        count++;
+    }
+
+    /**
+     * Remove the newest segment and add its records to the list, in the
+     * order they were appended.
+     *
+     * @param records the target list
+     * @param log the undo log
+     */
+    void removeLastSegment(ArrayList<UndoLogRecord> records, UndoLog log) {
+        int n;
+        Data data;
+        int last = segments.size() - 1;
+        if (last >= 0) {
+            ByteBuffer segment = segments.remove(last);
+            n = segmentCounts.get(last);
+            segmentCounts.remove(last);
+            int len = segment.position();
+            data = Data.create(database, len);
+            segment.flip();
+            segment.get(data.getBytes(), 0, len);
+            release(segment);
+        } else {
+            last = storedPos.size() - 1;
+            long pos = storedPos.remove(last);
+            int len = storedLengths.get(last);
+            n = storedCounts.get(last);
+            storedLengths.remove(last);
+            storedCounts.remove(last);
+            int aligned = MathUtils.roundUpInt(len, Constants.FILE_BLOCK_SIZE);
+            data = Data.create(database, aligned);
+            file.seek(pos);
+            file.readFully(data.getBytes(), 0, aligned);
+            file.setLength(pos);
+            file.seek(pos);
+        }
+        records.ensureCapacity(records.size() + n);
+        for (int i = 0; i < n; i++) {
+            records.add(UndoLogRecord.loadFromBuffer(data, log));
+        }
+        count -= n;
+    }
+
+    private ByteBuffer allocate(int minLength) {
+        ByteBuffer segment;
+        if (minLength <= segmentSize && free.size() > 0) {
+            segment = free.remove(free.size() - 1);
+        } else {
+            segment = ByteBuffer.allocateDirect(Math.max(segmentSize, minLength));
+        }
+        memoryUsed += segment.capacity();
+        return segment;
+    }
+
+    private void release(ByteBuffer segment) {
+        memoryUsed -= segment.capacity();
+        segment.clear();
+        // keep unused segments for reuse, as long as the budget allows it
+        if (segment.capacity() == segmentSize &&
+                memoryUsed + (long) (free.size() + 1) * segmentSize <= memoryBudget) {
+            free.add(segment);
+        }
+    }
+
+    /**
+     * Write the oldest segments to the file until the memory used is within
+     * the budget again. The newest segment always stays in memory.
+     */
+    private void spillIfRequired() {
+        while (memoryUsed > memoryBudget && segments.size() > 1) {
+            if (file == null) {
+                String fileName = database.createTempFile();
+                file = database.openFile(fileName, "rw", false);
+                file.setCheckedWriting(false);
+                file.setLength(FileStore.HEADER_LENGTH);
+                file.seek(FileStore.HEADER_LENGTH);
+                file.autoDelete();
+            }
+            ByteBuffer segment = segments.remove(0);
+            int n = segmentCounts.get(0);
+            segmentCounts.remove(0);
+            int len = segment.position();
+            int aligned = MathUtils.roundUpInt(len, Constants.FILE_BLOCK_SIZE);
+            byte[] bytes = new byte[aligned];
+            segment.flip();
+            segment.get(bytes, 0, len);
+            storedPos.add(file.getFilePointer());
+            storedLengths.add(len);
+            storedCounts.add(n);
+            file.write(bytes, 0, aligned);
+            release(segment);
+        }
+    }
+
+    /**
+     * Remove all records, release the memory and delete the file.
+     */
+    void close() {
+        segments.clear();
+        segmentCounts.removeRange(0, segmentCounts.size());
+        free.clear();
+        storedPos.clear();
+        storedLengths.removeRange(0, storedLengths.size());
+        storedCounts.removeRange(0, storedCounts.size());
+        memoryUsed = 0;
+        count = 0;
+        if (file != null) {
+            file.closeAndDeleteSilently();
+            file = null;
+        }
+    }
+
+}
@@ -1189,7 +1189,6 @@ public class JdbcPreparedStatement extends JdbcStatement implements
     @Override
     public int[] executeBatch() throws SQLException {
         try {
-            int id = getNextId(TraceObject.PREPARED_STATEMENT);
             debugCodeCall("executeBatch");
             if (batchParameters == null) {
                 // TODO batch: check what other database do if no parameters are
@@ -1198,40 +1197,38 @@ public class JdbcPreparedStatement extends JdbcStatement implements
             }
             batchIdentities = New.arrayList();
             int size = batchParameters.size();
-            int[] result = new int[size];
-            boolean error = false;
-            SQLException next = null;
             checkClosedForWrite();
             try {
-                for (int i = 0; i < size; i++) {
-                    Value[] set = batchParameters.get(i);
-                    ArrayList<? extends ParameterInterface> parameters =
-                            command.getParameters();
-                    for (int j = 0; j < set.length; j++) {
-                        Value value = set[j];
-                        ParameterInterface param = parameters.get(j);
-                        param.setValue(value, false);
-                    }
+                DbException[] errors = new DbException[size];
+                ArrayList<Value> keys = New.arrayList();
+                int[] result;
+                closeOldResultSet();
+                synchronized (session) {
                     try {
-                        result[i] = executeUpdateInternal();
-                        ResultSet rs = conn.getGeneratedKeys(this, id);
-                        while (rs.next()) {
-                            batchIdentities.add(rs.getObject(1));
-                        }
-                    } catch (Exception re) {
-                        SQLException e = logAndConvert(re);
+                        setExecutingStatement(command);
+                        result = command.executeBatchUpdate(batchParameters,
+                                keys, errors);
+                    } finally {
+                        setExecutingStatement(null);
+                    }
+                }
+                for (Value v : keys) {
+                    batchIdentities.add(v.getObject());
+                }
+                batchParameters = null;
+                SQLException next = null;
+                for (int i = 0; i < size; i++) {
+                    if (errors[i] != null) {
+                        SQLException e = logAndConvert(errors[i]);
                         if (next == null) {
                             next = e;
                         } else {
                             e.setNextException(next);
                             next = e;
                         }
-                        result[i] = Statement.EXECUTE_FAILED;
-                        error = true;
                     }
                 }
-                batchParameters = null;
-                if (error) {
+                if (next != null) {
                     JdbcBatchUpdateException e = new JdbcBatchUpdateException(next, result);
                     throw e;
                 }
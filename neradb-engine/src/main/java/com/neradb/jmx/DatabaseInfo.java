@@ -0,0 +1,178 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.neradb.common.utils.LatencyHistogram;
+import com.neradb.dbobject.Database;
+import com.neradb.engine.ConnectionInfo;
+import com.neradb.engine.QueryStatisticsData;
+
+/**
+ * The MBean implementation.
+ */
+public class DatabaseInfo implements DatabaseInfoMBean {
+
+    private static final Map<String, ObjectName> MBEANS =
+            new HashMap<String, ObjectName>();
+
+    private final Database database;
+
+    private DatabaseInfo(Database database) {
+        if (database == null) {
+            throw new IllegalArgumentException("Argument 'database' must not be null");
+        }
+        this.database = database;
+    }
+
+    /**
+     * Returns a JMX new ObjectName instance.
+     *
+     * @param name name of the MBean
+     * @param path the path
+     * @return a new ObjectName instance
+     * @throws JMException if the ObjectName could not be created
+     */
+    private static ObjectName getObjectName(String name, String path)
+            throws JMException {
+        name = name.replace(':', '_');
+        path = path.replace(':', '_');
+        Hashtable<String, String> map = new Hashtable<String, String>();
+        map.put("name", name);
+        map.put("path", path);
+        return new ObjectName("com.neradb", map);
+    }
+
+    /**
+     * Registers an MBean for the database.
+     *
+     * @param connectionInfo connection info
+     * @param database database
+     */
+    public static void registerMBean(ConnectionInfo connectionInfo,
+            Database database) throws JMException {
+        String path = connectionInfo.getName();
+        synchronized (MBEANS) {
+            if (!MBEANS.containsKey(path)) {
+                MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                String name = database.getShortName();
+                ObjectName mbeanObjectName = getObjectName(name, path);
+                MBEANS.put(path, mbeanObjectName);
+                mbeanServer.registerMBean(new DatabaseInfo(database), mbeanObjectName);
+            }
+        }
+    }
+
+    /**
+     * Unregisters the MBean for the database if one is registered.
+     *
+     * @param name database name
+     */
+    public static void unregisterMBean(String name) throws Exception {
+        ObjectName mbeanObjectName;
+        synchronized (MBEANS) {
+            mbeanObjectName = MBEANS.remove(name);
+        }
+        if (mbeanObjectName != null) {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.unregisterMBean(mbeanObjectName);
+        }
+    }
+
+    @Override
+    public boolean isExclusive() {
+        return database.getExclusiveSession() != null;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return database.isReadOnly();
+    }
+
+    @Override
+    public String getMode() {
+        return database.getMode().getName();
+    }
+
+    @Override
+    public boolean isMultiThreaded() {
+        return database.isMultiThreaded();
+    }
+
+    @Override
+    public boolean isMvcc() {
+        return database.isMultiVersion();
+    }
+
+    @Override
+    public int getSessionCount() {
+        return database.getSessionCount();
+    }
+
+    @Override
+    public boolean isQueryStatistics() {
+        return database.getQueryStatistics();
+    }
+
+    @Override
+    public long getQueryCount() {
+        LatencyHistogram h = getExecutionTime();
+        return h == null ? 0 : h.getCount();
+    }
+
+    @Override
+    public double getQueryTimeP50() {
+        return getPercentileMillis(50);
+    }
+
+    @Override
+    public double getQueryTimeP99() {
+        return getPercentileMillis(99);
+    }
+
+    @Override
+    public double getQueryTimeP999() {
+        return getPercentileMillis(99.9);
+    }
+
+    private LatencyHistogram getExecutionTime() {
+        QueryStatisticsData data = database.getQueryStatisticsData();
+        return data == null ? null : data.getExecutionTime();
+    }
+
+    private double getPercentileMillis(double percentile) {
+        LatencyHistogram h = getExecutionTime();
+        return h == null ? 0 : h.getValueAtPercentile(percentile) / 1000d / 1000;
+    }
+
+    @Override
+    public String listQueryStatistics() {
+        StringBuilder buff = new StringBuilder();
+        QueryStatisticsData data = database.getQueryStatisticsData();
+        if (data != null) {
+            for (QueryStatisticsData.QueryEntry entry : data.getQueries()) {
+                LatencyHistogram time = entry.getExecutionTime();
+                buff.append("count: ").append(entry.getCount()).
+                    append(" p50: ").append(time.getValueAtPercentile(50) / 1000d / 1000).
+                    append(" p99: ").append(time.getValueAtPercentile(99) / 1000d / 1000).
+                    append(" p999: ").append(time.getValueAtPercentile(99.9) / 1000d / 1000).
+                    append(" rows: ").append(entry.getRowCountCumulative()).
+                    append(" scanned: ").append(entry.getRowsScanned()).
+                    append(" sql: ").append(entry.sqlStatement).append('\n');
+            }
+        }
+        return buff.toString();
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.jmx;
+
+/**
+ * Information and management operations for the given database.
+ */
+public interface DatabaseInfoMBean {
+
+    /**
+     * Is the database open in exclusive mode?
+     *
+     * @return true if the database is open in exclusive mode, false otherwise
+     */
+    boolean isExclusive();
+
+    /**
+     * Is the database read-only?
+     *
+     * @return true if the database is read-only, false otherwise
+     */
+    boolean isReadOnly();
+
+    /**
+     * The database compatibility mode (REGULAR if no compatibility mode is
+     * used).
+     *
+     * @return the database mode
+     */
+    String getMode();
+
+    /**
+     * Is multi-threading enabled?
+     *
+     * @return true if multi-threading is enabled, false otherwise
+     */
+    boolean isMultiThreaded();
+
+    /**
+     * Is MVCC (multi version concurrency) enabled?
+     *
+     * @return true if MVCC is enabled, false otherwise
+     */
+    boolean isMvcc();
+
+    /**
+     * The number of open sessions.
+     *
+     * @return the number of sessions
+     */
+    int getSessionCount();
+
+    /**
+     * Are query statistics collected (SET QUERY_STATISTICS)?
+     *
+     * @return true if yes
+     */
+    boolean isQueryStatistics();
+
+    /**
+     * The number of statements executed since the query statistics were
+     * enabled.
+     *
+     * @return the number of statements
+     */
+    long getQueryCount();
+
+    /**
+     * The median execution time of all statements, in milliseconds.
+     *
+     * @return the execution time
+     */
+    double getQueryTimeP50();
+
+    /**
+     * The 99th percentile of the execution time of all statements, in
+     * milliseconds.
+     *
+     * @return the execution time
+     */
+    double getQueryTimeP99();
+
+    /**
+     * The 99.9th percentile of the execution time of all statements, in
+     * milliseconds.
+     *
+     * @return the execution time
+     */
+    double getQueryTimeP999();
+
+    /**
+     * List the statistics of the most recently executed statements: the
+     * execution count, percentiles of the execution time in milliseconds,
+     * and the rows returned and scanned.
+     *
+     * @return the statistics, one statement per line
+     */
+    String listQueryStatistics();
+
+}
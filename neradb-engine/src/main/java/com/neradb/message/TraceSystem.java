@@ -92,6 +92,8 @@ public class TraceSystem implements TraceWriter {
     private boolean closed;
     private boolean writingErrorLogged;
     private TraceWriter writer = this;
+    private volatile TraceWriterAsync asyncWriter;
+    private long droppedMessages;
     private PrintStream sysOut = System.out;
 
     /**
@@ -172,6 +174,47 @@ public class TraceSystem implements TraceWriter {
         this.maxFileSize = max;
     }
 
+    /**
+     * Write the trace file asynchronously, in a background thread. Messages
+     * are buffered in memory until they are written. Trace objects created
+     * from now on write to the asynchronous writer directly. This has no
+     * effect if the trace adapter is used.
+     *
+     * @param bufferSize the number of messages that can be buffered
+     * @param blockWhenFull whether writing a message waits if the buffer is
+     *            full; otherwise the message is dropped
+     */
+    public synchronized void setAsync(int bufferSize, boolean blockWhenFull) {
+        if (fileName == null || closed || asyncWriter != null ||
+                writer != this) {
+            return;
+        }
+        closeWriter();
+        TraceWriterAsync async = new TraceWriterAsync(this, fileName,
+                bufferSize, blockWhenFull);
+        asyncWriter = async;
+        setWriter(async);
+    }
+
+    private void setWriter(TraceWriter w) {
+        writer = w;
+        // trace objects keep their writer
+        for (int i = 0; i < traces.length(); i++) {
+            traces.set(i, null);
+        }
+    }
+
+    /**
+     * Get the number of trace messages that were dropped because the buffer
+     * of the asynchronous writer was full.
+     *
+     * @return the number of dropped messages
+     */
+    public synchronized long getDroppedMessages() {
+        TraceWriterAsync async = asyncWriter;
+        return droppedMessages + (async == null ? 0 : async.getDropped());
+    }
+
     /**
      * Set the trace level to use for System.out
      *
@@ -213,6 +256,10 @@ public class TraceSystem implements TraceWriter {
         updateLevel();
     }
 
+    int getMaxFileSize() {
+        return maxFileSize;
+    }
+
     public int getLevelFile() {
         return levelFile;
     }
@@ -231,6 +278,26 @@ public class TraceSystem implements TraceWriter {
 
     @Override
     public void write(int level, String module, String s, Throwable t) {
+        writeSystemOut(level, module, s, t);
+        if (isFileEnabled(level)) {
+            TraceWriterAsync async = asyncWriter;
+            if (async != null) {
+                async.writeFile(level, module, s, t);
+            } else {
+                writeFile(format(module, s), t);
+            }
+        }
+    }
+
+    /**
+     * Write a message to System.out if required.
+     *
+     * @param level the trace level
+     * @param module the module name
+     * @param s the message
+     * @param t the exception or null
+     */
+    void writeSystemOut(int level, String module, String s, Throwable t) {
         if (level <= levelSystemOut || level > this.levelMax) {
             // level <= levelSystemOut: the system out level is set higher
             // level > this.level: the level for this module is set higher
@@ -239,10 +306,30 @@ public class TraceSystem implements TraceWriter {
                 t.printStackTrace(sysOut);
             }
         }
+    }
+
+    /**
+     * Check whether a message of this level is written to the trace file.
+     *
+     * @param level the trace level
+     * @return true if it is written
+     */
+    boolean isFileEnabled(int level) {
+        return fileName != null && level <= levelFile;
+    }
+
+    /**
+     * Write a message to the trace file synchronously. This is used by the
+     * asynchronous writer for messages that are written after it was
+     * closed.
+     *
+     * @param module the module name
+     * @param s the message
+     * @param t the exception or null
+     */
+    void writeFileSync(String module, String s, Throwable t) {
         if (fileName != null) {
-            if (level <= levelFile) {
-                writeFile(format(module, s), t);
-            }
+            writeFile(format(module, s), t);
         }
     }
 
@@ -296,6 +383,15 @@ public class TraceSystem implements TraceWriter {
         se.printStackTrace();
     }
 
+    /**
+     * Called by the asynchronous writer if the trace file can not be written.
+     *
+     * @param e the exception
+     */
+    void logAsyncWritingError(Exception e) {
+        logWritingError(e);
+    }
+
     private boolean openWriter() {
         if (printWriter == null) {
             try {
@@ -338,8 +434,23 @@ public class TraceSystem implements TraceWriter {
      * (slowing down tracing).
      */
     public void close() {
+        TraceWriterAsync async;
+        synchronized (this) {
+            async = asyncWriter;
+            if (async != null) {
+                setWriter(this);
+            }
+            // from now on, the file is closed after each write
+            closed = true;
+        }
+        if (async != null) {
+            async.close();
+            synchronized (this) {
+                droppedMessages += async.getDropped();
+                asyncWriter = null;
+            }
+        }
         closeWriter();
-        closed = true;
     }
 
     @Override
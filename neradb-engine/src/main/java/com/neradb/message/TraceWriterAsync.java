@@ -0,0 +1,400 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.message;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.neradb.common.ErrorCode;
+import com.neradb.common.io.FileUtils;
+import com.neradb.common.utils.IOUtils;
+import com.neradb.common.utils.MathUtils;
+import com.neradb.jdbc.JdbcSQLException;
+
+/**
+ * A trace writer that writes to the trace file in a background thread.
+ * <p>
+ * Messages are stored in a ring buffer of preallocated events. Writers claim a
+ * slot with a compare-and-set on the tail sequence, and publish the slot by
+ * setting its sequence, so that writing a message never takes a lock. The
+ * background thread formats the messages, writes them to the file, and
+ * flushes the file once the buffer is empty. If the buffer is full, the
+ * message is either dropped (the number of dropped messages is written to the
+ * file later on), or the writer waits until there is space.
+ * </p>
+ * <p>
+ * Like the synchronous trace file, the file is renamed to .old once it is
+ * larger than the maximum trace file size. Messages written after the writer
+ * was closed are written synchronously by the trace system, which then closes
+ * the file after each message.
+ * </p>
+ */
+class TraceWriterAsync implements TraceWriter, Runnable {
+
+    /**
+     * How long the background thread waits for new messages, in nanoseconds.
+     */
+    private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final TraceSystem traceSystem;
+    private final String fileName;
+    private final boolean blockWhenFull;
+    private final Event[] events;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong droppedTotal = new AtomicLong();
+    private final Thread thread;
+
+    /**
+     * The sequence of the next event to write (only used by the background
+     * thread, but read when closing).
+     */
+    private volatile long head;
+    private volatile boolean waiting;
+    private volatile boolean stopped;
+
+    private SimpleDateFormat dateFormat;
+    private long lastSecond = -1;
+    private String lastDate;
+    private Writer fileWriter;
+    private PrintWriter printWriter;
+    private long fileSize;
+    private boolean writingError;
+
+    /**
+     * Create and start a new asynchronous trace writer.
+     *
+     * @param traceSystem the trace system
+     * @param fileName the trace file name
+     * @param bufferSize the number of messages that can be buffered
+     * @param blockWhenFull whether writers wait if the buffer is full
+     *            (otherwise messages are dropped)
+     */
+    TraceWriterAsync(TraceSystem traceSystem, String fileName,
+            int bufferSize, boolean blockWhenFull) {
+        this.traceSystem = traceSystem;
+        this.fileName = fileName;
+        this.blockWhenFull = blockWhenFull;
+        int len = MathUtils.nextPowerOf2(Math.max(16, bufferSize));
+        events = new Event[len];
+        for (int i = 0; i < len; i++) {
+            events[i] = new Event(i);
+        }
+        mask = len - 1;
+        thread = new Thread(this, "H2 Trace Writer " +
+                FileUtils.getName(fileName));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void setName(String name) {
+        // nothing to do (the file name is already set)
+    }
+
+    @Override
+    public boolean isEnabled(int level) {
+        return traceSystem.isEnabled(level);
+    }
+
+    @Override
+    public void write(int level, int moduleId, String s, Throwable t) {
+        write(level, Trace.MODULE_NAMES[moduleId], s, t);
+    }
+
+    @Override
+    public void write(int level, String module, String s, Throwable t) {
+        traceSystem.writeSystemOut(level, module, s, t);
+        if (traceSystem.isFileEnabled(level)) {
+            writeFile(level, module, s, t);
+        }
+    }
+
+    /**
+     * Add a message to the buffer, or write it synchronously if the writer
+     * is closed.
+     *
+     * @param level the trace level
+     * @param module the module name
+     * @param s the message
+     * @param t the exception or null
+     */
+    void writeFile(int level, String module, String s, Throwable t) {
+        long time = System.currentTimeMillis();
+        while (true) {
+            if (stopped) {
+                traceSystem.writeFileSync(module, s, t);
+                return;
+            }
+            long pos = tail.get();
+            Event e = events[(int) pos & mask];
+            long seq = e.sequence;
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    e.time = time;
+                    e.module = module;
+                    e.message = s;
+                    e.throwable = t;
+                    // publish
+                    e.sequence = pos + 1;
+                    if (stopped) {
+                        // the background thread may already be done
+                        drainStopped();
+                    } else if (waiting) {
+                        LockSupport.unpark(thread);
+                    }
+                    return;
+                }
+            } else if (seq < pos) {
+                // the buffer is full
+                if (!blockWhenFull) {
+                    dropped.incrementAndGet();
+                    droppedTotal.incrementAndGet();
+                    return;
+                }
+                LockSupport.unpark(thread);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            }
+            // else: another thread claimed this slot, retry
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            boolean wrote = drain();
+            if (!wrote) {
+                flush();
+                if (stopped) {
+                    break;
+                }
+                waiting = true;
+                // re-check, as a message could have been published before
+                // waiting was set
+                if (!isAvailable()) {
+                    LockSupport.parkNanos(this, WAIT_NANOS);
+                }
+                waiting = false;
+            }
+        }
+        // messages published while stopping
+        drainStopped();
+    }
+
+    /**
+     * Write the messages that were published after the background thread
+     * stopped, and close the file. Once stopped, only one thread at a time
+     * writes.
+     */
+    private void drainStopped() {
+        if (Thread.currentThread() != thread) {
+            joinThread();
+        }
+        synchronized (this) {
+            drain();
+            reportDropped(System.currentTimeMillis());
+            closeWriter();
+        }
+    }
+
+    private boolean isAvailable() {
+        long pos = head;
+        return events[(int) pos & mask].sequence == pos + 1;
+    }
+
+    /**
+     * Write all published messages.
+     *
+     * @return true if at least one message was written
+     */
+    private boolean drain() {
+        boolean wrote = false;
+        long pos = head;
+        while (true) {
+            Event e = events[(int) pos & mask];
+            if (e.sequence != pos + 1) {
+                break;
+            }
+            writeEvent(e);
+            e.module = null;
+            e.message = null;
+            e.throwable = null;
+            // release the slot for the next round
+            e.sequence = pos + events.length;
+            head = ++pos;
+            wrote = true;
+        }
+        return wrote;
+    }
+
+    private void writeEvent(Event e) {
+        reportDropped(e.time);
+        writeLine(e.time, e.module, e.message, e.throwable);
+    }
+
+    private void reportDropped(long time) {
+        long d = dropped.get();
+        if (d > 0 && dropped.compareAndSet(d, 0)) {
+            writeLine(time, "trace", d + " message(s) dropped, trace buffer full", null);
+        }
+    }
+
+    private void writeLine(long time, String module, String s, Throwable t) {
+        if (writingError || !openWriter()) {
+            return;
+        }
+        String line = formatDate(time) + module + ": " + s;
+        printWriter.println(line);
+        fileSize += line.length() + 1;
+        if (t != null) {
+            if (traceSystem.getLevelFile() == TraceSystem.ERROR &&
+                    t instanceof JdbcSQLException &&
+                    ErrorCode.isCommon(((JdbcSQLException) t).getErrorCode())) {
+                printWriter.println(t.toString());
+            } else {
+                t.printStackTrace(printWriter);
+            }
+            // the exact size is checked when rolling the file
+            fileSize += 1024;
+        }
+        int maxFileSize = traceSystem.getMaxFileSize();
+        if (maxFileSize > 0 && fileSize > maxFileSize) {
+            rollFile();
+        }
+    }
+
+    private String formatDate(long time) {
+        long second = time / 1000;
+        if (second != lastSecond) {
+            if (dateFormat == null) {
+                dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss ");
+            }
+            lastDate = dateFormat.format(time);
+            lastSecond = second;
+        }
+        return lastDate;
+    }
+
+    private void rollFile() {
+        closeWriter();
+        try {
+            if (FileUtils.size(fileName) > traceSystem.getMaxFileSize()) {
+                String old = fileName + ".old";
+                FileUtils.delete(old);
+                FileUtils.move(fileName, old);
+            }
+        } catch (Exception e) {
+            logWritingError(e);
+        }
+    }
+
+    private boolean openWriter() {
+        if (printWriter == null) {
+            try {
+                FileUtils.createDirectories(FileUtils.getParent(fileName));
+                if (FileUtils.exists(fileName) && !FileUtils.canWrite(fileName)) {
+                    // read only database: don't log error if the trace file
+                    // can't be opened
+                    return false;
+                }
+                fileSize = FileUtils.exists(fileName) ? FileUtils.size(fileName) : 0;
+                fileWriter = IOUtils.getBufferedWriter(
+                        FileUtils.newOutputStream(fileName, true));
+                // flushed explicitly once the buffer is empty
+                printWriter = new PrintWriter(fileWriter, false);
+            } catch (Exception e) {
+                logWritingError(e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void flush() {
+        if (printWriter != null) {
+            printWriter.flush();
+            if (printWriter.checkError()) {
+                logWritingError(new IOException(fileName));
+            }
+        }
+    }
+
+    private void closeWriter() {
+        if (printWriter != null) {
+            printWriter.flush();
+            printWriter.close();
+            printWriter = null;
+        }
+        IOUtils.closeSilently(fileWriter);
+        fileWriter = null;
+    }
+
+    private void logWritingError(Exception e) {
+        if (writingError) {
+            return;
+        }
+        writingError = true;
+        closeWriter();
+        // print this error only once
+        traceSystem.logAsyncWritingError(e);
+    }
+
+    /**
+     * Get the number of messages that were dropped because the buffer was
+     * full.
+     *
+     * @return the number of dropped messages
+     */
+    long getDropped() {
+        return droppedTotal.get();
+    }
+
+    /**
+     * Write the remaining messages, close the file, and stop the background
+     * thread.
+     */
+    void close() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        joinThread();
+    }
+
+    private void joinThread() {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * A preallocated slot of the ring buffer.
+     */
+    private static final class Event {
+
+        /**
+         * The slot is free if the sequence is equal to the tail sequence, and
+         * published if it is one higher than the head sequence.
+         */
+        volatile long sequence;
+        long time;
+        String module;
+        String message;
+        Throwable throwable;
+
+        Event(long sequence) {
+            this.sequence = sequence;
+        }
+
+    }
+
+}
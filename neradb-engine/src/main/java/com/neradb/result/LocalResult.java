@@ -10,6 +10,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 
 import com.neradb.command.expression.Expression;
+import com.neradb.common.Constants;
 import com.neradb.common.DbException;
 import com.neradb.common.utils.New;
 import com.neradb.dbobject.Database;
@@ -45,6 +46,12 @@ public class LocalResult implements ResultInterface, ResultTarget {
     private boolean closed;
     private boolean containsLobs;
 
+    /**
+     * Whether the memory used by the rows is estimated (for EXPLAIN ANALYZE).
+     */
+    private boolean analyzed;
+    private long memory, maxMemory;
+
     /**
      * Construct a local result object.
      */
@@ -67,6 +74,7 @@ public class LocalResult implements ResultInterface, ResultTarget {
         } else {
             Database db = session.getDatabase();
             this.maxMemoryRows = session.getDatabase().getMaxMemoryRows();
+            analyzed = session.isExplainAnalyze();
         }
         rows = New.arrayList();
         this.visibleColumnCount = visibleColumnCount;
@@ -297,11 +305,15 @@ public class LocalResult implements ResultInterface, ResultTarget {
             if (distinctRows != null) {
                 ValueArray array = getArrayOfVisible(values);
                 distinctRows.put(array, values);
+                if (analyzed && distinctRows.size() > rowCount) {
+                    addMemory(values);
+                }
                 rowCount = distinctRows.size();
                 if (rowCount > maxMemoryRows) {
                     external = new ResultTempTable(session, expressions, true, sort);
                     rowCount = external.addRows(distinctRows.values());
                     distinctRows = null;
+                    memory = 0;
                 }
             } else {
                 rowCount = external.addRow(values);
@@ -310,6 +322,9 @@ public class LocalResult implements ResultInterface, ResultTarget {
         }
         rows.add(values);
         rowCount++;
+        if (analyzed) {
+            addMemory(values);
+        }
         if (rows.size() > maxMemoryRows) {
             if (external == null) {
                 external = new ResultTempTable(session, expressions, false, sort);
@@ -321,6 +336,38 @@ public class LocalResult implements ResultInterface, ResultTarget {
     private void addRowsToDisk() {
         rowCount = external.addRows(rows);
         rows.clear();
+        memory = 0;
+    }
+
+    private void addMemory(Value[] values) {
+        long m = Constants.MEMORY_OBJECT + values.length * Constants.MEMORY_POINTER;
+        for (Value v : values) {
+            if (v != null) {
+                m += v.getMemory();
+            }
+        }
+        memory += m;
+        maxMemory = Math.max(maxMemory, memory);
+    }
+
+    /**
+     * Get the estimated maximum memory used by the rows that were kept in
+     * memory. This is only measured for EXPLAIN ANALYZE.
+     *
+     * @return the memory in bytes
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Check whether the rows were written to a temporary table because there
+     * were too many rows to keep in memory.
+     *
+     * @return true if yes
+     */
+    public boolean isExternal() {
+        return external != null;
     }
 
     @Override
@@ -11,6 +11,7 @@ import com.neradb.common.Constants;
 import com.neradb.common.utils.New;
 import com.neradb.dbobject.Database;
 import com.neradb.engine.Session;
+import com.neradb.store.BufferPool;
 import com.neradb.store.Data;
 import com.neradb.store.FileStore;
 import com.neradb.value.Value;
@@ -86,6 +87,11 @@ public class RowList {
             String fileName = db.createTempFile();
             file = db.openFile(fileName, "rw", false);
             file.setCheckedWriting(false);
+            BufferPool pool = db.getBufferPool();
+            if (pool != null) {
+                // the rows may be read more than once
+                file.setBufferPool(pool);
+            }
             file.seek(FileStore.HEADER_LENGTH);
             rowBuff = Data.create(db, Constants.DEFAULT_PAGE_SIZE);
             file.seek(FileStore.HEADER_LENGTH);
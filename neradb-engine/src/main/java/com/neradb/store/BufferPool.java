@@ -0,0 +1,688 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import com.neradb.common.DbException;
+import com.neradb.common.ErrorCode;
+import com.neradb.common.utils.New;
+
+/**
+ * A database wide cache of fixed size pages of file stores.
+ * <p>
+ * A file store that uses the pool (see FileStore.setBufferPool) reads
+ * through it, and writes through it: the file is written as usual, and the
+ * cached pages are updated, so that the pool is always coherent with the
+ * file.
+ * </p>
+ * <p>
+ * Pages can also be used directly: a page is pinned while it is used, and is
+ * not evicted until it is unpinned. Pages that were changed are marked as
+ * dirty when unpinning, and are written back when they are evicted, when the
+ * file store is flushed, or when it is closed.
+ * </p>
+ * <p>
+ * The eviction policy is 2Q (Johnson and Shasha, 1994), which is resistant
+ * to scans: a page that is read for the first time is added to a FIFO queue
+ * (A1in) that holds a quarter of the pages. When it is evicted from there,
+ * only its key is remembered (A1out). Only pages that are accessed again
+ * while still in A1in or A1out are added to the main LRU queue (Am). That
+ * way, reading a large file once does not evict the frequently used pages.
+ * Accesses to a page in A1in before any other page was loaded (for example
+ * when reading the rows of a page one after the other) are correlated, and
+ * don't move the page to Am.
+ * </p>
+ * <p>
+ * The page table and the queues are synchronized on the pool, but files are
+ * read and written outside of the pool monitor: a page that is being loaded
+ * is already in the page table, and other threads that pin it wait until it
+ * is loaded. A dirty page that is evicted stays pinned while it is written.
+ * The page table has one map per file store, so that flushing or closing a
+ * file store only looks at its own pages.
+ * </p>
+ */
+public class BufferPool {
+
+    private static final int QUEUE_NONE = 0, QUEUE_IN = 1, QUEUE_MAIN = 2;
+
+    private final int pageSize;
+    private final int maxPages;
+
+    /**
+     * The maximum number of pages in A1in.
+     */
+    private final int maxInPages;
+
+    /**
+     * The maximum number of keys in A1out.
+     */
+    private final int maxOutKeys;
+
+    private final IdentityHashMap<FileStore, StorePages> stores =
+            new IdentityHashMap<FileStore, StorePages>();
+    private final LinkedHashSet<PageKey> outKeys = new LinkedHashSet<PageKey>();
+
+    /**
+     * The data arrays of evicted pages, for re-use.
+     */
+    private final ArrayList<byte[]> freeData = New.arrayList();
+
+    /**
+     * The head of the A1in and Am lists (the most recently added or used
+     * page is after the head, the next page to evict is before the head).
+     */
+    private final Page inQueue = new Page(null, 0);
+    private final Page mainQueue = new Page(null, 0);
+    private int inCount, mainCount;
+
+    private long hitCount, missCount, evictCount, writeCount;
+    private int dirtyCount, pinnedCount;
+
+    /**
+     * Create a new buffer pool.
+     *
+     * @param pageSize the page size in bytes (a multiple of the file block
+     *            size)
+     * @param maxMemory the maximum memory to use, in bytes
+     */
+    public BufferPool(int pageSize, long maxMemory) {
+        this.pageSize = pageSize;
+        this.maxPages = (int) Math.max(16, Math.min(Integer.MAX_VALUE / 2,
+                maxMemory / pageSize));
+        maxInPages = maxPages / 4;
+        // the keys are small compared to the pages
+        maxOutKeys = maxPages;
+        inQueue.prev = inQueue.next = inQueue;
+        mainQueue.prev = mainQueue.next = mainQueue;
+    }
+
+    /**
+     * Get and pin a page. If the page is not in the pool, it is read from the
+     * file store (pages after the end of the file are empty). The page must
+     * be unpinned after use.
+     *
+     * @param store the file store
+     * @param pageId the page id (the first page starts after the file header)
+     * @return the page
+     */
+    public Page pin(FileStore store, long pageId) {
+        return pin(store, pageId, true);
+    }
+
+    /**
+     * Pin a page that is going to be overwritten completely, so that there is
+     * no need to read it. The page content is undefined if it was not in the
+     * pool.
+     *
+     * @param store the file store
+     * @param pageId the page id
+     * @return the page
+     */
+    public Page pinNew(FileStore store, long pageId) {
+        return pin(store, pageId, false);
+    }
+
+    private Page pin(FileStore store, long pageId, boolean read) {
+        Page p;
+        byte[] data = null;
+        synchronized (this) {
+            p = get(store, pageId);
+            if (p != null) {
+                hitCount++;
+                if (p.queue == QUEUE_MAIN) {
+                    // move to the front
+                    unlink(p);
+                    link(mainQueue, p);
+                } else if (p.loadTime != missCount) {
+                    // accessed again after other pages were loaded
+                    unlink(p);
+                    link(mainQueue, p);
+                    p.queue = QUEUE_MAIN;
+                    inCount--;
+                    mainCount++;
+                }
+            } else {
+                missCount++;
+                StorePages sp = stores.get(store);
+                if (sp == null) {
+                    sp = new StorePages(store);
+                    stores.put(store, sp);
+                }
+                p = new Page(store, pageId);
+                p.loadTime = missCount;
+                sp.pages.put(pageId, p);
+                if (sp.outKeyCount > 0 &&
+                        outKeys.remove(new PageKey(store, pageId))) {
+                    sp.outKeyCount--;
+                    p.queue = QUEUE_MAIN;
+                    link(mainQueue, p);
+                    mainCount++;
+                } else {
+                    p.queue = QUEUE_IN;
+                    link(inQueue, p);
+                    inCount++;
+                }
+                int size = freeData.size();
+                data = size > 0 ? freeData.remove(size - 1) : new byte[pageSize];
+            }
+            if (p.pinCount++ == 0) {
+                pinnedCount++;
+            }
+        }
+        if (data == null) {
+            p.awaitData();
+            return p;
+        }
+        try {
+            if (read) {
+                store.readPage(getPosition(pageId), data, pageSize);
+            }
+            evictIfNeeded();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (p.queue != QUEUE_NONE) {
+                    drop(p, false);
+                }
+            }
+            p.setData(null, e);
+            throw e;
+        }
+        p.setData(data, null);
+        return p;
+    }
+
+    /**
+     * Unpin a page.
+     *
+     * @param page the page
+     * @param dirty whether the page was changed
+     */
+    public synchronized void unpin(Page page, boolean dirty) {
+        if (page.queue == QUEUE_NONE) {
+            // the file store was closed in the meantime
+            return;
+        }
+        if (page.pinCount <= 0) {
+            throw DbException.throwInternalError("not pinned " + page);
+        }
+        if (dirty && !page.dirty) {
+            page.dirty = true;
+            dirtyCount++;
+        }
+        if (--page.pinCount == 0) {
+            pinnedCount--;
+        }
+    }
+
+    /**
+     * Read from a file store through the pool.
+     *
+     * @param store the file store
+     * @param pos the file position (after the file header)
+     * @param b the target buffer
+     * @param off the offset in the target buffer
+     * @param len the number of bytes
+     */
+    void read(FileStore store, long pos, byte[] b, int off, int len) {
+        while (len > 0) {
+            long pageId = getPageId(pos);
+            int offset = (int) (pos - getPosition(pageId));
+            int l = Math.min(len, pageSize - offset);
+            Page p = pin(store, pageId);
+            try {
+                System.arraycopy(p.data, offset, b, off, l);
+            } finally {
+                unpin(p, false);
+            }
+            pos += l;
+            off += l;
+            len -= l;
+        }
+    }
+
+    /**
+     * Update the cached pages after the file store was written to. Pages that
+     * are not in the pool are not loaded.
+     *
+     * @param store the file store
+     * @param pos the file position (after the file header)
+     * @param b the data that was written
+     * @param off the offset in the data
+     * @param len the number of bytes
+     */
+    void update(FileStore store, long pos, byte[] b, int off, int len) {
+        while (len > 0) {
+            long pageId = getPageId(pos);
+            int offset = (int) (pos - getPosition(pageId));
+            int l = Math.min(len, pageSize - offset);
+            Page p;
+            synchronized (this) {
+                p = get(store, pageId);
+                if (p != null && p.pinCount++ == 0) {
+                    pinnedCount++;
+                }
+            }
+            if (p != null) {
+                try {
+                    p.awaitData();
+                    System.arraycopy(b, off, p.data, offset, l);
+                } finally {
+                    unpin(p, false);
+                }
+            }
+            pos += l;
+            off += l;
+            len -= l;
+        }
+    }
+
+    /**
+     * Remove the pages that are no longer (completely) within the file,
+     * because the file is truncated. Dirty pages are written first.
+     *
+     * @param store the file store
+     * @param length the new file length
+     */
+    void truncate(FileStore store, long length) {
+        flush(store);
+        synchronized (this) {
+            for (Page p : getPages(store)) {
+                if (getPosition(p.pageId) + pageSize > length) {
+                    drop(p, false);
+                }
+            }
+        }
+    }
+
+    private Page get(FileStore store, long pageId) {
+        StorePages sp = stores.get(store);
+        return sp == null ? null : sp.pages.get(pageId);
+    }
+
+    /**
+     * Evict pages until the pool is not over budget. Dirty pages are written
+     * outside of the pool monitor.
+     */
+    private void evictIfNeeded() {
+        while (true) {
+            Page victim = null;
+            synchronized (this) {
+                if (inCount + mainCount <= maxPages) {
+                    return;
+                }
+                if (inCount > maxInPages) {
+                    victim = findUnpinned(inQueue);
+                }
+                if (victim == null) {
+                    victim = findUnpinned(mainQueue);
+                }
+                if (victim == null) {
+                    victim = findUnpinned(inQueue);
+                }
+                if (victim == null) {
+                    throw DbException.get(ErrorCode.OUT_OF_MEMORY,
+                            "buffer pool: all " + maxPages + " pages are pinned");
+                }
+                if (!victim.dirty) {
+                    drop(victim, true);
+                    evictCount++;
+                    continue;
+                }
+                // write it first; evicted in the next round if still unused
+                pinForWriting(victim);
+            }
+            ArrayList<Page> list = New.arrayList();
+            list.add(victim);
+            writeBack(list);
+        }
+    }
+
+    private void pinForWriting(Page p) {
+        if (p.pinCount++ == 0) {
+            pinnedCount++;
+        }
+        // changes after this point mark the page as dirty again
+        p.dirty = false;
+        dirtyCount--;
+    }
+
+    /**
+     * Write pages that were pinned for writing, and unpin them. If writing
+     * fails, the pages stay dirty.
+     *
+     * @param list the pages
+     */
+    private void writeBack(ArrayList<Page> list) {
+        int i = 0;
+        try {
+            for (; i < list.size(); i++) {
+                Page p = list.get(i);
+                p.store.writePage(getPosition(p.pageId), p.data, pageSize);
+                synchronized (this) {
+                    writeCount++;
+                    unpin(p, false);
+                }
+            }
+        } finally {
+            for (; i < list.size(); i++) {
+                unpin(list.get(i), true);
+            }
+        }
+    }
+
+    /**
+     * Remove a page from the page table and the queues.
+     *
+     * @param p the page
+     * @param evicted whether the page is evicted (and not removed because the
+     *            file is closed or truncated)
+     */
+    private void drop(Page p, boolean evicted) {
+        if (p.dirty) {
+            p.dirty = false;
+            dirtyCount--;
+        }
+        if (p.pinCount > 0) {
+            p.pinCount = 0;
+            pinnedCount--;
+        }
+        unlink(p);
+        StorePages sp = stores.get(p.store);
+        sp.pages.remove(p.pageId);
+        if (p.queue == QUEUE_IN) {
+            inCount--;
+            if (evicted) {
+                // remember the key
+                outKeys.add(new PageKey(p.store, p.pageId));
+                sp.outKeyCount++;
+                if (outKeys.size() > maxOutKeys) {
+                    Iterator<PageKey> it = outKeys.iterator();
+                    StorePages old = stores.get(it.next().store);
+                    it.remove();
+                    old.outKeyCount--;
+                    removeIfEmpty(old);
+                }
+            }
+        } else {
+            mainCount--;
+        }
+        p.queue = QUEUE_NONE;
+        if (evicted && p.data != null) {
+            freeData.add(p.data);
+            p.data = null;
+        }
+        removeIfEmpty(sp);
+    }
+
+    private void removeIfEmpty(StorePages sp) {
+        if (sp.pages.isEmpty() && sp.outKeyCount == 0) {
+            stores.remove(sp.store);
+        }
+    }
+
+    private static Page findUnpinned(Page head) {
+        for (Page p = head.prev; p != head; p = p.prev) {
+            if (p.pinCount == 0) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private long getPosition(long pageId) {
+        return FileStore.HEADER_LENGTH + pageId * pageSize;
+    }
+
+    private long getPageId(long pos) {
+        return (pos - FileStore.HEADER_LENGTH) / pageSize;
+    }
+
+    /**
+     * Write all dirty pages of the given file store.
+     *
+     * @param store the file store
+     */
+    public void flush(FileStore store) {
+        ArrayList<Page> list = New.arrayList();
+        synchronized (this) {
+            for (Page p : getPages(store)) {
+                if (p.dirty) {
+                    pinForWriting(p);
+                    list.add(p);
+                }
+            }
+        }
+        writeBack(list);
+    }
+
+    /**
+     * Remove all pages of the given file store from the pool.
+     *
+     * @param store the file store
+     * @param write whether dirty pages are written first (otherwise, changes
+     *            are discarded, for example because the file is deleted)
+     */
+    public void remove(FileStore store, boolean write) {
+        if (write) {
+            flush(store);
+        }
+        synchronized (this) {
+            StorePages sp = stores.get(store);
+            if (sp == null) {
+                return;
+            }
+            for (Page p : getPages(store)) {
+                drop(p, false);
+            }
+            if (sp.outKeyCount > 0) {
+                for (Iterator<PageKey> it = outKeys.iterator(); it.hasNext();) {
+                    if (it.next().store == store) {
+                        it.remove();
+                    }
+                }
+            }
+            stores.remove(store);
+        }
+    }
+
+    private ArrayList<Page> getPages(FileStore store) {
+        StorePages sp = stores.get(store);
+        if (sp == null) {
+            return New.arrayList();
+        }
+        return New.arrayList(sp.pages.values());
+    }
+
+    private static void link(Page head, Page p) {
+        p.prev = head;
+        p.next = head.next;
+        head.next.prev = p;
+        head.next = p;
+    }
+
+    private static void unlink(Page p) {
+        p.prev.next = p.next;
+        p.next.prev = p.prev;
+        p.prev = p.next = null;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+    public synchronized int getPageCount() {
+        return inCount + mainCount;
+    }
+
+    public synchronized int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    public synchronized int getPinnedCount() {
+        return pinnedCount;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictCount() {
+        return evictCount;
+    }
+
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Get the ratio of page requests that were served from the pool.
+     *
+     * @return the hit ratio (0 to 1)
+     */
+    public synchronized double getHitRatio() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * A page of a file store.
+     */
+    public static final class Page {
+
+        /**
+         * The file store.
+         */
+        final FileStore store;
+
+        /**
+         * The page id.
+         */
+        final long pageId;
+
+        /**
+         * The data, or null while the page is loaded.
+         */
+        byte[] data;
+        int pinCount;
+        boolean dirty;
+        int queue;
+        long loadTime;
+        Page prev, next;
+        private RuntimeException loadException;
+
+        Page(FileStore store, long pageId) {
+            this.store = store;
+            this.pageId = pageId;
+        }
+
+        /**
+         * Set the data once the page is loaded, and wake up waiting threads.
+         *
+         * @param data the data, or null if loading failed
+         * @param e the exception if loading failed
+         */
+        synchronized void setData(byte[] data, RuntimeException e) {
+            this.data = data;
+            this.loadException = e;
+            notifyAll();
+        }
+
+        /**
+         * Wait until the page is loaded.
+         */
+        synchronized void awaitData() {
+            while (data == null) {
+                if (loadException != null) {
+                    throw DbException.convert(loadException);
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw DbException.convert(e);
+                }
+            }
+        }
+
+        /**
+         * Get the page data. The data may only be read and changed while the
+         * page is pinned.
+         *
+         * @return the data
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        public long getPageId() {
+            return pageId;
+        }
+
+        @Override
+        public String toString() {
+            return store + ":" + pageId;
+        }
+
+    }
+
+    /**
+     * The pages of a file store, and the number of its keys in A1out.
+     */
+    private static final class StorePages {
+
+        final FileStore store;
+        final HashMap<Long, Page> pages = New.hashMap();
+        int outKeyCount;
+
+        StorePages(FileStore store) {
+            this.store = store;
+        }
+
+    }
+
+    /**
+     * The key of a page.
+     */
+    private static final class PageKey {
+
+        FileStore store;
+        long pageId;
+
+        PageKey(FileStore store, long pageId) {
+            this.store = store;
+            this.pageId = pageId;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(store) * 31 +
+                    (int) (pageId ^ (pageId >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PageKey)) {
+                return false;
+            }
+            PageKey k = (PageKey) o;
+            return store == k.store && pageId == k.pageId;
+        }
+
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store;
+
+import java.util.zip.CRC32;
+
+import com.neradb.common.Constants;
+import com.neradb.common.DbException;
+import com.neradb.common.ErrorCode;
+import com.neradb.common.utils.LatencyHistogram;
+import com.neradb.message.Trace;
+
+/**
+ * The commit log contains one record per committed transaction: the session
+ * id, the commit id and the commit time. It records which transactions were
+ * committed, and in which order; it does not contain the changed rows, which
+ * are kept by the table engines, so it can not be used to recover the data.
+ * The log is truncated to the last record at each checkpoint. Commits of
+ * concurrent sessions are batched (group commit): a session that needs its
+ * record to be written becomes the leader if no write is in progress, and
+ * writes all records appended so far with a single write call (followed by a
+ * single fsync if any of the waiting sessions requires it). All other sessions
+ * wait until the leader has covered their record, or become the next leader.
+ * <p>
+ * Each session decides how long to wait, see
+ * {@link Constants#SYNCHRONOUS_OFF}, {@link Constants#SYNCHRONOUS_LOCAL} and
+ * {@link Constants#SYNCHRONOUS_FULL}.
+ * </p>
+ */
+public class CommitLog {
+
+    /**
+     * The length of a commit record in bytes: type, session id, commit id and
+     * time, followed by a CRC-32 of these fields.
+     */
+    static final int RECORD_LENGTH = 2 * Constants.FILE_BLOCK_SIZE;
+
+    /**
+     * The number of records read at once when the log is scanned.
+     */
+    private static final int READ_RECORDS = 1024;
+
+    private static final int RECORD_TYPE_COMMIT = 1;
+
+    /**
+     * Records of sessions that don't wait are written at the latest when this
+     * many bytes are pending.
+     */
+    private static final int MAX_PENDING = 64 * 1024;
+
+    private final DataHandler handler;
+    private final FileStore file;
+    private final Trace trace;
+
+    /**
+     * The records appended since the last write (protected by this).
+     */
+    private Data pending;
+
+    /**
+     * The records the current leader is writing.
+     */
+    private Data writing;
+
+    private long appendedPos;
+    private long writtenPos;
+    private long syncedPos;
+    private long syncRequestedPos;
+
+    /**
+     * The number of bytes removed from the file at checkpoints. The positions
+     * above are logical; the file position is the logical position minus
+     * this value.
+     */
+    private long truncated;
+    private boolean flushing;
+    private long nextCommitId;
+    private DbException writeException;
+    private boolean closed;
+
+    private long groupCount;
+    private long syncCount;
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final LatencyHistogram syncLatency = new LatencyHistogram();
+
+    private CommitLog(DataHandler handler, FileStore file, Trace trace) {
+        this.handler = handler;
+        this.file = file;
+        this.trace = trace;
+        pending = Data.create(handler, Constants.DEFAULT_PAGE_SIZE);
+        writing = Data.create(handler, Constants.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Open the commit log. A partially written record at the end of the file
+     * (for example after a power failure) is removed.
+     *
+     * @param handler the data handler
+     * @param fileName the file name
+     * @param trace the trace
+     * @return the commit log
+     */
+    public static CommitLog open(DataHandler handler, String fileName,
+            Trace trace) {
+        FileStore file = handler.openFile(fileName, "rw", false);
+        CommitLog log = new CommitLog(handler, file, trace);
+        try {
+            log.recover();
+        } catch (DbException e) {
+            file.closeSilently();
+            throw e;
+        }
+        return log;
+    }
+
+    /**
+     * Read the complete records, and remove the first record that is
+     * incomplete or corrupt, and all records after it.
+     */
+    private void recover() {
+        long length = file.length();
+        long pos = FileStore.HEADER_LENGTH;
+        Data buff = Data.create(handler, READ_RECORDS * RECORD_LENGTH);
+        int off = 0, len = 0;
+        while (pos + RECORD_LENGTH <= length) {
+            if (off == len) {
+                len = (int) Math.min(READ_RECORDS, (length - pos) / RECORD_LENGTH) *
+                        RECORD_LENGTH;
+                file.seek(pos);
+                file.readFully(buff.getBytes(), 0, len);
+                off = 0;
+            }
+            buff.setPos(off);
+            int type = buff.readInt();
+            buff.readInt();
+            long commitId = buff.readLong();
+            buff.readLong();
+            int check = getCheckValue(buff.getBytes(), off, buff.length() - off);
+            if (type != RECORD_TYPE_COMMIT || buff.readInt() != check) {
+                break;
+            }
+            // after a checkpoint was interrupted, the first record is the
+            // newest one
+            nextCommitId = Math.max(nextCommitId, commitId + 1);
+            off += RECORD_LENGTH;
+            pos += RECORD_LENGTH;
+        }
+        if (pos != length) {
+            trace.info("commit log: truncating {0} bytes at {1}",
+                    length - pos, pos);
+            file.setLength(pos);
+        }
+        file.seek(pos);
+        appendedPos = writtenPos = syncedPos = syncRequestedPos = pos;
+    }
+
+    private static int getCheckValue(byte[] bytes, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, off, len);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Append a commit record for the given session, and wait until it is
+     * written as required by the synchronous commit mode.
+     *
+     * @param sessionId the session id
+     * @param syncMode the synchronous commit mode
+     * @return the commit id
+     */
+    public long commit(int sessionId, int syncMode) {
+        long start = System.nanoTime();
+        long commitId, pos;
+        boolean mustWrite;
+        synchronized (this) {
+            checkOpen();
+            commitId = nextCommitId++;
+            Data buff = pending;
+            buff.checkCapacity(RECORD_LENGTH);
+            int p = buff.length();
+            buff.writeInt(RECORD_TYPE_COMMIT);
+            buff.writeInt(sessionId);
+            buff.writeLong(commitId);
+            buff.writeLong(System.currentTimeMillis());
+            buff.writeInt(getCheckValue(buff.getBytes(), p, buff.length() - p));
+            buff.setPos(p + RECORD_LENGTH);
+            appendedPos += RECORD_LENGTH;
+            pos = appendedPos;
+            if (syncMode == Constants.SYNCHRONOUS_FULL) {
+                syncRequestedPos = pos;
+            }
+            mustWrite = syncMode != Constants.SYNCHRONOUS_OFF ||
+                    buff.length() >= MAX_PENDING;
+        }
+        if (mustWrite) {
+            flush(pos, syncMode == Constants.SYNCHRONOUS_FULL);
+        }
+        commitLatency.record(System.nanoTime() - start);
+        return commitId;
+    }
+
+    /**
+     * Write all pending records.
+     *
+     * @param sync whether the file should be synchronized as well
+     */
+    public void flush(boolean sync) {
+        long pos;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            pos = appendedPos;
+            if (sync) {
+                syncRequestedPos = pos;
+            }
+        }
+        flush(pos, sync);
+    }
+
+    /**
+     * Wait until the log is written (and synchronized, if required) up to the
+     * given position. If no other thread is currently writing, this thread
+     * writes all pending records.
+     *
+     * @param pos the position
+     * @param sync whether the position must be synchronized
+     */
+    private void flush(long pos, boolean sync) {
+        long target, start;
+        boolean doSync;
+        Data buff;
+        synchronized (this) {
+            while (true) {
+                checkOpen();
+                if (syncedPos >= pos || !sync && writtenPos >= pos) {
+                    return;
+                }
+                if (!flushing) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw DbException.convert(e);
+                }
+            }
+            // this thread is the leader: take all pending records
+            flushing = true;
+            buff = pending;
+            pending = writing;
+            pending.reset();
+            writing = buff;
+            target = appendedPos;
+            start = writtenPos - truncated;
+            doSync = syncRequestedPos > syncedPos;
+        }
+        boolean success = false;
+        try {
+            if (buff.length() > 0) {
+                file.seek(start);
+                file.write(buff.getBytes(), 0, buff.length());
+            }
+            if (doSync) {
+                long t = System.nanoTime();
+                file.sync();
+                syncLatency.record(System.nanoTime() - t);
+            }
+            success = true;
+        } catch (DbException e) {
+            trace.error(e, "commit log");
+            synchronized (this) {
+                writeException = e;
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                flushing = false;
+                if (success) {
+                    writtenPos = target;
+                    groupCount++;
+                    if (doSync) {
+                        syncedPos = target;
+                        syncCount++;
+                    }
+                }
+                buff.reset();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Write and synchronize all pending records, and truncate the log to the
+     * last record, so that the next commit id is kept. Commits wait until
+     * the checkpoint is done.
+     */
+    public synchronized void checkpoint() {
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw DbException.convert(e);
+            }
+        }
+        checkOpen();
+        long end = appendedPos - truncated;
+        try {
+            if (pending.length() > 0) {
+                file.seek(writtenPos - truncated);
+                file.write(pending.getBytes(), 0, pending.length());
+                pending.reset();
+            }
+            file.sync();
+            long first = FileStore.HEADER_LENGTH;
+            if (end > first + RECORD_LENGTH) {
+                // the first record is overwritten with the last one before
+                // the file is truncated, see recover()
+                byte[] last = new byte[RECORD_LENGTH];
+                file.seek(end - RECORD_LENGTH);
+                file.readFully(last, 0, RECORD_LENGTH);
+                file.seek(first);
+                file.write(last, 0, RECORD_LENGTH);
+                file.sync();
+                file.setLength(first + RECORD_LENGTH);
+                truncated += end - first - RECORD_LENGTH;
+            }
+        } catch (DbException e) {
+            trace.error(e, "commit log");
+            writeException = e;
+            throw e;
+        }
+        writtenPos = syncedPos = syncRequestedPos = appendedPos;
+        syncCount++;
+        notifyAll();
+    }
+
+    private void checkOpen() {
+        if (writeException != null) {
+            throw DbException.get(writeException.getErrorCode(),
+                    writeException, writeException.getMessage());
+        }
+        if (closed) {
+            throw DbException.get(ErrorCode.DATABASE_IS_CLOSED);
+        }
+    }
+
+    /**
+     * Write and synchronize all pending records, and close the file.
+     */
+    public void close() {
+        try {
+            if (writeException == null) {
+                flush(true);
+            }
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            file.close();
+        }
+    }
+
+    public synchronized long getCommitCount() {
+        return nextCommitId;
+    }
+
+    /**
+     * Get the number of write operations. Each write can contain the commit
+     * records of many sessions.
+     *
+     * @return the number of writes
+     */
+    public synchronized long getGroupCount() {
+        return groupCount;
+    }
+
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Get the histogram of commit latencies in nanoseconds, measured from
+     * appending the record until the commit returned.
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * Get the histogram of fsync latencies in nanoseconds.
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getSyncLatency() {
+        return syncLatency;
+    }
+
+}
@@ -5,6 +5,7 @@
  */
 package com.neradb.store;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.Reference;
 import java.nio.ByteBuffer;
@@ -53,6 +54,7 @@ public class FileStore {
     private boolean checkedWriting = true;
     private final String mode;
     private java.nio.channels.FileLock lock;
+    private volatile BufferPool bufferPool;
 
     /**
      * Create a new file using the given settings.
@@ -210,6 +212,11 @@ public class FileStore {
      */
     public void close() {
         if (file != null) {
+            BufferPool pool = bufferPool;
+            if (pool != null) {
+                bufferPool = null;
+                pool.remove(this, true);
+            }
             try {
                 trace("close", name, file);
                 file.close();
@@ -238,6 +245,11 @@ public class FileStore {
      */
     public void closeAndDeleteSilently() {
         if (file != null) {
+            BufferPool pool = bufferPool;
+            if (pool != null) {
+                bufferPool = null;
+                pool.remove(this, false);
+            }
             closeSilently();
             handler.getTempFileDeleter().deleteFile(autoDeleteReference, name);
             name = null;
@@ -269,14 +281,81 @@ public class FileStore {
                     "unaligned read " + name + " len " + len);
         }
         checkPowerOff();
+        BufferPool pool = bufferPool;
         try {
-            FileUtils.readFully(file, ByteBuffer.wrap(b, off, len));
+            if (pool != null && filePos >= HEADER_LENGTH) {
+                if (filePos + len > fileLength) {
+                    throw new EOFException();
+                }
+                pool.read(this, filePos, b, off, len);
+                // the pool reads without changing the file position
+                file.position(filePos + len);
+            } else {
+                FileUtils.readFully(file, ByteBuffer.wrap(b, off, len));
+            }
         } catch (IOException e) {
             throw DbException.convertIOException(e, name);
         }
         filePos += len;
     }
 
+    /**
+     * Read a page for the buffer pool, without changing the file position.
+     * The part after the end of the file is filled with zeros.
+     *
+     * @param pos the file position
+     * @param b the target buffer
+     * @param len the page size
+     */
+    void readPage(long pos, byte[] b, int len) {
+        checkPowerOff();
+        int available = (int) Math.max(0, Math.min(len, fileLength - pos));
+        try {
+            ByteBuffer buff = ByteBuffer.wrap(b, 0, available);
+            while (buff.hasRemaining()) {
+                if (file.read(buff, pos + buff.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, name);
+        }
+        Arrays.fill(b, available, len, (byte) 0);
+    }
+
+    /**
+     * Write a page of the buffer pool, without changing the file position.
+     *
+     * @param pos the file position
+     * @param b the page data
+     * @param len the page size
+     */
+    synchronized void writePage(long pos, byte[] b, int len) {
+        checkWritingAllowed();
+        checkPowerOff();
+        try {
+            ByteBuffer buff = ByteBuffer.wrap(b, 0, len);
+            while (buff.hasRemaining()) {
+                file.write(buff, pos + buff.position());
+            }
+        } catch (IOException e) {
+            closeFileSilently();
+            throw DbException.convertIOException(e, name);
+        }
+        fileLength = Math.max(pos + len, fileLength);
+    }
+
+    /**
+     * Read and write this file through the given buffer pool. Only the part
+     * after the file header is cached. The file is still not thread safe;
+     * only the pool is shared.
+     *
+     * @param pool the buffer pool
+     */
+    public void setBufferPool(BufferPool pool) {
+        bufferPool = pool;
+    }
+
     /**
      * Go to the specified file location.
      *
@@ -330,6 +409,10 @@ public class FileStore {
             closeFileSilently();
             throw DbException.convertIOException(e, name);
         }
+        BufferPool pool = bufferPool;
+        if (pool != null && filePos >= HEADER_LENGTH) {
+            pool.update(this, filePos, b, off, len);
+        }
         filePos += len;
         fileLength = Math.max(filePos, fileLength);
     }
@@ -353,6 +436,10 @@ public class FileStore {
                 FileUtils.writeFully(file, ByteBuffer.wrap(new byte[1]));
                 file.position(pos);
             } else {
+                BufferPool pool = bufferPool;
+                if (pool != null) {
+                    pool.truncate(this, newLength);
+                }
                 file.truncate(newLength);
             }
             fileLength = newLength;
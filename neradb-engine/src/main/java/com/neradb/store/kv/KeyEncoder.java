@@ -0,0 +1,364 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.math.BigDecimal;
+
+import com.neradb.common.DbException;
+import com.neradb.common.ErrorCode;
+import com.neradb.common.utils.StringUtils;
+import com.neradb.result.SortOrder;
+import com.neradb.store.Data;
+import com.neradb.value.DataType;
+import com.neradb.value.Value;
+import com.neradb.value.ValueDate;
+import com.neradb.value.ValueNull;
+import com.neradb.value.ValueTime;
+import com.neradb.value.ValueTimestamp;
+import com.neradb.value.ValueUuid;
+
+/**
+ * Encodes the primary key of a row as a byte array, so that the unsigned
+ * lexicographic order of the keys is the order of the rows in the primary key
+ * (see "Mapping SQL to KV" of CockroachDB). Each column starts with a marker
+ * byte (NULL sorts first); fixed size numbers are stored big endian with the
+ * sign bit flipped; strings and byte arrays are escaped (0 is stored as 0,
+ * 255) and terminated with 0, 1, so that a prefix sorts before longer
+ * values. The bytes of a descending column are inverted. Tables without
+ * primary key use the row key instead (see {@link #encodeRowKey(long)}).
+ */
+public class KeyEncoder {
+
+    private static final byte NULL = 0;
+    private static final byte NOT_NULL = 1;
+    private static final byte ROW_KEY = 2;
+
+    private KeyEncoder() {
+        // utility class
+    }
+
+    /**
+     * Check whether values of this type can be encoded.
+     *
+     * @param type the value type
+     * @return true if yes
+     */
+    public static boolean isSupported(int type) {
+        switch (type) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.ENUM:
+        case Value.LONG:
+        case Value.DECIMAL:
+        case Value.DOUBLE:
+        case Value.FLOAT:
+        case Value.TIME:
+        case Value.DATE:
+        case Value.TIMESTAMP:
+        case Value.BYTES:
+        case Value.STRING:
+        case Value.STRING_FIXED:
+        case Value.UUID:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Check that values of this type can be encoded.
+     *
+     * @param type the value type
+     * @throws DbException if not
+     */
+    public static void checkSupported(int type) {
+        if (!isSupported(type)) {
+            throw DbException.get(ErrorCode.FEATURE_NOT_SUPPORTED_1,
+                    "key column of type " + DataType.getDataType(type).name);
+        }
+    }
+
+    /**
+     * Append the encoded value.
+     *
+     * @param buff the target buffer
+     * @param v the value (already converted to the column type)
+     * @param sortType the sort type of the column
+     * @param binaryUnsigned whether byte arrays are compared unsigned
+     */
+    public static void encode(Data buff, Value v, int sortType,
+            boolean binaryUnsigned) {
+        int start = buff.length();
+        if (v == null || v == ValueNull.INSTANCE) {
+            buff.checkCapacity(1);
+            buff.writeByte(NULL);
+        } else {
+            buff.checkCapacity(1);
+            buff.writeByte(NOT_NULL);
+            encodeNotNull(buff, v, binaryUnsigned);
+        }
+        if ((sortType & SortOrder.DESCENDING) != 0) {
+            byte[] b = buff.getBytes();
+            for (int i = start, end = buff.length(); i < end; i++) {
+                b[i] = (byte) ~b[i];
+            }
+        }
+    }
+
+    private static void encodeNotNull(Data buff, Value v, boolean binaryUnsigned) {
+        switch (v.getType()) {
+        case Value.BOOLEAN:
+            buff.checkCapacity(1);
+            buff.writeByte((byte) (v.getBoolean() ? 1 : 0));
+            break;
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.ENUM:
+            writeInt(buff, v.getInt());
+            break;
+        case Value.LONG:
+            writeLong(buff, v.getLong());
+            break;
+        case Value.DECIMAL:
+            writeDecimal(buff, v.getBigDecimal());
+            break;
+        case Value.DOUBLE: {
+            long bits = Double.doubleToLongBits(v.getDouble());
+            writeRawLong(buff, bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+            break;
+        }
+        case Value.FLOAT: {
+            int bits = Float.floatToIntBits(v.getFloat());
+            writeRawInt(buff, bits < 0 ? ~bits : bits ^ Integer.MIN_VALUE);
+            break;
+        }
+        case Value.TIME:
+            writeLong(buff, ((ValueTime) v).getNanos());
+            break;
+        case Value.DATE:
+            writeLong(buff, ((ValueDate) v).getDateValue());
+            break;
+        case Value.TIMESTAMP: {
+            ValueTimestamp ts = (ValueTimestamp) v;
+            writeLong(buff, ts.getDateValue());
+            writeLong(buff, ts.getTimeNanos());
+            break;
+        }
+        case Value.UUID: {
+            ValueUuid u = (ValueUuid) v;
+            writeLong(buff, u.getHigh());
+            writeLong(buff, u.getLow());
+            break;
+        }
+        case Value.BYTES: {
+            byte[] b = v.getBytesNoCopy();
+            buff.checkCapacity(2 * b.length + 2);
+            for (byte x : b) {
+                writeEscaped(buff, binaryUnsigned ? x : (byte) (x ^ 0x80));
+            }
+            buff.writeByte((byte) 0);
+            buff.writeByte((byte) 1);
+            break;
+        }
+        case Value.STRING:
+        case Value.STRING_FIXED: {
+            // UTF-16 code units, in the order of String.compareTo
+            String s = v.getString();
+            buff.checkCapacity(4 * s.length() + 2);
+            for (int i = 0, len = s.length(); i < len; i++) {
+                char c = s.charAt(i);
+                writeEscaped(buff, (byte) (c >>> 8));
+                writeEscaped(buff, (byte) c);
+            }
+            buff.writeByte((byte) 0);
+            buff.writeByte((byte) 1);
+            break;
+        }
+        default:
+            checkSupported(v.getType());
+        }
+    }
+
+    private static void writeEscaped(Data buff, byte b) {
+        buff.writeByte(b);
+        if (b == 0) {
+            buff.writeByte((byte) 255);
+        }
+    }
+
+    private static void writeInt(Data buff, int x) {
+        writeRawInt(buff, x ^ Integer.MIN_VALUE);
+    }
+
+    private static void writeLong(Data buff, long x) {
+        writeRawLong(buff, x ^ Long.MIN_VALUE);
+    }
+
+    private static void writeRawInt(Data buff, int x) {
+        buff.checkCapacity(4);
+        buff.writeInt(x);
+    }
+
+    private static void writeRawLong(Data buff, long x) {
+        buff.checkCapacity(8);
+        buff.writeLong(x);
+    }
+
+    /**
+     * Write a decimal: the sign, and for non-zero values the exponent and the
+     * digits of the normalized value 0.ddd * 10^exponent, terminated by 0.
+     * For negative numbers, the exponent and digits are inverted.
+     */
+    private static void writeDecimal(Data buff, BigDecimal x) {
+        int sign = x.signum();
+        buff.checkCapacity(1);
+        buff.writeByte((byte) (sign + 2));
+        if (sign == 0) {
+            return;
+        }
+        x = x.abs().stripTrailingZeros();
+        String digits = x.unscaledValue().toString();
+        int exponent = x.precision() - x.scale();
+        int start = buff.length();
+        writeInt(buff, exponent);
+        buff.checkCapacity(digits.length() + 1);
+        for (int i = 0; i < digits.length(); i++) {
+            buff.writeByte((byte) digits.charAt(i));
+        }
+        buff.writeByte((byte) 0);
+        if (sign < 0) {
+            byte[] b = buff.getBytes();
+            for (int i = start, end = buff.length(); i < end; i++) {
+                b[i] = (byte) ~b[i];
+            }
+        }
+    }
+
+    /**
+     * Encode the key of a row of a table without primary key. These keys
+     * start with a marker byte that is not used by primary key columns, so
+     * that they don't overlap with primary keys.
+     *
+     * @param key the row key
+     * @return the encoded key
+     */
+    public static byte[] encodeRowKey(long key) {
+        byte[] b = new byte[9];
+        b[0] = ROW_KEY;
+        key ^= Long.MIN_VALUE;
+        for (int i = 8; i > 0; i--) {
+            b[i] = (byte) key;
+            key >>>= 8;
+        }
+        return b;
+    }
+
+    /**
+     * Decode the key of a row of a table without primary key.
+     *
+     * @param key the encoded key
+     * @return the row key
+     */
+    public static long decodeRowKey(byte[] key) {
+        long x = 0;
+        for (int i = 1; i < 9; i++) {
+            x = (x << 8) | (key[i] & 255);
+        }
+        return x ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Check whether an encoded key is the key of a row of a table without
+     * primary key.
+     *
+     * @param key the encoded key
+     * @return true if yes
+     */
+    public static boolean isRowKey(byte[] key) {
+        return key.length == 9 && key[0] == ROW_KEY;
+    }
+
+    /**
+     * Get the first key of the row keys of tables without primary key.
+     *
+     * @return the key
+     */
+    public static byte[] getRowKeyStart() {
+        return new byte[] { ROW_KEY };
+    }
+
+    /**
+     * Get the end (exclusive) of the row keys of tables without primary key.
+     *
+     * @return the key
+     */
+    public static byte[] getRowKeyEnd() {
+        return new byte[] { ROW_KEY + 1 };
+    }
+
+    /**
+     * Get the smallest key that is larger than all keys starting with the
+     * given prefix.
+     *
+     * @param prefix the prefix
+     * @return the key, or null if there is none (the prefix is all 255)
+     */
+    public static byte[] prefixEnd(byte[] prefix) {
+        byte[] end = prefix.clone();
+        for (int i = end.length - 1; i >= 0; i--) {
+            if (end[i] != (byte) 255) {
+                end[i]++;
+                byte[] r = new byte[i + 1];
+                System.arraycopy(end, 0, r, 0, i + 1);
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compare two keys (unsigned, lexicographic).
+     *
+     * @param a the first key
+     * @param b the second key
+     * @return the comparison result
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            int x = a[i] & 255, y = b[i] & 255;
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    /**
+     * Convert a key to a hex string (the format of the keys in the meta
+     * server, which has the same order).
+     *
+     * @param key the key, or null
+     * @return the hex string, or null
+     */
+    public static String toHex(byte[] key) {
+        return key == null ? null : StringUtils.convertBytesToHex(key);
+    }
+
+    /**
+     * Convert a hex string to a key.
+     *
+     * @param hex the hex string, or null
+     * @return the key, or null
+     */
+    public static byte[] fromHex(String hex) {
+        return hex == null ? null : StringUtils.convertHexToBytes(hex);
+    }
+
+}
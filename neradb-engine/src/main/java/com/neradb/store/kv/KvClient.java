@@ -0,0 +1,573 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.neradb.meta.MetaProtocol;
+
+import com.neradb.common.DbException;
+import com.neradb.common.ErrorCode;
+import com.neradb.value.Value;
+
+/**
+ * A client of a storage node. The connections are pooled, so that the client
+ * can be used by multiple sessions concurrently. Requests are not retried,
+ * because writes are not idempotent in general. A request that was rejected
+ * because the range is being moved fails with a lock timeout; the caller
+ * retries it after reloading the ranges.
+ */
+public class KvClient {
+
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int MAX_POOL_SIZE = 16;
+
+    private final String endpoint;
+    private final ConcurrentLinkedQueue<Connection> pool =
+            new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean closed;
+
+    public KvClient(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param store the store name
+     * @param key the key
+     * @return the value, or null if not found
+     */
+    public byte[] get(String store, byte[] key) {
+        return get(store, key, null);
+    }
+
+    /**
+     * Get the value of a key in the snapshot of a transaction.
+     *
+     * @param store the store name
+     * @param key the key
+     * @param transaction the transaction id, or null for the latest value
+     * @return the value, or null if not found
+     */
+    public byte[] get(String store, byte[] key, String transaction) {
+        Connection c = begin(KvProtocol.GET, store);
+        try {
+            KvProtocol.writeBytes(c.out, key);
+            c.out.writeUTF(transaction == null ? "" : transaction);
+            DataInputStream in = c.call();
+            in.readBoolean();
+            byte[] value = KvProtocol.readBytes(in);
+            release(c);
+            return value;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Store a value.
+     *
+     * @param store the store name
+     * @param key the key
+     * @param value the value
+     * @param ifAbsent whether to only store the value if the key is absent
+     * @return whether the value was stored
+     */
+    public boolean put(String store, byte[] key, byte[] value, boolean ifAbsent) {
+        return put(store, key, value, ifAbsent, null);
+    }
+
+    /**
+     * Store a value as part of a transaction.
+     *
+     * @param store the store name
+     * @param key the key
+     * @param value the value
+     * @param ifAbsent whether to only store the value if the key is absent
+     * @param transaction the transaction id, or null
+     * @return whether the value was stored
+     */
+    public boolean put(String store, byte[] key, byte[] value, boolean ifAbsent,
+            String transaction) {
+        Connection c = begin(KvProtocol.PUT, store);
+        try {
+            KvProtocol.writeBytes(c.out, key);
+            KvProtocol.writeBytes(c.out, value);
+            c.out.writeBoolean(ifAbsent);
+            c.out.writeUTF(transaction == null ? "" : transaction);
+            boolean stored = c.call().readBoolean();
+            release(c);
+            return stored;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Store a list of values that belong to one range, as part of a
+     * transaction. The values are stored in order, until a key already
+     * exists (if only absent keys are stored).
+     *
+     * @param store the store name
+     * @param keys the keys, sorted
+     * @param values the values
+     * @param ifAbsent whether to only store the values if the keys are absent
+     * @param transaction the transaction id, or null
+     * @return the index of the first value that was not stored, or -1 if all
+     *         were stored
+     */
+    public int putAll(String store, List<byte[]> keys, List<byte[]> values,
+            boolean ifAbsent, String transaction) {
+        Connection c = begin(KvProtocol.PUT_ALL, store);
+        try {
+            c.out.writeBoolean(ifAbsent);
+            c.out.writeUTF(transaction == null ? "" : transaction);
+            c.out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                KvProtocol.writeBytes(c.out, keys.get(i));
+                KvProtocol.writeBytes(c.out, values.get(i));
+            }
+            int failed = c.call().readInt();
+            release(c);
+            return failed;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param store the store name
+     * @param key the key
+     * @return whether the key existed
+     */
+    public boolean delete(String store, byte[] key) {
+        return delete(store, key, null);
+    }
+
+    /**
+     * Remove a key as part of a transaction.
+     *
+     * @param store the store name
+     * @param key the key
+     * @param transaction the transaction id, or null
+     * @return whether the key existed
+     */
+    public boolean delete(String store, byte[] key, String transaction) {
+        Connection c = begin(KvProtocol.DELETE, store);
+        try {
+            KvProtocol.writeBytes(c.out, key);
+            c.out.writeUTF(transaction == null ? "" : transaction);
+            boolean removed = c.call().readBoolean();
+            release(c);
+            return removed;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Read the entries of a key range that match the fragment, in key order
+     * or in the sort order of the fragment.
+     *
+     * @param store the store name
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @param limit the maximum number of entries to return
+     * @param fragment the serialized fragment, or null
+     * @return the entries
+     */
+    public Batch scan(String store, byte[] start, byte[] end, int limit,
+            byte[] fragment) {
+        return scan(store, start, end, limit, fragment, null);
+    }
+
+    /**
+     * Read the entries of a key range that match the fragment, in the
+     * snapshot of a transaction.
+     *
+     * @param store the store name
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @param limit the maximum number of entries to return
+     * @param fragment the serialized fragment, or null
+     * @param transaction the transaction id, or null for the latest values
+     * @return the entries
+     */
+    public Batch scan(String store, byte[] start, byte[] end, int limit,
+            byte[] fragment, String transaction) {
+        Connection c = begin(KvProtocol.SCAN, store);
+        try {
+            KvProtocol.writeBytes(c.out, start);
+            KvProtocol.writeBytes(c.out, end);
+            c.out.writeInt(limit);
+            KvProtocol.writeBytes(c.out, fragment);
+            c.out.writeUTF(transaction == null ? "" : transaction);
+            DataInputStream in = c.call();
+            int count = in.readInt();
+            Batch batch = new Batch(count);
+            for (int i = 0; i < count; i++) {
+                batch.keys.add(KvProtocol.readBytes(in));
+                batch.values.add(KvProtocol.readBytes(in));
+            }
+            batch.more = in.readBoolean();
+            release(c);
+            return batch;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Compute the groups and the partial results of the aggregates of the
+     * entries of a key range that match the fragment.
+     *
+     * @param store the store name
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @param fragment the serialized fragment
+     * @param columnCount the number of group columns plus aggregates
+     * @param transaction the transaction id, or null for the latest values
+     * @return the groups
+     */
+    public ArrayList<Value[]> aggregate(String store, byte[] start, byte[] end,
+            byte[] fragment, int columnCount, String transaction) {
+        Connection c = begin(KvProtocol.AGGREGATE, store);
+        try {
+            KvProtocol.writeBytes(c.out, start);
+            KvProtocol.writeBytes(c.out, end);
+            KvProtocol.writeBytes(c.out, fragment);
+            c.out.writeUTF(transaction == null ? "" : transaction);
+            byte[] groups = KvProtocol.readBytes(c.call());
+            release(c);
+            return KvFragment.readGroups(groups, columnCount);
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Count the entries of a key range.
+     *
+     * @param store the store name
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @return the number of entries
+     */
+    public long count(String store, byte[] start, byte[] end) {
+        return count(store, start, end, null);
+    }
+
+    /**
+     * Count the entries of a key range in the snapshot of a transaction.
+     *
+     * @param store the store name
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @param transaction the transaction id, or null for the latest values
+     * @return the number of entries
+     */
+    public long count(String store, byte[] start, byte[] end, String transaction) {
+        Connection c = begin(KvProtocol.COUNT, store);
+        try {
+            KvProtocol.writeBytes(c.out, start);
+            KvProtocol.writeBytes(c.out, end);
+            c.out.writeUTF(transaction == null ? "" : transaction);
+            long count = c.call().readLong();
+            release(c);
+            return count;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Remove the entries of a key range.
+     *
+     * @param store the store name
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @return the number of removed entries
+     */
+    public long deleteRange(String store, byte[] start, byte[] end) {
+        Connection c = begin(KvProtocol.DELETE_RANGE, store);
+        try {
+            KvProtocol.writeBytes(c.out, start);
+            KvProtocol.writeBytes(c.out, end);
+            long count = c.call().readLong();
+            release(c);
+            return count;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Replace the entries of a key range with the given entries.
+     *
+     * @param store the store name
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @param clear whether to remove the existing entries of the range first
+     * @param timestamp the timestamp of the entries (older snapshots can not
+     *            be read)
+     * @param keys the keys
+     * @param values the values
+     */
+    public void importRange(String store, byte[] start, byte[] end, boolean clear,
+            long timestamp, List<byte[]> keys, List<byte[]> values) {
+        Connection c = begin(KvProtocol.IMPORT, store);
+        try {
+            KvProtocol.writeBytes(c.out, start);
+            KvProtocol.writeBytes(c.out, end);
+            c.out.writeBoolean(clear);
+            c.out.writeLong(timestamp);
+            c.out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                KvProtocol.writeBytes(c.out, keys.get(i));
+                KvProtocol.writeBytes(c.out, values.get(i));
+            }
+            c.call();
+            release(c);
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Remove the store.
+     *
+     * @param store the store name
+     */
+    public void drop(String store) {
+        Connection c = begin(KvProtocol.DROP, store);
+        try {
+            c.call();
+            release(c);
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Prepare a transaction.
+     *
+     * @param transaction the transaction id
+     * @return the prepare timestamp (the commit timestamp needs to be
+     *         larger), or -1 if the transaction needs to be rolled back
+     */
+    public long prepare(String transaction) {
+        Connection c = begin(KvProtocol.PREPARE, transaction);
+        try {
+            long timestamp = c.call().readLong();
+            release(c);
+            return timestamp;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Commit a transaction.
+     *
+     * @param transaction the transaction id
+     * @param timestamp the commit timestamp
+     * @return the commit timestamp, which is larger than the given one if
+     *         the transaction was not prepared and the storage node served a
+     *         later snapshot in the meantime
+     */
+    public long commit(String transaction, long timestamp) {
+        Connection c = begin(KvProtocol.COMMIT, transaction);
+        try {
+            c.out.writeLong(timestamp);
+            long result = c.call().readLong();
+            release(c);
+            return result;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Roll back a transaction.
+     *
+     * @param transaction the transaction id
+     */
+    public void rollback(String transaction) {
+        Connection c = begin(KvProtocol.ROLLBACK, transaction);
+        try {
+            c.call();
+            release(c);
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * List the open transactions of a coordinator.
+     *
+     * @param coordinatorId the coordinator id
+     * @return the transaction ids, and whether they are prepared
+     */
+    public HashMap<String, Boolean> recover(String coordinatorId) {
+        Connection c = begin(KvProtocol.RECOVER, coordinatorId);
+        try {
+            DataInputStream in = c.call();
+            int count = in.readInt();
+            HashMap<String, Boolean> map = new HashMap<String, Boolean>(count);
+            for (int i = 0; i < count; i++) {
+                map.put(in.readUTF(), in.readBoolean());
+            }
+            release(c);
+            return map;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    /**
+     * Close all connections.
+     */
+    public void close() {
+        closed = true;
+        for (Connection c; (c = pool.poll()) != null;) {
+            c.close();
+        }
+    }
+
+    private Connection begin(int op, String store) {
+        Connection c = pool.poll();
+        try {
+            if (c == null) {
+                c = new Connection(endpoint);
+            }
+            c.out.writeInt(op);
+            c.out.writeUTF(store);
+            return c;
+        } catch (IOException e) {
+            throw broken(c, e);
+        }
+    }
+
+    private void release(Connection c) {
+        if (closed || pool.size() >= MAX_POOL_SIZE) {
+            c.close();
+        } else {
+            pool.offer(c);
+        }
+    }
+
+    private DbException broken(Connection c, IOException e) {
+        if (c != null) {
+            c.close();
+        }
+        return DbException.get(ErrorCode.CONNECTION_BROKEN_1, e, endpoint);
+    }
+
+    /**
+     * A batch of entries returned by a scan.
+     */
+    public static final class Batch {
+
+        /**
+         * The keys.
+         */
+        public final ArrayList<byte[]> keys;
+
+        /**
+         * The values.
+         */
+        public final ArrayList<byte[]> values;
+
+        /**
+         * Whether the limit was reached before the end of the range.
+         */
+        public boolean more;
+
+        Batch(int count) {
+            keys = new ArrayList<byte[]>(count);
+            values = new ArrayList<byte[]>(count);
+        }
+
+    }
+
+    /**
+     * A connection to the storage node.
+     */
+    private static final class Connection {
+
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        private final String endpoint;
+
+        Connection(String endpoint) throws IOException {
+            this.endpoint = endpoint;
+            String[] hostPort = MetaProtocol.parseEndpoint(endpoint);
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(hostPort[0],
+                        Integer.parseInt(hostPort[1])), CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /**
+         * Send the request and read the status.
+         *
+         * @return the input stream positioned at the result
+         */
+        DataInputStream call() throws IOException {
+            out.flush();
+            int status = in.readInt();
+            if (status != KvProtocol.STATUS_OK) {
+                String message = in.readUTF();
+                close();
+                if (status == KvProtocol.STATUS_RETRY) {
+                    // the range is locked by a move
+                    throw DbException.get(ErrorCode.LOCK_TIMEOUT_1, endpoint + ": " + message);
+                }
+                if (status == KvProtocol.STATUS_CONFLICT) {
+                    // the statement rolls back the transaction
+                    throw DbException.get(ErrorCode.DEADLOCK_1, endpoint + ": " + message);
+                }
+                throw DbException.get(ErrorCode.GENERAL_ERROR_1, endpoint + ": " + message);
+            }
+            return in;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+    }
+
+}
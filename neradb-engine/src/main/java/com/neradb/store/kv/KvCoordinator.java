@@ -0,0 +1,522 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.neradb.common.DbException;
+import com.neradb.common.ErrorCode;
+import com.neradb.common.io.InDoubtTransaction;
+import com.neradb.common.utils.New;
+import com.neradb.dbobject.Database;
+import com.neradb.engine.Session;
+import com.neradb.engine.TransactionCoordinator;
+import com.neradb.message.Trace;
+
+/**
+ * The coordinator of the transactions of range partitioned tables, using two
+ * phase commit. There is one coordinator per database. The storage nodes a
+ * transaction changes are its participants: they keep the old values of the
+ * changed keys until the transaction is committed or rolled back (see
+ * {@link KvStoreServer}).
+ * <p>
+ * When a transaction with multiple participants is committed, all
+ * participants are prepared in parallel. If all of them succeed, the decision
+ * is written to the log (see {@link KvCoordinatorLog}), and the participants
+ * are then committed in parallel. Otherwise the transaction is rolled back.
+ * A transaction with one participant is committed directly, without prepare
+ * and without writing to the log.
+ * </p>
+ * <p>
+ * Participants that could not be reached are completed by a background
+ * thread: transactions that are committed or rolled back in the log are
+ * completed accordingly, and all other open transactions of this coordinator
+ * on the known storage nodes (for example after the database was closed
+ * unexpectedly) are rolled back. Transactions that were prepared by the
+ * application (PREPARE COMMIT) wait for the decision of the application
+ * (COMMIT TRANSACTION or ROLLBACK TRANSACTION) if the session no longer
+ * exists; they are listed in INFORMATION_SCHEMA.IN_DOUBT.
+ * </p>
+ * <p>
+ * A transaction gets its start timestamp (see {@link KvTimestampOracle}) when
+ * it first reads or changes a range partitioned table, and reads the
+ * snapshot of this timestamp on all storage nodes. The commit timestamp is
+ * larger than the prepare timestamps of all participants. If the session
+ * allows stale reads (see {@link Session#setReadStaleness(int)}), the
+ * transaction reads an older snapshot instead, and can not change data.
+ * </p>
+ */
+public class KvCoordinator implements TransactionCoordinator {
+
+    private static final long RECOVERY_INTERVAL = 5000;
+
+    private final Database database;
+    private final KvTableEngine engine;
+    private final KvCoordinatorLog log;
+    private final Trace trace;
+    private final KvTimestampOracle timestamps;
+    private final ConcurrentHashMap<Session, Transaction> open =
+            new ConcurrentHashMap<Session, Transaction>();
+    private final Set<String> openIds =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Object recoverySync = new Object();
+    private volatile boolean closed;
+
+    KvCoordinator(Database database, KvTableEngine engine, String fileName) {
+        this.database = database;
+        this.engine = engine;
+        trace = database.getTrace(Trace.DATABASE);
+        log = KvCoordinatorLog.open(database, fileName, trace);
+        timestamps = new KvTimestampOracle(engine, database.getSettings());
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    recover();
+                    synchronized (recoverySync) {
+                        try {
+                            recoverySync.wait(RECOVERY_INTERVAL);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+            }
+        }, "H2 Transaction Recovery " + database.getShortName());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Get the id of this coordinator. The ids of its transactions start with
+     * this id.
+     *
+     * @return the id
+     */
+    public String getId() {
+        return log.getId();
+    }
+
+    /**
+     * Get the id of the transaction of the session, which is started if
+     * needed. The id ends with the start timestamp (in hex), which is the
+     * snapshot the transaction reads.
+     *
+     * @param session the session, or null
+     * @return the transaction id, or null if the read doesn't belong to a
+     *         transaction
+     */
+    String getTransactionId(Session session) {
+        Transaction t = getTransaction(session);
+        return t == null ? null : t.id;
+    }
+
+    private Transaction getTransaction(Session session) {
+        if (session == null) {
+            return null;
+        }
+        Transaction t = open.get(session);
+        if (t == null) {
+            int staleness = session.getReadStaleness();
+            if (staleness > 0) {
+                // the storage nodes never take this id for the id of a
+                // transaction that changes data
+                t = new Transaction(KvStoreServer.READ_ONLY_PREFIX + getId() + ":" +
+                        Long.toHexString(timestamps.getStale(staleness)));
+                t.stale = true;
+            } else {
+                t = new Transaction(getId() + ":" + Long.toHexString(timestamps.next()));
+                openIds.add(t.id);
+            }
+            open.put(session, t);
+            session.addTransactionCoordinator(this);
+        }
+        return t;
+    }
+
+    /**
+     * Add a storage node to the transaction of the session, which is started
+     * if needed. This method needs to be called before the data on the node
+     * is changed.
+     *
+     * @param session the session, or null
+     * @param endpoint the endpoint of the storage node
+     * @return the transaction id, or null if the change doesn't belong to a
+     *         transaction
+     */
+    String enlist(Session session, String endpoint) {
+        Transaction t = getTransaction(session);
+        if (t == null) {
+            return null;
+        }
+        if (t.stale) {
+            throw DbException.get(ErrorCode.GENERAL_ERROR_1, "Transaction " + t.id +
+                    " reads stale data and can not change data");
+        }
+        if (!t.endpoints.contains(endpoint)) {
+            log.addNode(endpoint);
+            t.endpoints.add(endpoint);
+        }
+        return t.id;
+    }
+
+    @Override
+    public void prepare(Session session, String transactionName) {
+        Transaction t = open.get(session);
+        if (t == null || t.endpoints.isEmpty()) {
+            return;
+        }
+        String[] endpoints = t.getEndpoints();
+        t.prepareTimestamp = prepare(session, t, endpoints);
+        log.setState(t.id, transactionName, KvCoordinatorLog.PREPARE,
+                t.prepareTimestamp, endpoints);
+        t.prepared = true;
+    }
+
+    @Override
+    public void commit(Session session) {
+        Transaction t = open.get(session);
+        if (t == null) {
+            return;
+        }
+        String[] endpoints = t.getEndpoints();
+        if (endpoints.length == 0) {
+            // only read
+            close(session, t);
+            return;
+        }
+        if (endpoints.length == 1 && !t.prepared) {
+            // one phase commit
+            try {
+                timestamps.update(engine.getClient(endpoints[0]).commit(t.id,
+                        timestamps.next()));
+            } finally {
+                close(session, t);
+            }
+            return;
+        }
+        long prepared = t.prepared ? t.prepareTimestamp : prepare(session, t, endpoints);
+        long timestamp = Math.max(timestamps.next(), prepared + 1);
+        log.setState(t.id, null, KvCoordinatorLog.COMMIT, timestamp, endpoints);
+        close(session, t);
+        timestamps.update(timestamp);
+        // the transaction is committed now; failures are retried by the
+        // recovery thread
+        complete(t.id, endpoints, true, timestamp);
+    }
+
+    @Override
+    public void rollback(Session session) {
+        Transaction t = open.get(session);
+        if (t == null) {
+            return;
+        }
+        String[] endpoints = t.getEndpoints();
+        if (t.prepared) {
+            // otherwise the transaction would be in doubt after a restart
+            log.setState(t.id, null, KvCoordinatorLog.ROLLBACK, 0, endpoints);
+        }
+        close(session, t);
+        if (endpoints.length > 0) {
+            complete(t.id, endpoints, false, 0);
+        }
+    }
+
+    private void close(Session session, Transaction t) {
+        open.remove(session);
+        openIds.remove(t.id);
+    }
+
+    /**
+     * Prepare the participants in parallel. If this fails, the transaction
+     * is rolled back.
+     *
+     * @return the largest prepare timestamp
+     */
+    private long prepare(Session session, Transaction t, String[] endpoints) {
+        final String id = t.id;
+        ArrayList<Long> votes;
+        try {
+            votes = runAll(endpoints, new Request<Long>() {
+                @Override
+                public Long run(KvClient client) {
+                    return client.prepare(id);
+                }
+            });
+        } catch (DbException e) {
+            close(session, t);
+            complete(id, endpoints, false, 0);
+            throw e;
+        }
+        long max = 0;
+        for (int i = 0; i < endpoints.length; i++) {
+            if (votes.get(i) < 0) {
+                close(session, t);
+                complete(id, endpoints, false, 0);
+                throw DbException.get(ErrorCode.GENERAL_ERROR_1, "Transaction " + id +
+                        " was rolled back: it could not be prepared on " + endpoints[i]);
+            }
+            max = Math.max(max, votes.get(i));
+        }
+        return max;
+    }
+
+    /**
+     * Commit or roll back the transaction on all participants in parallel.
+     * If this is successful, the transaction is removed from the log.
+     * Otherwise, the recovery thread tries again later.
+     *
+     * @param id the transaction id
+     * @param endpoints the participants
+     * @param commit whether to commit
+     * @param timestamp the commit timestamp
+     * @return true if successful
+     */
+    private boolean complete(final String id, String[] endpoints, final boolean commit,
+            final long timestamp) {
+        try {
+            runAll(endpoints, new Request<Void>() {
+                @Override
+                public Void run(KvClient client) {
+                    if (commit) {
+                        client.commit(id, timestamp);
+                    } else {
+                        client.rollback(id);
+                    }
+                    return null;
+                }
+            });
+        } catch (DbException e) {
+            trace.debug(e, "transaction " + id + " is not yet completed");
+            return false;
+        }
+        log.end(id);
+        return true;
+    }
+
+    /**
+     * Run a request on the given storage nodes in parallel, in the lookup
+     * thread pool of the database.
+     */
+    private <T> ArrayList<T> runAll(String[] endpoints, final Request<T> request) {
+        ArrayList<T> results = New.arrayList();
+        if (endpoints.length == 1) {
+            results.add(request.run(engine.getClient(endpoints[0])));
+            return results;
+        }
+        ExecutorService executor = database.getLookupExecutor();
+        ArrayList<Future<T>> futures = New.arrayList();
+        for (final String endpoint : endpoints) {
+            futures.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call() {
+                    return request.run(engine.getClient(endpoint));
+                }
+            }));
+        }
+        DbException failure = null;
+        for (Future<T> f : futures) {
+            // wait for all requests, so that no request is still running
+            try {
+                results.add(f.get());
+            } catch (ExecutionException e) {
+                failure = DbException.convert(e.getCause());
+                results.add(null);
+            } catch (InterruptedException e) {
+                failure = DbException.convert(e);
+                results.add(null);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    /**
+     * Complete the transactions in the log, and roll back the open
+     * transactions of this coordinator that no session uses.
+     */
+    void recover() {
+        for (KvCoordinatorLog.Entry e : log.getPending()) {
+            if (closed) {
+                return;
+            }
+            if (e.state != KvCoordinatorLog.PREPARE) {
+                complete(e.transactionId, e.endpoints, e.state == KvCoordinatorLog.COMMIT,
+                        e.timestamp);
+            }
+        }
+        for (String endpoint : log.getNodes()) {
+            if (closed) {
+                return;
+            }
+            KvClient client = engine.getClient(endpoint);
+            HashMap<String, Boolean> list;
+            try {
+                list = client.recover(getId());
+            } catch (DbException e) {
+                trace.debug(e, "recover " + endpoint);
+                continue;
+            }
+            for (String id : list.keySet()) {
+                if (openIds.contains(id)) {
+                    // used by a session
+                    continue;
+                }
+                KvCoordinatorLog.Entry e = log.get(id);
+                if (e != null) {
+                    // in doubt, or completed above
+                    continue;
+                }
+                // presumed abort
+                try {
+                    client.rollback(id);
+                } catch (DbException ex) {
+                    trace.debug(ex, "recover " + endpoint);
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<InDoubtTransaction> getInDoubtTransactions() {
+        ArrayList<InDoubtTransaction> list = New.arrayList();
+        for (KvCoordinatorLog.Entry e : log.getPending()) {
+            if (!openIds.contains(e.transactionId)) {
+                list.add(new InDoubt(e));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (recoverySync) {
+            recoverySync.notifyAll();
+        }
+        log.close();
+    }
+
+    /**
+     * A request to a participant.
+     *
+     * @param <T> the result type
+     */
+    private interface Request<T> {
+
+        /**
+         * Run the request.
+         *
+         * @param client the client of the storage node
+         * @return the result
+         */
+        T run(KvClient client);
+
+    }
+
+    /**
+     * An open transaction.
+     */
+    private static final class Transaction {
+
+        /**
+         * The transaction id.
+         */
+        final String id;
+
+        /**
+         * The storage nodes the transaction changed.
+         */
+        final LinkedHashSet<String> endpoints = new LinkedHashSet<String>();
+
+        /**
+         * Whether the transaction was prepared by the application.
+         */
+        boolean prepared;
+
+        /**
+         * The largest prepare timestamp of the participants, if prepared.
+         */
+        long prepareTimestamp;
+
+        /**
+         * Whether the transaction reads a stale snapshot.
+         */
+        boolean stale;
+
+        Transaction(String id) {
+            this.id = id;
+        }
+
+        String[] getEndpoints() {
+            return endpoints.toArray(new String[0]);
+        }
+
+    }
+
+    /**
+     * A transaction in the log that is not used by a session.
+     */
+    private final class InDoubt implements InDoubtTransaction {
+
+        private final KvCoordinatorLog.Entry entry;
+        private int state;
+
+        InDoubt(KvCoordinatorLog.Entry entry) {
+            this.entry = entry;
+            state = entry.state == KvCoordinatorLog.COMMIT ? COMMIT :
+                    entry.state == KvCoordinatorLog.ROLLBACK ? ROLLBACK : IN_DOUBT;
+        }
+
+        @Override
+        public void setState(int state) {
+            if (this.state != IN_DOUBT) {
+                // already decided, and completed by the recovery thread
+                return;
+            }
+            boolean commit = state == COMMIT;
+            long timestamp = commit ?
+                    Math.max(timestamps.next(), entry.timestamp + 1) : 0;
+            log.setState(entry.transactionId, entry.name,
+                    commit ? KvCoordinatorLog.COMMIT : KvCoordinatorLog.ROLLBACK,
+                    timestamp, entry.endpoints);
+            this.state = state;
+            complete(entry.transactionId, entry.endpoints, commit, timestamp);
+        }
+
+        @Override
+        public String getState() {
+            switch (state) {
+            case COMMIT:
+                return "COMMIT";
+            case ROLLBACK:
+                return "ROLLBACK";
+            default:
+                return "IN_DOUBT";
+            }
+        }
+
+        @Override
+        public String getTransactionName() {
+            return entry.name == null ? entry.transactionId : entry.name;
+        }
+
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.zip.CRC32;
+
+import com.neradb.common.Constants;
+import com.neradb.common.DbException;
+import com.neradb.common.io.FileUtils;
+import com.neradb.common.utils.MathUtils;
+import com.neradb.message.Trace;
+import com.neradb.store.Data;
+import com.neradb.store.DataHandler;
+import com.neradb.store.FileStore;
+
+/**
+ * The log of the transaction coordinator of range partitioned tables. It
+ * contains the id of the coordinator, the storage nodes that took part in
+ * transactions, and the state and timestamp of the transactions that were
+ * prepared or decided, but not yet completed on all storage nodes. Transactions that are
+ * not in the log were not committed (presumed abort).
+ * <p>
+ * Each record is the length, a checksum, the type and the data, aligned to
+ * the block size. A partially written record at the end of the file is
+ * removed when the log is opened. All records except END are synchronized to
+ * disk before the method returns. Once the log gets large and no transaction
+ * is pending, it is rewritten.
+ * </p>
+ */
+class KvCoordinatorLog {
+
+    /**
+     * The state of a transaction that was prepared by the application and
+     * waits for its decision.
+     */
+    static final int PREPARE = 2;
+
+    /**
+     * The state of a transaction that is committed.
+     */
+    static final int COMMIT = 3;
+
+    /**
+     * The state of a transaction that is rolled back.
+     */
+    static final int ROLLBACK = 4;
+
+    private static final int ID = 0;
+    private static final int NODE = 1;
+    private static final int END = 5;
+
+    /**
+     * The log is rewritten once it is larger than this.
+     */
+    private static final long MAX_LENGTH = 1024 * 1024;
+
+    private final DataHandler handler;
+    private final String fileName;
+    private final Trace trace;
+    private final Data buff;
+    private final LinkedHashSet<String> nodes = new LinkedHashSet<String>();
+    private final LinkedHashMap<String, Entry> pending =
+            new LinkedHashMap<String, Entry>();
+    private FileStore file;
+    private String id;
+    private long pos;
+
+    private KvCoordinatorLog(DataHandler handler, String fileName, Trace trace) {
+        this.handler = handler;
+        this.fileName = fileName;
+        this.trace = trace;
+        buff = Data.create(handler, Constants.FILE_BLOCK_SIZE * 16);
+    }
+
+    /**
+     * Open the log, and create it with a new coordinator id if it doesn't
+     * exist yet.
+     *
+     * @param handler the data handler
+     * @param fileName the file name
+     * @param trace the trace
+     * @return the log
+     */
+    static KvCoordinatorLog open(DataHandler handler, String fileName, Trace trace) {
+        KvCoordinatorLog log = new KvCoordinatorLog(handler, fileName, trace);
+        log.file = handler.openFile(fileName, "rw", false);
+        try {
+            log.recover();
+            if (log.id == null) {
+                log.id = Long.toHexString(MathUtils.secureRandomLong());
+                log.write(ID, log.id, null, 0, null, true);
+            }
+        } catch (DbException e) {
+            log.file.closeSilently();
+            throw e;
+        }
+        return log;
+    }
+
+    private void recover() {
+        long length = file.length();
+        pos = FileStore.HEADER_LENGTH;
+        int len = (int) (length - pos);
+        Data data = Data.create(handler, Math.max(len, 0));
+        file.seek(pos);
+        file.readFully(data.getBytes(), 0, len);
+        int off = 0;
+        while (off + 12 <= len) {
+            data.setPos(off);
+            int recordLength = data.readInt();
+            int check = data.readInt();
+            if (recordLength < 12 || recordLength % Constants.FILE_BLOCK_SIZE != 0 ||
+                    off + recordLength > len ||
+                    check != getCheckValue(data.getBytes(), off + 8, recordLength - 8)) {
+                break;
+            }
+            int type = data.readInt();
+            switch (type) {
+            case ID:
+                id = data.readString();
+                break;
+            case NODE:
+                nodes.add(data.readString());
+                break;
+            case PREPARE:
+            case COMMIT:
+            case ROLLBACK: {
+                String transactionId = data.readString();
+                String name = data.readString();
+                long timestamp = data.readVarLong();
+                String[] endpoints = new String[data.readVarInt()];
+                for (int i = 0; i < endpoints.length; i++) {
+                    endpoints[i] = data.readString();
+                }
+                pending.put(transactionId, new Entry(transactionId, name, type,
+                        timestamp, endpoints));
+                break;
+            }
+            case END:
+                pending.remove(data.readString());
+                break;
+            default:
+                break;
+            }
+            off += recordLength;
+        }
+        pos += off;
+        if (pos != length) {
+            trace.info("coordinator log: truncating {0} bytes at {1}",
+                    length - pos, pos);
+            file.setLength(pos);
+        }
+    }
+
+    private static int getCheckValue(byte[] b, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(b, off, len);
+        return (int) crc.getValue();
+    }
+
+    private void write(int type, String transactionId, String name,
+            long timestamp, String[] endpoints, boolean sync) {
+        int max = 12 + getMaxLength(transactionId) + 5 + 10 + Constants.FILE_BLOCK_SIZE;
+        if (name != null) {
+            max += getMaxLength(name);
+        }
+        if (endpoints != null) {
+            for (String e : endpoints) {
+                max += getMaxLength(e);
+            }
+        }
+        Data d = buff;
+        d.reset();
+        d.checkCapacity(max);
+        d.writeInt(0);
+        d.writeInt(0);
+        d.writeInt(type);
+        d.writeString(transactionId);
+        if (type == PREPARE || type == COMMIT || type == ROLLBACK) {
+            d.writeString(name);
+            d.writeVarLong(timestamp);
+            d.writeVarInt(endpoints.length);
+            for (String e : endpoints) {
+                d.writeString(e);
+            }
+        }
+        d.fillAligned();
+        int len = d.length();
+        d.setPos(0);
+        d.writeInt(len);
+        d.writeInt(getCheckValue(d.getBytes(), 8, len - 8));
+        file.seek(pos);
+        file.write(d.getBytes(), 0, len);
+        pos += len;
+        if (sync) {
+            file.sync();
+        }
+    }
+
+    private static int getMaxLength(String s) {
+        return 5 + 3 * s.length();
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Get the storage nodes that took part in transactions.
+     *
+     * @return the endpoints
+     */
+    synchronized ArrayList<String> getNodes() {
+        return new ArrayList<String>(nodes);
+    }
+
+    /**
+     * Add a storage node, if it is not known yet. This is needed before a
+     * transaction changes data on the node, so that the node is checked for
+     * open transactions after a restart.
+     *
+     * @param endpoint the endpoint
+     */
+    synchronized void addNode(String endpoint) {
+        if (nodes.add(endpoint)) {
+            write(NODE, endpoint, null, 0, null, true);
+        }
+    }
+
+    /**
+     * Set the state of a transaction.
+     *
+     * @param transactionId the transaction id
+     * @param name the name of the transaction (if it was prepared by the
+     *            application), or null
+     * @param state the state (PREPARE, COMMIT or ROLLBACK)
+     * @param timestamp the largest prepare timestamp (PREPARE), the commit
+     *            timestamp (COMMIT), or 0
+     * @param endpoints the storage nodes of the transaction
+     */
+    synchronized void setState(String transactionId, String name, int state,
+            long timestamp, String[] endpoints) {
+        write(state, transactionId, name == null ? "" : name, timestamp, endpoints, true);
+        pending.put(transactionId, new Entry(transactionId, name, state, timestamp,
+                endpoints));
+    }
+
+    /**
+     * Remove a transaction that is completed on all storage nodes.
+     *
+     * @param transactionId the transaction id
+     */
+    synchronized void end(String transactionId) {
+        if (pending.remove(transactionId) == null) {
+            return;
+        }
+        write(END, transactionId, null, 0, null, false);
+        if (pending.isEmpty() && pos > MAX_LENGTH) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Get the transactions that are prepared or decided, but not completed.
+     *
+     * @return the transactions
+     */
+    synchronized ArrayList<Entry> getPending() {
+        return new ArrayList<Entry>(pending.values());
+    }
+
+    /**
+     * Get the state of a transaction.
+     *
+     * @param transactionId the transaction id
+     * @return the entry, or null if the transaction is not pending
+     */
+    synchronized Entry get(String transactionId) {
+        return pending.get(transactionId);
+    }
+
+    /**
+     * Replace the log with a new file that only contains the id and the
+     * storage nodes.
+     */
+    private void rewrite() {
+        String newName = fileName + ".new";
+        FileUtils.delete(newName);
+        FileStore old = file;
+        file = handler.openFile(newName, "rw", false);
+        try {
+            pos = FileStore.HEADER_LENGTH;
+            write(ID, id, null, 0, null, false);
+            for (String n : nodes) {
+                write(NODE, n, null, 0, null, false);
+            }
+            file.sync();
+        } finally {
+            file.close();
+            old.close();
+        }
+        FileUtils.moveAtomicReplace(newName, fileName);
+        file = handler.openFile(fileName, "rw", false);
+        pos = file.length();
+    }
+
+    /**
+     * Close the file.
+     */
+    synchronized void close() {
+        file.close();
+    }
+
+    /**
+     * A transaction in the log.
+     */
+    static final class Entry {
+
+        /**
+         * The transaction id.
+         */
+        final String transactionId;
+
+        /**
+         * The name of the transaction, or null.
+         */
+        final String name;
+
+        /**
+         * The state (PREPARE, COMMIT or ROLLBACK).
+         */
+        final int state;
+
+        /**
+         * The largest prepare timestamp (PREPARE), the commit timestamp
+         * (COMMIT), or 0.
+         */
+        final long timestamp;
+
+        /**
+         * The storage nodes of the transaction.
+         */
+        final String[] endpoints;
+
+        Entry(String transactionId, String name, int state, long timestamp,
+                String[] endpoints) {
+            this.transactionId = transactionId;
+            this.name = name == null || name.isEmpty() ? null : name;
+            this.state = state;
+            this.timestamp = timestamp;
+            this.endpoints = endpoints;
+        }
+
+    }
+
+}
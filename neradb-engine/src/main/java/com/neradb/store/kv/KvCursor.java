@@ -0,0 +1,167 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import com.neradb.common.DbException;
+import com.neradb.dbobject.index.Cursor;
+import com.neradb.engine.Session;
+import com.neradb.result.Row;
+import com.neradb.result.SearchRow;
+
+/**
+ * A cursor over a key range of a store. The ranges are read one after the
+ * other, in key order, in batches. If a range was moved in the meantime, the
+ * ranges are reloaded and reading continues after the last key that was read.
+ */
+class KvCursor implements Cursor {
+
+    /**
+     * The maximum number of entries that are read at once.
+     */
+    static final int BATCH_SIZE = 256;
+
+    /**
+     * The table.
+     */
+    protected final KvTable table;
+
+    private final Session session;
+    private final KvPlacement placement;
+    private final String store;
+    private final byte[] start;
+    private final byte[] end;
+    private final byte[] fragment;
+    private final String transactionId;
+    private int limit = BATCH_SIZE;
+    private byte[] position;
+    private boolean done;
+    private KvClient.Batch batch;
+    private int pos;
+    private Row row;
+
+    /**
+     * Create a new cursor.
+     *
+     * @param session the session, or null
+     * @param table the table
+     * @param placement the placement of the store
+     * @param store the store name
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @param fragment the serialized fragment (see {@link KvFragment}), or
+     *            null
+     */
+    KvCursor(Session session, KvTable table, KvPlacement placement, String store,
+            byte[] start, byte[] end, byte[] fragment) {
+        this.session = session;
+        this.table = table;
+        this.placement = placement;
+        this.store = store;
+        this.start = start;
+        this.end = end;
+        this.fragment = fragment;
+        transactionId = table.getTransactionId(session);
+        position = start;
+        done = start != null && end != null && KeyEncoder.compare(start, end) >= 0;
+    }
+
+    /**
+     * Set the number of rows that are probably needed, so that the first
+     * batch is not larger.
+     *
+     * @param rows the number of rows
+     */
+    void setLimit(int rows) {
+        limit = Math.max(1, Math.min(rows, BATCH_SIZE));
+    }
+
+    /**
+     * Get the smallest key that is larger than the given key.
+     *
+     * @param key the key
+     * @return the next key
+     */
+    static byte[] successor(byte[] key) {
+        byte[] next = new byte[key.length + 1];
+        System.arraycopy(key, 0, next, 0, key.length);
+        return next;
+    }
+
+    @Override
+    public Row get() {
+        return row;
+    }
+
+    @Override
+    public SearchRow getSearchRow() {
+        return row;
+    }
+
+    @Override
+    public boolean next() {
+        while (true) {
+            if (batch != null && pos < batch.keys.size()) {
+                row = createRow(batch.keys.get(pos), batch.values.get(pos));
+                pos++;
+                if (row != null) {
+                    return true;
+                }
+                continue;
+            }
+            if (!fetch()) {
+                row = null;
+                return false;
+            }
+        }
+    }
+
+    private boolean fetch() {
+        if (done) {
+            return false;
+        }
+        long t = System.nanoTime();
+        while (true) {
+            KvPlacement.Range r = position == null ? placement.getRanges()[0] :
+                    placement.locate(position);
+            byte[] to = r.clip(start, end)[1];
+            try {
+                batch = table.getEngine().getClient(r.endpoint).scan(store, position, to,
+                        limit, fragment, transactionId);
+            } catch (RuntimeException e) {
+                table.beforeRetry(session, placement, e, t);
+                continue;
+            }
+            // the following batches are larger
+            limit = BATCH_SIZE;
+            if (batch.more) {
+                position = successor(batch.keys.get(batch.keys.size() - 1));
+            } else if (to == null || end != null && KeyEncoder.compare(to, end) >= 0) {
+                done = true;
+            } else {
+                position = to;
+            }
+            pos = 0;
+            return true;
+        }
+    }
+
+    /**
+     * Convert an entry to a row.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the row, or null to skip the entry
+     */
+    protected Row createRow(byte[] key, byte[] value) {
+        return table.readRow(key, value);
+    }
+
+    @Override
+    public boolean previous() {
+        throw DbException.throwInternalError(toString());
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.util.ArrayList;
+
+import com.neradb.command.expression.Comparison;
+import com.neradb.store.Data;
+import com.neradb.util.CompareMode;
+import com.neradb.value.Value;
+import com.neradb.value.ValueNull;
+
+/**
+ * A filter that is evaluated by the storage node, so that rows that don't
+ * match are not sent to the SQL node. The filter is a conjunction of
+ * comparisons of a column with a constant. The SQL node still evaluates the
+ * complete condition for the rows it reads. If the storage node aggregates
+ * the rows or only returns the first rows in some order, the filter must
+ * contain the complete condition, and then accepts exactly the matching rows.
+ * <p>
+ * A row is stored as the number of columns, followed by the length and the
+ * value (in the format of {@link Data#writeValue(Value)}) of each column, so
+ * that the storage node can skip the columns it doesn't need.
+ * </p>
+ */
+public class KvFilter {
+
+    private static final CompareMode COMPARE_MODE = CompareMode.getInstance(null, 0);
+
+    private final ArrayList<Integer> columns = new ArrayList<Integer>();
+    private final ArrayList<Integer> compareTypes = new ArrayList<Integer>();
+    private final ArrayList<Value> values = new ArrayList<Value>();
+
+    /**
+     * Check whether a comparison type can be evaluated by the storage node.
+     *
+     * @param compareType the comparison type (see {@link Comparison})
+     * @return true if yes
+     */
+    public static boolean isSupported(int compareType) {
+        switch (compareType) {
+        case Comparison.EQUAL:
+        case Comparison.EQUAL_NULL_SAFE:
+        case Comparison.BIGGER_EQUAL:
+        case Comparison.BIGGER:
+        case Comparison.SMALLER_EQUAL:
+        case Comparison.SMALLER:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Add a comparison.
+     *
+     * @param columnId the column index
+     * @param compareType the comparison type
+     * @param value the value (of the type of the column)
+     */
+    public void add(int columnId, int compareType, Value value) {
+        columns.add(columnId);
+        compareTypes.add(compareType);
+        values.add(value);
+    }
+
+    public boolean isEmpty() {
+        return columns.isEmpty();
+    }
+
+    /**
+     * Serialize the filter.
+     *
+     * @return the filter, or null if it is empty
+     */
+    public byte[] getBytes() {
+        if (isEmpty()) {
+            return null;
+        }
+        Data buff = Data.create(null, 64);
+        buff.checkCapacity(10);
+        buff.writeVarInt(columns.size());
+        for (int i = 0; i < columns.size(); i++) {
+            Value v = values.get(i);
+            buff.checkCapacity(10 + Data.getValueLen(v, null));
+            buff.writeVarInt(columns.get(i));
+            buff.writeVarInt(compareTypes.get(i));
+            buff.writeValue(v);
+        }
+        byte[] b = new byte[buff.length()];
+        System.arraycopy(buff.getBytes(), 0, b, 0, b.length);
+        return b;
+    }
+
+    /**
+     * Read a serialized filter.
+     *
+     * @param b the serialized filter, or null
+     * @return the filter, or null if there is none
+     */
+    public static KvFilter read(byte[] b) {
+        if (b == null) {
+            return null;
+        }
+        Data buff = Data.create(null, b);
+        KvFilter f = new KvFilter();
+        for (int i = 0, count = buff.readVarInt(); i < count; i++) {
+            int column = buff.readVarInt();
+            int compareType = buff.readVarInt();
+            f.add(column, compareType, buff.readValue());
+        }
+        return f;
+    }
+
+    /**
+     * Check whether a stored row matches the filter.
+     *
+     * @param row the stored row
+     * @return true if it matches
+     */
+    public boolean test(byte[] row) {
+        Data buff = Data.create(null, KvTable.expandRow(row));
+        int count = buff.readVarInt();
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            int len = buff.readVarInt();
+            offsets[i] = buff.length();
+            buff.setPos(buff.length() + len);
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            int column = columns.get(i);
+            Value v;
+            if (column >= count) {
+                // added by ALTER TABLE after the row was stored
+                v = ValueNull.INSTANCE;
+            } else {
+                buff.setPos(offsets[column]);
+                v = buff.readValue();
+            }
+            if (!compare(v, compareTypes.get(i), values.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean compare(Value v, int compareType, Value x) {
+        if (v == ValueNull.INSTANCE || x == ValueNull.INSTANCE) {
+            return compareType == Comparison.EQUAL_NULL_SAFE && v == x;
+        }
+        int c = v.compareTo(x, COMPARE_MODE);
+        switch (compareType) {
+        case Comparison.EQUAL:
+        case Comparison.EQUAL_NULL_SAFE:
+            return c == 0;
+        case Comparison.BIGGER_EQUAL:
+            return c >= 0;
+        case Comparison.BIGGER:
+            return c > 0;
+        case Comparison.SMALLER_EQUAL:
+            return c <= 0;
+        case Comparison.SMALLER:
+            return c < 0;
+        default:
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                buff.append(" AND ");
+            }
+            buff.append('#').append(columns.get(i)).append(' ')
+                    .append(compareTypes.get(i)).append(' ')
+                    .append(values.get(i).getTraceSQL());
+        }
+        return buff.toString();
+    }
+
+}
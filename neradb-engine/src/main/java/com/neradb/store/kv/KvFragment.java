@@ -0,0 +1,517 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.neradb.command.expression.Aggregate;
+import com.neradb.common.DbException;
+import com.neradb.result.SortOrder;
+import com.neradb.store.Data;
+import com.neradb.util.CompareMode;
+import com.neradb.value.Value;
+import com.neradb.value.ValueArray;
+import com.neradb.value.ValueLong;
+import com.neradb.value.ValueNull;
+
+/**
+ * The part of a query that a storage node runs for a key range: the filter,
+ * the columns that are needed, and either the sort order of a query with a
+ * limit, or the groups and aggregates of a group query.
+ * <p>
+ * Columns that are not needed are sent as NULL, so that the row format
+ * stays the same. With a sort order, the node returns the first rows in this
+ * order (the SQL node merges the rows of all ranges). With aggregates, the
+ * node returns the values of the group columns followed by the partial
+ * results of the aggregates (the SQL node merges the groups of all ranges).
+ * Values are compared as in CompareMode.OFF.
+ * </p>
+ */
+public class KvFragment {
+
+    private static final CompareMode COMPARE_MODE = CompareMode.getInstance(null, 0);
+
+    private KvFilter filter;
+    private int[] columns;
+    private int[] sortColumns, sortTypes;
+    private int[] groupColumns;
+    private final ArrayList<int[]> aggregates = new ArrayList<int[]>();
+
+    /**
+     * Set the filter.
+     *
+     * @param filter the filter, or null
+     */
+    public void setFilter(KvFilter filter) {
+        this.filter = filter == null || filter.isEmpty() ? null : filter;
+    }
+
+    /**
+     * Set the columns that are needed.
+     *
+     * @param columns the column indexes, or null for all columns
+     */
+    public void setColumns(int[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * Set the sort order. The limit of the scan is then the number of rows
+     * in this order.
+     *
+     * @param sortColumns the column indexes
+     * @param sortTypes the sort types (see {@link SortOrder})
+     */
+    public void setSortOrder(int[] sortColumns, int[] sortTypes) {
+        this.sortColumns = sortColumns;
+        this.sortTypes = sortTypes;
+    }
+
+    /**
+     * Set the group columns.
+     *
+     * @param groupColumns the column indexes
+     */
+    public void setGroupColumns(int[] groupColumns) {
+        this.groupColumns = groupColumns;
+    }
+
+    /**
+     * Add an aggregate.
+     *
+     * @param type the aggregate type (COUNT_ALL, COUNT, SUM, MIN, MAX or AVG,
+     *            see {@link Aggregate})
+     * @param column the column index, or -1 for COUNT(*)
+     * @param dataType the data type of the sum, for SUM and AVG
+     */
+    public void addAggregate(int type, int column, int dataType) {
+        aggregates.add(new int[] { type, column, dataType });
+    }
+
+    /**
+     * Check whether the fragment has a sort order.
+     *
+     * @return true if yes
+     */
+    public boolean isSorted() {
+        return sortColumns != null;
+    }
+
+    public int[] getSortColumns() {
+        return sortColumns;
+    }
+
+    public int[] getSortTypes() {
+        return sortTypes;
+    }
+
+    /**
+     * Check whether the fragment does nothing, so that a plain scan can be
+     * used.
+     *
+     * @return true if yes
+     */
+    public boolean isEmpty() {
+        return filter == null && columns == null && sortColumns == null &&
+                groupColumns == null;
+    }
+
+    /**
+     * Serialize the fragment.
+     *
+     * @return the fragment, or null if it is empty
+     */
+    public byte[] getBytes() {
+        if (isEmpty()) {
+            return null;
+        }
+        Data buff = Data.create(null, 256);
+        writeBytes(buff, filter == null ? null : filter.getBytes());
+        writeInts(buff, columns);
+        writeInts(buff, sortColumns);
+        writeInts(buff, sortTypes);
+        writeInts(buff, groupColumns);
+        buff.checkCapacity(5);
+        buff.writeVarInt(aggregates.size());
+        for (int[] a : aggregates) {
+            writeInts(buff, a);
+        }
+        byte[] b = new byte[buff.length()];
+        System.arraycopy(buff.getBytes(), 0, b, 0, b.length);
+        return b;
+    }
+
+    /**
+     * Read a serialized fragment.
+     *
+     * @param b the serialized fragment, or null
+     * @return the fragment, or null if there is none
+     */
+    public static KvFragment read(byte[] b) {
+        if (b == null) {
+            return null;
+        }
+        Data buff = Data.create(null, b);
+        KvFragment f = new KvFragment();
+        f.filter = KvFilter.read(readBytes(buff));
+        f.columns = readInts(buff);
+        f.sortColumns = readInts(buff);
+        f.sortTypes = readInts(buff);
+        f.groupColumns = readInts(buff);
+        for (int i = 0, count = buff.readVarInt(); i < count; i++) {
+            f.aggregates.add(readInts(buff));
+        }
+        return f;
+    }
+
+    private static void writeInts(Data buff, int[] x) {
+        buff.checkCapacity(5 + (x == null ? 0 : x.length * 5));
+        if (x == null) {
+            buff.writeVarInt(0);
+            return;
+        }
+        buff.writeVarInt(x.length + 1);
+        for (int i : x) {
+            // -1 is used for COUNT(*)
+            buff.writeVarInt(i + 1);
+        }
+    }
+
+    private static int[] readInts(Data buff) {
+        int len = buff.readVarInt() - 1;
+        if (len < 0) {
+            return null;
+        }
+        int[] x = new int[len];
+        for (int i = 0; i < len; i++) {
+            x[i] = buff.readVarInt() - 1;
+        }
+        return x;
+    }
+
+    private static void writeBytes(Data buff, byte[] b) {
+        int len = b == null ? 0 : b.length;
+        buff.checkCapacity(5 + len);
+        buff.writeVarInt(b == null ? 0 : len + 1);
+        if (b != null) {
+            buff.write(b, 0, len);
+        }
+    }
+
+    private static byte[] readBytes(Data buff) {
+        int len = buff.readVarInt() - 1;
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        buff.read(b, 0, len);
+        return b;
+    }
+
+    /**
+     * Check whether a stored row matches the filter.
+     *
+     * @param row the stored row
+     * @return true if it matches
+     */
+    public boolean test(byte[] row) {
+        return filter == null || filter.test(row);
+    }
+
+    /**
+     * Remove the columns that are not needed from a stored row.
+     *
+     * @param row the stored row
+     * @return the row that is sent
+     */
+    public byte[] project(byte[] row) {
+        if (columns == null) {
+            return row;
+        }
+        row = KvTable.expandRow(row);
+        Data buff = Data.create(null, row);
+        int count = buff.readVarInt();
+        boolean[] needed = new boolean[count];
+        for (int c : columns) {
+            if (c < count) {
+                needed[c] = true;
+            }
+        }
+        Data out = Data.create(null, row.length);
+        out.writeVarInt(count);
+        int nullLen = Data.getValueLen(ValueNull.INSTANCE, null);
+        for (int i = 0; i < count; i++) {
+            int len = buff.readVarInt();
+            int pos = buff.length();
+            if (needed[i]) {
+                out.writeVarInt(len);
+                out.write(row, pos, len);
+            } else {
+                out.writeVarInt(nullLen);
+                out.writeValue(ValueNull.INSTANCE);
+            }
+            buff.setPos(pos + len);
+        }
+        byte[] b = new byte[out.length()];
+        System.arraycopy(out.getBytes(), 0, b, 0, b.length);
+        return b;
+    }
+
+    /**
+     * Read some columns of a stored row.
+     *
+     * @param row the stored row
+     * @param list the column indexes
+     * @return the values
+     */
+    private static Value[] readColumns(byte[] row, int[] list) {
+        Data buff = Data.create(null, KvTable.expandRow(row));
+        int count = buff.readVarInt();
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            int len = buff.readVarInt();
+            offsets[i] = buff.length();
+            buff.setPos(buff.length() + len);
+        }
+        Value[] values = new Value[list.length];
+        for (int i = 0; i < list.length; i++) {
+            int column = list[i];
+            if (column < 0 || column >= count) {
+                // COUNT(*), or added by ALTER TABLE after the row was stored
+                values[i] = ValueNull.INSTANCE;
+            } else {
+                buff.setPos(offsets[column]);
+                values[i] = buff.readValue();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get the first rows of the given entries that match the filter, in the
+     * sort order.
+     *
+     * @param entries the entries
+     * @param limit the maximum number of rows
+     * @return the keys and the rows that are sent, in the sort order
+     */
+    public ArrayList<byte[][]> top(Iterable<Map.Entry<byte[], byte[]>> entries, int limit) {
+        final Comparator<Value[]> order = new Comparator<Value[]>() {
+            @Override
+            public int compare(Value[] a, Value[] b) {
+                return compareRows(a, b);
+            }
+        };
+        // the last row in the sort order is at the head
+        PriorityQueue<Object[]> queue = new PriorityQueue<Object[]>(
+                Math.max(1, Math.min(limit, 1024)), new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                return order.compare((Value[]) b[0], (Value[]) a[0]);
+            }
+        });
+        for (Map.Entry<byte[], byte[]> e : entries) {
+            if (limit <= 0) {
+                break;
+            }
+            byte[] row = KvTable.expandRow(e.getValue());
+            if (!test(row)) {
+                continue;
+            }
+            Value[] sortValues = readColumns(row, sortColumns);
+            if (queue.size() >= limit) {
+                if (order.compare(sortValues, (Value[]) queue.peek()[0]) >= 0) {
+                    continue;
+                }
+                queue.poll();
+            }
+            queue.add(new Object[] { sortValues, e.getKey(), row });
+        }
+        ArrayList<byte[][]> list = new ArrayList<byte[][]>(queue.size());
+        while (!queue.isEmpty()) {
+            Object[] x = queue.poll();
+            list.add(new byte[][] { (byte[]) x[1], project((byte[]) x[2]) });
+        }
+        Collections.reverse(list);
+        return list;
+    }
+
+    private int compareRows(Value[] a, Value[] b) {
+        for (int i = 0; i < sortTypes.length; i++) {
+            int type = sortTypes[i];
+            boolean aNull = a[i] == ValueNull.INSTANCE, bNull = b[i] == ValueNull.INSTANCE;
+            if (aNull || bNull) {
+                if (aNull == bNull) {
+                    continue;
+                }
+                return SortOrder.compareNull(aNull, type);
+            }
+            int comp = a[i].compareTo(b[i], COMPARE_MODE);
+            if (comp != 0) {
+                return (type & SortOrder.DESCENDING) == 0 ? comp : -comp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compute the groups and the partial results of the aggregates of the
+     * given entries that match the filter.
+     *
+     * @param entries the entries
+     * @return the serialized groups
+     */
+    public byte[] aggregate(Iterable<Map.Entry<byte[], byte[]>> entries) {
+        int size = aggregates.size();
+        int[] list = new int[groupColumns.length + size];
+        System.arraycopy(groupColumns, 0, list, 0, groupColumns.length);
+        for (int i = 0; i < size; i++) {
+            list[groupColumns.length + i] = aggregates.get(i)[1];
+        }
+        HashMap<ValueArray, Value[]> values = new HashMap<ValueArray, Value[]>();
+        HashMap<ValueArray, long[]> counts = new HashMap<ValueArray, long[]>();
+        for (Map.Entry<byte[], byte[]> e : entries) {
+            byte[] row = KvTable.expandRow(e.getValue());
+            if (!test(row)) {
+                continue;
+            }
+            Value[] v = readColumns(row, list);
+            Value[] key = new Value[groupColumns.length];
+            System.arraycopy(v, 0, key, 0, key.length);
+            ValueArray k = ValueArray.get(key);
+            Value[] groupValues = values.get(k);
+            long[] groupCounts = counts.get(k);
+            if (groupValues == null) {
+                groupValues = new Value[size];
+                groupCounts = new long[size];
+                values.put(k, groupValues);
+                counts.put(k, groupCounts);
+            }
+            for (int i = 0; i < size; i++) {
+                add(aggregates.get(i), v[key.length + i], groupValues, groupCounts, i);
+            }
+        }
+        if (groupColumns.length == 0 && values.isEmpty()) {
+            // an aggregate without GROUP BY always has one group
+            values.put(ValueArray.get(new Value[0]), new Value[size]);
+            counts.put(ValueArray.get(new Value[0]), new long[size]);
+        }
+        Data buff = Data.create(null, 256);
+        buff.writeVarInt(values.size());
+        for (Map.Entry<ValueArray, Value[]> e : values.entrySet()) {
+            long[] groupCounts = counts.get(e.getKey());
+            for (Value v : e.getKey().getList()) {
+                writeValue(buff, v);
+            }
+            for (int i = 0; i < size; i++) {
+                writeValue(buff, getPartial(aggregates.get(i)[0],
+                        e.getValue()[i], groupCounts[i]));
+            }
+        }
+        byte[] b = new byte[buff.length()];
+        System.arraycopy(buff.getBytes(), 0, b, 0, b.length);
+        return b;
+    }
+
+    private static void add(int[] aggregate, Value v, Value[] values, long[] counts,
+            int i) {
+        int type = aggregate[0];
+        if (type == Aggregate.COUNT_ALL) {
+            counts[i]++;
+            return;
+        }
+        if (v == ValueNull.INSTANCE) {
+            return;
+        }
+        counts[i]++;
+        Value old = values[i];
+        switch (type) {
+        case Aggregate.COUNT:
+            break;
+        case Aggregate.SUM:
+        case Aggregate.AVG:
+            v = v.convertTo(aggregate[2]);
+            values[i] = old == null ? v : old.add(v);
+            break;
+        case Aggregate.MIN:
+            if (old == null || v.compareTo(old, COMPARE_MODE) < 0) {
+                values[i] = v;
+            }
+            break;
+        case Aggregate.MAX:
+            if (old == null || v.compareTo(old, COMPARE_MODE) > 0) {
+                values[i] = v;
+            }
+            break;
+        default:
+            throw DbException.throwInternalError("type=" + type);
+        }
+    }
+
+    private static Value getPartial(int type, Value value, long count) {
+        switch (type) {
+        case Aggregate.COUNT_ALL:
+        case Aggregate.COUNT:
+            return ValueLong.get(count);
+        case Aggregate.AVG:
+            return ValueArray.get(new Value[] {
+                    value == null ? ValueNull.INSTANCE : value, ValueLong.get(count) });
+        default:
+            return value == null ? ValueNull.INSTANCE : value;
+        }
+    }
+
+    private static void writeValue(Data buff, Value v) {
+        buff.checkCapacity(Data.getValueLen(v, null));
+        buff.writeValue(v);
+    }
+
+    /**
+     * Read the serialized groups.
+     *
+     * @param b the serialized groups
+     * @param columnCount the number of group columns plus aggregates
+     * @return the groups
+     */
+    public static ArrayList<Value[]> readGroups(byte[] b, int columnCount) {
+        Data buff = Data.create(null, b);
+        int count = buff.readVarInt();
+        ArrayList<Value[]> groups = new ArrayList<Value[]>(count);
+        for (int i = 0; i < count; i++) {
+            Value[] g = new Value[columnCount];
+            for (int j = 0; j < columnCount; j++) {
+                g[j] = buff.readValue();
+            }
+            groups.add(g);
+        }
+        return groups;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buff = new StringBuilder();
+        if (filter != null) {
+            buff.append("filter ").append(filter);
+        }
+        if (columns != null) {
+            buff.append(" columns ").append(columns.length);
+        }
+        if (sortColumns != null) {
+            buff.append(" sorted");
+        }
+        if (groupColumns != null) {
+            buff.append(" groups ").append(groupColumns.length)
+                    .append(" aggregates ").append(aggregates.size());
+        }
+        return buff.toString().trim();
+    }
+
+}
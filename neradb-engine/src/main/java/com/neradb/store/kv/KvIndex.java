@@ -0,0 +1,742 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.neradb.command.dml.Select;
+import com.neradb.command.expression.Aggregate;
+import com.neradb.command.expression.Comparison;
+import com.neradb.command.expression.ConditionAndOr;
+import com.neradb.command.expression.Expression;
+import com.neradb.command.expression.ExpressionColumn;
+import com.neradb.command.expression.ExpressionVisitor;
+import com.neradb.common.DbException;
+import com.neradb.common.utils.New;
+import com.neradb.common.utils.StatementBuilder;
+import com.neradb.dbobject.index.AsyncIndexLookupBatch;
+import com.neradb.dbobject.index.BaseIndex;
+import com.neradb.dbobject.index.Cursor;
+import com.neradb.dbobject.index.IndexLookupBatch;
+import com.neradb.dbobject.index.IndexType;
+import com.neradb.dbobject.table.Column;
+import com.neradb.dbobject.table.IndexColumn;
+import com.neradb.dbobject.table.TableFilter;
+import com.neradb.engine.Session;
+import com.neradb.result.Row;
+import com.neradb.result.SearchRow;
+import com.neradb.result.SortOrder;
+import com.neradb.store.Data;
+import com.neradb.util.CompareMode;
+import com.neradb.value.DataType;
+import com.neradb.value.Value;
+import com.neradb.value.ValueNull;
+
+/**
+ * The base class of the indexes of a range partitioned table.
+ */
+abstract class KvIndex extends BaseIndex {
+
+    /**
+     * Orders entries (key and value) by key.
+     */
+    private static final Comparator<byte[][]> ENTRY_ORDER = new Comparator<byte[][]>() {
+        @Override
+        public int compare(byte[][] a, byte[][] b) {
+            return KeyEncoder.compare(a[0], b[0]);
+        }
+    };
+
+    /**
+     * The table.
+     */
+    protected final KvTable kvTable;
+
+    KvIndex(KvTable table, int id, String name, IndexColumn[] columns,
+            IndexType indexType) {
+        initBaseIndex(table, id, name, columns, indexType);
+        this.kvTable = table;
+    }
+
+    /**
+     * Encode the first columns of this index.
+     *
+     * @param row the row
+     * @param columnCount the number of columns to encode
+     * @return the key
+     */
+    byte[] encodeKey(SearchRow row, int columnCount) {
+        Data buff = Data.create(database, 32);
+        boolean binaryUnsigned = database.getCompareMode().isBinaryUnsigned();
+        for (int i = 0; i < columnCount; i++) {
+            Column column = columns[i];
+            Value v = row.getValue(column.getColumnId());
+            if (v != ValueNull.INSTANCE && v.getType() != column.getType()) {
+                v = column.convert(v);
+            }
+            KeyEncoder.encode(buff, v, indexColumns[i].sortType, binaryUnsigned);
+        }
+        byte[] key = new byte[buff.length()];
+        System.arraycopy(buff.getBytes(), 0, key, 0, key.length);
+        return key;
+    }
+
+    /**
+     * Add the entries of a list of rows, using one request per range (see
+     * {@link KvTable#addRows}).
+     *
+     * @param session the session
+     * @param rows the rows
+     * @param added the keys of the entries that were added are added to this
+     *            list
+     * @return false if an entry was not added because the key already exists
+     */
+    abstract boolean addRows(Session session, ArrayList<Row> rows,
+            ArrayList<byte[]> added);
+
+    /**
+     * Remove the entries that were added by
+     * {@link #addRows(Session, ArrayList, ArrayList)}.
+     *
+     * @param session the session
+     * @param keys the keys
+     */
+    abstract void removeKeys(Session session, ArrayList<byte[]> keys);
+
+    /**
+     * Store a list of entries. The entries are sorted by key, so that each
+     * range gets one request, and the storage node adds the keys in order.
+     *
+     * @param session the session
+     * @param placement the placement of the store
+     * @param store the store name
+     * @param entries the entries (key and value)
+     * @param ifAbsent whether to only store the entries if the keys are absent
+     * @param added the keys of the entries that were stored are added to
+     *            this list
+     * @return false if an entry was not stored because the key already exists
+     */
+    boolean putEntries(Session session, KvPlacement placement, String store,
+            ArrayList<byte[][]> entries, boolean ifAbsent, ArrayList<byte[]> added) {
+        Collections.sort(entries, ENTRY_ORDER);
+        ArrayList<byte[]> keys = New.arrayList();
+        ArrayList<byte[]> values = New.arrayList();
+        long start = System.nanoTime();
+        for (int i = 0, size = entries.size(); i < size;) {
+            KvPlacement.Range r = placement.locate(entries.get(i)[0]);
+            keys.clear();
+            values.clear();
+            int j = i;
+            for (; j < size; j++) {
+                byte[][] e = entries.get(j);
+                if (r.end != null && KeyEncoder.compare(e[0], r.end) >= 0) {
+                    break;
+                }
+                keys.add(e[0]);
+                values.add(e[1]);
+            }
+            int failed;
+            try {
+                String tx = kvTable.getTransactionId(session, r.endpoint);
+                failed = kvTable.getEngine().getClient(r.endpoint).putAll(
+                        store, keys, values, ifAbsent, tx);
+            } catch (RuntimeException e) {
+                // nothing was stored if the range moved
+                kvTable.beforeRetry(session, placement, e, start);
+                continue;
+            }
+            if (failed >= 0) {
+                added.addAll(keys.subList(0, failed));
+                return false;
+            }
+            added.addAll(keys);
+            i = j;
+        }
+        return true;
+    }
+
+    /**
+     * Remove a list of keys.
+     *
+     * @param session the session
+     * @param placement the placement of the store
+     * @param store the store name
+     * @param keys the keys
+     */
+    void deleteKeys(Session session, KvPlacement placement, String store,
+            ArrayList<byte[]> keys) {
+        for (byte[] key : keys) {
+            long start = System.nanoTime();
+            while (true) {
+                KvPlacement.Range r = placement.locate(key);
+                try {
+                    String tx = kvTable.getTransactionId(session, r.endpoint);
+                    kvTable.getEngine().getClient(r.endpoint).delete(store, key, tx);
+                    break;
+                } catch (RuntimeException e) {
+                    kvTable.beforeRetry(session, placement, e, start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the key range for a search.
+     *
+     * @param first the first row, or null
+     * @param last the last row, or null
+     * @return the first key (index 0, inclusive) and the last key (index 1,
+     *         exclusive); null means unbounded
+     */
+    byte[][] getKeyRange(SearchRow first, SearchRow last) {
+        byte[] start = null, end = null;
+        int count = getPrefixLength(first);
+        if (count > 0) {
+            start = encodeKey(first, count);
+        }
+        count = getPrefixLength(last);
+        if (count > 0) {
+            end = KeyEncoder.prefixEnd(encodeKey(last, count));
+        }
+        return new byte[][] { start, end };
+    }
+
+    private int getPrefixLength(SearchRow row) {
+        if (row == null) {
+            return 0;
+        }
+        int i = 0;
+        while (i < columns.length && row.getValue(columns[i].getColumnId()) != null) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Create the fragment of a scan that is run by the storage nodes: the
+     * conditions of the table filter that compare a column of this table with
+     * a value that is known before the rows are read, and the columns that the
+     * query needs. If only the first rows of the query are needed, in an order
+     * that is not the order of the index, and if the storage nodes can
+     * evaluate the complete condition, the fragment also contains the order,
+     * so that each range only returns its first rows.
+     *
+     * @param filter the table filter
+     * @return the fragment
+     */
+    KvFragment createFragment(TableFilter filter) {
+        KvFragment fragment = new KvFragment();
+        Expression condition = filter.getFilterCondition();
+        if (condition != null) {
+            KvFilter f = new KvFilter();
+            addConditions(f, filter, condition);
+            fragment.setFilter(f);
+        }
+        Select select = filter.getSelect();
+        if (select == null || select.isForUpdate() ||
+                !select.getTableFilters().contains(filter)) {
+            // the rows may be changed, or the columns are not known
+            return fragment;
+        }
+        fragment.setColumns(getNeededColumns(select));
+        SortOrder sort = select.getSortOrder();
+        if (getScanLimit(filter) > 0 && sort != null && !select.isSortUsingIndex()) {
+            int[] sortColumns = getSortColumns(sort, filter);
+            KvFilter f = createCompleteFilter(filter, select.getCondition());
+            if (sortColumns != null && f != null) {
+                fragment.setFilter(f);
+                fragment.setSortOrder(sortColumns, sort.getSortTypes());
+            }
+        }
+        return fragment;
+    }
+
+    /**
+     * Get the number of rows of the table filter that the query needs at
+     * most.
+     *
+     * @param filter the table filter
+     * @return the number of rows, or -1 if not known
+     */
+    static int getScanLimit(TableFilter filter) {
+        Select select = filter.getSelect();
+        if (select == null || select.getTopTableFilter() != filter) {
+            return -1;
+        }
+        return select.getScanLimit();
+    }
+
+    /**
+     * Create the filter for a condition that the storage nodes need to
+     * evaluate completely.
+     *
+     * @param filter the table filter
+     * @param condition the condition, or null
+     * @return the filter, or null if this is not possible
+     */
+    KvFilter createCompleteFilter(TableFilter filter, Expression condition) {
+        KvFilter f = new KvFilter();
+        if (condition != null && !addConditions(f, filter, condition)) {
+            return null;
+        }
+        return f;
+    }
+
+    private int[] getNeededColumns(Select select) {
+        HashSet<Column> set = New.hashSet();
+        ExpressionVisitor visitor = ExpressionVisitor.getColumnsVisitor(set);
+        select.isEverything(visitor);
+        for (TableFilter f : select.getTopFilters()) {
+            addJoinColumns(f, visitor);
+        }
+        Column[] all = table.getColumns();
+        boolean[] needed = new boolean[all.length];
+        int count = 0;
+        for (Column c : set) {
+            int id = c.getColumnId();
+            if (c.getTable() == table && id >= 0 && !needed[id]) {
+                needed[id] = true;
+                count++;
+            }
+        }
+        if (count == all.length) {
+            return null;
+        }
+        int[] list = new int[count];
+        for (int i = 0, j = 0; i < all.length; i++) {
+            if (needed[i]) {
+                list[j++] = i;
+            }
+        }
+        return list;
+    }
+
+    private static void addJoinColumns(TableFilter f, ExpressionVisitor visitor) {
+        // the conditions of outer joins are not part of the condition of
+        // the query
+        for (; f != null; f = f.getJoin()) {
+            if (f.getJoinCondition() != null) {
+                f.getJoinCondition().isEverything(visitor);
+            }
+            if (f.getNestedJoin() != null) {
+                addJoinColumns(f.getNestedJoin(), visitor);
+            }
+        }
+    }
+
+    private int[] getSortColumns(SortOrder sort, TableFilter filter) {
+        int[] list = new int[sort.getSortTypes().length];
+        for (int i = 0; i < list.length; i++) {
+            Column c = sort.getColumn(i, filter);
+            if (c == null || c.getColumnId() < 0 || !canCompare(c.getType())) {
+                return null;
+            }
+            list[i] = c.getColumnId();
+        }
+        return list;
+    }
+
+    /**
+     * Add the conditions that the storage nodes can evaluate to the filter.
+     *
+     * @param f the filter
+     * @param filter the table filter
+     * @param e the condition
+     * @return whether the complete condition was added
+     */
+    private boolean addConditions(KvFilter f, TableFilter filter, Expression e) {
+        if (e instanceof ConditionAndOr) {
+            ConditionAndOr c = (ConditionAndOr) e;
+            if (c.getAndOrType() == ConditionAndOr.AND) {
+                boolean left = addConditions(f, filter, c.getExpression(true));
+                boolean right = addConditions(f, filter, c.getExpression(false));
+                return left && right;
+            }
+        } else if (e instanceof Comparison) {
+            Comparison c = (Comparison) e;
+            int compareType = c.getCompareType();
+            Expression left = c.getExpression(true);
+            Expression right = c.getExpression(false);
+            if (right instanceof ExpressionColumn && !(left instanceof ExpressionColumn &&
+                    ((ExpressionColumn) left).getTableFilter() == filter)) {
+                Expression t = left;
+                left = right;
+                right = t;
+                compareType = swap(compareType);
+            }
+            if (!(left instanceof ExpressionColumn) || right == null ||
+                    !KvFilter.isSupported(compareType)) {
+                return false;
+            }
+            ExpressionColumn col = (ExpressionColumn) left;
+            Column column = col.getColumn();
+            if (col.getTableFilter() != filter || column.getColumnId() < 0 ||
+                    !canCompare(column.getType())) {
+                return false;
+            }
+            if (!right.isEverything(ExpressionVisitor.DETERMINISTIC_VISITOR) ||
+                    !right.isEverything(ExpressionVisitor.getNotFromResolverVisitor(filter))) {
+                return false;
+            }
+            Value v;
+            try {
+                v = right.getValue(filter.getSession());
+            } catch (DbException ex) {
+                return false;
+            }
+            // converting could change the result of the comparison
+            if (v == ValueNull.INSTANCE || v.getType() == column.getType()) {
+                f.add(column.getColumnId(), compareType, v);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the storage nodes compare values of this type in the same
+     * way as the database.
+     *
+     * @param type the data type
+     * @return true if yes
+     */
+    private boolean canCompare(int type) {
+        if (!KeyEncoder.isSupported(type)) {
+            return false;
+        }
+        switch (type) {
+        case Value.STRING:
+        case Value.STRING_FIXED:
+        case Value.BYTES:
+            // the storage nodes compare strings and bytes as in
+            // CompareMode.OFF
+            return database.getCompareMode().equals(CompareMode.getInstance(null, 0));
+        default:
+            return true;
+        }
+    }
+
+    private static int swap(int compareType) {
+        switch (compareType) {
+        case Comparison.BIGGER_EQUAL:
+            return Comparison.SMALLER_EQUAL;
+        case Comparison.BIGGER:
+            return Comparison.SMALLER;
+        case Comparison.SMALLER_EQUAL:
+            return Comparison.BIGGER_EQUAL;
+        case Comparison.SMALLER:
+            return Comparison.BIGGER;
+        default:
+            return compareType;
+        }
+    }
+
+    /**
+     * Create a duplicate key exception for the values of this index in the
+     * given row.
+     *
+     * @param row the row
+     * @return the exception
+     */
+    DbException getDuplicateKeyException(SearchRow row) {
+        StatementBuilder buff = new StatementBuilder("(");
+        for (Column c : columns) {
+            buff.appendExceptFirst(", ");
+            Value v = row.getValue(c.getColumnId());
+            buff.append(v == null ? "" : v.getSQL());
+        }
+        return getDuplicateKeyException(buff.append(')').toString());
+    }
+
+    /**
+     * Remove the store from all storage nodes, and the ranges from the meta
+     * server.
+     *
+     * @param placement the placement of the store
+     * @param store the store name
+     */
+    void dropStore(KvPlacement placement, String store) {
+        HashSet<String> endpoints = new HashSet<String>();
+        for (KvPlacement.Range r : placement.getRanges()) {
+            endpoints.add(r.endpoint);
+        }
+        for (String endpoint : endpoints) {
+            kvTable.getEngine().getClient(endpoint).drop(store);
+        }
+        placement.removeRanges();
+    }
+
+    /**
+     * Remove all entries of the store.
+     *
+     * @param session the session, or null
+     * @param placement the placement of the store
+     * @param store the store name
+     */
+    void clearStore(Session session, KvPlacement placement, String store) {
+        long start = System.nanoTime();
+        while (true) {
+            try {
+                for (KvPlacement.Range r : placement.getRanges()) {
+                    kvTable.getEngine().getClient(r.endpoint).deleteRange(store, r.start, r.end);
+                }
+                return;
+            } catch (RuntimeException e) {
+                kvTable.beforeRetry(session, placement, e, start);
+            }
+        }
+    }
+
+    /**
+     * Count the entries of the store.
+     *
+     * @param session the session, or null
+     * @param placement the placement of the store
+     * @param store the store name
+     * @return the number of entries
+     */
+    long countStore(Session session, KvPlacement placement, String store) {
+        String tx = kvTable.getTransactionId(session);
+        long start = System.nanoTime();
+        while (true) {
+            try {
+                long count = 0;
+                for (KvPlacement.Range r : placement.getRanges()) {
+                    count += kvTable.getEngine().getClient(r.endpoint).count(store,
+                            r.start, r.end, tx);
+                }
+                return count;
+            } catch (RuntimeException e) {
+                kvTable.beforeRetry(session, placement, e, start);
+            }
+        }
+    }
+
+    /**
+     * Get the key range of the store of the table that contains the rows of
+     * a search.
+     *
+     * @param first the first row, or null
+     * @param last the last row, or null
+     * @return the first key (index 0, inclusive) and the last key (index 1,
+     *         exclusive); null means unbounded
+     */
+    byte[][] getTableKeyRange(SearchRow first, SearchRow last) {
+        // the entries of the index are not in the order of the table
+        return new byte[2][];
+    }
+
+    @Override
+    public ArrayList<Value[]> aggregate(TableFilter filter, Expression condition,
+            SearchRow first, SearchRow last, Column[] groupColumns,
+            ArrayList<Aggregate> aggregates) {
+        KvFilter f = createCompleteFilter(filter, condition);
+        if (f == null) {
+            return null;
+        }
+        int[] groupIds = new int[groupColumns.length];
+        for (int i = 0; i < groupIds.length; i++) {
+            Column c = groupColumns[i];
+            if (!KeyEncoder.isSupported(c.getType())) {
+                return null;
+            }
+            groupIds[i] = c.getColumnId();
+        }
+        KvFragment fragment = new KvFragment();
+        fragment.setFilter(f);
+        fragment.setGroupColumns(groupIds);
+        for (Aggregate a : aggregates) {
+            int type = a.getAggregateType();
+            int columnId = -1;
+            if (type != Aggregate.COUNT_ALL) {
+                Column c = ((ExpressionColumn) a.getOn()).getColumn();
+                if (!KeyEncoder.isSupported(c.getType())) {
+                    return null;
+                }
+                if ((type == Aggregate.MIN || type == Aggregate.MAX) &&
+                        !canCompare(c.getType())) {
+                    return null;
+                }
+                columnId = c.getColumnId();
+            }
+            int dataType = type == Aggregate.AVG ?
+                    DataType.getAddProofType(a.getType()) : a.getType();
+            fragment.addAggregate(type, columnId, dataType);
+        }
+        final byte[] bytes = fragment.getBytes();
+        final int columnCount = groupColumns.length + aggregates.size();
+        final String store = kvTable.getStore();
+        final String tx = kvTable.getTransactionId(filter.getSession());
+        byte[][] range = getTableKeyRange(first, last);
+        ArrayList<ArrayList<Value[]>> results = runFragments(filter.getSession(),
+                kvTable.getPlacement(), range[0], range[1],
+                new Fragment<ArrayList<Value[]>>() {
+            @Override
+            public ArrayList<Value[]> run(KvClient client, byte[] start, byte[] end) {
+                return client.aggregate(store, start, end, bytes, columnCount, tx);
+            }
+        });
+        ArrayList<Value[]> groups = New.arrayList();
+        for (ArrayList<Value[]> list : results) {
+            for (Value[] g : list) {
+                for (int i = 0; i < groupColumns.length; i++) {
+                    g[i] = convert(groupColumns[i], g[i]);
+                }
+                for (int i = 0; i < aggregates.size(); i++) {
+                    int type = aggregates.get(i).getAggregateType();
+                    if (type == Aggregate.MIN || type == Aggregate.MAX) {
+                        Column c = ((ExpressionColumn) aggregates.get(i).getOn()).getColumn();
+                        g[groupColumns.length + i] = convert(c, g[groupColumns.length + i]);
+                    }
+                }
+                groups.add(g);
+            }
+        }
+        return groups;
+    }
+
+    private static Value convert(Column column, Value v) {
+        // the type of the column may have been changed after the row was
+        // stored
+        return v == ValueNull.INSTANCE || v.getType() == column.getType() ? v :
+                column.convert(v);
+    }
+
+    /**
+     * Run a fragment of a query for each range that overlaps the key range,
+     * in parallel in the lookup thread pool of the database. If a range was
+     * moved in the meantime, the ranges are reloaded and all fragments are
+     * run again.
+     *
+     * @param session the session
+     * @param placement the placement of the store
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @param fragment the fragment
+     * @return the results, in key order of the ranges
+     */
+    <T> ArrayList<T> runFragments(Session session, KvPlacement placement, byte[] start,
+            byte[] end, final Fragment<T> fragment) {
+        ExecutorService executor = database.getLookupExecutor();
+        long t = System.nanoTime();
+        while (true) {
+            ArrayList<Future<T>> futures = New.arrayList();
+            for (final KvPlacement.Range r : placement.getRanges(start, end)) {
+                final byte[][] clip = r.clip(start, end);
+                futures.add(executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() {
+                        return fragment.run(kvTable.getEngine().getClient(r.endpoint),
+                                clip[0], clip[1]);
+                    }
+                }));
+            }
+            ArrayList<T> results = New.arrayList();
+            try {
+                for (Future<T> f : futures) {
+                    try {
+                        results.add(f.get());
+                    } catch (ExecutionException e) {
+                        throw DbException.convert(e.getCause());
+                    } catch (InterruptedException e) {
+                        throw DbException.convert(e);
+                    }
+                }
+                return results;
+            } catch (RuntimeException e) {
+                for (Future<T> f : futures) {
+                    f.cancel(false);
+                }
+                kvTable.beforeRetry(session, placement, e, t);
+            }
+        }
+    }
+
+    /**
+     * A part of a query that is run for one range.
+     *
+     * @param <T> the result type
+     */
+    interface Fragment<T> {
+
+        /**
+         * Run the fragment.
+         *
+         * @param client the client of the storage node of the range
+         * @param start the first key of the range (inclusive), or null
+         * @param end the last key of the range (exclusive), or null
+         * @return the result
+         */
+        T run(KvClient client, byte[] start, byte[] end);
+
+    }
+
+    /**
+     * Create a batch that looks up the rows of a join in the lookup thread
+     * pool of the database, so that the round trips to the storage nodes
+     * overlap.
+     */
+    @Override
+    public IndexLookupBatch createLookupBatch(TableFilter[] filters, int filter) {
+        final Session session = filters[filter].getSession();
+        return new AsyncIndexLookupBatch(database) {
+            @Override
+            protected Cursor lookup(SearchRow first, SearchRow last) {
+                return KvIndex.this.find(session, first, last);
+            }
+        };
+    }
+
+    @Override
+    public double getCost(Session session, int[] masks, TableFilter[] filters,
+            int filter, SortOrder sortOrder, HashSet<Column> allColumnsSet) {
+        return getCostRangeIndex(masks, kvTable.getRowCountApproximation(),
+                filters, filter, sortOrder, columns.length == 0, allColumnsSet);
+    }
+
+    @Override
+    public void close(Session session) {
+        // nothing to do
+    }
+
+    @Override
+    public boolean needRebuild() {
+        return false;
+    }
+
+    @Override
+    public boolean canGetFirstOrLast() {
+        return false;
+    }
+
+    @Override
+    public Cursor findFirstOrLast(Session session, boolean first) {
+        throw DbException.getUnsupportedException("KV");
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        return kvTable.getRowCountApproximation();
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return 0;
+    }
+
+    @Override
+    public void checkRename() {
+        // the store name doesn't change
+    }
+
+}
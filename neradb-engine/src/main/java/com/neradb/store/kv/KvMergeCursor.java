@@ -0,0 +1,114 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import com.neradb.common.DbException;
+import com.neradb.dbobject.index.Cursor;
+import com.neradb.result.Row;
+import com.neradb.result.SearchRow;
+import com.neradb.result.SortOrder;
+
+/**
+ * A cursor that merges the rows of multiple ranges, each already sorted in
+ * the same order, and returns the first rows in this order.
+ */
+class KvMergeCursor implements Cursor {
+
+    private final PriorityQueue<Source> queue;
+    private int remaining;
+    private Row row;
+
+    /**
+     * Create a new cursor.
+     *
+     * @param sortOrder the sort order of the rows
+     * @param lists the sorted rows of each range
+     * @param limit the maximum number of rows
+     */
+    KvMergeCursor(final SortOrder sortOrder, ArrayList<ArrayList<Row>> lists, int limit) {
+        queue = new PriorityQueue<Source>(Math.max(1, lists.size()),
+                new Comparator<Source>() {
+            @Override
+            public int compare(Source a, Source b) {
+                return sortOrder.compare(a.row.getValueList(), b.row.getValueList());
+            }
+        });
+        for (ArrayList<Row> list : lists) {
+            Source s = new Source(list);
+            if (s.next()) {
+                queue.add(s);
+            }
+        }
+        remaining = limit;
+    }
+
+    @Override
+    public Row get() {
+        return row;
+    }
+
+    @Override
+    public SearchRow getSearchRow() {
+        return row;
+    }
+
+    @Override
+    public boolean next() {
+        if (remaining <= 0 || queue.isEmpty()) {
+            row = null;
+            return false;
+        }
+        Source s = queue.poll();
+        row = s.row;
+        if (s.next()) {
+            queue.add(s);
+        }
+        remaining--;
+        return true;
+    }
+
+    @Override
+    public boolean previous() {
+        throw DbException.throwInternalError(toString());
+    }
+
+    /**
+     * The sorted rows of one range.
+     */
+    private static class Source {
+
+        private final ArrayList<Row> rows;
+        private int pos;
+
+        /**
+         * The current row.
+         */
+        Row row;
+
+        Source(ArrayList<Row> rows) {
+            this.rows = rows;
+        }
+
+        /**
+         * Move to the next row.
+         *
+         * @return true if there is a next row
+         */
+        boolean next() {
+            if (pos >= rows.size()) {
+                return false;
+            }
+            row = rows.get(pos++);
+            return true;
+        }
+
+    }
+
+}
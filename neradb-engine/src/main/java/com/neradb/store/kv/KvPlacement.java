@@ -0,0 +1,283 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.neradb.meta.NodeInfo;
+import org.neradb.meta.RangeInfo;
+import org.neradb.meta.client.MetaClient;
+
+import com.neradb.common.DbException;
+import com.neradb.common.ErrorCode;
+
+/**
+ * The ranges of a store, and the storage node that serves each range.
+ * <p>
+ * If the meta server is used, the ranges are read from the meta server, and
+ * created there (on the live storage nodes) if the store doesn't have any
+ * yet. The ranges are cached, and reloaded periodically and after a storage
+ * node failed. Otherwise, the ranges are assigned to the configured storage
+ * nodes round robin.
+ * </p>
+ */
+public class KvPlacement {
+
+    /**
+     * How long the ranges read from the meta server are cached.
+     */
+    private static final long RELOAD_INTERVAL = 5000;
+
+    private final String store;
+    private final List<String> nodes;
+    private final MetaClient metaClient;
+    private final byte[][] splits;
+    private volatile Range[] ranges;
+    private volatile long loadTime;
+
+    /**
+     * Create a new placement.
+     *
+     * @param store the store name
+     * @param nodes the endpoints of the storage nodes (if the meta server is
+     *            not used)
+     * @param metaClient the meta server client, or null
+     * @param splits the sorted start keys of the ranges (except the first)
+     */
+    public KvPlacement(String store, List<String> nodes,
+            MetaClient metaClient, byte[][] splits) {
+        this.store = store;
+        this.nodes = nodes;
+        this.metaClient = metaClient;
+        this.splits = splits;
+    }
+
+    /**
+     * Get all ranges, in key order.
+     *
+     * @return the ranges
+     */
+    public Range[] getRanges() {
+        Range[] r = ranges;
+        if (r == null || metaClient != null &&
+                System.currentTimeMillis() - loadTime > RELOAD_INTERVAL) {
+            synchronized (this) {
+                r = ranges;
+                if (r == null || metaClient != null &&
+                        System.currentTimeMillis() - loadTime > RELOAD_INTERVAL) {
+                    r = metaClient == null ? createStatic() : load();
+                    ranges = r;
+                    loadTime = System.currentTimeMillis();
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Get the range that contains the key.
+     *
+     * @param key the key
+     * @return the range
+     */
+    public Range locate(byte[] key) {
+        Range[] r = getRanges();
+        int low = 0, high = r.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (KeyEncoder.compare(r[mid].start, key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return r[low];
+    }
+
+    /**
+     * Get the ranges that overlap the given key range, in key order.
+     *
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @return the ranges
+     */
+    public ArrayList<Range> getRanges(byte[] start, byte[] end) {
+        ArrayList<Range> list = new ArrayList<Range>();
+        for (Range r : getRanges()) {
+            if (end != null && r.start != null && KeyEncoder.compare(r.start, end) >= 0) {
+                break;
+            }
+            if (start != null && r.end != null && KeyEncoder.compare(r.end, start) <= 0) {
+                continue;
+            }
+            list.add(r);
+        }
+        return list;
+    }
+
+    /**
+     * Forget the cached ranges, for example because a storage node failed or
+     * a range moved.
+     */
+    public void invalidate() {
+        ranges = null;
+    }
+
+    private Range[] createStatic() {
+        Range[] r = new Range[splits.length + 1];
+        int offset = Math.abs(store.hashCode() % nodes.size());
+        for (int i = 0; i < r.length; i++) {
+            byte[] start = i == 0 ? null : splits[i - 1];
+            byte[] end = i == splits.length ? null : splits[i];
+            r[i] = new Range(0, start, end, nodes.get((offset + i) % nodes.size()));
+        }
+        return r;
+    }
+
+    private Range[] load() {
+        try {
+            List<RangeInfo> list = metaClient.getRanges(store);
+            List<NodeInfo> nodeList = metaClient.getNodes();
+            if (list.isEmpty()) {
+                list = createRanges(nodeList);
+            }
+            HashMap<Integer, String> addresses = new HashMap<Integer, String>();
+            for (NodeInfo n : nodeList) {
+                addresses.put(n.getNodeId(), n.getAddress());
+            }
+            Range[] r = new Range[list.size()];
+            for (int i = 0; i < r.length; i++) {
+                RangeInfo info = list.get(i);
+                String address = addresses.get(info.getLeader());
+                if (address == null) {
+                    throw DbException.get(ErrorCode.CONNECTION_BROKEN_1,
+                            "storage node " + info.getLeader() + " of " + info);
+                }
+                r[i] = new Range(info.getRangeId(), KeyEncoder.fromHex(info.getStartKey()),
+                        KeyEncoder.fromHex(info.getEndKey()), address);
+            }
+            return r;
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, "meta server");
+        }
+    }
+
+    /**
+     * Create the ranges of a new store in the meta server. The range ids and
+     * the assignment to the live nodes are deterministic, so that SQL nodes
+     * that create the same store concurrently create the same ranges.
+     */
+    private List<RangeInfo> createRanges(List<NodeInfo> nodeList)
+            throws IOException {
+        ArrayList<NodeInfo> live = new ArrayList<NodeInfo>();
+        for (NodeInfo n : nodeList) {
+            if (n.isLive()) {
+                live.add(n);
+            }
+        }
+        if (live.isEmpty()) {
+            throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, "no live storage node");
+        }
+        Collections.sort(live, new Comparator<NodeInfo>() {
+            @Override
+            public int compare(NodeInfo a, NodeInfo b) {
+                return Integer.compare(a.getNodeId(), b.getNodeId());
+            }
+        });
+        long hash = 1125899906842597L;
+        for (int i = 0; i < store.length(); i++) {
+            hash = 31 * hash + store.charAt(i);
+        }
+        int offset = (int) ((hash & Long.MAX_VALUE) % live.size());
+        for (int i = 0; i <= splits.length; i++) {
+            String start = i == 0 ? null : KeyEncoder.toHex(splits[i - 1]);
+            String end = i == splits.length ? null : KeyEncoder.toHex(splits[i]);
+            int node = live.get((offset + i) % live.size()).getNodeId();
+            long rangeId = ((hash & 0xffffffffffL) << 16) | i;
+            metaClient.putRange(new RangeInfo(rangeId, store, start, end,
+                    new int[] { node }, node));
+        }
+        return metaClient.getRanges(store);
+    }
+
+    /**
+     * Remove the ranges of the store from the meta server.
+     */
+    public void removeRanges() {
+        if (metaClient == null) {
+            return;
+        }
+        try {
+            for (RangeInfo info : metaClient.getRanges(store)) {
+                metaClient.removeRange(info.getRangeId());
+            }
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, "meta server");
+        }
+        ranges = null;
+    }
+
+    /**
+     * A range of keys that is served by one storage node.
+     */
+    public static final class Range {
+
+        /**
+         * The range id (0 if the meta server is not used).
+         */
+        public final long id;
+
+        /**
+         * The first key (inclusive), or null for the first range.
+         */
+        public final byte[] start;
+
+        /**
+         * The last key (exclusive), or null for the last range.
+         */
+        public final byte[] end;
+
+        /**
+         * The endpoint of the storage node.
+         */
+        public final String endpoint;
+
+        Range(long id, byte[] start, byte[] end, String endpoint) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Get the intersection of this range and the given key range.
+         *
+         * @param from the first key, or null
+         * @param to the last key (exclusive), or null
+         * @return the first (index 0) and last key (index 1)
+         */
+        public byte[][] clip(byte[] from, byte[] to) {
+            byte[] s = from == null || start != null &&
+                    KeyEncoder.compare(start, from) > 0 ? start : from;
+            byte[] e = to == null || end != null &&
+                    KeyEncoder.compare(end, to) < 0 ? end : to;
+            return new byte[][] { s, e };
+        }
+
+        @Override
+        public String toString() {
+            return "range " + id + " [" + KeyEncoder.toHex(start) + ", " +
+                    KeyEncoder.toHex(end) + ") at " + endpoint;
+        }
+
+    }
+
+}
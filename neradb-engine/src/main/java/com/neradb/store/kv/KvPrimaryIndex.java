@@ -0,0 +1,218 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.util.ArrayList;
+
+import com.neradb.common.utils.New;
+import com.neradb.dbobject.index.Cursor;
+import com.neradb.dbobject.index.IndexLookupBatch;
+import com.neradb.dbobject.index.IndexType;
+import com.neradb.dbobject.table.IndexColumn;
+import com.neradb.dbobject.table.TableFilter;
+import com.neradb.engine.Session;
+import com.neradb.result.Row;
+import com.neradb.result.SearchRow;
+import com.neradb.result.SortOrder;
+
+/**
+ * The scan index or the primary key index of a range partitioned table. Both
+ * read the store of the table; only the scan index changes it. The scan index
+ * reads all ranges, while the primary key index only reads the ranges that
+ * contain the searched keys.
+ */
+public class KvPrimaryIndex extends KvIndex {
+
+    private final boolean scan;
+
+    KvPrimaryIndex(KvTable table, int id, String name, IndexColumn[] columns,
+            IndexType indexType) {
+        super(table, id, name, columns, indexType);
+        scan = columns.length == 0;
+    }
+
+    @Override
+    public void add(Session session, Row row) {
+        if (!scan) {
+            // the scan index stores the row
+            return;
+        }
+        byte[] value = kvTable.writeRow(row);
+        KvPrimaryIndex pk = kvTable.getPrimaryIndex();
+        if (pk == null) {
+            while (true) {
+                long key = kvTable.nextRowKey();
+                if (put(session, KeyEncoder.encodeRowKey(key), value)) {
+                    row.setKey(key);
+                    break;
+                }
+            }
+        } else if (!put(session, kvTable.getKey(row), value)) {
+            throw pk.getDuplicateKeyException(row);
+        }
+    }
+
+    @Override
+    boolean addRows(Session session, ArrayList<Row> rows, ArrayList<byte[]> added) {
+        if (!scan) {
+            // the scan index stores the rows
+            return true;
+        }
+        boolean generated = kvTable.getPrimaryIndex() == null;
+        ArrayList<byte[][]> entries = New.arrayList(rows.size());
+        for (Row row : rows) {
+            if (generated) {
+                row.setKey(kvTable.nextRowKey());
+            }
+            entries.add(new byte[][] { kvTable.getKey(row), kvTable.writeRow(row) });
+        }
+        return putEntries(session, kvTable.getPlacement(), kvTable.getStore(),
+                entries, true, added);
+    }
+
+    @Override
+    void removeKeys(Session session, ArrayList<byte[]> keys) {
+        deleteKeys(session, kvTable.getPlacement(), kvTable.getStore(), keys);
+    }
+
+    private boolean put(Session session, byte[] key, byte[] value) {
+        KvPlacement placement = kvTable.getPlacement();
+        long start = System.nanoTime();
+        while (true) {
+            KvPlacement.Range r = placement.locate(key);
+            try {
+                String tx = kvTable.getTransactionId(session, r.endpoint);
+                return kvTable.getEngine().getClient(r.endpoint).put(
+                        kvTable.getStore(), key, value, true, tx);
+            } catch (RuntimeException e) {
+                kvTable.beforeRetry(session, placement, e, start);
+            }
+        }
+    }
+
+    @Override
+    public void remove(Session session, Row row) {
+        if (!scan) {
+            return;
+        }
+        byte[] key = kvTable.getKey(row);
+        KvPlacement placement = kvTable.getPlacement();
+        long start = System.nanoTime();
+        while (true) {
+            KvPlacement.Range r = placement.locate(key);
+            try {
+                String tx = kvTable.getTransactionId(session, r.endpoint);
+                kvTable.getEngine().getClient(r.endpoint).delete(kvTable.getStore(), key, tx);
+                return;
+            } catch (RuntimeException e) {
+                kvTable.beforeRetry(session, placement, e, start);
+            }
+        }
+    }
+
+    @Override
+    public Row getRow(Session session, long key) {
+        byte[] k = KeyEncoder.encodeRowKey(key);
+        byte[] value = kvTable.get(session, k);
+        return value == null ? null : kvTable.readRow(k, value);
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last) {
+        return find(session, first, last, null);
+    }
+
+    @Override
+    public Cursor find(TableFilter filter, SearchRow first, SearchRow last) {
+        KvFragment fragment = createFragment(filter);
+        int limit = getScanLimit(filter);
+        if (fragment.isSorted()) {
+            return findFirst(filter.getSession(), first, last, fragment, limit);
+        }
+        KvCursor cursor = find(filter.getSession(), first, last, fragment.getBytes());
+        if (limit > 0) {
+            cursor.setLimit(limit);
+        }
+        return cursor;
+    }
+
+    private KvCursor find(Session session, SearchRow first, SearchRow last, byte[] fragment) {
+        byte[][] range = getTableKeyRange(first, last);
+        return new KvCursor(session, kvTable, kvTable.getPlacement(), kvTable.getStore(),
+                range[0], range[1], fragment);
+    }
+
+    /**
+     * Read the first rows in the sort order of the fragment. Each range
+     * returns its first rows, and the rows of the ranges are then merged.
+     */
+    private Cursor findFirst(Session session, SearchRow first, SearchRow last,
+            KvFragment fragment, final int limit) {
+        final byte[] bytes = fragment.getBytes();
+        final String store = kvTable.getStore();
+        final String tx = kvTable.getTransactionId(session);
+        byte[][] range = getTableKeyRange(first, last);
+        ArrayList<KvClient.Batch> batches = runFragments(session, kvTable.getPlacement(),
+                range[0], range[1], new Fragment<KvClient.Batch>() {
+            @Override
+            public KvClient.Batch run(KvClient client, byte[] start, byte[] end) {
+                return client.scan(store, start, end, limit, bytes, tx);
+            }
+        });
+        ArrayList<ArrayList<Row>> lists = New.arrayList();
+        for (KvClient.Batch batch : batches) {
+            ArrayList<Row> rows = New.arrayList();
+            for (int i = 0; i < batch.keys.size(); i++) {
+                rows.add(kvTable.readRow(batch.keys.get(i), batch.values.get(i)));
+            }
+            lists.add(rows);
+        }
+        SortOrder sortOrder = new SortOrder(database, fragment.getSortColumns(),
+                fragment.getSortTypes(), null);
+        return new KvMergeCursor(sortOrder, lists, limit);
+    }
+
+    @Override
+    public IndexLookupBatch createLookupBatch(TableFilter[] filters, int filter) {
+        // each lookup of the scan index would read the whole table
+        return scan ? null : super.createLookupBatch(filters, filter);
+    }
+
+    @Override
+    byte[][] getTableKeyRange(SearchRow first, SearchRow last) {
+        return scan ? new byte[2][] : getKeyRange(first, last);
+    }
+
+    @Override
+    public String getPlanSQL() {
+        return scan ? table.getSQL() + ".tableScan" : super.getPlanSQL();
+    }
+
+    @Override
+    public String getCreateSQL() {
+        return scan ? null : super.getCreateSQL();
+    }
+
+    @Override
+    public void remove(Session session) {
+        if (scan) {
+            dropStore(kvTable.getPlacement(), kvTable.getStore());
+        }
+    }
+
+    @Override
+    public void truncate(Session session) {
+        if (scan) {
+            clearStore(session, kvTable.getPlacement(), kvTable.getStore());
+        }
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        return countStore(session, kvTable.getPlacement(), kvTable.getStore());
+    }
+
+}
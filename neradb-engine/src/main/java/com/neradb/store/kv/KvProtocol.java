@@ -0,0 +1,203 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The constants and helper methods of the network protocol of a storage node.
+ * <p>
+ * A request is the operation code, the name of the store (the qualified name
+ * of the table), and the arguments. The response is a status code, followed
+ * by the result if the status is {@link #STATUS_OK}, and by the message
+ * otherwise. Keys are byte arrays as created by {@link KeyEncoder}; a null
+ * start or end key means unbounded, and end keys are exclusive.
+ * </p>
+ * <p>
+ * Changes can belong to a transaction (see {@link KvCoordinator}): the
+ * storage node then keeps the old values until the transaction is committed
+ * or rolled back. For the operations of a transaction, the transaction id is
+ * sent instead of the store name.
+ * </p>
+ * <p>
+ * Reads can use the snapshot of a transaction: the transaction id ends with
+ * the start timestamp of the transaction (in hex), and the result contains
+ * the changes that were committed before this timestamp, and the changes of
+ * the transaction itself. Reads without transaction id see the latest
+ * changes, also if they are not committed yet.
+ * </p>
+ */
+public class KvProtocol {
+
+    /**
+     * Get the value of a key.
+     * Arguments: key, transaction id (empty if none). Result: boolean found,
+     * value.
+     */
+    public static final int GET = 1;
+
+    /**
+     * Store a value.
+     * Arguments: key, value, boolean only if absent, transaction id (empty if
+     * none). Result: boolean stored.
+     */
+    public static final int PUT = 2;
+
+    /**
+     * Remove a key.
+     * Arguments: key, transaction id (empty if none). Result: boolean
+     * removed.
+     */
+    public static final int DELETE = 3;
+
+    /**
+     * Read the entries in a key range that match the fragment (see
+     * {@link KvFragment}), in key order, or in the sort order of the fragment.
+     * Arguments: start, end, int limit, fragment, transaction id (empty if
+     * none). Result: int count, count times (key, value), boolean more
+     * (always false with a sort order).
+     */
+    public static final int SCAN = 4;
+
+    /**
+     * Count the entries in a key range.
+     * Arguments: start, end, transaction id (empty if none). Result: long
+     * count.
+     */
+    public static final int COUNT = 5;
+
+    /**
+     * Remove the entries in a key range.
+     * Arguments: start, end. Result: long count.
+     */
+    public static final int DELETE_RANGE = 6;
+
+    /**
+     * Remove the store.
+     * Arguments: none. Result: none.
+     */
+    public static final int DROP = 7;
+
+    /**
+     * Replace the entries in a key range, to move the range from another
+     * storage node. The checks of the ranges this node serves are skipped.
+     * Arguments: start, end, boolean clear the range first, long timestamp
+     * (snapshots before it can not be read on this node), int count, count
+     * times (key, value). Result: none.
+     */
+    public static final int IMPORT = 8;
+
+    /**
+     * Compute the groups and the partial results of the aggregates of the
+     * entries in a key range that match the fragment (see
+     * {@link KvFragment}).
+     * Arguments: start, end, fragment, transaction id (empty if none).
+     * Result: the serialized groups.
+     */
+    public static final int AGGREGATE = 9;
+
+    /**
+     * Prepare a transaction: check that its changes can be committed, and
+     * keep them until the transaction is committed or rolled back.
+     * Arguments: none. Result: long prepare timestamp (the commit timestamp
+     * needs to be larger), or -1 if the transaction needs to be rolled back.
+     */
+    public static final int PREPARE = 10;
+
+    /**
+     * Commit a transaction. Nothing is done if the transaction is not known.
+     * If the transaction was not prepared, the storage node may use a larger
+     * commit timestamp.
+     * Arguments: long commit timestamp. Result: long commit timestamp.
+     */
+    public static final int COMMIT = 11;
+
+    /**
+     * Roll back a transaction by restoring the old values, in reverse order.
+     * Nothing is done if the transaction is not known.
+     * Arguments: none. Result: none.
+     */
+    public static final int ROLLBACK = 12;
+
+    /**
+     * List the open transactions of a coordinator (the name is the
+     * coordinator id).
+     * Arguments: none. Result: int count, count times (transaction id,
+     * boolean prepared).
+     */
+    public static final int RECOVER = 13;
+
+    /**
+     * Store a list of values, sorted by key, that all belong to one range.
+     * The values are stored in order, until a key already exists.
+     * Arguments: boolean only if absent, transaction id (empty if none), int
+     * count, count times (key, value). Result: int index of the first value
+     * that was not stored, or -1 if all were stored.
+     */
+    public static final int PUT_ALL = 14;
+
+    /**
+     * The request was successful.
+     */
+    public static final int STATUS_OK = 0;
+
+    /**
+     * The request failed.
+     */
+    public static final int STATUS_ERROR = 1;
+
+    /**
+     * The request was rejected because the range is being moved, or was
+     * moved to another node. The request should be sent again after the
+     * ranges were reloaded.
+     */
+    public static final int STATUS_RETRY = 2;
+
+    /**
+     * The request was rejected because a key was changed by a transaction
+     * that committed after the transaction of the request started. The
+     * transaction needs to be rolled back.
+     */
+    public static final int STATUS_CONFLICT = 3;
+
+    private KvProtocol() {
+        // utility class
+    }
+
+    /**
+     * Write a byte array that may be null.
+     *
+     * @param out the output
+     * @param b the byte array
+     */
+    public static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    /**
+     * Read a byte array that may be null.
+     *
+     * @param in the input
+     * @return the byte array
+     */
+    public static byte[] readBytes(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+
+}
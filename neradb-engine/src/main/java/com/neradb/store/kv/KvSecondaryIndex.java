@@ -0,0 +1,148 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.util.ArrayList;
+
+import com.neradb.common.DbException;
+import com.neradb.common.utils.New;
+import com.neradb.dbobject.index.Cursor;
+import com.neradb.dbobject.index.IndexType;
+import com.neradb.dbobject.table.IndexColumn;
+import com.neradb.engine.Session;
+import com.neradb.result.Row;
+import com.neradb.result.SearchRow;
+
+/**
+ * A secondary index of a range partitioned table. The index is stored in a
+ * separate store; the key of an entry is the encoded index columns followed by
+ * the key of the row, and the value is the key of the row. Rows are read from
+ * the store of the table.
+ * <p>
+ * Uniqueness is checked before the entry is added, which is not atomic if
+ * multiple databases change the table concurrently.
+ * </p>
+ */
+public class KvSecondaryIndex extends KvIndex {
+
+    private final String store;
+    private final KvPlacement placement;
+
+    KvSecondaryIndex(KvTable table, int id, String name, IndexColumn[] columns,
+            IndexType indexType) {
+        super(table, id, name, columns, indexType);
+        store = table.getStore() + "#" + name;
+        placement = table.createPlacement(store);
+    }
+
+    @Override
+    public void add(Session session, final Row row) {
+        final byte[] rowKey = kvTable.getKey(row);
+        byte[] prefix = encodeKey(row, columns.length);
+        if (indexType.isUnique() && !containsNullAndAllowMultipleNull(row)) {
+            Cursor cursor = new KvCursor(session, kvTable, placement, store, prefix,
+                    KeyEncoder.prefixEnd(prefix), null) {
+                @Override
+                protected Row createRow(byte[] key, byte[] value) {
+                    return KeyEncoder.compare(value, rowKey) == 0 ? null : row;
+                }
+            };
+            if (cursor.next()) {
+                throw getDuplicateKeyException(row);
+            }
+        }
+        byte[] key = getEntryKey(prefix, rowKey);
+        long start = System.nanoTime();
+        while (true) {
+            KvPlacement.Range r = placement.locate(key);
+            try {
+                String tx = kvTable.getTransactionId(session, r.endpoint);
+                kvTable.getEngine().getClient(r.endpoint).put(store, key, rowKey, false, tx);
+                return;
+            } catch (RuntimeException e) {
+                kvTable.beforeRetry(session, placement, e, start);
+            }
+        }
+    }
+
+    private static byte[] getEntryKey(byte[] prefix, byte[] rowKey) {
+        byte[] key = new byte[prefix.length + rowKey.length];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        System.arraycopy(rowKey, 0, key, prefix.length, rowKey.length);
+        return key;
+    }
+
+    /**
+     * Add the entries of the rows. Unique indexes are not supported, as they
+     * need a lookup per row (see {@link KvTable#addRows}).
+     */
+    @Override
+    boolean addRows(Session session, ArrayList<Row> rows, ArrayList<byte[]> added) {
+        ArrayList<byte[][]> entries = New.arrayList(rows.size());
+        for (Row row : rows) {
+            byte[] rowKey = kvTable.getKey(row);
+            entries.add(new byte[][] {
+                    getEntryKey(encodeKey(row, columns.length), rowKey), rowKey });
+        }
+        return putEntries(session, placement, store, entries, false, added);
+    }
+
+    @Override
+    void removeKeys(Session session, ArrayList<byte[]> keys) {
+        deleteKeys(session, placement, store, keys);
+    }
+
+    @Override
+    public void remove(Session session, Row row) {
+        byte[] rowKey = kvTable.getKey(row);
+        byte[] key = getEntryKey(encodeKey(row, columns.length), rowKey);
+        long start = System.nanoTime();
+        while (true) {
+            KvPlacement.Range r = placement.locate(key);
+            try {
+                String tx = kvTable.getTransactionId(session, r.endpoint);
+                kvTable.getEngine().getClient(r.endpoint).delete(store, key, tx);
+                return;
+            } catch (RuntimeException e) {
+                kvTable.beforeRetry(session, placement, e, start);
+            }
+        }
+    }
+
+    @Override
+    public Cursor find(final Session session, SearchRow first, SearchRow last) {
+        byte[][] range = getKeyRange(first, last);
+        return new KvCursor(session, kvTable, placement, store, range[0], range[1], null) {
+            @Override
+            protected Row createRow(byte[] key, byte[] rowKey) {
+                byte[] value = kvTable.get(session, rowKey);
+                // null if the row was removed concurrently
+                return value == null ? null : kvTable.readRow(rowKey, value);
+            }
+        };
+    }
+
+    @Override
+    public void remove(Session session) {
+        dropStore(placement, store);
+    }
+
+    @Override
+    public void truncate(Session session) {
+        clearStore(session, placement, store);
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        return countStore(session, placement, store);
+    }
+
+    @Override
+    public void checkRename() {
+        throw DbException.getUnsupportedException("RENAME of an index of a range partitioned table");
+    }
+
+}
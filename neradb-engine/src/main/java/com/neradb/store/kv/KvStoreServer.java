@@ -0,0 +1,1845 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.neradb.meta.HybridClock;
+import org.neradb.meta.NodeAssignment;
+import org.neradb.meta.NodeReport;
+import org.neradb.meta.RangeInfo;
+import org.neradb.meta.RangeMove;
+import org.neradb.meta.RangeStats;
+import org.neradb.meta.client.MetaClient;
+
+/**
+ * A storage node: an in-memory, sorted key-value store per table, that is
+ * accessed by the SQL nodes over the network (see {@link KvProtocol}).
+ * <p>
+ * Usage: <code>KvStoreServer &lt;port&gt; [&lt;nodeId&gt; &lt;metaServers&gt;]</code>.
+ * If the meta servers are set, the node periodically reports its address,
+ * its load, and the statistics of the ranges it serves, so that the ranges
+ * of the tables can be placed on it, and split, merged and moved (see
+ * <code>RangeScheduler</code>). The response lists the ranges the node
+ * serves, and the ranges to move to another node.
+ * </p>
+ * <p>
+ * Once the node received the ranges it serves, it rejects the requests for
+ * all other key ranges, so that SQL nodes that still use an old placement
+ * reload it. Rejected requests are retried by the SQL nodes. The size and
+ * the number of keys of each range are updated with each change, so that
+ * the reports don't need to read the data.
+ * </p>
+ * <p>
+ * To move a range, the node rejects writes to the range, copies it to the
+ * target node, and reports the move as completed. Once the target is the
+ * leader of the range, the node removes its copy.
+ * </p>
+ * <p>
+ * For changes that belong to a transaction, the node keeps the old values
+ * until the transaction is committed, so that it can be rolled back (see
+ * {@link KvCoordinator}). A key that was changed by an open transaction is
+ * locked: changes of other transactions are rejected, and retried by the SQL
+ * node until the lock timeout. A transaction can not change a key that was
+ * changed by a transaction that committed after it started, and is rolled
+ * back. A range that contains changes of open transactions is not moved; the
+ * move is retried with the next report.
+ * </p>
+ * <p>
+ * The old versions of the keys that transactions changed are kept for a
+ * while, so that reads can use the snapshot of a transaction. The node has a
+ * hybrid logical clock that is advanced by each snapshot read, so that the
+ * transactions that commit on this node afterwards get a larger commit
+ * timestamp. A snapshot read waits for a prepared transaction that may
+ * commit before the snapshot. Snapshots that are older than the retention
+ * time, or older than the move of a range to this node, can not be read.
+ * Read-only transactions (with an id that starts with
+ * {@link #READ_ONLY_PREFIX}) only read their snapshot, and can not change
+ * data.
+ * </p>
+ */
+public class KvStoreServer {
+
+    /**
+     * The unsigned lexicographic order of keys.
+     */
+    static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return KeyEncoder.compare(a, b);
+        }
+    };
+
+    /**
+     * The prefix of the ids of read-only transactions (that read a stale
+     * snapshot). The ids of other transactions are hex numbers, so they
+     * never start with it.
+     */
+    static final String READ_ONLY_PREFIX = "r:";
+
+    private static final int REPORT_INTERVAL = 1000;
+
+    /**
+     * The minimum time between two reports, if a report was requested early
+     * because of a request for a range that the node doesn't know yet.
+     */
+    private static final int MIN_REPORT_INTERVAL = 100;
+
+    /**
+     * How long a range that was moved to another node is remembered, to
+     * explain why requests for it are rejected.
+     */
+    private static final long RELEASE_DELAY = 10000;
+
+    /**
+     * How long old versions are kept for snapshot reads, in milliseconds.
+     */
+    private static final long HISTORY_RETENTION = 60000;
+
+    /**
+     * How long a snapshot read waits for a prepared transaction, in
+     * milliseconds, before it is rejected (and retried by the SQL node).
+     */
+    private static final long PREPARED_WAIT = 1000;
+
+    /**
+     * The commit timestamp of a version while the transaction is open, and
+     * the prepare timestamp while a transaction is being prepared.
+     */
+    private static final long PENDING = Long.MAX_VALUE;
+
+    /**
+     * The commit timestamp of a version of a change that was rolled back.
+     */
+    private static final long ABORTED = -1;
+
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<byte[], byte[]>> stores =
+            new ConcurrentHashMap<String, ConcurrentSkipListMap<byte[], byte[]>>();
+    private final Set<Socket> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final ReentrantReadWriteLock writeLock = new ReentrantReadWriteLock();
+    private final Set<Long> frozen =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final Set<Long> completedMoves =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final Set<Long> queuedMoves =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final LinkedBlockingQueue<RangeMove> moveQueue =
+            new LinkedBlockingQueue<RangeMove>();
+    private final CopyOnWriteArrayList<Released> released =
+            new CopyOnWriteArrayList<Released>();
+    private final ConcurrentHashMap<String, Participant> transactions =
+            new ConcurrentHashMap<String, Participant>();
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<byte[], Version>> versions =
+            new ConcurrentHashMap<String, ConcurrentSkipListMap<byte[], Version>>();
+    private final CopyOnWriteArrayList<Imported> imported =
+            new CopyOnWriteArrayList<Imported>();
+    private final HybridClock clock = new HybridClock();
+    private final String host;
+    private final int port;
+    private volatile HashMap<String, OwnedRange[]> owned =
+            new HashMap<String, OwnedRange[]>();
+
+    /**
+     * Whether the node received the ranges it serves. Before that, all
+     * requests are accepted (the meta servers are not used, or not reached
+     * yet).
+     */
+    private volatile boolean assigned;
+
+    private final Object reportSync = new Object();
+    private boolean reportRequested;
+    private long lastReport = System.currentTimeMillis();
+    private long splitBytes = 64L * 1024 * 1024;
+    private double splitQps = 2000;
+    private ServerSocket serverSocket;
+    private volatile boolean stop;
+
+    public KvStoreServer(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Start a storage node and wait until the process is stopped.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String... args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: KvStoreServer <port> [<nodeId> <metaServers>]");
+            return;
+        }
+        KvStoreServer server = new KvStoreServer("localhost", Integer.parseInt(args[0]));
+        server.start();
+        if (args.length > 2) {
+            server.startReporting(Integer.parseInt(args[1]), args[2]);
+        }
+        System.out.println("Storage node started at " + server.getAddress());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Get the address of this node.
+     *
+     * @return the address (<code>tcp://host:port</code>)
+     */
+    public String getAddress() {
+        return "tcp://" + host + ":" + port;
+    }
+
+    /**
+     * Start listening.
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(host, port));
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "H2 Storage Listener " + port);
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop) {
+                    try {
+                        Thread.sleep(HISTORY_RETENTION / 10);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    removeOldVersions();
+                }
+            }
+        }, "H2 Storage Cleaner " + port);
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop) {
+                    RangeMove m;
+                    try {
+                        m = moveQueue.take();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    try {
+                        if (move(m)) {
+                            completedMoves.add(m.getRangeId());
+                        }
+                    } catch (RuntimeException e) {
+                        // retried if the move is still assigned
+                    } finally {
+                        queuedMoves.remove(m.getRangeId());
+                    }
+                }
+            }
+        }, "H2 Storage Mover " + port);
+    }
+
+    /**
+     * Set the size and the requests per second above which the meta servers
+     * split a range (see <code>RangeScheduler.setSplitThreshold</code>).
+     * The split key of a range is only reported once it reaches half of
+     * either value.
+     *
+     * @param bytes the size in bytes
+     * @param qps the requests per second
+     */
+    public void setSplitThreshold(long bytes, double qps) {
+        this.splitBytes = bytes;
+        this.splitQps = qps;
+    }
+
+    /**
+     * Report the address, the load and the range statistics of this node to
+     * the meta servers periodically, and move ranges as requested.
+     *
+     * @param nodeId the id of this node
+     * @param metaServers the comma separated endpoints of the meta servers
+     */
+    public void startReporting(final int nodeId, String metaServers) {
+        final MetaClient client = MetaClient.create(metaServers);
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop) {
+                    try {
+                        assign(client.report(createReport(nodeId)));
+                    } catch (IOException e) {
+                        // retry with the next report
+                    }
+                    try {
+                        Thread.sleep(MIN_REPORT_INTERVAL);
+                        waitForReport(REPORT_INTERVAL - MIN_REPORT_INTERVAL);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                client.close();
+            }
+        }, "H2 Storage Reporter " + port);
+    }
+
+    private void waitForReport(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        synchronized (reportSync) {
+            while (!reportRequested) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                reportSync.wait(wait);
+            }
+            reportRequested = false;
+        }
+    }
+
+    private void requestReport() {
+        synchronized (reportSync) {
+            reportRequested = true;
+            reportSync.notifyAll();
+        }
+    }
+
+    /**
+     * Create the report of this node.
+     *
+     * @param nodeId the id of this node
+     * @return the report
+     */
+    NodeReport createReport(int nodeId) {
+        long now = System.currentTimeMillis();
+        long elapsed = Math.max(1, now - lastReport);
+        lastReport = now;
+        ArrayList<RangeStats> stats = new ArrayList<RangeStats>();
+        long diskBytes = 0;
+        for (Map.Entry<String, OwnedRange[]> e : owned.entrySet()) {
+            ConcurrentSkipListMap<byte[], byte[]> map = stores.get(e.getKey());
+            for (OwnedRange r : e.getValue()) {
+                long bytes = Math.max(0, r.bytes.get());
+                long count = Math.max(0, r.keys.get());
+                double qps = r.requests.getAndSet(0) * 1000d / elapsed;
+                byte[] split = null;
+                if (map != null && count > 1 &&
+                        (bytes >= splitBytes / 2 || qps >= splitQps / 2)) {
+                    // only read the data if the range may be split
+                    long half = count / 2;
+                    for (byte[] k : subMap(map, r.start, r.end).keySet()) {
+                        if (half-- <= 0) {
+                            split = k;
+                            break;
+                        }
+                    }
+                }
+                diskBytes += bytes;
+                stats.add(new RangeStats(r.info.getRangeId(), r.info.getStartKey(),
+                        r.info.getEndKey(), bytes, count, qps,
+                        split == null ? null : KeyEncoder.toHex(split)));
+            }
+        }
+        long[] completed = new long[completedMoves.size()];
+        int i = 0;
+        for (Iterator<Long> it = completedMoves.iterator(); it.hasNext() &&
+                i < completed.length;) {
+            completed[i++] = it.next();
+        }
+        return new NodeReport(nodeId, getAddress(), getCpuLoad(), diskBytes,
+                stats, Arrays.copyOf(completed, i));
+    }
+
+    private static double getCpuLoad() {
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        if (load < 0) {
+            // not available
+            return 0;
+        }
+        return Math.min(1, load / Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Process the response to a report: update the ranges this node serves,
+     * remove the data of ranges it no longer serves, and start the moves.
+     *
+     * @param assignment the ranges and moves of this node
+     */
+    void assign(NodeAssignment assignment) {
+        HashSet<Long> moving = new HashSet<Long>();
+        for (RangeMove m : assignment.getMoves()) {
+            moving.add(m.getRangeId());
+        }
+        HashMap<Long, OwnedRange> old = new HashMap<Long, OwnedRange>();
+        for (OwnedRange[] list : owned.values()) {
+            for (OwnedRange r : list) {
+                old.put(r.info.getRangeId(), r);
+            }
+        }
+        HashMap<String, ArrayList<OwnedRange>> lists = new HashMap<String, ArrayList<OwnedRange>>();
+        ArrayList<OwnedRange> added = new ArrayList<OwnedRange>();
+        for (RangeInfo info : assignment.getRanges()) {
+            OwnedRange prev = old.get(info.getRangeId());
+            OwnedRange r = new OwnedRange(info, prev);
+            if (r.bytes != (prev == null ? null : prev.bytes)) {
+                added.add(r);
+            }
+            ArrayList<OwnedRange> list = lists.get(info.getTableName());
+            if (list == null) {
+                list = new ArrayList<OwnedRange>();
+                lists.put(info.getTableName(), list);
+            }
+            list.add(r);
+            for (Released x : released) {
+                if (x.store.equals(info.getTableName()) &&
+                        overlaps(x.start, x.end, r.start, r.end)) {
+                    // the range was moved back
+                    released.remove(x);
+                }
+            }
+        }
+        HashMap<String, OwnedRange[]> map = new HashMap<String, OwnedRange[]>();
+        for (Map.Entry<String, ArrayList<OwnedRange>> e : lists.entrySet()) {
+            map.put(e.getKey(), e.getValue().toArray(new OwnedRange[0]));
+        }
+        HashSet<Long> moved = new HashSet<Long>(completedMoves);
+        writeLock.writeLock().lock();
+        try {
+            // the statistics of new ranges (or ranges that were split or
+            // merged), while no changes are made
+            for (OwnedRange r : added) {
+                ConcurrentSkipListMap<byte[], byte[]> data = stores.get(r.info.getTableName());
+                if (data != null) {
+                    for (Map.Entry<byte[], byte[]> e : subMap(data, r.start, r.end).entrySet()) {
+                        r.add(e.getKey(), null, e.getValue());
+                    }
+                }
+            }
+            owned = map;
+            assigned = true;
+            // moves that were cancelled
+            frozen.retainAll(moving);
+        } finally {
+            writeLock.writeLock().unlock();
+        }
+        completedMoves.retainAll(moving);
+        long now = System.currentTimeMillis();
+        for (OwnedRange r : old.values()) {
+            String store = r.info.getTableName();
+            if (isOwned(map.get(store), r.start, r.end)) {
+                continue;
+            }
+            if (moved.contains(r.info.getRangeId())) {
+                released.add(new Released(store, r.start, r.end, now + RELEASE_DELAY));
+            }
+            ConcurrentSkipListMap<byte[], byte[]> data = stores.get(store);
+            if (data != null) {
+                subMap(data, r.start, r.end).clear();
+            }
+            ConcurrentSkipListMap<byte[], Version> v = versions.get(store);
+            if (v != null) {
+                subMap(v, r.start, r.end).clear();
+            }
+        }
+        for (RangeMove m : assignment.getMoves()) {
+            long id = m.getRangeId();
+            if (!completedMoves.contains(id) && queuedMoves.add(id)) {
+                moveQueue.offer(m);
+            }
+        }
+    }
+
+    /**
+     * Copy a range to the target node of the move. Writes to the range are
+     * rejected from now on, until the move is cancelled or the range is no
+     * longer served by this node.
+     *
+     * @param m the move
+     * @return true if the range was copied
+     */
+    private boolean move(RangeMove m) {
+        String store = m.getTableName();
+        byte[] start = KeyEncoder.fromHex(m.getStartKey());
+        byte[] end = KeyEncoder.fromHex(m.getEndKey());
+        writeLock.writeLock().lock();
+        try {
+            if (!isOwned(owned.get(store), start, end)) {
+                return false;
+            }
+            if (hasOpenChanges(store, start, end)) {
+                // the old values are not moved with the range
+                return false;
+            }
+            // wait for the writes in progress
+            frozen.add(m.getRangeId());
+        } finally {
+            writeLock.writeLock().unlock();
+        }
+        // larger than the commit timestamps of the entries, as no
+        // transaction is open
+        long timestamp = clock.now();
+        KvClient client = new KvClient(m.getTargetAddress());
+        try {
+            ArrayList<byte[]> keys = new ArrayList<byte[]>();
+            ArrayList<byte[]> values = new ArrayList<byte[]>();
+            boolean first = true;
+            for (Map.Entry<byte[], byte[]> e : subMap(getStore(store), start, end).entrySet()) {
+                keys.add(e.getKey());
+                values.add(e.getValue());
+                if (keys.size() >= KvCursor.BATCH_SIZE) {
+                    client.importRange(store, start, end, first, timestamp, keys, values);
+                    first = false;
+                    keys.clear();
+                    values.clear();
+                }
+            }
+            client.importRange(store, start, end, first, timestamp, keys, values);
+        } finally {
+            client.close();
+        }
+        return frozen.contains(m.getRangeId());
+    }
+
+    private boolean hasOpenChanges(String store, byte[] start, byte[] end) {
+        for (Participant t : transactions.values()) {
+            synchronized (t) {
+                for (int i = 0; i < t.keys.size(); i++) {
+                    byte[] key = t.keys.get(i);
+                    if (t.stores.get(i).equals(store) &&
+                            overlaps(start, end, key, KvCursor.successor(key))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the key may still be changed on this node, that is, the
+     * range of the key is not being moved and was not moved to another node.
+     *
+     * @param store the store name
+     * @param key the key
+     * @return true if yes
+     */
+    private boolean isWritable(String store, byte[] key) {
+        byte[] end = KvCursor.successor(key);
+        OwnedRange[] list = owned.get(store);
+        if (assigned && !isCovered(list, key, end)) {
+            return false;
+        }
+        if (list != null) {
+            for (OwnedRange r : list) {
+                if (overlaps(r.start, r.end, key, end) &&
+                        frozen.contains(r.info.getRangeId())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isOwned(OwnedRange[] list, byte[] start, byte[] end) {
+        if (list != null) {
+            for (OwnedRange r : list) {
+                if (overlaps(r.start, r.end, start, end)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean overlaps(byte[] start1, byte[] end1, byte[] start2,
+            byte[] end2) {
+        return (end1 == null || start2 == null || KeyEncoder.compare(start2, end1) < 0) &&
+                (end2 == null || start1 == null || KeyEncoder.compare(start1, end2) < 0);
+    }
+
+    /**
+     * Check whether the ranges cover a key range completely.
+     *
+     * @param list the ranges, ordered by start key, or null
+     * @param start the first key, or null
+     * @param end the last key (exclusive), or null
+     * @return true if yes
+     */
+    private static boolean isCovered(OwnedRange[] list, byte[] start, byte[] end) {
+        if (list == null) {
+            return false;
+        }
+        byte[] pos = start;
+        for (OwnedRange r : list) {
+            if (r.end != null && pos != null && KeyEncoder.compare(r.end, pos) <= 0) {
+                continue;
+            }
+            if (r.start != null && (pos == null || KeyEncoder.compare(r.start, pos) > 0)) {
+                // a gap
+                return false;
+            }
+            if (r.end == null || end != null && KeyEncoder.compare(r.end, end) >= 0) {
+                return true;
+            }
+            pos = r.end;
+        }
+        return false;
+    }
+
+    /**
+     * Get the range that contains a key.
+     *
+     * @param store the store name
+     * @param key the key
+     * @return the range, or null if the node doesn't serve it
+     */
+    private OwnedRange getOwnedRange(String store, byte[] key) {
+        OwnedRange[] list = owned.get(store);
+        if (list == null) {
+            return null;
+        }
+        int low = 0, high = list.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            OwnedRange r = list[mid];
+            if (r.start != null && KeyEncoder.compare(key, r.start) < 0) {
+                high = mid - 1;
+            } else if (r.end != null && KeyEncoder.compare(key, r.end) >= 0) {
+                low = mid + 1;
+            } else {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Update the statistics of the range of a key that was changed.
+     *
+     * @param store the store name
+     * @param key the key
+     * @param old the old value, or null if the key didn't exist
+     * @param value the new value, or null if the key was removed
+     */
+    private void changed(String store, byte[] key, byte[] old, byte[] value) {
+        if (old != value) {
+            OwnedRange r = getOwnedRange(store, key);
+            if (r != null) {
+                r.add(key, old, value);
+            }
+        }
+    }
+
+    /**
+     * Remove the entries of a key range.
+     *
+     * @param name the store name
+     * @param map the store
+     * @param start the first key, or null
+     * @param end the last key (exclusive), or null
+     * @return the number of entries that were removed
+     */
+    private long clear(String name, ConcurrentSkipListMap<byte[], byte[]> map,
+            byte[] start, byte[] end) {
+        NavigableMap<byte[], byte[]> m = subMap(map, start, end);
+        long count = 0;
+        for (Map.Entry<byte[], byte[]> e; (e = m.pollFirstEntry()) != null;) {
+            changed(name, e.getKey(), e.getValue(), null);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Check whether a request may be processed, and count it. Once the node
+     * received its ranges, requests for other key ranges are rejected.
+     *
+     * @param name the store name
+     * @param start the first key of the request, or null
+     * @param end the last key (exclusive) of the request, or null
+     * @param write whether the request changes the data
+     */
+    private void check(String name, byte[] start, byte[] end, boolean write) {
+        OwnedRange[] list = owned.get(name);
+        if (assigned && !isCovered(list, start, end)) {
+            long now = System.currentTimeMillis();
+            for (Released r : released) {
+                if (r.until < now) {
+                    released.remove(r);
+                } else if (r.store.equals(name) && overlaps(r.start, r.end, start, end)) {
+                    throw new RetryException("Range of " + name + " moved");
+                }
+            }
+            // the range may be new
+            requestReport();
+            throw new RetryException("Range of " + name + " is not served by this node");
+        }
+        if (list != null) {
+            for (OwnedRange r : list) {
+                if (overlaps(r.start, r.end, start, end)) {
+                    r.requests.incrementAndGet();
+                    if (write && frozen.contains(r.info.getRangeId())) {
+                        throw new RetryException("Range of " + name + " is moving");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the server. The data is lost.
+     */
+    public void stop() {
+        stop = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+        for (Socket s : connections) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void startThread(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void accept() {
+        while (!stop) {
+            final Socket s;
+            try {
+                s = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            startThread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(s);
+                }
+            }, "H2 Storage Connection " + s.getRemoteSocketAddress());
+        }
+    }
+
+    private void serve(Socket s) {
+        connections.add(s);
+        try {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(s.getOutputStream()));
+            while (!stop) {
+                int op;
+                try {
+                    op = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                String name = in.readUTF();
+                ByteArrayOutputStream buff = new ByteArrayOutputStream();
+                try {
+                    handle(op, name, in, new DataOutputStream(buff));
+                } catch (RetryException e) {
+                    out.writeInt(KvProtocol.STATUS_RETRY);
+                    out.writeUTF(e.getMessage());
+                    out.flush();
+                    continue;
+                } catch (ConflictException e) {
+                    out.writeInt(KvProtocol.STATUS_CONFLICT);
+                    out.writeUTF(e.getMessage());
+                    out.flush();
+                    continue;
+                } catch (RuntimeException e) {
+                    out.writeInt(KvProtocol.STATUS_ERROR);
+                    out.writeUTF(String.valueOf(e));
+                    out.flush();
+                    continue;
+                }
+                out.writeInt(KvProtocol.STATUS_OK);
+                buff.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // connection closed
+        } finally {
+            connections.remove(s);
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Get the store with the given name.
+     *
+     * @param name the name
+     * @return the store
+     */
+    ConcurrentSkipListMap<byte[], byte[]> getStore(String name) {
+        ConcurrentSkipListMap<byte[], byte[]> map = stores.get(name);
+        if (map == null) {
+            map = new ConcurrentSkipListMap<byte[], byte[]>(KEY_ORDER);
+            ConcurrentSkipListMap<byte[], byte[]> old = stores.putIfAbsent(name, map);
+            if (old != null) {
+                map = old;
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Get the old versions of the keys of the store with the given name.
+     *
+     * @param name the name
+     * @return the versions
+     */
+    private ConcurrentSkipListMap<byte[], Version> getVersions(String name) {
+        ConcurrentSkipListMap<byte[], Version> map = versions.get(name);
+        if (map == null) {
+            map = new ConcurrentSkipListMap<byte[], Version>(KEY_ORDER);
+            ConcurrentSkipListMap<byte[], Version> old = versions.putIfAbsent(name, map);
+            if (old != null) {
+                map = old;
+            }
+        }
+        return map;
+    }
+
+    private static <V> NavigableMap<byte[], V> subMap(
+            ConcurrentSkipListMap<byte[], V> map, byte[] start, byte[] end) {
+        if (start == null) {
+            return end == null ? map : map.headMap(end, false);
+        }
+        return end == null ? map.tailMap(start, true) : map.subMap(start, true, end, false);
+    }
+
+    /**
+     * Process a request (after the operation and the store name were read).
+     *
+     * @param op the operation
+     * @param name the store name
+     * @param in the arguments
+     * @param out the result
+     */
+    void handle(int op, String name, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        switch (op) {
+        case KvProtocol.GET: {
+            byte[] key = KvProtocol.readBytes(in);
+            String transaction = in.readUTF();
+            byte[] end = KvCursor.successor(key);
+            check(name, key, end, false);
+            Snapshot s = getSnapshot(name, key, end, transaction);
+            byte[] value = read(name, key, getStore(name).get(key), s);
+            out.writeBoolean(value != null);
+            KvProtocol.writeBytes(out, value);
+            break;
+        }
+        case KvProtocol.PUT: {
+            byte[] key = KvProtocol.readBytes(in);
+            byte[] value = KvProtocol.readBytes(in);
+            boolean ifAbsent = in.readBoolean();
+            Participant t = getTransaction(in.readUTF());
+            ConcurrentSkipListMap<byte[], byte[]> map = getStore(name);
+            writeLock.readLock().lock();
+            try {
+                check(name, key, KvCursor.successor(key), true);
+                out.writeBoolean(put(name, map, key, value, ifAbsent, t));
+            } finally {
+                writeLock.readLock().unlock();
+            }
+            break;
+        }
+        case KvProtocol.PUT_ALL: {
+            boolean ifAbsent = in.readBoolean();
+            Participant t = getTransaction(in.readUTF());
+            int count = in.readInt();
+            byte[][] keys = new byte[count][];
+            byte[][] values = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                keys[i] = KvProtocol.readBytes(in);
+                values[i] = KvProtocol.readBytes(in);
+            }
+            ConcurrentSkipListMap<byte[], byte[]> map = getStore(name);
+            writeLock.readLock().lock();
+            try {
+                int failed = -1;
+                if (count > 0) {
+                    // the keys are sorted
+                    check(name, keys[0], KvCursor.successor(keys[count - 1]), true);
+                    ConcurrentSkipListMap<byte[], Version> versions = getVersions(name);
+                    synchronized (versions) {
+                        // no key is changed if one of them conflicts
+                        if (t != null) {
+                            for (byte[] key : keys) {
+                                checkConflict(name, key, versions.get(key), t);
+                            }
+                        }
+                        for (int i = 0; i < count; i++) {
+                            if (!put(name, map, keys[i], values[i], ifAbsent, t)) {
+                                failed = i;
+                                break;
+                            }
+                        }
+                    }
+                }
+                out.writeInt(failed);
+            } finally {
+                writeLock.readLock().unlock();
+            }
+            break;
+        }
+        case KvProtocol.DELETE: {
+            byte[] key = KvProtocol.readBytes(in);
+            Participant t = getTransaction(in.readUTF());
+            writeLock.readLock().lock();
+            try {
+                check(name, key, KvCursor.successor(key), true);
+                ConcurrentSkipListMap<byte[], byte[]> map = getStore(name);
+                out.writeBoolean(remove(name, map, key, t));
+            } finally {
+                writeLock.readLock().unlock();
+            }
+            break;
+        }
+        case KvProtocol.SCAN: {
+            byte[] start = KvProtocol.readBytes(in);
+            byte[] end = KvProtocol.readBytes(in);
+            int limit = in.readInt();
+            KvFragment fragment = KvFragment.read(KvProtocol.readBytes(in));
+            String transaction = in.readUTF();
+            check(name, start, end, false);
+            Iterable<Map.Entry<byte[], byte[]>> entries = getEntries(name, start, end,
+                    getSnapshot(name, start, end, transaction));
+            ByteArrayOutputStream rows = new ByteArrayOutputStream();
+            DataOutputStream o = new DataOutputStream(rows);
+            int count = 0;
+            boolean more = false;
+            if (fragment != null && fragment.isSorted()) {
+                for (byte[][] e : fragment.top(entries, limit)) {
+                    KvProtocol.writeBytes(o, e[0]);
+                    KvProtocol.writeBytes(o, e[1]);
+                    count++;
+                }
+            } else {
+                for (Map.Entry<byte[], byte[]> e : entries) {
+                    if (count >= limit) {
+                        more = true;
+                        break;
+                    }
+                    if (fragment == null) {
+                        KvProtocol.writeBytes(o, e.getKey());
+                        KvProtocol.writeBytes(o, e.getValue());
+                        count++;
+                    } else {
+                        byte[] row = KvTable.expandRow(e.getValue());
+                        if (fragment.test(row)) {
+                            KvProtocol.writeBytes(o, e.getKey());
+                            byte[] value = fragment.project(row);
+                            // all columns: send the row as stored
+                            KvProtocol.writeBytes(o,
+                                    value == row ? e.getValue() : value);
+                            count++;
+                        }
+                    }
+                }
+            }
+            out.writeInt(count);
+            rows.writeTo(out);
+            out.writeBoolean(more);
+            break;
+        }
+        case KvProtocol.COUNT: {
+            byte[] start = KvProtocol.readBytes(in);
+            byte[] end = KvProtocol.readBytes(in);
+            String transaction = in.readUTF();
+            check(name, start, end, false);
+            Snapshot s = getSnapshot(name, start, end, transaction);
+            long count = 0;
+            if (s == null) {
+                count = subMap(getStore(name), start, end).size();
+            } else {
+                for (Iterator<Map.Entry<byte[], byte[]>> it = getEntries(name,
+                        start, end, s).iterator(); it.hasNext(); it.next()) {
+                    count++;
+                }
+            }
+            out.writeLong(count);
+            break;
+        }
+        case KvProtocol.AGGREGATE: {
+            byte[] start = KvProtocol.readBytes(in);
+            byte[] end = KvProtocol.readBytes(in);
+            KvFragment fragment = KvFragment.read(KvProtocol.readBytes(in));
+            String transaction = in.readUTF();
+            check(name, start, end, false);
+            KvProtocol.writeBytes(out, fragment.aggregate(getEntries(name, start, end,
+                    getSnapshot(name, start, end, transaction))));
+            break;
+        }
+        case KvProtocol.DELETE_RANGE: {
+            byte[] start = KvProtocol.readBytes(in);
+            byte[] end = KvProtocol.readBytes(in);
+            writeLock.readLock().lock();
+            try {
+                check(name, start, end, true);
+                long count = clear(name, getStore(name), start, end);
+                // not a transaction: the old versions are removed as well
+                subMap(getVersions(name), start, end).clear();
+                out.writeLong(count);
+            } finally {
+                writeLock.readLock().unlock();
+            }
+            break;
+        }
+        case KvProtocol.DROP:
+            ConcurrentSkipListMap<byte[], byte[]> data = stores.remove(name);
+            if (data != null) {
+                clear(name, data, null, null);
+            }
+            versions.remove(name);
+            for (Released r : released) {
+                if (r.store.equals(name)) {
+                    released.remove(r);
+                }
+            }
+            for (Imported r : imported) {
+                if (r.store.equals(name)) {
+                    imported.remove(r);
+                }
+            }
+            break;
+        case KvProtocol.IMPORT: {
+            byte[] start = KvProtocol.readBytes(in);
+            byte[] end = KvProtocol.readBytes(in);
+            boolean clear = in.readBoolean();
+            long timestamp = in.readLong();
+            int count = in.readInt();
+            ConcurrentSkipListMap<byte[], byte[]> map = getStore(name);
+            clock.update(timestamp);
+            if (clear) {
+                clear(name, map, start, end);
+                subMap(getVersions(name), start, end).clear();
+                for (Released r : released) {
+                    if (r.store.equals(name) && overlaps(r.start, r.end, start, end)) {
+                        released.remove(r);
+                    }
+                }
+                // the old versions were not moved
+                imported.add(new Imported(name, start, end, timestamp));
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] key = KvProtocol.readBytes(in);
+                byte[] value = KvProtocol.readBytes(in);
+                changed(name, key, map.put(key, value), value);
+            }
+            break;
+        }
+        case KvProtocol.PREPARE: {
+            Participant t = transactions.get(name);
+            // a transaction without changes on this node can be committed
+            out.writeLong(t == null ? clock.now() : prepare(t));
+            break;
+        }
+        case KvProtocol.COMMIT: {
+            long timestamp = in.readLong();
+            Participant t = transactions.get(name);
+            if (t != null) {
+                timestamp = commit(t, timestamp);
+                transactions.remove(name);
+            }
+            clock.update(timestamp);
+            out.writeLong(timestamp);
+            break;
+        }
+        case KvProtocol.ROLLBACK: {
+            Participant t = transactions.remove(name);
+            if (t != null) {
+                rollback(t);
+            }
+            break;
+        }
+        case KvProtocol.RECOVER: {
+            String prefix = name + ":";
+            ByteArrayOutputStream list = new ByteArrayOutputStream();
+            DataOutputStream o = new DataOutputStream(list);
+            int count = 0;
+            for (Map.Entry<String, Participant> e : transactions.entrySet()) {
+                if (e.getKey().startsWith(prefix)) {
+                    o.writeUTF(e.getKey());
+                    o.writeBoolean(e.getValue().preparedAt != 0);
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            list.writeTo(out);
+            break;
+        }
+        default:
+            throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+
+    /**
+     * Store a value, as part of a transaction if there is one. The old
+     * version is added before the value is changed, so that a snapshot read
+     * that sees the new value also sees the old version.
+     */
+    private boolean put(String name, ConcurrentSkipListMap<byte[], byte[]> map,
+            byte[] key, byte[] value, boolean ifAbsent, Participant t) {
+        if (t == null) {
+            byte[] old;
+            if (ifAbsent) {
+                old = map.putIfAbsent(key, value);
+                if (old != null) {
+                    return false;
+                }
+            } else {
+                old = map.put(key, value);
+            }
+            changed(name, key, old, value);
+            return true;
+        }
+        Version v = addVersion(name, map, key, ifAbsent ? Boolean.FALSE : null, t);
+        if (v == null) {
+            return false;
+        }
+        byte[] old = v.value;
+        if (ifAbsent) {
+            if (map.putIfAbsent(key, value) != null) {
+                v.until = ABORTED;
+                return false;
+            }
+        } else {
+            old = map.put(key, value);
+        }
+        changed(name, key, old, value);
+        t.log(name, key, old, v);
+        return true;
+    }
+
+    /**
+     * Remove a key, as part of a transaction if there is one.
+     */
+    private boolean remove(String name, ConcurrentSkipListMap<byte[], byte[]> map,
+            byte[] key, Participant t) {
+        if (t == null) {
+            byte[] old = map.remove(key);
+            changed(name, key, old, null);
+            return old != null;
+        }
+        Version v = addVersion(name, map, key, Boolean.TRUE, t);
+        if (v == null) {
+            return false;
+        }
+        byte[] old = map.remove(key);
+        if (old == null) {
+            v.until = ABORTED;
+            return false;
+        }
+        changed(name, key, old, null);
+        t.log(name, key, old, v);
+        return true;
+    }
+
+    /**
+     * Add the current value of a key as the newest old version, before a
+     * transaction changes the key.
+     *
+     * @param name the store name
+     * @param map the store
+     * @param key the key
+     * @param exists whether the key needs to exist, or null if it doesn't
+     *            matter
+     * @param t the transaction
+     * @return the version, or null if the key needs to exist and doesn't, or
+     *         the other way round
+     */
+    private Version addVersion(String name, ConcurrentSkipListMap<byte[], byte[]> map,
+            byte[] key, Boolean exists, Participant t) {
+        ConcurrentSkipListMap<byte[], Version> versions = getVersions(name);
+        synchronized (versions) {
+            Version older = versions.get(key);
+            checkConflict(name, key, older, t);
+            byte[] old = map.get(key);
+            if (exists != null && exists.booleanValue() != (old != null)) {
+                return null;
+            }
+            Version v = new Version(old, t, older);
+            versions.put(key, v);
+            return v;
+        }
+    }
+
+    /**
+     * Check whether a transaction may change a key. A key that was changed
+     * by another open transaction is locked, and the request is retried. A
+     * key that was changed by a transaction that committed after this
+     * transaction started can not be changed; this transaction needs to be
+     * rolled back (first committer wins).
+     *
+     * @param name the store name
+     * @param key the key
+     * @param v the newest old version of the key, or null
+     * @param t the transaction
+     */
+    private void checkConflict(String name, byte[] key, Version v, Participant t) {
+        for (; v != null; v = v.older) {
+            long until = v.until;
+            if (until == ABORTED) {
+                continue;
+            }
+            if (until == PENDING) {
+                if (v.owner == t) {
+                    return;
+                }
+                throw new RetryException("Key of " + name + " is locked by another transaction");
+            }
+            if (until > t.startTimestamp) {
+                throw new ConflictException("Key of " + name +
+                        " was changed by a transaction that committed after this one started");
+            }
+            return;
+        }
+        // the old versions of a range are not moved with it
+        for (Imported r : imported) {
+            if (t.startTimestamp < r.timestamp && r.store.equals(name) &&
+                    overlaps(r.start, r.end, key, KvCursor.successor(key))) {
+                throw new ConflictException("Range of " + name +
+                        " was moved after the transaction started");
+            }
+        }
+    }
+
+    /**
+     * Get the snapshot of a read, and advance the clock, so that the
+     * transactions that commit on this node from now on get a larger commit
+     * timestamp.
+     *
+     * @param name the store name
+     * @param start the first key of the read, or null
+     * @param end the last key (exclusive) of the read, or null
+     * @param id the transaction id, or an empty string
+     * @return the snapshot, or null to read the latest values
+     */
+    private Snapshot getSnapshot(String name, byte[] start, byte[] end, String id) {
+        if (id.isEmpty()) {
+            return null;
+        }
+        long timestamp = Long.parseLong(id.substring(id.lastIndexOf(':') + 1), 16);
+        clock.update(timestamp);
+        if (timestamp < HybridClock.toTimestamp(
+                System.currentTimeMillis() - HISTORY_RETENTION)) {
+            throw new IllegalStateException("Snapshot too old: " + id);
+        }
+        for (Imported r : imported) {
+            if (timestamp < r.timestamp && r.store.equals(name) &&
+                    overlaps(r.start, r.end, start, end)) {
+                throw new IllegalStateException("Snapshot too old: " + id +
+                        ", the range of " + name + " was moved");
+            }
+        }
+        // a read-only transaction has no changes of its own to read
+        return new Snapshot(timestamp,
+                id.startsWith(READ_ONLY_PREFIX) ? null : transactions.get(id));
+    }
+
+    /**
+     * Get the value of a key in a snapshot.
+     *
+     * @param name the store name
+     * @param key the key
+     * @param current the latest value (which needs to be read before the
+     *            old versions)
+     * @param s the snapshot, or null for the latest value
+     * @return the value, or null if the key didn't exist
+     */
+    private byte[] read(String name, byte[] key, byte[] current, Snapshot s) {
+        if (s == null) {
+            return current;
+        }
+        ConcurrentSkipListMap<byte[], Version> map = versions.get(name);
+        Version v = map == null ? null : map.get(key);
+        byte[] value = current;
+        while (v != null) {
+            long until = v.until;
+            if (until == PENDING) {
+                if (v.owner == s.transaction) {
+                    // a change of this transaction
+                    break;
+                }
+                if (v.owner.mayCommitBefore(s.timestamp)) {
+                    await(v);
+                    continue;
+                }
+            } else if (until != ABORTED && until <= s.timestamp) {
+                break;
+            }
+            value = v.value;
+            v = v.older;
+        }
+        return value;
+    }
+
+    /**
+     * Wait until the transaction of a version is committed or rolled back.
+     *
+     * @param v the version
+     */
+    private static void await(Version v) {
+        long end = System.currentTimeMillis() + PREPARED_WAIT;
+        synchronized (v.owner) {
+            while (v.until == PENDING) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new RetryException("Key is locked by a prepared transaction");
+                }
+                try {
+                    v.owner.wait(wait);
+                } catch (InterruptedException e) {
+                    throw new RetryException("Interrupted");
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the entries of a key range.
+     *
+     * @param name the store name
+     * @param start the first key (inclusive), or null
+     * @param end the last key (exclusive), or null
+     * @param s the snapshot, or null for the latest values
+     * @return the entries, in key order
+     */
+    private Iterable<Map.Entry<byte[], byte[]>> getEntries(final String name,
+            final byte[] start, final byte[] end, final Snapshot s) {
+        final ConcurrentSkipListMap<byte[], byte[]> map = getStore(name);
+        if (s == null) {
+            return subMap(map, start, end).entrySet();
+        }
+        return new Iterable<Map.Entry<byte[], byte[]>>() {
+            @Override
+            public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+                return new SnapshotIterator(name, map,
+                        subMap(map, start, end).entrySet().iterator(),
+                        subMap(getVersions(name), start, end).keySet().iterator(), s);
+            }
+        };
+    }
+
+    /**
+     * Remove the old versions that are no longer needed for snapshot reads.
+     */
+    void removeOldVersions() {
+        long now = System.currentTimeMillis();
+        long horizon = HybridClock.toTimestamp(now - HISTORY_RETENTION);
+        for (Imported r : imported) {
+            if (r.timestamp < horizon) {
+                imported.remove(r);
+            }
+        }
+        for (ConcurrentSkipListMap<byte[], Version> map : versions.values()) {
+            synchronized (map) {
+                for (Map.Entry<byte[], Version> e : map.entrySet()) {
+                    Version first = null, last = null;
+                    for (Version v = e.getValue(); v != null; v = v.older) {
+                        long until = v.until;
+                        if (until != PENDING && until != ABORTED && until <= horizon) {
+                            // this and the older versions are only visible
+                            // in snapshots that can no longer be read
+                            break;
+                        }
+                        if (until == ABORTED && v.time < now - HISTORY_RETENTION) {
+                            continue;
+                        }
+                        if (last == null) {
+                            first = v;
+                        } else {
+                            last.older = v;
+                        }
+                        last = v;
+                    }
+                    if (first == null) {
+                        map.remove(e.getKey());
+                    } else {
+                        last.older = null;
+                        if (first != e.getValue()) {
+                            map.put(e.getKey(), first);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private Participant getTransaction(String id) {
+        if (id.isEmpty()) {
+            return null;
+        }
+        if (id.startsWith(READ_ONLY_PREFIX)) {
+            throw new IllegalStateException("Read-only transaction " + id +
+                    " can not change data");
+        }
+        Participant t = transactions.get(id);
+        if (t == null) {
+            t = new Participant(Long.parseLong(id.substring(id.lastIndexOf(':') + 1), 16));
+            Participant old = transactions.putIfAbsent(id, t);
+            if (old != null) {
+                t = old;
+            }
+        }
+        return t;
+    }
+
+    private long prepare(Participant t) {
+        writeLock.readLock().lock();
+        try {
+            synchronized (t) {
+                for (int i = 0; i < t.keys.size(); i++) {
+                    if (!isWritable(t.stores.get(i), t.keys.get(i))) {
+                        return -1;
+                    }
+                }
+                // snapshot reads wait from now on, until the prepare
+                // timestamp is known
+                t.preparedAt = PENDING;
+                t.preparedAt = clock.now();
+                return t.preparedAt;
+            }
+        } finally {
+            writeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Set the commit timestamp of the changes of a transaction.
+     *
+     * @param t the transaction
+     * @param timestamp the commit timestamp
+     * @return the commit timestamp that was used
+     */
+    private long commit(Participant t, long timestamp) {
+        synchronized (t) {
+            if (t.preparedAt == 0) {
+                // one phase commit: the timestamp must be larger than the
+                // snapshots that were read on this node
+                t.preparedAt = PENDING;
+                timestamp = Math.max(timestamp, clock.now());
+            }
+            for (Version v : t.versions) {
+                if (v.until == PENDING) {
+                    v.until = timestamp;
+                }
+            }
+            t.notifyAll();
+        }
+        return timestamp;
+    }
+
+    private void rollback(Participant t) {
+        writeLock.readLock().lock();
+        try {
+            synchronized (t) {
+                for (int i = t.keys.size() - 1; i >= 0; i--) {
+                    String name = t.stores.get(i);
+                    ConcurrentSkipListMap<byte[], byte[]> map = getStore(name);
+                    byte[] key = t.keys.get(i);
+                    byte[] old = t.oldValues.get(i);
+                    changed(name, key, old == null ? map.remove(key) :
+                            map.put(key, old), old);
+                }
+                for (Version v : t.versions) {
+                    v.until = ABORTED;
+                }
+                t.notifyAll();
+            }
+        } finally {
+            writeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The changes of an open transaction on this node.
+     */
+    private static final class Participant {
+
+        final ArrayList<String> stores = new ArrayList<String>();
+        final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        final ArrayList<byte[]> oldValues = new ArrayList<byte[]>();
+        final ArrayList<Version> versions = new ArrayList<Version>();
+
+        /**
+         * The timestamp of the snapshot of the transaction.
+         */
+        final long startTimestamp;
+
+        /**
+         * The prepare timestamp, PENDING while the transaction is being
+         * prepared or committed, or 0 if it is not prepared.
+         */
+        volatile long preparedAt;
+
+        Participant(long startTimestamp) {
+            this.startTimestamp = startTimestamp;
+        }
+
+        /**
+         * Remember the old value of a key that was changed.
+         *
+         * @param store the store name
+         * @param key the key
+         * @param old the old value, or null if the key didn't exist
+         * @param version the old version for snapshot reads
+         */
+        synchronized void log(String store, byte[] key, byte[] old, Version version) {
+            stores.add(store);
+            keys.add(key);
+            oldValues.add(old);
+            versions.add(version);
+            // the new change was not prepared
+            preparedAt = 0;
+        }
+
+        /**
+         * Check whether the transaction may commit with a timestamp that is
+         * not larger than the given one.
+         *
+         * @param timestamp the timestamp of the snapshot
+         * @return true if yes
+         */
+        boolean mayCommitBefore(long timestamp) {
+            long p = preparedAt;
+            return p != 0 && (p == PENDING || p < timestamp);
+        }
+
+    }
+
+    /**
+     * An old version of a key: the value before a change of a transaction.
+     * The versions of a key form a list, from the newest to the oldest.
+     */
+    private static final class Version {
+
+        /**
+         * The value before the change, or null if the key didn't exist.
+         */
+        final byte[] value;
+
+        /**
+         * The transaction of the change.
+         */
+        final Participant owner;
+
+        /**
+         * The time when the version was created.
+         */
+        final long time;
+
+        /**
+         * The commit timestamp of the change, PENDING while the transaction
+         * is open, or ABORTED if the change was rolled back.
+         */
+        volatile long until = PENDING;
+
+        /**
+         * The next older version, or null.
+         */
+        volatile Version older;
+
+        Version(byte[] value, Participant owner, Version older) {
+            this.value = value;
+            this.owner = owner;
+            this.older = older;
+            time = System.currentTimeMillis();
+        }
+
+    }
+
+    /**
+     * The snapshot of a read.
+     */
+    private static final class Snapshot {
+
+        /**
+         * The start timestamp of the transaction.
+         */
+        final long timestamp;
+
+        /**
+         * The changes of the transaction on this node, or null.
+         */
+        final Participant transaction;
+
+        Snapshot(long timestamp, Participant transaction) {
+            this.timestamp = timestamp;
+            this.transaction = transaction;
+        }
+
+    }
+
+    /**
+     * Iterates over the entries of a key range in a snapshot: the keys of
+     * the latest values, and the keys with old versions (which may have been
+     * removed in the meantime), in key order.
+     */
+    private final class SnapshotIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+
+        private final String name;
+        private final ConcurrentSkipListMap<byte[], byte[]> map;
+        private final Iterator<Map.Entry<byte[], byte[]>> data;
+        private final Iterator<byte[]> changed;
+        private final Snapshot snapshot;
+        private Map.Entry<byte[], byte[]> nextData;
+        private byte[] nextChanged;
+        private Map.Entry<byte[], byte[]> next;
+
+        SnapshotIterator(String name, ConcurrentSkipListMap<byte[], byte[]> map,
+                Iterator<Map.Entry<byte[], byte[]>> data, Iterator<byte[]> changed,
+                Snapshot snapshot) {
+            this.name = name;
+            this.map = map;
+            this.data = data;
+            this.changed = changed;
+            this.snapshot = snapshot;
+            nextData = data.hasNext() ? data.next() : null;
+            nextChanged = changed.hasNext() ? changed.next() : null;
+            fetch();
+        }
+
+        private void fetch() {
+            next = null;
+            while (nextData != null || nextChanged != null) {
+                int comp = nextData == null ? 1 : nextChanged == null ? -1 :
+                        KeyEncoder.compare(nextData.getKey(), nextChanged);
+                byte[] key, value;
+                if (comp <= 0) {
+                    key = nextData.getKey();
+                    value = nextData.getValue();
+                    nextData = data.hasNext() ? data.next() : null;
+                    if (comp == 0) {
+                        nextChanged = changed.hasNext() ? changed.next() : null;
+                    }
+                } else {
+                    key = nextChanged;
+                    value = map.get(key);
+                    nextChanged = changed.hasNext() ? changed.next() : null;
+                }
+                value = read(name, key, value, snapshot);
+                if (value != null) {
+                    next = new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key, value);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<byte[], byte[]> e = next;
+            fetch();
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * A key range that was moved to this node. Older snapshots can not be
+     * read, because the old versions were not moved.
+     */
+    private static final class Imported {
+
+        final String store;
+        final byte[] start;
+        final byte[] end;
+
+        /**
+         * The first timestamp that can be read.
+         */
+        final long timestamp;
+
+        Imported(String store, byte[] start, byte[] end, long timestamp) {
+            this.store = store;
+            this.start = start;
+            this.end = end;
+            this.timestamp = timestamp;
+        }
+
+    }
+
+    /**
+     * A range that this node serves.
+     */
+    private static final class OwnedRange {
+
+        final RangeInfo info;
+        final byte[] start;
+        final byte[] end;
+
+        /**
+         * The number of requests since the last report.
+         */
+        final AtomicLong requests;
+
+        /**
+         * The size of the keys and values.
+         */
+        final AtomicLong bytes;
+
+        /**
+         * The number of keys.
+         */
+        final AtomicLong keys;
+
+        /**
+         * Create a range. The statistics are kept if the previous range with
+         * the same id has the same bounds.
+         *
+         * @param info the range
+         * @param prev the previous range with the same id, or null
+         */
+        OwnedRange(RangeInfo info, OwnedRange prev) {
+            this.info = info;
+            this.start = KeyEncoder.fromHex(info.getStartKey());
+            this.end = KeyEncoder.fromHex(info.getEndKey());
+            if (prev == null) {
+                requests = new AtomicLong();
+            } else {
+                requests = prev.requests;
+            }
+            if (prev != null && Arrays.equals(start, prev.start) &&
+                    Arrays.equals(end, prev.end)) {
+                bytes = prev.bytes;
+                keys = prev.keys;
+            } else {
+                bytes = new AtomicLong();
+                keys = new AtomicLong();
+            }
+        }
+
+        /**
+         * Update the statistics after a key was changed.
+         *
+         * @param key the key
+         * @param old the old value, or null if the key didn't exist
+         * @param value the new value, or null if the key was removed
+         */
+        void add(byte[] key, byte[] old, byte[] value) {
+            long diff = 0;
+            if (old != null) {
+                diff -= key.length + old.length;
+                keys.decrementAndGet();
+            }
+            if (value != null) {
+                diff += key.length + value.length;
+                keys.incrementAndGet();
+            }
+            bytes.addAndGet(diff);
+        }
+
+    }
+
+    /**
+     * A key range that was moved to another node.
+     */
+    private static final class Released {
+
+        final String store;
+        final byte[] start;
+        final byte[] end;
+
+        /**
+         * Until when requests are rejected.
+         */
+        final long until;
+
+        Released(String store, byte[] start, byte[] end, long until) {
+            this.store = store;
+            this.start = start;
+            this.end = end;
+            this.until = until;
+        }
+
+    }
+
+    /**
+     * The request must be sent again, after reloading the ranges.
+     */
+    private static final class RetryException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        RetryException(String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * The transaction can not change the key, and needs to be rolled back.
+     */
+    private static final class ConflictException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ConflictException(String message) {
+            super(message);
+        }
+
+    }
+
+}
@@ -0,0 +1,749 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neradb.meta.client.MetaClient;
+
+import com.neradb.command.ddl.CreateTableData;
+import com.neradb.common.Constants;
+import com.neradb.common.DbException;
+import com.neradb.common.ErrorCode;
+import com.neradb.common.compress.CompressTool;
+import com.neradb.common.compress.Compressor;
+import com.neradb.common.utils.New;
+import com.neradb.common.utils.StringUtils;
+import com.neradb.dbobject.index.Index;
+import com.neradb.dbobject.index.IndexType;
+import com.neradb.dbobject.table.Column;
+import com.neradb.dbobject.table.IndexColumn;
+import com.neradb.dbobject.table.TableBase;
+import com.neradb.dbobject.table.TableType;
+import com.neradb.engine.DbSettings;
+import com.neradb.engine.Session;
+import com.neradb.engine.UndoLogRecord;
+import com.neradb.result.Row;
+import com.neradb.result.SearchRow;
+import com.neradb.store.Data;
+import com.neradb.util.CompareMode;
+import com.neradb.value.DataType;
+import com.neradb.value.Value;
+import com.neradb.value.ValueBytes;
+import com.neradb.value.ValueNull;
+import com.neradb.value.ValueString;
+
+/**
+ * A range partitioned table. The rows are stored on the storage nodes, keyed
+ * by the encoded primary key (see {@link KeyEncoder}), or by a generated row
+ * key if the table has no primary key. Each secondary index is stored in a
+ * separate store.
+ * <p>
+ * Changes are sent to the storage nodes immediately, so that they are
+ * visible to other sessions before the transaction is committed. The storage
+ * nodes keep the old values until the transaction is committed, and restore
+ * them if it is rolled back (see {@link KvCoordinator}). Table locks are not
+ * used.
+ * </p>
+ * <p>
+ * Reads see the snapshot of the start timestamp of the transaction, on all
+ * storage nodes, plus the changes of the transaction itself. Uncommitted
+ * changes of other transactions are not visible.
+ * </p>
+ */
+public class KvTable extends TableBase {
+
+    private static final int RETRY_DELAY = 20;
+
+    /**
+     * The first value of a compressed row, instead of the column count.
+     */
+    private static final int COMPRESSED_ROW = -1;
+
+    private final KvTableEngine engine;
+    private final KvCoordinator coordinator;
+    private final String store;
+    private final List<String> nodes;
+    private final MetaClient metaClient;
+    private final String split;
+    private final ArrayList<Index> indexes = new ArrayList<Index>();
+    private final KvPrimaryIndex scanIndex;
+    private final AtomicLong lastRowKey;
+    private KvPrimaryIndex primaryIndex;
+    private volatile KvPlacement placement;
+    private volatile long rowCountApproximation = -1;
+    private boolean dropping;
+
+    public KvTable(CreateTableData data, KvTableEngine engine) {
+        super(data);
+        this.engine = engine;
+        List<String> params = data.tableEngineParams;
+        DbSettings settings = database.getSettings();
+        store = KvTableEngine.getParameter(params, KvTableEngine.STORE);
+        metaClient = engine.getMetaClient(settings);
+        nodes = KvTableEngine.getNodes(
+                KvTableEngine.getParameter(params, KvTableEngine.NODES), settings);
+        split = KvTableEngine.getParameter(params, KvTableEngine.SPLIT);
+        coordinator = engine.getCoordinator(database);
+        for (Column col : getColumns()) {
+            checkValueType(col.getType());
+        }
+        // generated row keys are unique per database and millisecond
+        lastRowKey = new AtomicLong(System.currentTimeMillis() << 20);
+        scanIndex = new KvPrimaryIndex(this, data.id, data.tableName + "_DATA",
+                IndexColumn.wrap(new Column[0]), IndexType.createScan(true));
+        indexes.add(scanIndex);
+        if (metaClient == null && nodes.isEmpty()) {
+            throw DbException.get(ErrorCode.FEATURE_NOT_SUPPORTED_1,
+                    "range partitioned table without META_SERVER or STORAGE_NODES");
+        }
+    }
+
+    private static void checkValueType(int type) {
+        if (type == Value.JAVA_OBJECT || type == Value.RESULT_SET) {
+            throw DbException.get(ErrorCode.FEATURE_NOT_SUPPORTED_1,
+                    "column of type " + DataType.getDataType(type).name);
+        }
+    }
+
+    /**
+     * Get the name of the store of the rows.
+     *
+     * @return the store name
+     */
+    public String getStore() {
+        return store;
+    }
+
+    KvTableEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Get the id of the transaction of the session, and add the storage node
+     * to the transaction. This is needed before the data on the node is
+     * changed.
+     *
+     * @param session the session, or null
+     * @param endpoint the endpoint of the storage node
+     * @return the transaction id, or null
+     */
+    String getTransactionId(Session session, String endpoint) {
+        return coordinator.enlist(session, endpoint);
+    }
+
+    /**
+     * Get the id of the transaction of the session, to read its snapshot.
+     *
+     * @param session the session, or null
+     * @return the transaction id, or null to read the latest committed data
+     */
+    String getTransactionId(Session session) {
+        return coordinator.getTransactionId(session);
+    }
+
+    /**
+     * Get the placement of the rows.
+     *
+     * @return the placement
+     */
+    KvPlacement getPlacement() {
+        KvPlacement p = placement;
+        if (p == null) {
+            synchronized (this) {
+                p = placement;
+                if (p == null) {
+                    p = new KvPlacement(store, nodes, metaClient, getSplitKeys());
+                    placement = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Create the placement of an index.
+     *
+     * @param indexStore the store of the index
+     * @return the placement
+     */
+    KvPlacement createPlacement(String indexStore) {
+        return new KvPlacement(indexStore, nodes, metaClient, new byte[0][]);
+    }
+
+    /**
+     * Process the failure of a request to a storage node: the ranges are
+     * reloaded, and if the range was locked by a move, the request may be
+     * sent again after a short delay, until the lock timeout is reached.
+     *
+     * @param session the session, or null
+     * @param p the placement that was used
+     * @param e the exception
+     * @param start the time of the first attempt (System.nanoTime)
+     * @throws RuntimeException the exception if the request can't be retried
+     */
+    void beforeRetry(Session session, KvPlacement p, RuntimeException e, long start) {
+        p.invalidate();
+        if (!(e instanceof DbException) ||
+                ((DbException) e).getErrorCode() != ErrorCode.LOCK_TIMEOUT_1) {
+            throw e;
+        }
+        int timeout = session == null ? Constants.INITIAL_LOCK_TIMEOUT : session.getLockTimeout();
+        if ((System.nanoTime() - start) / 1000000 >= timeout) {
+            throw e;
+        }
+        try {
+            Thread.sleep(RETRY_DELAY);
+        } catch (InterruptedException ex) {
+            throw DbException.convert(ex);
+        }
+    }
+
+    /**
+     * Read a row from the store of the table.
+     *
+     * @param session the session, or null
+     * @param key the key of the row
+     * @return the serialized row, or null if not found
+     */
+    byte[] get(Session session, byte[] key) {
+        KvPlacement p = getPlacement();
+        String tx = getTransactionId(session);
+        long start = System.nanoTime();
+        while (true) {
+            KvPlacement.Range r = p.locate(key);
+            try {
+                return engine.getClient(r.endpoint).get(store, key, tx);
+            } catch (RuntimeException e) {
+                beforeRetry(session, p, e, start);
+            }
+        }
+    }
+
+    /**
+     * Convert the split values to keys. This is only possible once the
+     * primary key is known.
+     */
+    private byte[][] getSplitKeys() {
+        if (split == null || primaryIndex == null) {
+            return new byte[0][];
+        }
+        IndexColumn first = primaryIndex.getIndexColumns()[0];
+        String[] values = StringUtils.arraySplit(split, ',', true);
+        ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        for (String s : values) {
+            Value v = first.column.convert(ValueString.get(s));
+            Data buff = Data.create(database, 16);
+            KeyEncoder.encode(buff, v, first.sortType,
+                    database.getCompareMode().isBinaryUnsigned());
+            byte[] key = new byte[buff.length()];
+            System.arraycopy(buff.getBytes(), 0, key, 0, key.length);
+            keys.add(key);
+        }
+        byte[][] array = keys.toArray(new byte[0][]);
+        Arrays.sort(array, KvStoreServer.KEY_ORDER);
+        return array;
+    }
+
+    /**
+     * Get the key of a row in the store of the table.
+     *
+     * @param row the row
+     * @return the key
+     */
+    byte[] getKey(SearchRow row) {
+        if (primaryIndex == null) {
+            return KeyEncoder.encodeRowKey(row.getKey());
+        }
+        return primaryIndex.encodeKey(row, primaryIndex.getIndexColumns().length);
+    }
+
+    /**
+     * Generate a new row key (for tables without primary key).
+     *
+     * @return the row key
+     */
+    long nextRowKey() {
+        return lastRowKey.incrementAndGet();
+    }
+
+    KvPrimaryIndex getPrimaryIndex() {
+        return primaryIndex;
+    }
+
+    /**
+     * Serialize the values of a row. If the table uses compression, rows that
+     * can be compressed are stored as the marker COMPRESSED_ROW followed by
+     * the compressed data.
+     *
+     * @param row the row
+     * @return the serialized row
+     */
+    byte[] writeRow(Row row) {
+        int count = row.getColumnCount();
+        Value[] values = new Value[count];
+        int len = 5;
+        for (int i = 0; i < count; i++) {
+            Value v = row.getValue(i);
+            if (v == null) {
+                v = ValueNull.INSTANCE;
+            } else if (v.getType() == Value.BLOB) {
+                v = ValueBytes.getNoCopy(v.getBytesNoCopy());
+            } else if (v.getType() == Value.CLOB) {
+                v = ValueString.get(v.getString());
+            }
+            values[i] = v;
+            len += Data.getValueLen(v, database) + 5;
+        }
+        Data buff = Data.create(database, len);
+        buff.writeVarInt(count);
+        for (Value v : values) {
+            buff.writeVarInt(Data.getValueLen(v, database));
+            buff.writeValue(v);
+        }
+        byte[] b = new byte[buff.length()];
+        System.arraycopy(buff.getBytes(), 0, b, 0, b.length);
+        String algorithm = getCompressionAlgorithm();
+        if (algorithm != null) {
+            b = compressRow(b, algorithm);
+        }
+        return b;
+    }
+
+    private static byte[] compressRow(byte[] row, String algorithm) {
+        byte[] c = CompressTool.getInstance().compress(row, algorithm);
+        if (c[0] == Compressor.NO) {
+            // not worth it: store the row as it is
+            return row;
+        }
+        Data buff = Data.create(null,
+                Data.getVarIntLen(COMPRESSED_ROW) + c.length);
+        buff.writeVarInt(COMPRESSED_ROW);
+        buff.write(c, 0, c.length);
+        return buff.getBytes();
+    }
+
+    /**
+     * Get the uncompressed form of a stored row.
+     *
+     * @param row the stored row
+     * @return the row, or the expanded row if it is compressed
+     */
+    static byte[] expandRow(byte[] row) {
+        if (Data.create(null, row).readVarInt() != COMPRESSED_ROW) {
+            return row;
+        }
+        int start = Data.getVarIntLen(COMPRESSED_ROW);
+        return CompressTool.getInstance().expand(
+                Arrays.copyOfRange(row, start, row.length));
+    }
+
+    /**
+     * Read a row.
+     *
+     * @param key the key in the store of the table
+     * @param value the serialized row
+     * @return the row
+     */
+    Row readRow(byte[] key, byte[] value) {
+        Data buff = Data.create(database, expandRow(value));
+        int count = buff.readVarInt();
+        Value[] values = new Value[columns.length];
+        for (int i = 0; i < values.length; i++) {
+            Value v;
+            if (i < count) {
+                buff.readVarInt();
+                v = buff.readValue();
+                if (v != ValueNull.INSTANCE && v.getType() != columns[i].getType()) {
+                    v = columns[i].convert(v);
+                }
+            } else {
+                v = ValueNull.INSTANCE;
+            }
+            values[i] = v;
+        }
+        Row row = database.createRow(values, Row.MEMORY_CALCULATE);
+        if (KeyEncoder.isRowKey(key)) {
+            row.setKey(KeyEncoder.decodeRowKey(key));
+        }
+        return row;
+    }
+
+    @Override
+    public boolean lock(Session session, boolean exclusive,
+            boolean forceLockEvenInMvcc) {
+        // the storage nodes apply each change atomically
+        return false;
+    }
+
+    @Override
+    public void unlock(Session s) {
+        // nothing to do
+    }
+
+    @Override
+    public boolean isLockedExclusively() {
+        return false;
+    }
+
+    @Override
+    public void close(Session session) {
+        // the rows are stored remotely
+    }
+
+    @Override
+    public Index addIndex(Session session, String indexName, int indexId,
+            IndexColumn[] cols, IndexType indexType, boolean create,
+            String indexComment) {
+        if (indexType.isPrimaryKey()) {
+            for (IndexColumn c : cols) {
+                Column column = c.column;
+                if (column.isNullable()) {
+                    throw DbException.get(
+                            ErrorCode.COLUMN_MUST_NOT_BE_NULLABLE_1,
+                            column.getName());
+                }
+                column.setPrimaryKey(true);
+            }
+        }
+        for (IndexColumn c : cols) {
+            int type = c.column.getType();
+            KeyEncoder.checkSupported(type);
+            if ((type == Value.STRING || type == Value.STRING_FIXED) &&
+                    !CompareMode.OFF.equals(database.getCompareMode().getName())) {
+                // the keys are ordered by the UTF-16 code units
+                throw DbException.get(ErrorCode.FEATURE_NOT_SUPPORTED_1,
+                        "key column of type VARCHAR with a collation");
+            }
+        }
+        Index index;
+        if (indexType.isPrimaryKey()) {
+            KvPrimaryIndex pk = new KvPrimaryIndex(this, indexId, indexName, cols, indexType);
+            rekey(session, pk);
+            index = pk;
+        } else {
+            KvSecondaryIndex secondary = new KvSecondaryIndex(this, indexId,
+                    indexName, cols, indexType);
+            if (create && getRowCountApproximation() != 0) {
+                addRowsToIndex(session, secondary);
+            }
+            index = secondary;
+        }
+        index.setTemporary(isTemporary());
+        if (index.getCreateSQL() != null) {
+            index.setComment(indexComment);
+            database.addSchemaObject(session, index);
+        }
+        indexes.add(index);
+        setModified();
+        return index;
+    }
+
+    /**
+     * Change the keys of the rows, because the primary key was added or
+     * removed. Rows of tables without primary key are stored with row keys,
+     * and rows of tables with primary key with the encoded primary key, so
+     * the old and the new keys are in separate key ranges. The rows are
+     * copied to the new keys first, which also checks that the new primary
+     * key is unique, and the old keys are only removed once all rows were
+     * copied. If this was interrupted, the copy is complete if there are at
+     * least as many new keys as old keys; otherwise it is made again. This is
+     * a no-op if the rows already use the new kind of key (for example
+     * because another database that shares the table did it).
+     *
+     * @param session the session
+     * @param newPrimaryIndex the new primary key index, or null
+     */
+    private void rekey(Session session, KvPrimaryIndex newPrimaryIndex) {
+        KvPlacement old = placement;
+        KvPrimaryIndex oldPrimaryIndex = primaryIndex;
+        primaryIndex = newPrimaryIndex;
+        // the split points depend on the primary key
+        placement = null;
+        KvPlacement p = old == null ? getPlacement() : old;
+        byte[][] rowKeys = { KeyEncoder.getRowKeyStart(), KeyEncoder.getRowKeyEnd() };
+        byte[][] primaryKeys = { null, KeyEncoder.getRowKeyStart() };
+        byte[][] from = newPrimaryIndex == null ? primaryKeys : rowKeys;
+        byte[][] to = newPrimaryIndex == null ? rowKeys : primaryKeys;
+        try {
+            long count = countKeys(p, from);
+            if (count == 0) {
+                return;
+            }
+            if (countKeys(p, to) < count) {
+                deleteKeys(p, to);
+                copyRows(p, from, to);
+            }
+            deleteKeys(p, from);
+        } catch (RuntimeException e) {
+            primaryIndex = oldPrimaryIndex;
+            placement = old;
+            throw e;
+        }
+        // the entries of the secondary indexes contain the row keys
+        for (Index index : indexes) {
+            if (index instanceof KvSecondaryIndex) {
+                index.truncate(session);
+                addRowsToIndex(session, index);
+            }
+        }
+    }
+
+    private long countKeys(KvPlacement p, byte[][] keys) {
+        long count = 0;
+        for (KvPlacement.Range r : p.getRanges(keys[0], keys[1])) {
+            byte[][] clip = r.clip(keys[0], keys[1]);
+            count += engine.getClient(r.endpoint).count(store, clip[0], clip[1]);
+        }
+        return count;
+    }
+
+    private void deleteKeys(KvPlacement p, byte[][] keys) {
+        for (KvPlacement.Range r : p.getRanges(keys[0], keys[1])) {
+            byte[][] clip = r.clip(keys[0], keys[1]);
+            engine.getClient(r.endpoint).deleteRange(store, clip[0], clip[1]);
+        }
+    }
+
+    /**
+     * Copy the rows from the old to the new keys. If the new primary key is
+     * not unique, the rows that were copied are removed again.
+     */
+    private void copyRows(KvPlacement p, byte[][] from, byte[][] to) {
+        KvPlacement target = getPlacement();
+        for (KvPlacement.Range r : p.getRanges(from[0], from[1])) {
+            KvClient client = engine.getClient(r.endpoint);
+            byte[][] clip = r.clip(from[0], from[1]);
+            byte[] start = clip[0];
+            while (true) {
+                KvClient.Batch batch = client.scan(store, start, clip[1],
+                        KvCursor.BATCH_SIZE, null);
+                for (int i = 0; i < batch.keys.size(); i++) {
+                    byte[] value = batch.values.get(i);
+                    Row row = readRow(batch.keys.get(i), value);
+                    byte[] key = primaryIndex == null ?
+                            KeyEncoder.encodeRowKey(nextRowKey()) : getKey(row);
+                    if (!engine.getClient(target.locate(key).endpoint).put(
+                            store, key, value, true)) {
+                        deleteKeys(p, to);
+                        throw primaryIndex.getDuplicateKeyException(row);
+                    }
+                }
+                if (!batch.more) {
+                    break;
+                }
+                start = KvCursor.successor(batch.keys.get(batch.keys.size() - 1));
+            }
+        }
+    }
+
+    @Override
+    public void removeIndex(Index index) {
+        super.removeIndex(index);
+        if (index == primaryIndex && !dropping) {
+            rekey(database.getSystemSession(), null);
+        }
+    }
+
+    @Override
+    public void addRow(Session session, Row row) {
+        int i = 0;
+        try {
+            for (int size = indexes.size(); i < size; i++) {
+                indexes.get(i).add(session, row);
+            }
+        } catch (DbException e) {
+            while (--i >= 0) {
+                indexes.get(i).remove(session, row);
+            }
+            throw e;
+        }
+        if (rowCountApproximation >= 0) {
+            rowCountApproximation++;
+        }
+    }
+
+    /**
+     * Add the rows in bulk: the entries of each index are sorted by key, and
+     * sent with one request per range. If a key already exists, the entries
+     * are removed again, and the rows are added one by one, to find the row
+     * that failed. Rows are also added one by one if there is a unique
+     * secondary index, as uniqueness is checked with a lookup per row.
+     */
+    @Override
+    public void addRows(Session session, ArrayList<Row> rows) {
+        if (rows.size() < 2 || hasUniqueSecondaryIndex()) {
+            super.addRows(session, rows);
+            return;
+        }
+        ArrayList<ArrayList<byte[]>> added = New.arrayList();
+        boolean stored = true;
+        try {
+            for (int i = 0, size = indexes.size(); i < size && stored; i++) {
+                ArrayList<byte[]> keys = New.arrayList();
+                added.add(keys);
+                stored = ((KvIndex) indexes.get(i)).addRows(session, rows, keys);
+            }
+        } catch (DbException e) {
+            removeKeys(session, added);
+            throw e;
+        }
+        if (!stored) {
+            removeKeys(session, added);
+            super.addRows(session, rows);
+            return;
+        }
+        for (Row row : rows) {
+            session.log(this, UndoLogRecord.INSERT, row);
+        }
+        if (rowCountApproximation >= 0) {
+            rowCountApproximation += rows.size();
+        }
+    }
+
+    private boolean hasUniqueSecondaryIndex() {
+        for (Index index : indexes) {
+            if (index instanceof KvSecondaryIndex &&
+                    index.getIndexType().isUnique()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeKeys(Session session, ArrayList<ArrayList<byte[]>> added) {
+        for (int i = added.size() - 1; i >= 0; i--) {
+            ((KvIndex) indexes.get(i)).removeKeys(session, added.get(i));
+        }
+    }
+
+    @Override
+    public void removeRow(Session session, Row row) {
+        for (int i = indexes.size() - 1; i >= 0; i--) {
+            indexes.get(i).remove(session, row);
+        }
+        if (rowCountApproximation > 0) {
+            rowCountApproximation--;
+        }
+    }
+
+    @Override
+    public Row getRow(Session session, long key) {
+        return scanIndex.getRow(session, key);
+    }
+
+    @Override
+    public void truncate(Session session) {
+        for (int i = indexes.size() - 1; i >= 0; i--) {
+            indexes.get(i).truncate(session);
+        }
+        rowCountApproximation = 0;
+    }
+
+    @Override
+    public void checkSupportAlter() {
+        // ALTER TABLE copies the data to a local table
+        throw DbException.getUnsupportedException("ALTER TABLE of a range partitioned table");
+    }
+
+    @Override
+    public void checkRename() {
+        // the store name doesn't change
+    }
+
+    @Override
+    public TableType getTableType() {
+        return TableType.EXTERNAL_TABLE_ENGINE;
+    }
+
+    @Override
+    public Index getScanIndex(Session session) {
+        return scanIndex;
+    }
+
+    @Override
+    public Index getUniqueIndex() {
+        return primaryIndex;
+    }
+
+    @Override
+    public ArrayList<Index> getIndexes() {
+        return indexes;
+    }
+
+    @Override
+    public long getMaxDataModificationId() {
+        // other databases may change the data at any time
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return false;
+    }
+
+    @Override
+    public boolean canGetRowCount() {
+        return true;
+    }
+
+    @Override
+    public boolean canAggregate() {
+        return true;
+    }
+
+    @Override
+    public boolean isRolledBackByCoordinator() {
+        return true;
+    }
+
+    @Override
+    public boolean canDrop() {
+        return true;
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        long count = scanIndex.getRowCount(session);
+        rowCountApproximation = count;
+        return count;
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        long count = rowCountApproximation;
+        if (count < 0) {
+            count = getRowCount(null);
+        }
+        return count;
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return 0;
+    }
+
+    @Override
+    public void removeChildrenAndResources(Session session) {
+        dropping = true;
+        super.removeChildrenAndResources(session);
+        while (indexes.size() > 1) {
+            Index index = indexes.get(1);
+            if (index.getName() != null) {
+                database.removeSchemaObject(session, index);
+            }
+            // needed for session temporary indexes
+            indexes.remove(index);
+        }
+        scanIndex.remove(session);
+        database.removeMeta(session, getId());
+        invalidate();
+    }
+
+}
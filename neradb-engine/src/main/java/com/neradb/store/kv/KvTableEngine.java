@@ -0,0 +1,162 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neradb.meta.client.MetaClient;
+
+import com.neradb.command.ddl.CreateTableData;
+import com.neradb.common.Constants;
+import com.neradb.common.utils.StringUtils;
+import com.neradb.dbobject.Database;
+import com.neradb.engine.DbSettings;
+import com.neradb.engine.spi.TableEngine;
+
+/**
+ * A table engine for range partitioned tables, that are stored on a set of
+ * storage nodes ({@link KvStoreServer}). Usage:
+ * <pre>
+ * CREATE TABLE TEST(ID INT PRIMARY KEY, NAME VARCHAR)
+ * ENGINE "com.neradb.store.kv.KvTableEngine"
+ * WITH "NODES=localhost:9101,localhost:9102", "SPLIT=1000"
+ * </pre>
+ * The table engine parameters are:
+ * <ul>
+ * <li>NODES: the storage nodes (default: the database setting
+ * <code>STORAGE_NODES</code>); not used if the database setting
+ * <code>META_SERVER</code> is set, in which case the ranges are placed on
+ * the live storage nodes registered in the meta server.</li>
+ * <li>SPLIT: the values of the first primary key column where a new range
+ * starts.</li>
+ * <li>STORE: the name of the store (set automatically to the qualified name
+ * of the table when it is created, so that it doesn't change on rename).</li>
+ * </ul>
+ * An instance of the table engine is used per database.
+ */
+public class KvTableEngine implements TableEngine {
+
+    /**
+     * The parameter for the storage nodes.
+     */
+    static final String NODES = "NODES=";
+
+    /**
+     * The parameter for the split points.
+     */
+    static final String SPLIT = "SPLIT=";
+
+    /**
+     * The parameter for the store name.
+     */
+    static final String STORE = "STORE=";
+
+    private final ConcurrentHashMap<String, KvClient> clients =
+            new ConcurrentHashMap<String, KvClient>();
+    private MetaClient metaClient;
+    private KvCoordinator coordinator;
+
+    @Override
+    public KvTable createTable(CreateTableData data) {
+        // the list may be the default of the schema
+        ArrayList<String> params = data.tableEngineParams == null ?
+                new ArrayList<String>() : new ArrayList<String>(data.tableEngineParams);
+        if (getParameter(params, STORE) == null) {
+            params.add(STORE + data.schema.getName() + "." + data.tableName);
+        }
+        data.tableEngineParams = params;
+        return new KvTable(data, this);
+    }
+
+    /**
+     * Get the value of a table engine parameter.
+     *
+     * @param params the parameters
+     * @param prefix the parameter name, including the '='
+     * @return the value, or null if not set
+     */
+    static String getParameter(Iterable<String> params, String prefix) {
+        String value = null;
+        for (String p : params) {
+            if (p.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                value = p.substring(prefix.length()).trim();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Get the list of storage nodes.
+     *
+     * @param value the comma separated endpoints, or null
+     * @param settings the database settings
+     * @return the endpoints
+     */
+    static ArrayList<String> getNodes(String value, DbSettings settings) {
+        if (value == null) {
+            value = settings.storageNodes;
+        }
+        ArrayList<String> list = new ArrayList<String>();
+        for (String s : StringUtils.arraySplit(value, ',', true)) {
+            if (!s.isEmpty()) {
+                list.add(s);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Get the client for a storage node.
+     *
+     * @param endpoint the endpoint
+     * @return the client
+     */
+    KvClient getClient(String endpoint) {
+        KvClient c = clients.get(endpoint);
+        if (c == null) {
+            c = new KvClient(endpoint);
+            KvClient old = clients.putIfAbsent(endpoint, c);
+            if (old != null) {
+                c = old;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Get the transaction coordinator. It is created when it is first used,
+     * and closed when the database is closed.
+     *
+     * @param database the database
+     * @return the coordinator
+     */
+    synchronized KvCoordinator getCoordinator(Database database) {
+        if (coordinator == null) {
+            coordinator = new KvCoordinator(database, this,
+                    database.getName() + Constants.SUFFIX_COORDINATOR_LOG_FILE);
+            database.addTransactionCoordinator(coordinator);
+        }
+        return coordinator;
+    }
+
+    /**
+     * Get the meta server client.
+     *
+     * @param settings the database settings
+     * @return the client, or null if the meta server is not used
+     */
+    synchronized MetaClient getMetaClient(DbSettings settings) {
+        if (settings.metaServer.isEmpty()) {
+            return null;
+        }
+        if (metaClient == null) {
+            metaClient = MetaClient.create(settings.metaServer);
+        }
+        return metaClient;
+    }
+
+}
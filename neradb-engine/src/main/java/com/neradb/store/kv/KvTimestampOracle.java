@@ -0,0 +1,114 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.io.IOException;
+
+import org.neradb.meta.HybridClock;
+import org.neradb.meta.client.MetaClient;
+
+import com.neradb.common.DbException;
+import com.neradb.engine.DbSettings;
+
+/**
+ * Hands out the start and commit timestamps of the transactions of range
+ * partitioned tables. If the meta server is used, the timestamps are
+ * allocated by its leader in ranges, so that one request serves many
+ * transactions. A range is only used for a short time, so that the
+ * timestamps of the SQL nodes stay close to each other. Without meta server,
+ * the timestamps of a hybrid logical clock are used.
+ * <p>
+ * The timestamps are strictly increasing, and larger than the commit
+ * timestamps that were seen, so that a session sees its own committed
+ * changes. The storage nodes make sure that a snapshot is consistent even if
+ * the timestamp is a bit old (see {@link KvStoreServer}).
+ * </p>
+ */
+class KvTimestampOracle {
+
+    /**
+     * The number of timestamps per request to the meta server.
+     */
+    private static final int BATCH_SIZE = 10000;
+
+    /**
+     * How long a range of timestamps is used, in milliseconds.
+     */
+    private static final long MAX_BATCH_AGE = 10;
+
+    /**
+     * The maximum staleness of reads, in milliseconds. The storage nodes keep
+     * old versions for a longer time.
+     */
+    private static final int MAX_STALENESS = 30000;
+
+    private final KvTableEngine engine;
+    private final DbSettings settings;
+    private final HybridClock clock = new HybridClock();
+    private long next;
+    private long limit;
+    private long fetched;
+
+    KvTimestampOracle(KvTableEngine engine, DbSettings settings) {
+        this.engine = engine;
+        this.settings = settings;
+    }
+
+    /**
+     * Get a new timestamp.
+     *
+     * @return the timestamp
+     */
+    synchronized long next() {
+        MetaClient metaClient = engine.getMetaClient(settings);
+        if (metaClient == null) {
+            return clock.now();
+        }
+        long now = System.currentTimeMillis();
+        if (next >= limit || now - fetched > MAX_BATCH_AGE) {
+            long first;
+            try {
+                first = metaClient.getTimestamps(BATCH_SIZE);
+            } catch (IOException e) {
+                throw DbException.convertIOException(e, "meta server");
+            }
+            next = Math.max(next, first);
+            limit = first + BATCH_SIZE;
+            fetched = now;
+        }
+        return next++;
+    }
+
+    /**
+     * Get a timestamp in the past, to read a snapshot that is a bit stale.
+     * This doesn't need the meta server. The timestamp is the staleness
+     * before the latest timestamp that is known: of the hybrid logical
+     * clock, which includes the commit timestamps that were seen, and of the
+     * meta server. It is not unique.
+     *
+     * @param staleness the staleness in milliseconds
+     * @return the timestamp
+     */
+    synchronized long getStale(int staleness) {
+        long latest = Math.max(clock.now(), next);
+        return HybridClock.toTimestamp(HybridClock.getMillis(latest) -
+                Math.min(staleness, MAX_STALENESS));
+    }
+
+    /**
+     * Remember a timestamp that was used by a storage node, so that the
+     * following timestamps are larger.
+     *
+     * @param timestamp the timestamp
+     */
+    synchronized void update(long timestamp) {
+        clock.update(timestamp);
+        if (timestamp >= next) {
+            next = timestamp + 1;
+        }
+    }
+
+}
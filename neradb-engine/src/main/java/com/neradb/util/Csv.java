@@ -6,6 +6,7 @@
 package com.neradb.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -33,7 +34,10 @@ import com.neradb.common.utils.IOUtils;
 import com.neradb.common.utils.New;
 import com.neradb.common.utils.SimpleRowSource;
 import com.neradb.common.utils.StringUtils;
+import com.neradb.result.ResultInterface;
 import com.neradb.result.SimpleResultSet;
+import com.neradb.value.Value;
+import com.neradb.value.ValueNull;
 
 /**
  * A facility to read from and write to CSV (comma separated values) files. When
@@ -57,6 +61,7 @@ public class Csv implements SimpleRowSource {
     private char lineComment;
     private String lineSeparator = SysProperties.LINE_SEPARATOR;
     private String nullString = "";
+    private int threads = 1;
 
     private String fileName;
     private Reader input;
@@ -66,6 +71,7 @@ public class Csv implements SimpleRowSource {
     private int inputBufferEnd;
     private Writer output;
     private boolean endOfLine, endOfFile;
+    private CsvChunkReader chunkReader;
 
     private int writeResultSet(ResultSet rs) throws SQLException {
         try {
@@ -152,6 +158,71 @@ public class Csv implements SimpleRowSource {
         }
     }
 
+    /**
+     * INTERNAL.
+     * Writes a result to a file in the CSV format. The values are converted
+     * to text in the same way as when writing a result set, but without
+     * creating JDBC objects.
+     *
+     * @param outputFileName the file name
+     * @param result the result
+     * @param charset the charset or null to use the system default charset
+     *          (see system property file.encoding)
+     * @return the number of rows written
+     */
+    public int write(String outputFileName, ResultInterface result,
+            String charset) throws SQLException {
+        init(outputFileName, charset);
+        try {
+            initWrite();
+            int rows = 0;
+            int columnCount = result.getVisibleColumnCount();
+            String[] row = new String[columnCount];
+            int[] types = new int[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = result.getAlias(i);
+                types[i] = result.getColumnType(i);
+            }
+            if (writeColumnHeader) {
+                writeRow(row);
+            }
+            while (result.next()) {
+                Value[] values = result.currentRow();
+                for (int i = 0; i < columnCount; i++) {
+                    Value v = values[i];
+                    String s;
+                    if (v == null || v == ValueNull.INSTANCE) {
+                        s = null;
+                    } else {
+                        switch (types[i]) {
+                        case Value.DATE:
+                            s = v.getDate().toString();
+                            break;
+                        case Value.TIME:
+                            s = v.getTime().toString();
+                            break;
+                        case Value.TIMESTAMP:
+                            s = v.getTimestamp().toString();
+                            break;
+                        default:
+                            s = v.getString();
+                        }
+                    }
+                    row[i] = s;
+                }
+                writeRow(row);
+                rows++;
+            }
+            output.close();
+            return rows;
+        } catch (IOException e) {
+            throw convertException("IOException writing " + outputFileName, e);
+        } finally {
+            close();
+            result.close();
+        }
+    }
+
     /**
      * Writes the result set of a query to a file in the CSV format.
      *
@@ -217,7 +288,21 @@ public class Csv implements SimpleRowSource {
 
     private ResultSet readResultSet(String[] colNames) throws IOException {
         this.columnNames = colNames;
-        initRead();
+        if (threads > 1 && input == null) {
+            if (!CsvChunkReader.isSupported(this, characterSet)) {
+                throw DbException.get(
+                        ErrorCode.UNSUPPORTED_SETTING_COMBINATION,
+                        "threads=" + threads + " charset=" + characterSet +
+                        (lineComment != 0 ? " lineComment=" + lineComment : ""));
+            }
+            chunkReader = new CsvChunkReader(this, fileName, characterSet,
+                    threads);
+            if (columnNames == null) {
+                columnNames = chunkReader.readHeader();
+            }
+        } else {
+            initRead();
+        }
         SimpleResultSet result = new SimpleResultSet(this);
         makeColumnNamesUnique();
         for (String columnName : columnNames) {
@@ -526,6 +611,60 @@ public class Csv implements SimpleRowSource {
         }
     }
 
+    /**
+     * Read the column names from the first line of a file.
+     *
+     * @param data the bytes of the first line
+     * @param len the number of bytes
+     * @return the column names
+     */
+    String[] readHeader(byte[] data, int len) throws IOException {
+        Csv csv = createChunkReader(data, len);
+        csv.readHeader();
+        return csv.columnNames;
+    }
+
+    /**
+     * Parse a part of a file that only contains complete rows.
+     *
+     * @param data the bytes
+     * @param len the number of bytes
+     * @return the rows
+     */
+    ArrayList<Object[]> readChunk(byte[] data, int len) throws IOException {
+        Csv csv = createChunkReader(data, len);
+        csv.columnNames = columnNames;
+        ArrayList<Object[]> rows = New.arrayList();
+        try {
+            while (true) {
+                Object[] row = csv.readRow();
+                if (row == null) {
+                    break;
+                }
+                rows.add(row);
+            }
+        } catch (SQLException e) {
+            throw DbException.convertToIOException(e);
+        }
+        return rows;
+    }
+
+    private Csv createChunkReader(byte[] data, int len) throws IOException {
+        Csv csv = new Csv();
+        csv.fileName = fileName;
+        csv.characterSet = characterSet;
+        csv.escapeCharacter = escapeCharacter;
+        csv.fieldDelimiter = fieldDelimiter;
+        csv.fieldSeparatorRead = fieldSeparatorRead;
+        csv.caseSensitiveColumnNames = caseSensitiveColumnNames;
+        csv.preserveWhitespace = preserveWhitespace;
+        csv.nullString = nullString;
+        csv.input = new InputStreamReader(
+                new ByteArrayInputStream(data, 0, len), characterSet);
+        csv.inputBuffer = new char[Constants.IO_BUFFER_SIZE * 2];
+        return csv;
+    }
+
     private String readNull(String s) {
         return s.equals(nullString) ? null : s;
     }
@@ -562,6 +701,13 @@ public class Csv implements SimpleRowSource {
      */
     @Override
     public Object[] readRow() throws SQLException {
+        if (chunkReader != null) {
+            try {
+                return chunkReader.readRow();
+            } catch (IOException e) {
+                throw convertException("IOException reading from " + fileName, e);
+            }
+        }
         if (input == null) {
             return null;
         }
@@ -604,6 +750,10 @@ public class Csv implements SimpleRowSource {
      */
     @Override
     public void close() {
+        if (chunkReader != null) {
+            chunkReader.close();
+            chunkReader = null;
+        }
         IOUtils.closeSilently(input);
         input = null;
         IOUtils.closeSilently(output);
@@ -826,6 +976,30 @@ public class Csv implements SimpleRowSource {
         return writeColumnHeader;
     }
 
+    /**
+     * Set the number of threads used to read a file. If more than one thread
+     * is used, the file is split into chunks that are parsed in parallel.
+     * This is only possible for character sets such as UTF-8 or ISO-8859-1
+     * (if no character set is given, the system default is used), if line
+     * comments are disabled, and if the separator, delimiter and escape
+     * characters are ASCII; otherwise reading fails. The setting is not used
+     * when reading from a Reader or when writing.
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Get the number of threads used to read a file.
+     *
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
     /**
      * INTERNAL.
      * Parse and set the CSV options.
@@ -865,6 +1039,8 @@ public class Csv implements SimpleRowSource {
                 setWriteColumnHeader(Boolean.parseBoolean(value));
             } else if (isParam(key, "caseSensitiveColumnNames")) {
                 setCaseSensitiveColumnNames(Boolean.parseBoolean(value));
+            } else if (isParam(key, "threads")) {
+                setThreads(Integer.parseInt(value));
             } else {
                 throw DbException.getUnsupportedException(key);
             }
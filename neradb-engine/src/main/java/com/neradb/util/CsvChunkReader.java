@@ -0,0 +1,307 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.neradb.common.Constants;
+import com.neradb.common.io.FileUtils;
+import com.neradb.common.utils.IOUtils;
+
+/**
+ * Reads a CSV file in chunks that are parsed in parallel. The file is split
+ * into chunks of complete rows by scanning the bytes for line breaks that are
+ * not within a delimited value. Each chunk is then parsed by a separate
+ * {@link Csv} object in a thread pool. The rows are returned in the order of
+ * the file.
+ * <p>
+ * This only works for character sets where the line break, separator,
+ * delimiter and escape characters are single bytes that can not be part of
+ * other characters (for example UTF-8 or ISO-8859-1), and if line comments are
+ * disabled.
+ * </p>
+ */
+class CsvChunkReader {
+
+    /**
+     * The minimum size of a chunk, in bytes.
+     */
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final int START = 0, UNQUOTED = 1, QUOTED = 2;
+
+    private final Csv csv;
+    private final String fileName;
+    private final FileChannel channel;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final ArrayDeque<Future<ArrayList<Object[]>>> pending =
+            new ArrayDeque<Future<ArrayList<Object[]>>>();
+    private final int separator, delimiter, escape;
+
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private int length;
+    private long filePos;
+    private boolean endOfFile;
+
+    private int state = START;
+    private int scanPos;
+    private int lastRowEnd;
+
+    private ArrayList<Object[]> rows;
+    private int rowIndex;
+
+    CsvChunkReader(Csv csv, String fileName, String charset, int threads)
+            throws IOException {
+        this.csv = csv;
+        this.fileName = fileName;
+        separator = csv.getFieldSeparatorRead();
+        delimiter = csv.getFieldDelimiter();
+        char esc = csv.getEscapeCharacter();
+        escape = esc == delimiter ? 0 : esc;
+        channel = FileUtils.open(fileName, "r");
+        try {
+            if (Constants.UTF8.equals(Charset.forName(charset))) {
+                skipByteOrderMark();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        maxPending = threads * 2;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "H2 CSV Reader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Check whether a file with the given settings can be read in chunks.
+     *
+     * @param csv the settings
+     * @param charset the character set
+     * @return true if yes
+     */
+    static boolean isSupported(Csv csv, String charset) {
+        if (csv.getLineCommentCharacter() != 0 ||
+                csv.getFieldSeparatorRead() >= 128 ||
+                csv.getFieldDelimiter() >= 128 ||
+                csv.getEscapeCharacter() >= 128) {
+            return false;
+        }
+        Charset cs;
+        try {
+            cs = Charset.forName(charset);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        if (!Constants.UTF8.equals(cs) &&
+                (!cs.canEncode() || cs.newEncoder().maxBytesPerChar() != 1f)) {
+            return false;
+        }
+        byte[] b = "\n\r ".getBytes(cs);
+        return b.length == 3 && b[0] == '\n' && b[1] == '\r' && b[2] == ' ';
+    }
+
+    private void skipByteOrderMark() throws IOException {
+        read();
+        if (length >= 3 && (buffer[0] & 0xff) == 0xef &&
+                (buffer[1] & 0xff) == 0xbb && (buffer[2] & 0xff) == 0xbf) {
+            System.arraycopy(buffer, 3, buffer, 0, length - 3);
+            length -= 3;
+        }
+    }
+
+    /**
+     * Read the column names from the first row.
+     *
+     * @return the column names
+     */
+    String[] readHeader() throws IOException {
+        while (true) {
+            scan(true);
+            if (lastRowEnd > 0 || endOfFile) {
+                break;
+            }
+            read();
+        }
+        int len = lastRowEnd > 0 ? lastRowEnd : length;
+        byte[] data = cut(len);
+        return csv.readHeader(data, len);
+    }
+
+    /**
+     * Get the next row.
+     *
+     * @return the row, or null if there are no more rows
+     */
+    Object[] readRow() throws IOException {
+        while (rows == null || rowIndex >= rows.size()) {
+            rows = null;
+            while (pending.size() < maxPending) {
+                if (!submitChunk()) {
+                    break;
+                }
+            }
+            Future<ArrayList<Object[]>> f = pending.poll();
+            if (f == null) {
+                return null;
+            }
+            try {
+                rows = f.get();
+            } catch (InterruptedException e) {
+                throw new IOException(fileName, e);
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                if (t instanceof IOException) {
+                    throw (IOException) t;
+                }
+                throw new IOException(fileName, t);
+            }
+            rowIndex = 0;
+        }
+        Object[] row = rows.get(rowIndex);
+        rows.set(rowIndex++, null);
+        return row;
+    }
+
+    /**
+     * Read the next chunk of complete rows and start parsing it.
+     *
+     * @return false if the end of the file was reached
+     */
+    private boolean submitChunk() throws IOException {
+        while (true) {
+            scan(false);
+            if (endOfFile || (length >= CHUNK_SIZE && lastRowEnd > 0)) {
+                break;
+            }
+            read();
+        }
+        final int len = endOfFile ? length : lastRowEnd;
+        if (len == 0) {
+            return false;
+        }
+        final byte[] data = cut(len);
+        pending.add(executor.submit(new Callable<ArrayList<Object[]>>() {
+            @Override
+            public ArrayList<Object[]> call() throws IOException {
+                return csv.readChunk(data, len);
+            }
+        }));
+        return true;
+    }
+
+    /**
+     * Read more data from the file.
+     */
+    private void read() throws IOException {
+        if (length == buffer.length) {
+            byte[] b = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, b, 0, length);
+            buffer = b;
+        }
+        int len = channel.read(ByteBuffer.wrap(buffer, length,
+                buffer.length - length), filePos);
+        if (len < 0) {
+            endOfFile = true;
+        } else {
+            length += len;
+            filePos += len;
+        }
+    }
+
+    /**
+     * Split the buffer. The bytes before the given position are returned,
+     * the remaining bytes are moved to a new buffer.
+     *
+     * @param len the number of bytes to return
+     * @return the old buffer
+     */
+    private byte[] cut(int len) {
+        byte[] data = buffer;
+        int rest = length - len;
+        buffer = new byte[Math.max(CHUNK_SIZE, rest * 2)];
+        System.arraycopy(data, len, buffer, 0, rest);
+        length = rest;
+        scanPos -= len;
+        lastRowEnd = 0;
+        return data;
+    }
+
+    /**
+     * Scan the buffer for the end of rows, using the same rules as the
+     * parser to detect whether a line break is within a delimited value.
+     *
+     * @param first whether to stop at the end of the first row
+     */
+    private void scan(boolean first) {
+        byte[] b = buffer;
+        int i = scanPos;
+        int s = state;
+        while (i < length) {
+            int ch = b[i];
+            if (s == QUOTED) {
+                if (ch == delimiter || (escape != 0 && ch == escape)) {
+                    if (i + 1 >= length && !endOfFile) {
+                        // need the next character
+                        break;
+                    }
+                    if (ch == delimiter && (i + 1 >= length || b[i + 1] != delimiter)) {
+                        s = START;
+                    } else {
+                        // escaped character
+                        i++;
+                    }
+                }
+            } else if (ch == '\n') {
+                s = START;
+                lastRowEnd = i + 1;
+                if (first) {
+                    i++;
+                    break;
+                }
+            } else if (s == START) {
+                if (ch == delimiter && delimiter != 0) {
+                    s = QUOTED;
+                } else if (ch < 0 || ch > ' ') {
+                    if (ch != separator) {
+                        s = UNQUOTED;
+                    }
+                }
+            } else if (ch == separator || ch == '\r') {
+                s = START;
+            }
+            i++;
+        }
+        scanPos = i;
+        state = s;
+    }
+
+    /**
+     * Stop reading and close the file.
+     */
+    void close() {
+        executor.shutdownNow();
+        IOUtils.closeSilently(channel);
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.util;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.neradb.common.SysProperties;
+
+/**
+ * A cache of compiled regular expressions, shared by all sessions. The number
+ * of entries is limited by {@link SysProperties#PATTERN_CACHE_SIZE}; when the
+ * limit is reached, about a quarter of the entries are removed (in no
+ * particular order). Lookups don't block each other.
+ */
+public class PatternCache {
+
+    private static final ConcurrentHashMap<Key, Pattern> CACHE =
+            new ConcurrentHashMap<Key, Pattern>();
+
+    private PatternCache() {
+        // utility class
+    }
+
+    /**
+     * Get the compiled pattern for the given regular expression and flags,
+     * compiling it if it is not in the cache.
+     *
+     * @param regex the regular expression
+     * @param flags the flags, see {@link Pattern#compile(String, int)}
+     * @return the pattern
+     * @throws PatternSyntaxException if the expression is invalid
+     */
+    public static Pattern compile(String regex, int flags) {
+        int maxSize = SysProperties.PATTERN_CACHE_SIZE;
+        if (maxSize <= 0) {
+            return Pattern.compile(regex, flags);
+        }
+        Key key = new Key(regex, flags);
+        Pattern p = CACHE.get(key);
+        if (p == null) {
+            p = Pattern.compile(regex, flags);
+            if (CACHE.size() >= maxSize) {
+                evict(Math.max(1, maxSize / 4));
+            }
+            CACHE.put(key, p);
+        }
+        return p;
+    }
+
+    private static void evict(int count) {
+        Iterator<Key> it = CACHE.keySet().iterator();
+        while (count-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * The cache key.
+     */
+    private static final class Key {
+
+        private final String regex;
+        private final int flags;
+
+        Key(String regex, int flags) {
+            this.regex = regex;
+            this.flags = flags;
+        }
+
+        @Override
+        public int hashCode() {
+            return regex.hashCode() * 31 + flags;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return flags == other.flags && regex.equals(other.regex);
+        }
+
+    }
+
+}
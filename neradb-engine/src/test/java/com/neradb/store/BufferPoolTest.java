@@ -0,0 +1,132 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the buffer pool with a file store that reads through it.
+ */
+public class BufferPoolTest extends TestCase {
+
+    private static final int PAGE_SIZE = 4096;
+
+    private String fileName;
+    private FileStore store;
+
+    @Override
+    protected void setUp() throws IOException {
+        File f = File.createTempFile("bufferPool", ".db");
+        f.delete();
+        fileName = f.getAbsolutePath();
+        store = FileStore.open(null, fileName, "rw");
+        store.init();
+        for (int i = 0; i < 64; i++) {
+            writePage(i, (byte) i);
+        }
+    }
+
+    @Override
+    protected void tearDown() {
+        store.closeSilently();
+        new File(fileName).delete();
+    }
+
+    private void writePage(int pageId, byte value) {
+        byte[] b = new byte[PAGE_SIZE];
+        Arrays.fill(b, value);
+        store.seek(FileStore.HEADER_LENGTH + (long) pageId * PAGE_SIZE);
+        store.write(b, 0, b.length);
+    }
+
+    private byte readPage(int pageId) {
+        byte[] b = new byte[PAGE_SIZE];
+        store.seek(FileStore.HEADER_LENGTH + (long) pageId * PAGE_SIZE);
+        store.readFully(b, 0, b.length);
+        for (int i = 1; i < b.length; i++) {
+            assertEquals(b[0], b[i]);
+        }
+        return b[0];
+    }
+
+    public void testHitsAndEvictions() {
+        BufferPool pool = new BufferPool(PAGE_SIZE, 16 * PAGE_SIZE);
+        store.setBufferPool(pool);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, readPage(i));
+        }
+        // otherwise, reading page 7 again would be a correlated reference
+        assertEquals(63, readPage(63));
+        assertEquals(9, pool.getMissCount());
+        assertEquals(0, pool.getHitCount());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, readPage(i));
+        }
+        assertEquals(9, pool.getMissCount());
+        assertEquals(8, pool.getHitCount());
+        assertEquals(0, pool.getEvictCount());
+
+        // a scan that is larger than the pool
+        for (int i = 8; i < 63; i++) {
+            assertEquals(i, readPage(i));
+        }
+        assertEquals(64, pool.getMissCount());
+        assertEquals(64 - 16, pool.getEvictCount());
+        assertEquals(16, pool.getPageCount());
+        assertEquals(0, pool.getPinnedCount());
+
+        // the pages that were used twice are still cached
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, readPage(i));
+        }
+        assertEquals(64, pool.getMissCount());
+        assertEquals(16, pool.getHitCount());
+    }
+
+    public void testCoherentWithWrites() {
+        BufferPool pool = new BufferPool(PAGE_SIZE, 16 * PAGE_SIZE);
+        store.setBufferPool(pool);
+        assertEquals(3, readPage(3));
+        writePage(3, (byte) 100);
+        assertEquals(100, readPage(3));
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getHitCount());
+
+        // the pages after the new end are removed, and read as zeros later
+        assertEquals(10, readPage(10));
+        store.setLength(FileStore.HEADER_LENGTH + 8L * PAGE_SIZE);
+        store.setLength(FileStore.HEADER_LENGTH + 16L * PAGE_SIZE);
+        assertEquals(0, readPage(10));
+        assertEquals(100, readPage(3));
+    }
+
+    public void testDirtyPagesAreWritten() {
+        BufferPool pool = new BufferPool(PAGE_SIZE, 16 * PAGE_SIZE);
+        BufferPool.Page p = pool.pin(store, 5);
+        Arrays.fill(p.getData(), (byte) 50);
+        pool.unpin(p, true);
+        assertEquals(1, pool.getDirtyCount());
+        pool.flush(store);
+        assertEquals(0, pool.getDirtyCount());
+        assertEquals(1, pool.getWriteCount());
+        assertEquals(50, readPage(5));
+
+        // written back when evicted
+        p = pool.pin(store, 6);
+        Arrays.fill(p.getData(), (byte) 60);
+        pool.unpin(p, true);
+        for (int i = 20; i < 40; i++) {
+            pool.unpin(pool.pin(store, i), false);
+        }
+        assertEquals(2, pool.getWriteCount());
+        assertEquals(60, readPage(6));
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.neradb.meta.NodeAssignment;
+import org.neradb.meta.RangeInfo;
+import org.neradb.meta.RangeMove;
+
+import com.neradb.common.Constants;
+import com.neradb.common.ErrorCode;
+import com.neradb.common.io.FileUtils;
+import com.neradb.common.io.InDoubtTransaction;
+import com.neradb.common.utils.IOUtils;
+import com.neradb.engine.Session;
+import com.neradb.jdbc.JdbcConnection;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the transactions of a range partitioned table, with two storage
+ * nodes in this process as the participants: one and two phase commit, a
+ * failed prepare, recovery from the coordinator log, and write conflicts.
+ */
+public class KvCoordinatorTest extends TestCase {
+
+    private static final String STORE = "PUBLIC.T";
+
+    private KvStoreServer node1, node2;
+    private KvClient client1, client2;
+    private String name, url, logFileName;
+    private Connection conn;
+
+    /**
+     * The clients of the node of the rows with ID &lt; 100, and of the node of
+     * the other rows.
+     */
+    private KvClient low, high;
+    private KvStoreServer highNode;
+
+    @Override
+    protected void setUp() throws Exception {
+        Class.forName("com.neradb.jdbc.Driver");
+        node1 = new KvStoreServer("localhost", getFreePort());
+        node1.start();
+        node2 = new KvStoreServer("localhost", getFreePort());
+        node2.start();
+        client1 = new KvClient(node1.getAddress());
+        client2 = new KvClient(node2.getAddress());
+        name = "mem:kvCoordinatorTest-" + getName();
+        logFileName = name + Constants.SUFFIX_COORDINATOR_LOG_FILE;
+        url = "jdbc:h2:" + name + ";DEFAULT_TABLE_ENGINE=" + KvTableEngine.class.getName() +
+                ";STORAGE_NODES=" + node1.getAddress();
+        conn = DriverManager.getConnection(url, "sa", "");
+        Statement stat = conn.createStatement();
+        stat.execute("CREATE TABLE T(ID INT PRIMARY KEY, V INT) WITH \"NODES=" +
+                node1.getAddress() + "," + node2.getAddress() + "\", \"SPLIT=100\"");
+        // the rows with ID < 100 may be placed on either node
+        stat.execute("INSERT INTO T VALUES(0, 0)");
+        boolean first = client1.count(STORE, null, null) == 1;
+        stat.execute("DELETE FROM T");
+        highNode = first ? node2 : node1;
+        low = first ? client1 : client2;
+        high = first ? client2 : client1;
+        conn.setAutoCommit(false);
+    }
+
+    @Override
+    protected void tearDown() throws SQLException {
+        conn.close();
+        client1.close();
+        client2.close();
+        node1.stop();
+        node2.stop();
+        FileUtils.delete(logFileName);
+        FileUtils.delete(name + Constants.SUFFIX_TRACE_FILE);
+    }
+
+    private static int getFreePort() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Open another connection to the database.
+     */
+    private Connection getConnection() {
+        Session session = (Session) ((JdbcConnection) conn).getSession();
+        return new JdbcConnection(session.getDatabase().createSession(
+                session.getUser()), "sa", url);
+    }
+
+    private static int count(Connection c) throws SQLException {
+        ResultSet rs = c.createStatement().executeQuery("SELECT COUNT(*) FROM T");
+        rs.next();
+        return rs.getInt(1);
+    }
+
+    private static NodeAssignment assignment(RangeInfo... ranges) {
+        return new NodeAssignment(Arrays.asList(ranges),
+                Collections.<RangeMove>emptyList());
+    }
+
+    public void testOnePhaseCommit() throws SQLException {
+        Statement stat = conn.createStatement();
+        stat.execute("INSERT INTO T VALUES(1, 1)");
+        conn.commit();
+        long length = FileUtils.size(logFileName);
+        stat.execute("INSERT INTO T VALUES(2, 2), (3, 3)");
+        stat.execute("UPDATE T SET V = 10 WHERE ID = 1");
+        conn.commit();
+        // one participant: neither prepared nor written to the log
+        assertEquals(length, FileUtils.size(logFileName));
+        assertEquals(3, low.count(STORE, null, null));
+        assertEquals(0, high.count(STORE, null, null));
+        Connection conn2 = getConnection();
+        try {
+            assertEquals(3, count(conn2));
+        } finally {
+            conn2.close();
+        }
+    }
+
+    public void testTwoPhaseCommit() throws SQLException {
+        Statement stat = conn.createStatement();
+        stat.execute("INSERT INTO T VALUES(1, 1), (150, 2)");
+        Connection conn2 = getConnection();
+        try {
+            assertEquals(0, count(conn2));
+            // both participants are prepared, then committed
+            conn.commit();
+            assertEquals(2, count(conn2));
+        } finally {
+            conn2.close();
+        }
+        assertEquals(1, low.count(STORE, null, null));
+        assertEquals(1, high.count(STORE, null, null));
+        ResultSet rs = stat.executeQuery("SELECT * FROM INFORMATION_SCHEMA.IN_DOUBT");
+        assertFalse(rs.next());
+    }
+
+    public void testPrepareFailure() throws SQLException {
+        Statement stat = conn.createStatement();
+        stat.execute("INSERT INTO T VALUES(1, 1), (150, 2)");
+        // the node no longer serves the range, so it can't prepare
+        highNode.assign(assignment());
+        try {
+            conn.commit();
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.GENERAL_ERROR_1, e.getErrorCode());
+        }
+        highNode.assign(assignment(new RangeInfo(1, STORE, null, null, new int[] { 2 }, 2)));
+        // rolled back on both nodes
+        assertEquals(0, low.count(STORE, null, null));
+        assertEquals(0, high.count(STORE, null, null));
+        assertEquals(0, count(conn));
+    }
+
+    public void testRecoveryFromLog() throws Exception {
+        Statement stat = conn.createStatement();
+        stat.execute("INSERT INTO T VALUES(1, 1), (150, 2)");
+        stat.execute("PREPARE COMMIT TX1");
+        Connection conn2 = getConnection();
+        conn2.setAutoCommit(false);
+        conn2.createStatement().execute("INSERT INTO T VALUES(2, 2), (151, 2)");
+
+        // a coordinator that is opened with a copy of the log, as if the
+        // database was closed unexpectedly and then opened again
+        String copy = logFileName + ".copy";
+        InputStream in = new FileInputStream(logFileName);
+        OutputStream out = new FileOutputStream(copy);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+        Session session = (Session) ((JdbcConnection) conn).getSession();
+        KvCoordinator recovered = new KvCoordinator(session.getDatabase(),
+                new KvTableEngine(), copy);
+        try {
+            // the transaction that was not prepared is rolled back
+            recovered.recover();
+            assertEquals(1, client1.recover(recovered.getId()).size());
+            assertEquals(1, client2.recover(recovered.getId()).size());
+            assertEquals(1, low.count(STORE, null, null));
+            assertEquals(1, high.count(STORE, null, null));
+
+            // the prepared transaction is in doubt until it is committed
+            List<InDoubtTransaction> list = recovered.getInDoubtTransactions();
+            assertEquals(1, list.size());
+            InDoubtTransaction t = list.get(0);
+            assertEquals("TX1", t.getTransactionName());
+            assertEquals("IN_DOUBT", t.getState());
+            t.setState(InDoubtTransaction.COMMIT);
+            assertEquals("COMMIT", t.getState());
+            assertTrue(recovered.getInDoubtTransactions().isEmpty());
+            assertTrue(client1.recover(recovered.getId()).isEmpty());
+            assertTrue(client2.recover(recovered.getId()).isEmpty());
+            assertEquals(1, low.count(STORE, null, null));
+            assertEquals(1, high.count(STORE, null, null));
+        } finally {
+            recovered.close();
+            FileUtils.delete(copy);
+            conn2.close();
+        }
+    }
+
+    public void testWriteConflict() throws SQLException {
+        Statement stat = conn.createStatement();
+        stat.execute("INSERT INTO T VALUES(1, 1), (150, 1)");
+        conn.commit();
+        Connection conn2 = getConnection();
+        try {
+            conn2.setAutoCommit(false);
+            Statement stat2 = conn2.createStatement();
+            stat2.execute("SET LOCK_TIMEOUT 100");
+            // start the transaction of the second connection
+            assertEquals(2, count(conn2));
+            stat.execute("UPDATE T SET V = 2 WHERE ID = 150");
+            // the row is locked
+            try {
+                stat2.execute("UPDATE T SET V = 3 WHERE ID = 150");
+                fail();
+            } catch (SQLException e) {
+                assertEquals(ErrorCode.LOCK_TIMEOUT_1, e.getErrorCode());
+            }
+            conn.commit();
+            // the row was changed after the transaction started: the
+            // transaction is rolled back
+            stat2.execute("UPDATE T SET V = 3 WHERE ID = 1");
+            try {
+                stat2.execute("UPDATE T SET V = 3 WHERE ID = 150");
+                fail();
+            } catch (SQLException e) {
+                assertEquals(ErrorCode.DEADLOCK_1, e.getErrorCode());
+            }
+            conn2.commit();
+            ResultSet rs = stat.executeQuery("SELECT SUM(V) FROM T");
+            rs.next();
+            assertEquals(3, rs.getInt(1));
+        } finally {
+            conn2.close();
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+import com.neradb.common.Constants;
+import com.neradb.common.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the parts of queries that are run by the storage nodes: filters,
+ * the first rows of ORDER BY ... LIMIT queries, and partial aggregates. Each
+ * query is compared with a query that returns the same rows, but that the
+ * storage nodes can't evaluate (the columns are used in expressions), so
+ * that the rows are filtered, sorted and aggregated by the SQL node.
+ */
+public class KvPushdownTest extends TestCase {
+
+    private KvStoreServer node1, node2;
+    private String name;
+    private Connection conn;
+
+    @Override
+    protected void setUp() throws Exception {
+        Class.forName("com.neradb.jdbc.Driver");
+        node1 = new KvStoreServer("localhost", getFreePort());
+        node1.start();
+        node2 = new KvStoreServer("localhost", getFreePort());
+        node2.start();
+        name = "mem:kvPushdownTest-" + getName();
+        conn = DriverManager.getConnection("jdbc:h2:" + name + ";DEFAULT_TABLE_ENGINE=" +
+                KvTableEngine.class.getName() + ";STORAGE_NODES=" + node1.getAddress(),
+                "sa", "");
+        Statement stat = conn.createStatement();
+        // four ranges on two nodes
+        String with = " WITH \"NODES=" + node1.getAddress() + "," + node2.getAddress() +
+                "\", \"SPLIT=100,200,300\"";
+        stat.execute("CREATE TABLE T(ID INT PRIMARY KEY, G INT, V INT, NAME VARCHAR)" + with);
+        stat.execute("CREATE TABLE E(ID INT PRIMARY KEY, G INT, V INT, NAME VARCHAR)" + with);
+        stat.execute("INSERT INTO T SELECT X, MOD(X, 7), " +
+                "CASE WHEN MOD(X, 11) = 0 THEN NULL ELSE MOD(X * 37, 101) END, " +
+                "'n' || MOD(X, 13) FROM SYSTEM_RANGE(0, 399)");
+    }
+
+    @Override
+    protected void tearDown() throws SQLException {
+        conn.close();
+        node1.stop();
+        node2.stop();
+        FileUtils.delete(name + Constants.SUFFIX_COORDINATOR_LOG_FILE);
+        FileUtils.delete(name + Constants.SUFFIX_TRACE_FILE);
+    }
+
+    private static int getFreePort() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+
+    private ArrayList<String> query(String sql) throws SQLException {
+        ResultSet rs = conn.createStatement().executeQuery(sql);
+        int columnCount = rs.getMetaData().getColumnCount();
+        ArrayList<String> rows = new ArrayList<String>();
+        while (rs.next()) {
+            StringBuilder buff = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++) {
+                buff.append(rs.getString(i)).append(' ');
+            }
+            rows.add(buff.toString().trim());
+        }
+        return rows;
+    }
+
+    /**
+     * Check that a query returns the same rows as the reference query.
+     *
+     * @param sql the query
+     * @param reference the query that the storage nodes can't evaluate
+     * @return the rows
+     */
+    private ArrayList<String> assertSameRows(String sql, String reference)
+            throws SQLException {
+        ArrayList<String> rows = query(sql);
+        assertEquals(query(reference), rows);
+        return rows;
+    }
+
+    public void testFilter() throws SQLException {
+        assertEquals(180, assertSameRows(
+                "SELECT ID, V FROM T WHERE V > 50 ORDER BY ID",
+                "SELECT ID, V FROM T WHERE V + 0 > 50 ORDER BY ID").size());
+        assertEquals(10, assertSameRows(
+                "SELECT * FROM T WHERE G = 3 AND V <= 20 AND ID >= 50 ORDER BY ID",
+                "SELECT * FROM T WHERE G + 0 = 3 AND V + 0 <= 20 AND ID + 0 >= 50 " +
+                "ORDER BY ID").size());
+        assertEquals(93, assertSameRows(
+                "SELECT ID, NAME FROM T WHERE NAME >= 'n5' AND NAME < 'n8' ORDER BY ID",
+                "SELECT ID, NAME FROM T WHERE NAME || '' >= 'n5' AND NAME || '' < 'n8' " +
+                "ORDER BY ID").size());
+        // NULL never matches
+        assertEquals(0, query("SELECT * FROM T WHERE V = NULL").size());
+    }
+
+    public void testTopN() throws SQLException {
+        assertEquals("[30 100, 131 100, 232 100, 333 100, 60 99]", assertSameRows(
+                "SELECT ID, V FROM T ORDER BY V DESC, ID LIMIT 5",
+                "SELECT ID, V FROM T ORDER BY V + 0 DESC, ID + 0 LIMIT 5").toString());
+        // NULL is sorted first
+        assertSameRows(
+                "SELECT ID, V FROM T WHERE G >= 2 ORDER BY V, ID LIMIT 5 OFFSET 7",
+                "SELECT ID, V FROM T WHERE G + 0 >= 2 ORDER BY V + 0, ID + 0 " +
+                "LIMIT 5 OFFSET 7");
+        assertEquals(20, assertSameRows(
+                "SELECT NAME, ID FROM T WHERE ID < 250 ORDER BY NAME DESC, ID LIMIT 20",
+                "SELECT NAME, ID FROM T WHERE ID + 0 < 250 ORDER BY NAME || '' DESC, " +
+                "ID + 0 LIMIT 20").size());
+        // fewer rows than the limit
+        assertEquals(3, assertSameRows(
+                "SELECT ID FROM T WHERE V = 1 ORDER BY G DESC, ID LIMIT 10",
+                "SELECT ID FROM T WHERE V + 0 = 1 ORDER BY G + 0 DESC, ID + 0 LIMIT 10")
+                .size());
+    }
+
+    public void testGroupBy() throws SQLException {
+        assertEquals(7, assertSameRows(
+                "SELECT G, COUNT(*), COUNT(V), SUM(V), MIN(V), MAX(V), AVG(V) " +
+                "FROM T GROUP BY G ORDER BY G",
+                "SELECT G, COUNT(*), COUNT(V + 0), SUM(V + 0), MIN(V + 0), MAX(V + 0), " +
+                "AVG(V + 0) FROM T GROUP BY G ORDER BY G").size());
+        assertEquals(91, assertSameRows(
+                "SELECT NAME, G, COUNT(*), SUM(ID) FROM T WHERE ID >= 150 " +
+                "GROUP BY NAME, G ORDER BY NAME, G",
+                "SELECT NAME, G, COUNT(*), SUM(ID + 0) FROM T WHERE ID + 0 >= 150 " +
+                "GROUP BY NAME, G ORDER BY NAME, G").size());
+        // no GROUP BY: one group
+        assertEquals("[250 227 11687 n0 n9]", assertSameRows(
+                "SELECT COUNT(*), COUNT(V), SUM(V), MIN(NAME), MAX(NAME) FROM T WHERE ID < 250",
+                "SELECT COUNT(*), COUNT(V + 0), SUM(V + 0), MIN(NAME || ''), MAX(NAME || '') " +
+                "FROM T WHERE ID + 0 < 250").toString());
+    }
+
+    public void testEmptyTable() throws SQLException {
+        String empty = "[0 0 null null null null]";
+        assertEquals(empty, assertSameRows(
+                "SELECT COUNT(*), COUNT(V), SUM(V), MIN(V), MAX(V), AVG(V) FROM E",
+                "SELECT COUNT(*), COUNT(V + 0), SUM(V + 0), MIN(V + 0), MAX(V + 0), " +
+                "AVG(V + 0) FROM E").toString());
+        // no row matches
+        assertEquals(empty, assertSameRows(
+                "SELECT COUNT(*), COUNT(V), SUM(V), MIN(V), MAX(V), AVG(V) FROM T " +
+                "WHERE V > 1000",
+                "SELECT COUNT(*), COUNT(V + 0), SUM(V + 0), MIN(V + 0), MAX(V + 0), " +
+                "AVG(V + 0) FROM T WHERE V + 0 > 1000").toString());
+        // no group
+        assertEquals(0, assertSameRows(
+                "SELECT G, COUNT(*), SUM(V) FROM E GROUP BY G",
+                "SELECT G, COUNT(*), SUM(V + 0) FROM E GROUP BY G").size());
+    }
+
+    public void testConditionNotPushed() throws SQLException {
+        // conditions the storage nodes can't evaluate: the rows are
+        // filtered, sorted and aggregated by the SQL node
+        assertEquals(80, assertSameRows(
+                "SELECT ID, V FROM T WHERE MOD(ID, 5) = 0 ORDER BY ID",
+                "SELECT ID, V FROM T WHERE MOD(ID + 0, 5) = 0 ORDER BY ID").size());
+        assertEquals(7, assertSameRows(
+                "SELECT G, COUNT(*), SUM(V), MIN(V), MAX(V), AVG(V) FROM T " +
+                "WHERE MOD(ID, 5) = 0 GROUP BY G ORDER BY G",
+                "SELECT G, COUNT(*), SUM(V + 0), MIN(V + 0), MAX(V + 0), AVG(V + 0) FROM T " +
+                "WHERE MOD(ID + 0, 5) = 0 GROUP BY G ORDER BY G").size());
+        // only a part of the condition can be evaluated by the storage nodes
+        assertEquals(5, assertSameRows(
+                "SELECT ID, V FROM T WHERE G = 1 AND MOD(ID, 3) = 0 ORDER BY V DESC, ID LIMIT 5",
+                "SELECT ID, V FROM T WHERE G + 0 = 1 AND MOD(ID + 0, 3) = 0 " +
+                "ORDER BY V + 0 DESC, ID + 0 LIMIT 5").size());
+        assertEquals(7, assertSameRows(
+                "SELECT G, COUNT(*), SUM(V) FROM T WHERE V <> 5 AND ID < 300 " +
+                "GROUP BY G ORDER BY G",
+                "SELECT G, COUNT(*), SUM(V + 0) FROM T WHERE V + 0 <> 5 AND ID + 0 < 300 " +
+                "GROUP BY G ORDER BY G").size());
+        assertEquals(25, assertSameRows(
+                "SELECT ID FROM T WHERE NAME LIKE 'n1%' AND V IS NOT NULL AND ID < 100 ORDER BY ID",
+                "SELECT ID FROM T WHERE NAME || '' LIKE 'n1%' AND V + 0 IS NOT NULL " +
+                "AND ID + 0 < 100 ORDER BY ID").size());
+    }
+
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.neradb.store.kv;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.neradb.meta.HybridClock;
+import org.neradb.meta.NodeAssignment;
+import org.neradb.meta.RangeInfo;
+import org.neradb.meta.RangeMove;
+import org.neradb.meta.RangeStats;
+
+import com.neradb.common.DbException;
+import com.neradb.common.ErrorCode;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests storage nodes in this process: the assignment of ranges, the
+ * statistics of the reports, moving a range to another node, and the write
+ * conflicts of transactions.
+ */
+public class KvStoreServerTest extends TestCase {
+
+    private static final String STORE = "T";
+
+    private KvStoreServer source, target;
+    private KvClient sourceClient, targetClient;
+
+    @Override
+    protected void setUp() throws IOException {
+        source = new KvStoreServer("localhost", getFreePort());
+        source.start();
+        target = new KvStoreServer("localhost", getFreePort());
+        target.start();
+        sourceClient = new KvClient(source.getAddress());
+        targetClient = new KvClient(target.getAddress());
+    }
+
+    @Override
+    protected void tearDown() {
+        sourceClient.close();
+        targetClient.close();
+        source.stop();
+        target.stop();
+    }
+
+    private static int getFreePort() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+
+    private static RangeInfo range(long id, String start, String end, int leader) {
+        return new RangeInfo(id, STORE, start, end, new int[] { leader }, leader);
+    }
+
+    private static NodeAssignment assignment(List<RangeInfo> ranges, RangeMove... moves) {
+        return new NodeAssignment(ranges, Arrays.asList(moves));
+    }
+
+    private static byte[] key(int i) {
+        return KeyEncoder.encodeRowKey(i);
+    }
+
+    private static String transaction(int coordinator, long start) {
+        return coordinator + ":" + Long.toHexString(start);
+    }
+
+    private static void assertRetry(Runnable r) {
+        assertError(ErrorCode.LOCK_TIMEOUT_1, r);
+    }
+
+    private static void assertConflict(Runnable r) {
+        assertError(ErrorCode.DEADLOCK_1, r);
+    }
+
+    private static void assertError(int errorCode, Runnable r) {
+        try {
+            r.run();
+            fail();
+        } catch (DbException e) {
+            assertEquals(errorCode, e.getErrorCode());
+        }
+    }
+
+    private static RangeStats getStats(KvStoreServer server, int nodeId, long rangeId) {
+        for (RangeStats s : server.createReport(nodeId).getRanges()) {
+            if (s.getRangeId() == rangeId) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    public void testUnownedRangesAreRejected() {
+        // no assignment yet: all requests are accepted
+        assertTrue(sourceClient.put("OTHER", key(1), new byte[1], false));
+        String middle = KeyEncoder.toHex(key(100));
+        source.assign(assignment(Collections.singletonList(range(1, null, middle, 1))));
+        assertTrue(sourceClient.put(STORE, key(1), new byte[1], false));
+        assertRetry(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.put(STORE, key(200), new byte[1], false);
+            }
+        });
+        assertRetry(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.get("OTHER", key(1));
+            }
+        });
+        // a scan that is only partially covered
+        assertRetry(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.count(STORE, null, null);
+            }
+        });
+        assertEquals(1, sourceClient.count(STORE, null, key(100)));
+    }
+
+    public void testStatistics() {
+        source.setSplitThreshold(Long.MAX_VALUE, Double.MAX_VALUE);
+        source.assign(assignment(Collections.singletonList(range(1, null, null, 1))));
+        for (int i = 0; i < 100; i++) {
+            sourceClient.put(STORE, key(i), new byte[10], false);
+        }
+        RangeStats s = getStats(source, 1, 1);
+        assertEquals(100, s.getKeyCount());
+        assertEquals(100 * (9 + 10), s.getBytes());
+        // below the split threshold
+        assertNull(s.getSplitKey());
+        sourceClient.delete(STORE, key(0));
+        sourceClient.put(STORE, key(1), new byte[20], false);
+        sourceClient.deleteRange(STORE, key(90), null);
+        s = getStats(source, 1, 1);
+        assertEquals(89, s.getKeyCount());
+        assertEquals(89 * (9 + 10) + 10, s.getBytes());
+        // changes of a rolled back transaction
+        String tx = "1:1";
+        sourceClient.put(STORE, key(95), new byte[10], false, tx);
+        sourceClient.delete(STORE, key(2), tx);
+        sourceClient.rollback(tx);
+        s = getStats(source, 1, 1);
+        assertEquals(89, s.getKeyCount());
+        assertEquals(89 * (9 + 10) + 10, s.getBytes());
+
+        source.setSplitThreshold(1000, Double.MAX_VALUE);
+        s = getStats(source, 1, 1);
+        assertEquals(KeyEncoder.toHex(key(45)), s.getSplitKey());
+
+        // split: the statistics are computed from the data once
+        String middle = KeyEncoder.toHex(key(50));
+        ArrayList<RangeInfo> ranges = new ArrayList<RangeInfo>();
+        ranges.add(range(1, null, middle, 1));
+        ranges.add(range(2, middle, null, 1));
+        source.assign(assignment(ranges));
+        assertEquals(49, getStats(source, 1, 1).getKeyCount());
+        assertEquals(40, getStats(source, 1, 2).getKeyCount());
+    }
+
+    public void testMove() throws InterruptedException {
+        RangeInfo r = range(1, null, null, 1);
+        List<RangeInfo> ranges = Collections.singletonList(r);
+        source.assign(assignment(ranges));
+        target.assign(assignment(Collections.<RangeInfo>emptyList()));
+        for (int i = 0; i < 1000; i++) {
+            sourceClient.put(STORE, key(i), new byte[] { (byte) i }, false);
+        }
+        // the target doesn't serve the range yet
+        assertRetry(new Runnable() {
+            @Override
+            public void run() {
+                targetClient.get(STORE, key(1));
+            }
+        });
+
+        RangeMove m = new RangeMove(1, STORE, null, null, 1, 2, target.getAddress());
+        source.assign(assignment(ranges, m));
+        long[] completed = {};
+        for (int i = 0; i < 100 && completed.length == 0; i++) {
+            Thread.sleep(20);
+            completed = source.createReport(1).getCompletedMoves();
+        }
+        assertEquals(1, completed.length);
+        assertEquals(1, completed[0]);
+        // writes to the source are rejected once the range is copied
+        assertRetry(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.put(STORE, key(1), new byte[1], false);
+            }
+        });
+        assertEquals(1, sourceClient.get(STORE, key(1))[0]);
+
+        // the target is now the leader
+        RangeInfo moved = range(1, null, null, 2);
+        target.assign(assignment(Collections.singletonList(moved)));
+        source.assign(assignment(Collections.<RangeInfo>emptyList()));
+        assertRetry(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.get(STORE, key(1));
+            }
+        });
+        assertEquals(1000, targetClient.count(STORE, null, null));
+        assertEquals(1, targetClient.get(STORE, key(1))[0]);
+        assertTrue(targetClient.put(STORE, key(1), new byte[] { 2 }, false));
+        RangeStats s = getStats(target, 2, 1);
+        assertEquals(1000, s.getKeyCount());
+        assertEquals(1000 * (9 + 1), s.getBytes());
+        assertTrue(source.createReport(1).getRanges().isEmpty());
+    }
+
+    public void testLockedKeys() {
+        long now = HybridClock.toTimestamp(System.currentTimeMillis());
+        final String t1 = transaction(1, now), t2 = transaction(2, now);
+        sourceClient.put(STORE, key(1), new byte[] { 0 }, false);
+        sourceClient.put(STORE, key(1), new byte[] { 1 }, false, t1);
+        // the key is locked until t1 is committed or rolled back
+        assertRetry(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.put(STORE, key(1), new byte[] { 2 }, false, t2);
+            }
+        });
+        assertRetry(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.delete(STORE, key(1), t2);
+            }
+        });
+        // t2 doesn't change any key if one of them is locked
+        assertRetry(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.putAll(STORE, Arrays.asList(key(0), key(1), key(2)),
+                        Arrays.asList(new byte[1], new byte[1], new byte[1]), false, t2);
+            }
+        });
+        assertNull(sourceClient.get(STORE, key(0)));
+        assertNull(sourceClient.get(STORE, key(2)));
+        assertEquals(1, sourceClient.get(STORE, key(1))[0]);
+
+        // the rollback of t1 doesn't overwrite the change of t2
+        sourceClient.rollback(t1);
+        assertTrue(sourceClient.put(STORE, key(1), new byte[] { 2 }, false, t2));
+        sourceClient.commit(t2, now);
+        sourceClient.rollback(t1);
+        assertEquals(2, sourceClient.get(STORE, key(1))[0]);
+    }
+
+    public void testWriteConflicts() {
+        long now = HybridClock.toTimestamp(System.currentTimeMillis());
+        final String t1 = transaction(1, now);
+        String t2 = transaction(2, now);
+        sourceClient.put(STORE, key(1), new byte[] { 0 }, false);
+        sourceClient.put(STORE, key(1), new byte[] { 2 }, false, t2);
+        long committed = sourceClient.commit(t2, now + 1);
+        // the key was changed after t1 started
+        assertConflict(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.put(STORE, key(1), new byte[] { 1 }, false, t1);
+            }
+        });
+        assertConflict(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.delete(STORE, key(1), t1);
+            }
+        });
+        assertConflict(new Runnable() {
+            @Override
+            public void run() {
+                sourceClient.putAll(STORE, Arrays.asList(key(0), key(1)),
+                        Arrays.asList(new byte[1], new byte[1]), false, t1);
+            }
+        });
+        assertNull(sourceClient.get(STORE, key(0)));
+        sourceClient.rollback(t1);
+        assertEquals(2, sourceClient.get(STORE, key(1))[0]);
+        // a transaction that started after the commit
+        String t3 = transaction(3, committed);
+        assertTrue(sourceClient.delete(STORE, key(1), t3));
+        sourceClient.commit(t3, committed);
+        assertNull(sourceClient.get(STORE, key(1)));
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The catalog entries that changed after a given version.
+ */
+public class CatalogChanges {
+
+    private final long version;
+    private final List<CatalogEntry> entries;
+
+    public CatalogChanges(long version, List<CatalogEntry> entries) {
+        this.version = version;
+        this.entries = entries;
+    }
+
+    /**
+     * Get the current catalog version (to be used for the next request).
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the changed entries, in the order of the changes.
+     *
+     * @return the entries
+     */
+    public List<CatalogEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Write the changes.
+     *
+     * @param out the output
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(version);
+        out.writeInt(entries.size());
+        for (CatalogEntry e : entries) {
+            e.write(out);
+        }
+    }
+
+    /**
+     * Read the changes.
+     *
+     * @param in the input
+     * @return the changes
+     */
+    public static CatalogChanges read(DataInput in) throws IOException {
+        long version = in.readLong();
+        int size = in.readInt();
+        ArrayList<CatalogEntry> entries = new ArrayList<CatalogEntry>(size);
+        for (int i = 0; i < size; i++) {
+            entries.add(CatalogEntry.read(in));
+        }
+        return new CatalogChanges(version, entries);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A schema object of the shared catalog: the statements to create and to
+ * drop the object. Removed objects are kept as removed entries, so that
+ * clients that watch the catalog see the removal.
+ */
+public class CatalogEntry {
+
+    private final String key;
+    private final int type;
+    private final String sql;
+    private final String dropSql;
+    private final long version;
+    private final boolean removed;
+
+    public CatalogEntry(String key, int type, String sql, String dropSql,
+            long version, boolean removed) {
+        this.key = key;
+        this.type = type;
+        this.sql = sql;
+        this.dropSql = dropSql;
+        this.version = version;
+        this.removed = removed;
+    }
+
+    /**
+     * Get the unique key of the object (the object type and the qualified
+     * name).
+     *
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the object type (as defined in the database engine).
+     *
+     * @return the type
+     */
+    public int getType() {
+        return type;
+    }
+
+    public String getSQL() {
+        return sql;
+    }
+
+    public String getDropSQL() {
+        return dropSql;
+    }
+
+    /**
+     * Get the catalog version of the last change of this entry.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * Write the entry.
+     *
+     * @param out the output
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(key);
+        out.writeInt(type);
+        MetaProtocol.writeString(out, sql);
+        MetaProtocol.writeString(out, dropSql);
+        out.writeLong(version);
+        out.writeBoolean(removed);
+    }
+
+    /**
+     * Read an entry.
+     *
+     * @param in the input
+     * @return the entry
+     */
+    public static CatalogEntry read(DataInput in) throws IOException {
+        String key = in.readUTF();
+        int type = in.readInt();
+        String sql = MetaProtocol.readString(in);
+        String dropSql = MetaProtocol.readString(in);
+        long version = in.readLong();
+        boolean removed = in.readBoolean();
+        return new CatalogEntry(key, type, sql, dropSql, version, removed);
+    }
+
+    @Override
+    public String toString() {
+        return key + (removed ? " removed" : " " + sql) + " v" + version;
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta;
+
+/**
+ * A hybrid logical clock (Kulkarni et al., 2014). A timestamp is the
+ * physical time in milliseconds, shifted left by {@link #LOGICAL_BITS}, plus
+ * a logical counter. The timestamps of a clock are strictly increasing, and
+ * larger than all timestamps the clock has seen (see {@link #update(long)}),
+ * even if the physical clocks of the nodes differ.
+ * <p>
+ * The timestamps of transactions (allocated by the meta server, see
+ * <code>TimestampOracle</code>) use the same format.
+ * </p>
+ */
+public class HybridClock {
+
+    /**
+     * The number of bits of the logical counter.
+     */
+    public static final int LOGICAL_BITS = 18;
+
+    private long last;
+
+    /**
+     * Get the first timestamp of the given physical time.
+     *
+     * @param millis the time in milliseconds
+     * @return the timestamp
+     */
+    public static long toTimestamp(long millis) {
+        return millis << LOGICAL_BITS;
+    }
+
+    /**
+     * Get the physical time of a timestamp.
+     *
+     * @param timestamp the timestamp
+     * @return the time in milliseconds
+     */
+    public static long getMillis(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+
+    /**
+     * Get a new timestamp.
+     *
+     * @return the timestamp
+     */
+    public synchronized long now() {
+        last = Math.max(last + 1, toTimestamp(System.currentTimeMillis()));
+        return last;
+    }
+
+    /**
+     * Advance the clock to a timestamp that was received from another node,
+     * so that the following timestamps are larger.
+     *
+     * @param timestamp the timestamp
+     */
+    public synchronized void update(long timestamp) {
+        if (timestamp > last) {
+            last = timestamp;
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The constants and helper methods of the network protocol of the meta
+ * server.
+ * <p>
+ * Each message starts with a kind byte. Raft messages between the servers are
+ * one-way. A client sends a request (the operation code and its arguments)
+ * and waits for the response (a status code, followed by the result if the
+ * status is {@link #STATUS_OK}, by the endpoint of the leader if the status
+ * is {@link #STATUS_NOT_LEADER}, and by the message if the status is
+ * {@link #STATUS_ERROR}).
+ * </p>
+ */
+public class MetaProtocol {
+
+    /**
+     * A Raft message from another server.
+     */
+    public static final byte KIND_RAFT = 1;
+
+    /**
+     * A request from a client.
+     */
+    public static final byte KIND_REQUEST = 2;
+
+    /**
+     * Get the catalog entries changed after the given version.
+     */
+    public static final int GET_CATALOG = 1;
+
+    /**
+     * Like GET_CATALOG, but wait until there is a change or the timeout is
+     * reached.
+     */
+    public static final int WATCH_CATALOG = 2;
+
+    /**
+     * Add or replace a catalog entry.
+     */
+    public static final int PUT_CATALOG = 3;
+
+    /**
+     * Remove a catalog entry.
+     */
+    public static final int REMOVE_CATALOG = 4;
+
+    /**
+     * Get the ranges of a table, or of all tables.
+     */
+    public static final int GET_RANGES = 5;
+
+    /**
+     * Add or replace a range.
+     */
+    public static final int PUT_RANGE = 6;
+
+    /**
+     * Remove a range.
+     */
+    public static final int REMOVE_RANGE = 7;
+
+    /**
+     * Report that a node is alive.
+     */
+    public static final int HEARTBEAT = 8;
+
+    /**
+     * Get the known nodes.
+     */
+    public static final int GET_NODES = 9;
+
+    /**
+     * Report the load and the range statistics of a storage node (which is
+     * also a heartbeat), and get the ranges and moves assigned to it.
+     */
+    public static final int REPORT = 10;
+
+    /**
+     * Atomically remove ranges and add ranges, if all removed ranges still
+     * exist (used to split, merge and move ranges). This operation is only
+     * used within the log.
+     */
+    public static final int REPLACE_RANGES = 11;
+
+    /**
+     * Allocate a range of timestamps for transactions (see
+     * {@link HybridClock}). The argument is the number of timestamps, and
+     * the result is the first one.
+     */
+    public static final int GET_TIMESTAMPS = 12;
+
+    /**
+     * Raise the limit of the timestamps the leader may allocate. The result
+     * is the limit before. This operation is only used within the log.
+     */
+    public static final int SAVE_TIMESTAMP = 13;
+
+    /**
+     * The request was successful.
+     */
+    public static final int STATUS_OK = 0;
+
+    /**
+     * This server is not the leader.
+     */
+    public static final int STATUS_NOT_LEADER = 1;
+
+    /**
+     * The request failed.
+     */
+    public static final int STATUS_ERROR = 2;
+
+    private MetaProtocol() {
+        // utility class
+    }
+
+    /**
+     * Write a string that may be null.
+     *
+     * @param out the output
+     * @param s the string
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    /**
+     * Read a string that may be null.
+     *
+     * @param in the input
+     * @return the string
+     */
+    public static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Parse an endpoint of the form <code>tcp://host:port</code> or
+     * <code>host:port</code>.
+     *
+     * @param endpoint the endpoint
+     * @return the host (index 0) and port (index 1)
+     */
+    public static String[] parseEndpoint(String endpoint) {
+        String s = endpoint.trim();
+        int idx = s.indexOf("://");
+        if (idx >= 0) {
+            s = s.substring(idx + 3);
+        }
+        if (s.endsWith("/")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        idx = s.lastIndexOf(':');
+        if (idx < 0) {
+            throw new IllegalArgumentException("Port missing: " + endpoint);
+        }
+        return new String[] { s.substring(0, idx), s.substring(idx + 1) };
+    }
+
+}
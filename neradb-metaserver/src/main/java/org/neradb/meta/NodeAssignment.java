@@ -0,0 +1,85 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The response to the report of a storage node: the ranges the node serves,
+ * and the moves it should execute.
+ */
+public class NodeAssignment {
+
+    private final List<RangeInfo> ranges;
+    private final List<RangeMove> moves;
+
+    public NodeAssignment(List<RangeInfo> ranges, List<RangeMove> moves) {
+        this.ranges = ranges;
+        this.moves = moves;
+    }
+
+    /**
+     * Get the ranges the node is the leader of, ordered by table name and
+     * start key.
+     *
+     * @return the ranges
+     */
+    public List<RangeInfo> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * Get the moves of ranges from this node to another node. A move that is
+     * no longer listed was cancelled, or was completed if the range is no
+     * longer listed either.
+     *
+     * @return the moves
+     */
+    public List<RangeMove> getMoves() {
+        return moves;
+    }
+
+    /**
+     * Write the assignment.
+     *
+     * @param out the output
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(ranges.size());
+        for (RangeInfo r : ranges) {
+            r.write(out);
+        }
+        out.writeInt(moves.size());
+        for (RangeMove m : moves) {
+            m.write(out);
+        }
+    }
+
+    /**
+     * Read an assignment.
+     *
+     * @param in the input
+     * @return the assignment
+     */
+    public static NodeAssignment read(DataInput in) throws IOException {
+        int count = in.readInt();
+        ArrayList<RangeInfo> ranges = new ArrayList<RangeInfo>(count);
+        for (int i = 0; i < count; i++) {
+            ranges.add(RangeInfo.read(in));
+        }
+        count = in.readInt();
+        ArrayList<RangeMove> moves = new ArrayList<RangeMove>(count);
+        for (int i = 0; i < count; i++) {
+            moves.add(RangeMove.read(in));
+        }
+        return new NodeAssignment(ranges, moves);
+    }
+
+}
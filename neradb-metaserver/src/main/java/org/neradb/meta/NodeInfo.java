@@ -0,0 +1,87 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A node of the database cluster, as seen by the meta server.
+ */
+public class NodeInfo {
+
+    private final int nodeId;
+    private final String address;
+    private final long lastHeartbeat;
+    private final boolean live;
+
+    public NodeInfo(int nodeId, String address, long lastHeartbeat, boolean live) {
+        this.nodeId = nodeId;
+        this.address = address;
+        this.lastHeartbeat = lastHeartbeat;
+        this.live = live;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the time of the last heartbeat, according to the clock of the
+     * leader of the meta servers.
+     *
+     * @return the time in milliseconds since 1970
+     */
+    public long getLastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    /**
+     * Whether the node sent a heartbeat recently.
+     *
+     * @return true if the node is considered live
+     */
+    public boolean isLive() {
+        return live;
+    }
+
+    /**
+     * Write the node.
+     *
+     * @param out the output
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(nodeId);
+        MetaProtocol.writeString(out, address);
+        out.writeLong(lastHeartbeat);
+        out.writeBoolean(live);
+    }
+
+    /**
+     * Read a node.
+     *
+     * @param in the input
+     * @return the node
+     */
+    public static NodeInfo read(DataInput in) throws IOException {
+        int nodeId = in.readInt();
+        String address = MetaProtocol.readString(in);
+        long lastHeartbeat = in.readLong();
+        boolean live = in.readBoolean();
+        return new NodeInfo(nodeId, address, lastHeartbeat, live);
+    }
+
+    @Override
+    public String toString() {
+        return "node " + nodeId + " " + address + (live ? " live" : " down");
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The periodic report of a storage node: its load, the statistics of the
+ * ranges it serves, and the moves it has completed. A report is also a
+ * heartbeat.
+ */
+public class NodeReport {
+
+    private final int nodeId;
+    private final String address;
+    private final double cpuLoad;
+    private final long diskBytes;
+    private final List<RangeStats> ranges;
+    private final long[] completedMoves;
+
+    public NodeReport(int nodeId, String address, double cpuLoad,
+            long diskBytes, List<RangeStats> ranges, long[] completedMoves) {
+        this.nodeId = nodeId;
+        this.address = address;
+        this.cpuLoad = cpuLoad;
+        this.diskBytes = diskBytes;
+        this.ranges = ranges;
+        this.completedMoves = completedMoves;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the CPU load of the node.
+     *
+     * @return the load between 0 (idle) and 1 (all processors busy)
+     */
+    public double getCpuLoad() {
+        return cpuLoad;
+    }
+
+    /**
+     * Get the size of all data stored on the node.
+     *
+     * @return the size in bytes
+     */
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Get the statistics of the ranges the node serves.
+     *
+     * @return the statistics
+     */
+    public List<RangeStats> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * Get the ids of the ranges that were copied to the target of their move.
+     *
+     * @return the range ids
+     */
+    public long[] getCompletedMoves() {
+        return completedMoves;
+    }
+
+    /**
+     * Write the report.
+     *
+     * @param out the output
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(nodeId);
+        MetaProtocol.writeString(out, address);
+        out.writeDouble(cpuLoad);
+        out.writeLong(diskBytes);
+        out.writeInt(ranges.size());
+        for (RangeStats s : ranges) {
+            s.write(out);
+        }
+        out.writeInt(completedMoves.length);
+        for (long id : completedMoves) {
+            out.writeLong(id);
+        }
+    }
+
+    /**
+     * Read a report.
+     *
+     * @param in the input
+     * @return the report
+     */
+    public static NodeReport read(DataInput in) throws IOException {
+        int nodeId = in.readInt();
+        String address = MetaProtocol.readString(in);
+        double cpuLoad = in.readDouble();
+        long diskBytes = in.readLong();
+        int count = in.readInt();
+        ArrayList<RangeStats> ranges = new ArrayList<RangeStats>(count);
+        for (int i = 0; i < count; i++) {
+            ranges.add(RangeStats.read(in));
+        }
+        long[] completedMoves = new long[in.readInt()];
+        for (int i = 0; i < completedMoves.length; i++) {
+            completedMoves[i] = in.readLong();
+        }
+        return new NodeReport(nodeId, address, cpuLoad, diskBytes, ranges,
+                completedMoves);
+    }
+
+    @Override
+    public String toString() {
+        return "node " + nodeId + " " + address + " cpu " + cpuLoad + " " +
+                diskBytes + " bytes " + ranges;
+    }
+
+}
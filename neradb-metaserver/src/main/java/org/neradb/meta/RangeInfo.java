@@ -0,0 +1,117 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The placement of a range of a table: the key range, the nodes that store a
+ * replica, and the node that serves the range.
+ * <p>
+ * The start key is inclusive and the end key is exclusive; null means
+ * unbounded. The keys are encoded by the engine.
+ * </p>
+ */
+public class RangeInfo {
+
+    private final long rangeId;
+    private final String tableName;
+    private final String startKey;
+    private final String endKey;
+    private final int[] replicas;
+    private final int leader;
+
+    public RangeInfo(long rangeId, String tableName, String startKey,
+            String endKey, int[] replicas, int leader) {
+        this.rangeId = rangeId;
+        this.tableName = tableName;
+        this.startKey = startKey;
+        this.endKey = endKey;
+        this.replicas = replicas;
+        this.leader = leader;
+    }
+
+    public long getRangeId() {
+        return rangeId;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getStartKey() {
+        return startKey;
+    }
+
+    public String getEndKey() {
+        return endKey;
+    }
+
+    /**
+     * Get the ids of the nodes that store a replica of this range.
+     *
+     * @return the node ids
+     */
+    public int[] getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Get the id of the node that serves this range.
+     *
+     * @return the node id
+     */
+    public int getLeader() {
+        return leader;
+    }
+
+    /**
+     * Write the range.
+     *
+     * @param out the output
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(rangeId);
+        out.writeUTF(tableName);
+        MetaProtocol.writeString(out, startKey);
+        MetaProtocol.writeString(out, endKey);
+        out.writeInt(replicas.length);
+        for (int r : replicas) {
+            out.writeInt(r);
+        }
+        out.writeInt(leader);
+    }
+
+    /**
+     * Read a range.
+     *
+     * @param in the input
+     * @return the range
+     */
+    public static RangeInfo read(DataInput in) throws IOException {
+        long rangeId = in.readLong();
+        String tableName = in.readUTF();
+        String startKey = MetaProtocol.readString(in);
+        String endKey = MetaProtocol.readString(in);
+        int[] replicas = new int[in.readInt()];
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = in.readInt();
+        }
+        int leader = in.readInt();
+        return new RangeInfo(rangeId, tableName, startKey, endKey, replicas, leader);
+    }
+
+    @Override
+    public String toString() {
+        return "range " + rangeId + " " + tableName + " [" + startKey + ", " +
+                endKey + ") replicas " + Arrays.toString(replicas) +
+                " leader " + leader;
+    }
+
+}
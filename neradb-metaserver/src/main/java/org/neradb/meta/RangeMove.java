@@ -0,0 +1,106 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A command to move a range to another node. The source node stops accepting
+ * writes for the range, copies it to the target node, and reports the move
+ * as completed; the meta server then makes the target the leader of the
+ * range.
+ */
+public class RangeMove {
+
+    private final long rangeId;
+    private final String tableName;
+    private final String startKey;
+    private final String endKey;
+    private final int sourceNode;
+    private final int targetNode;
+    private final String targetAddress;
+
+    public RangeMove(long rangeId, String tableName, String startKey,
+            String endKey, int sourceNode, int targetNode, String targetAddress) {
+        this.rangeId = rangeId;
+        this.tableName = tableName;
+        this.startKey = startKey;
+        this.endKey = endKey;
+        this.sourceNode = sourceNode;
+        this.targetNode = targetNode;
+        this.targetAddress = targetAddress;
+    }
+
+    public long getRangeId() {
+        return rangeId;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getStartKey() {
+        return startKey;
+    }
+
+    public String getEndKey() {
+        return endKey;
+    }
+
+    public int getSourceNode() {
+        return sourceNode;
+    }
+
+    public int getTargetNode() {
+        return targetNode;
+    }
+
+    public String getTargetAddress() {
+        return targetAddress;
+    }
+
+    /**
+     * Write the move.
+     *
+     * @param out the output
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(rangeId);
+        out.writeUTF(tableName);
+        MetaProtocol.writeString(out, startKey);
+        MetaProtocol.writeString(out, endKey);
+        out.writeInt(sourceNode);
+        out.writeInt(targetNode);
+        MetaProtocol.writeString(out, targetAddress);
+    }
+
+    /**
+     * Read a move.
+     *
+     * @param in the input
+     * @return the move
+     */
+    public static RangeMove read(DataInput in) throws IOException {
+        long rangeId = in.readLong();
+        String tableName = in.readUTF();
+        String startKey = MetaProtocol.readString(in);
+        String endKey = MetaProtocol.readString(in);
+        int sourceNode = in.readInt();
+        int targetNode = in.readInt();
+        String targetAddress = MetaProtocol.readString(in);
+        return new RangeMove(rangeId, tableName, startKey, endKey, sourceNode,
+                targetNode, targetAddress);
+    }
+
+    @Override
+    public String toString() {
+        return "move range " + rangeId + " " + tableName + " [" + startKey +
+                ", " + endKey + ") from " + sourceNode + " to " + targetNode;
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The statistics of a range, as measured by the node that serves it.
+ * <p>
+ * The key range is the one the node knew when it measured the range, so that
+ * statistics of a range that was split or merged in the meantime can be
+ * detected and ignored.
+ * </p>
+ */
+public class RangeStats {
+
+    private final long rangeId;
+    private final String startKey;
+    private final String endKey;
+    private final long bytes;
+    private final long keyCount;
+    private final double qps;
+    private final String splitKey;
+
+    public RangeStats(long rangeId, String startKey, String endKey, long bytes,
+            long keyCount, double qps, String splitKey) {
+        this.rangeId = rangeId;
+        this.startKey = startKey;
+        this.endKey = endKey;
+        this.bytes = bytes;
+        this.keyCount = keyCount;
+        this.qps = qps;
+        this.splitKey = splitKey;
+    }
+
+    public long getRangeId() {
+        return rangeId;
+    }
+
+    public String getStartKey() {
+        return startKey;
+    }
+
+    public String getEndKey() {
+        return endKey;
+    }
+
+    /**
+     * Get the size of the keys and values of the range.
+     *
+     * @return the size in bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getKeyCount() {
+        return keyCount;
+    }
+
+    /**
+     * Get the number of requests per second since the last report.
+     *
+     * @return the requests per second
+     */
+    public double getQps() {
+        return qps;
+    }
+
+    /**
+     * Get the key that splits the range into two halves of about the same
+     * number of keys.
+     *
+     * @return the key, or null if the range has less than two keys
+     */
+    public String getSplitKey() {
+        return splitKey;
+    }
+
+    /**
+     * Write the statistics.
+     *
+     * @param out the output
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(rangeId);
+        MetaProtocol.writeString(out, startKey);
+        MetaProtocol.writeString(out, endKey);
+        out.writeLong(bytes);
+        out.writeLong(keyCount);
+        out.writeDouble(qps);
+        MetaProtocol.writeString(out, splitKey);
+    }
+
+    /**
+     * Read the statistics.
+     *
+     * @param in the input
+     * @return the statistics
+     */
+    public static RangeStats read(DataInput in) throws IOException {
+        long rangeId = in.readLong();
+        String startKey = MetaProtocol.readString(in);
+        String endKey = MetaProtocol.readString(in);
+        long bytes = in.readLong();
+        long keyCount = in.readLong();
+        double qps = in.readDouble();
+        String splitKey = MetaProtocol.readString(in);
+        return new RangeStats(rangeId, startKey, endKey, bytes, keyCount, qps,
+                splitKey);
+    }
+
+    @Override
+    public String toString() {
+        return "range " + rangeId + " " + bytes + " bytes " + keyCount +
+                " keys " + qps + " qps";
+    }
+
+}
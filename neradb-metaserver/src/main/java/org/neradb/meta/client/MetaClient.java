@@ -0,0 +1,359 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neradb.meta.CatalogChanges;
+import org.neradb.meta.MetaProtocol;
+import org.neradb.meta.NodeAssignment;
+import org.neradb.meta.NodeInfo;
+import org.neradb.meta.NodeReport;
+import org.neradb.meta.RangeInfo;
+
+/**
+ * A client of the meta server cluster.
+ * <p>
+ * The client keeps one connection, to the leader if known. If the server is
+ * not the leader, the request is sent again to the leader it names, or to the
+ * next server. Requests are synchronous, and the methods are synchronized.
+ * </p>
+ */
+public class MetaClient {
+
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int RETRY_DELAY = 200;
+
+    private final ArrayList<String> endpoints;
+    private final int maxAttempts;
+    private String current;
+    private int next;
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    /**
+     * Create a client.
+     *
+     * @param endpoints the endpoints of the servers
+     *            (<code>tcp://host:port</code>)
+     */
+    public MetaClient(List<String> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No meta server");
+        }
+        this.endpoints = new ArrayList<String>(endpoints);
+        // long enough for a new leader to be elected
+        this.maxAttempts = Math.max(3 * endpoints.size(), 20);
+    }
+
+    /**
+     * Create a client.
+     *
+     * @param endpoints the comma separated endpoints of the servers
+     * @return the client
+     */
+    public static MetaClient create(String endpoints) {
+        ArrayList<String> list = new ArrayList<String>();
+        for (String s : endpoints.split(",")) {
+            if (!s.trim().isEmpty()) {
+                list.add(s.trim());
+            }
+        }
+        return new MetaClient(list);
+    }
+
+    /**
+     * Get the catalog entries changed after the given version. With version
+     * 0, all entries except removed ones are returned.
+     *
+     * @param since the version
+     * @return the changes
+     */
+    public synchronized CatalogChanges getCatalog(long since) throws IOException {
+        Request o = request(MetaProtocol.GET_CATALOG);
+        o.writeLong(since);
+        return CatalogChanges.read(call(o, 0));
+    }
+
+    /**
+     * Wait until the catalog changed after the given version, or the timeout
+     * is reached.
+     *
+     * @param since the version
+     * @param timeoutMillis the timeout in milliseconds
+     * @return the changes (possibly none)
+     */
+    public synchronized CatalogChanges watchCatalog(long since, long timeoutMillis)
+            throws IOException {
+        Request o = request(MetaProtocol.WATCH_CATALOG);
+        o.writeLong(since);
+        o.writeLong(timeoutMillis);
+        return CatalogChanges.read(call(o, (int) timeoutMillis));
+    }
+
+    /**
+     * Add or replace a catalog entry.
+     *
+     * @param key the key
+     * @param type the object type
+     * @param sql the create statement
+     * @param dropSql the drop statement, or null
+     * @return the new catalog version
+     */
+    public synchronized long putCatalog(String key, int type, String sql, String dropSql)
+            throws IOException {
+        Request o = request(MetaProtocol.PUT_CATALOG);
+        MetaProtocol.writeString(o, key);
+        o.writeInt(type);
+        MetaProtocol.writeString(o, sql);
+        MetaProtocol.writeString(o, dropSql);
+        return call(o, 0).readLong();
+    }
+
+    /**
+     * Remove a catalog entry.
+     *
+     * @param key the key
+     * @return the new catalog version
+     */
+    public synchronized long removeCatalog(String key) throws IOException {
+        Request o = request(MetaProtocol.REMOVE_CATALOG);
+        MetaProtocol.writeString(o, key);
+        return call(o, 0).readLong();
+    }
+
+    /**
+     * Get the ranges of a table, ordered by start key.
+     *
+     * @param tableName the table name, or null for all tables
+     * @return the ranges
+     */
+    public synchronized List<RangeInfo> getRanges(String tableName) throws IOException {
+        Request o = request(MetaProtocol.GET_RANGES);
+        MetaProtocol.writeString(o, tableName);
+        DataInputStream r = call(o, 0);
+        int count = r.readInt();
+        ArrayList<RangeInfo> list = new ArrayList<RangeInfo>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(RangeInfo.read(r));
+        }
+        return list;
+    }
+
+    /**
+     * Add or replace a range.
+     *
+     * @param range the range
+     * @return the new placement version
+     */
+    public synchronized long putRange(RangeInfo range) throws IOException {
+        Request o = request(MetaProtocol.PUT_RANGE);
+        range.write(o);
+        return call(o, 0).readLong();
+    }
+
+    /**
+     * Remove a range.
+     *
+     * @param rangeId the range id
+     * @return the new placement version
+     */
+    public synchronized long removeRange(long rangeId) throws IOException {
+        Request o = request(MetaProtocol.REMOVE_RANGE);
+        o.writeLong(rangeId);
+        return call(o, 0).readLong();
+    }
+
+    /**
+     * Report that a node is alive.
+     *
+     * @param nodeId the node id
+     * @param address the address of the node
+     * @return the time of the heartbeat (as seen by the meta server)
+     */
+    public synchronized long heartbeat(int nodeId, String address) throws IOException {
+        Request o = request(MetaProtocol.HEARTBEAT);
+        o.writeInt(nodeId);
+        MetaProtocol.writeString(o, address);
+        return call(o, 0).readLong();
+    }
+
+    /**
+     * Report the load and the range statistics of a storage node. This is
+     * also a heartbeat.
+     *
+     * @param report the report
+     * @return the ranges and moves assigned to the node
+     */
+    public synchronized NodeAssignment report(NodeReport report) throws IOException {
+        Request o = request(MetaProtocol.REPORT);
+        report.write(o);
+        return NodeAssignment.read(call(o, 0));
+    }
+
+    /**
+     * Get the nodes that sent a heartbeat.
+     *
+     * @return the nodes
+     */
+    public synchronized List<NodeInfo> getNodes() throws IOException {
+        DataInputStream r = call(request(MetaProtocol.GET_NODES), 0);
+        int count = r.readInt();
+        ArrayList<NodeInfo> list = new ArrayList<NodeInfo>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(NodeInfo.read(r));
+        }
+        return list;
+    }
+
+    /**
+     * Allocate a range of timestamps for transactions. The timestamps are
+     * larger than all timestamps that were allocated before.
+     *
+     * @param count the number of timestamps
+     * @return the first timestamp
+     */
+    public synchronized long getTimestamps(int count) throws IOException {
+        Request o = request(MetaProtocol.GET_TIMESTAMPS);
+        o.writeInt(count);
+        return call(o, 0).readLong();
+    }
+
+    /**
+     * Close the connection.
+     */
+    public synchronized void close() {
+        disconnect();
+    }
+
+    private static Request request(int op) throws IOException {
+        Request o = new Request();
+        o.writeByte(MetaProtocol.KIND_REQUEST);
+        o.writeInt(op);
+        return o;
+    }
+
+    /**
+     * Send the request to the leader and read the status.
+     *
+     * @param request the request
+     * @param timeout the additional time the server may take to respond
+     * @return the input stream positioned at the result
+     */
+    private DataInputStream call(Request request, int timeout)
+            throws IOException {
+        byte[] data = request.toByteArray();
+        IOException last = null;
+        for (int attempt = 0; attempt < maxAttempts; attempt++) {
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                socket.setSoTimeout(timeout + 10 * CONNECT_TIMEOUT);
+                out.write(data);
+                out.flush();
+                int status = in.readInt();
+                if (status == MetaProtocol.STATUS_OK) {
+                    return in;
+                } else if (status == MetaProtocol.STATUS_ERROR) {
+                    throw new MetaException(MetaProtocol.readString(in));
+                }
+                String leader = MetaProtocol.readString(in);
+                disconnect();
+                if (leader != null && !leader.equals(current)) {
+                    current = leader;
+                    continue;
+                }
+                // no leader yet: try the next server
+                current = null;
+                last = new IOException("No meta server leader");
+            } catch (MetaException e) {
+                throw e;
+            } catch (IOException e) {
+                last = e;
+                disconnect();
+                current = null;
+            }
+            try {
+                Thread.sleep(RETRY_DELAY);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        throw last;
+    }
+
+    private void connect() throws IOException {
+        if (current == null) {
+            current = endpoints.get(next++ % endpoints.size());
+        }
+        String[] hostPort = MetaProtocol.parseEndpoint(current);
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(hostPort[0],
+                    Integer.parseInt(hostPort[1])), CONNECT_TIMEOUT);
+            s.setTcpNoDelay(true);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        socket = s;
+        in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    /**
+     * A request that is buffered until it is sent.
+     */
+    private static final class Request extends DataOutputStream {
+
+        Request() {
+            super(new ByteArrayOutputStream());
+        }
+
+        byte[] toByteArray() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+
+    }
+
+    /**
+     * An error reported by the meta server.
+     */
+    public static class MetaException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public MetaException(String message) {
+            super(message);
+        }
+
+    }
+
+}
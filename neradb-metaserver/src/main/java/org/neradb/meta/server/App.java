@@ -1,13 +1,52 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
 package org.neradb.meta.server;
 
+import java.io.File;
+
 /**
- * Hello world!
- *
+ * Starts a meta server.
+ * <p>
+ * Usage: <code>App &lt;jraft.json&gt; [&lt;dataDir&gt; [&lt;serverId&gt;]]</code>.
+ * The server id overrides the <code>localServerId</code> of the
+ * configuration, so that all servers of a cluster can share the same file.
+ * The log is stored in the sub-directory <code>server&lt;id&gt;</code> of
+ * the data directory (by default the current directory).
+ * </p>
  */
-public class App 
-{
-    public static void main( String[] args )
-    {
-        System.out.println( "Hello World!" );
+public class App {
+
+    /**
+     * Start the server and wait until the process is stopped.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: App <jraft.json> [<dataDir> [<serverId>]]");
+            return;
+        }
+        ClusterConfig config = ClusterConfig.read(new File(args[0]));
+        File dataDir = new File(args.length > 1 ? args[1] : ".");
+        if (args.length > 2) {
+            config = config.withLocalServerId(Integer.parseInt(args[2]));
+        }
+        int id = config.getLocalServerId();
+        final MetaServer server = new MetaServer(config,
+                new File(dataDir, "server" + id));
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("H2 Meta Shutdown") {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        System.out.println("Meta server " + id + " started at " +
+                config.getEndpoint(id));
+        Thread.currentThread().join();
     }
+
 }
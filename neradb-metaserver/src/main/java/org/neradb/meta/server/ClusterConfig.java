@@ -0,0 +1,285 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The configuration of a meta server cluster, in the JSON format of the file
+ * <code>jraft.json</code>:
+ *
+ * <pre>
+ * {
+ *   "localServerId": 1,
+ *   "servers": [
+ *     { "name": "Server 1", "id": 1, "endpoint": "tcp://localhost:9001" },
+ *     ...
+ *   ]
+ * }
+ * </pre>
+ */
+public class ClusterConfig {
+
+    private final int localServerId;
+    private final LinkedHashMap<Integer, String> endpoints;
+
+    public ClusterConfig(int localServerId, LinkedHashMap<Integer, String> endpoints) {
+        if (!endpoints.containsKey(localServerId)) {
+            throw new IllegalArgumentException("Unknown local server " + localServerId);
+        }
+        this.localServerId = localServerId;
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * Read the configuration from a file.
+     *
+     * @param file the file
+     * @return the configuration
+     */
+    public static ClusterConfig read(File file) throws IOException {
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        return parse(json);
+    }
+
+    /**
+     * Parse the configuration.
+     *
+     * @param json the JSON text
+     * @return the configuration
+     */
+    @SuppressWarnings("unchecked")
+    public static ClusterConfig parse(String json) {
+        Map<String, Object> map = (Map<String, Object>) new JsonParser(json).parse();
+        LinkedHashMap<Integer, String> endpoints = new LinkedHashMap<Integer, String>();
+        for (Object o : (List<Object>) map.get("servers")) {
+            Map<String, Object> s = (Map<String, Object>) o;
+            endpoints.put(((Number) s.get("id")).intValue(), (String) s.get("endpoint"));
+        }
+        int local = ((Number) map.get("localServerId")).intValue();
+        return new ClusterConfig(local, endpoints);
+    }
+
+    /**
+     * Get a copy of this configuration for another local server.
+     *
+     * @param id the id of the local server
+     * @return the configuration
+     */
+    public ClusterConfig withLocalServerId(int id) {
+        return new ClusterConfig(id, endpoints);
+    }
+
+    public int getLocalServerId() {
+        return localServerId;
+    }
+
+    /**
+     * Get the endpoint of a server.
+     *
+     * @param id the server id
+     * @return the endpoint, or null if not known
+     */
+    public String getEndpoint(int id) {
+        return endpoints.get(id);
+    }
+
+    /**
+     * Get the ids of the other servers.
+     *
+     * @return the ids
+     */
+    public int[] getPeers() {
+        int[] peers = new int[endpoints.size() - 1];
+        int i = 0;
+        for (int id : endpoints.keySet()) {
+            if (id != localServerId) {
+                peers[i++] = id;
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * Get the endpoints of all servers.
+     *
+     * @return the endpoints
+     */
+    public List<String> getEndpoints() {
+        return new ArrayList<String>(endpoints.values());
+    }
+
+    /**
+     * A minimal JSON parser (objects, arrays, strings, numbers, booleans, and
+     * null).
+     */
+    static final class JsonParser {
+
+        private final String s;
+        private int pos;
+
+        JsonParser(String s) {
+            this.s = s;
+        }
+
+        Object parse() {
+            Object o = readValue();
+            skipSpace();
+            if (pos < s.length()) {
+                throw error();
+            }
+            return o;
+        }
+
+        private Object readValue() {
+            skipSpace();
+            if (pos >= s.length()) {
+                throw error();
+            }
+            char c = s.charAt(pos);
+            switch (c) {
+            case '{': {
+                pos++;
+                LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+                if (skipIf('}')) {
+                    return map;
+                }
+                do {
+                    skipSpace();
+                    String key = readString();
+                    if (!skipIf(':')) {
+                        throw error();
+                    }
+                    map.put(key, readValue());
+                } while (skipIf(','));
+                if (!skipIf('}')) {
+                    throw error();
+                }
+                return map;
+            }
+            case '[': {
+                pos++;
+                ArrayList<Object> list = new ArrayList<Object>();
+                if (skipIf(']')) {
+                    return list;
+                }
+                do {
+                    list.add(readValue());
+                } while (skipIf(','));
+                if (!skipIf(']')) {
+                    throw error();
+                }
+                return list;
+            }
+            case '"':
+                return readString();
+            default:
+                if (s.startsWith("true", pos)) {
+                    pos += 4;
+                    return Boolean.TRUE;
+                } else if (s.startsWith("false", pos)) {
+                    pos += 5;
+                    return Boolean.FALSE;
+                } else if (s.startsWith("null", pos)) {
+                    pos += 4;
+                    return null;
+                }
+                return readNumber();
+            }
+        }
+
+        private String readString() {
+            if (pos >= s.length() || s.charAt(pos) != '"') {
+                throw error();
+            }
+            pos++;
+            StringBuilder buff = new StringBuilder();
+            while (true) {
+                if (pos >= s.length()) {
+                    throw error();
+                }
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return buff.toString();
+                } else if (c == '\\') {
+                    c = s.charAt(pos++);
+                    switch (c) {
+                    case 'n':
+                        buff.append('\n');
+                        break;
+                    case 't':
+                        buff.append('\t');
+                        break;
+                    case 'r':
+                        buff.append('\r');
+                        break;
+                    case 'b':
+                        buff.append('\b');
+                        break;
+                    case 'f':
+                        buff.append('\f');
+                        break;
+                    case 'u':
+                        buff.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default:
+                        buff.append(c);
+                    }
+                } else {
+                    buff.append(c);
+                }
+            }
+        }
+
+        private Number readNumber() {
+            int start = pos;
+            while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String n = s.substring(start, pos);
+            if (n.isEmpty()) {
+                throw error();
+            }
+            try {
+                if (n.indexOf('.') < 0 && n.indexOf('e') < 0 && n.indexOf('E') < 0) {
+                    return Long.parseLong(n);
+                }
+                return Double.parseDouble(n);
+            } catch (NumberFormatException e) {
+                throw error();
+            }
+        }
+
+        private boolean skipIf(char c) {
+            skipSpace();
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipSpace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error() {
+            return new IllegalArgumentException("Invalid JSON at " + pos);
+        }
+
+    }
+
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.neradb.meta.CatalogChanges;
+import org.neradb.meta.MetaProtocol;
+import org.neradb.meta.NodeInfo;
+import org.neradb.meta.NodeReport;
+import org.neradb.meta.RangeInfo;
+import org.neradb.meta.server.raft.NotLeaderException;
+import org.neradb.meta.server.raft.RaftLog;
+import org.neradb.meta.server.raft.RaftMessage;
+import org.neradb.meta.server.raft.RaftNode;
+import org.neradb.meta.server.raft.RaftTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A meta server: one member of the Raft cluster that replicates the
+ * {@link MetaStateMachine}.
+ * <p>
+ * All requests are served by the leader. Changes are committed through the
+ * log before the response is sent; reads are served from the local state
+ * while the leader holds its lease. Other servers respond with the endpoint
+ * of the leader, so that the client can retry there. Timestamps are
+ * allocated by the leader (see {@link TimestampOracle}), also only while it
+ * holds its lease.
+ * </p>
+ */
+public class MetaServer {
+
+    /**
+     * The minimum election timeout in milliseconds.
+     */
+    static final int ELECTION_TIMEOUT = 1000;
+
+    /**
+     * The heartbeat interval in milliseconds.
+     */
+    static final int HEARTBEAT_INTERVAL = 100;
+
+    /**
+     * The time in milliseconds after the last heartbeat until a node is
+     * reported as not live.
+     */
+    static final int NODE_TIMEOUT = 10000;
+
+    /**
+     * The interval in milliseconds between two rounds of the range
+     * scheduler.
+     */
+    static final int SCHEDULE_INTERVAL = 1000;
+
+    private static final int TICK_INTERVAL = 10;
+    private static final int PROPOSE_TIMEOUT = 5000;
+    private static final int SEND_QUEUE_SIZE = 1024;
+    private static final int MAX_TIMESTAMPS = 1 << 20;
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetaServer.class);
+
+    private final ClusterConfig config;
+    private final RaftLog log;
+    private final MetaStateMachine stateMachine = new MetaStateMachine();
+    private final RangeScheduler scheduler = new RangeScheduler();
+    private final TimestampOracle timestamps = new TimestampOracle();
+    private final RaftNode node;
+    private final HashMap<Integer, Peer> peers = new HashMap<Integer, Peer>();
+    private final Set<Socket> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private ServerSocket serverSocket;
+    private volatile boolean stop;
+
+    /**
+     * Create a server.
+     *
+     * @param config the cluster configuration
+     * @param dataDir the directory of the log of this server
+     */
+    public MetaServer(ClusterConfig config, File dataDir) throws IOException {
+        this.config = config;
+        this.log = new RaftLog(dataDir);
+        int[] peerIds = config.getPeers();
+        for (int p : peerIds) {
+            peers.put(p, new Peer(p, config.getEndpoint(p)));
+        }
+        RaftTransport transport = new RaftTransport() {
+            @Override
+            public void send(RaftMessage m) {
+                Peer p = peers.get(m.to);
+                if (p != null) {
+                    p.send(m);
+                }
+            }
+        };
+        node = new RaftNode(config.getLocalServerId(), peerIds, log,
+                stateMachine, transport, ELECTION_TIMEOUT, HEARTBEAT_INTERVAL,
+                new Random());
+    }
+
+    public RaftNode getNode() {
+        return node;
+    }
+
+    public MetaStateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    public RangeScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Start listening, and start the threads.
+     */
+    public void start() throws IOException {
+        String[] hostPort = MetaProtocol.parseEndpoint(
+                config.getEndpoint(config.getLocalServerId()));
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(hostPort[0],
+                Integer.parseInt(hostPort[1])));
+        for (Peer p : peers.values()) {
+            p.start();
+        }
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop) {
+                    node.tick(System.currentTimeMillis());
+                    try {
+                        Thread.sleep(TICK_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "H2 Meta Ticker");
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop) {
+                    try {
+                        Thread.sleep(SCHEDULE_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (node.isLeader()) {
+                        schedule();
+                    } else {
+                        scheduler.reset();
+                    }
+                }
+            }
+        }, "H2 Meta Scheduler");
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "H2 Meta Listener");
+    }
+
+    /**
+     * Stop the server and close the log.
+     */
+    public void stop() {
+        stop = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+        for (Peer p : peers.values()) {
+            p.close();
+        }
+        for (Socket s : connections) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        synchronized (node) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Run one round of the range scheduler, and commit the changes of the
+     * placement.
+     *
+     * @return the number of committed changes
+     */
+    public int schedule() {
+        List<RangeScheduler.Change> changes = scheduler.schedule(
+                stateMachine.getRanges(null),
+                stateMachine.getNodes(System.currentTimeMillis(), NODE_TIMEOUT));
+        int count = 0;
+        for (RangeScheduler.Change c : changes) {
+            try {
+                node.propose(c.toCommand()).get(PROPOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+                count++;
+            } catch (ExecutionException e) {
+                // not the leader any more
+                break;
+            } catch (TimeoutException e) {
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return count;
+    }
+
+    private static Thread startThread(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private void accept() {
+        while (!stop) {
+            final Socket s;
+            try {
+                s = serverSocket.accept();
+            } catch (IOException e) {
+                if (!stop) {
+                    LOG.error("Meta server {}: accept failed, no longer accepting connections",
+                            node.getId(), e);
+                }
+                return;
+            }
+            startThread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(s);
+                }
+            }, "H2 Meta Connection " + s.getRemoteSocketAddress());
+        }
+    }
+
+    private void serve(Socket s) {
+        connections.add(s);
+        try {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(s.getOutputStream()));
+            while (!stop) {
+                int kind = in.read();
+                if (kind < 0) {
+                    break;
+                } else if (kind == MetaProtocol.KIND_RAFT) {
+                    node.receive(RaftMessage.read(in));
+                } else if (kind == MetaProtocol.KIND_REQUEST) {
+                    handle(in, out);
+                    out.flush();
+                } else {
+                    throw new IOException("Unknown message kind " + kind);
+                }
+            }
+        } catch (EOFException e) {
+            // closed by the other side
+        } catch (IOException e) {
+            if (!stop) {
+                LOG.warn("Meta server {}: connection {} failed",
+                        node.getId(), s.getRemoteSocketAddress(), e);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Meta server {}: error processing a message from {}",
+                    node.getId(), s.getRemoteSocketAddress(), e);
+        } finally {
+            connections.remove(s);
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Process a client request, and write the response.
+     *
+     * @param in the request
+     * @param out the response
+     */
+    void handle(DataInputStream in, DataOutputStream out) throws IOException {
+        int op = in.readInt();
+        // read the arguments before checking the leadership, so that the
+        // connection stays in sync
+        byte[] command = null;
+        long since = 0, timeout = 0;
+        int count = 0;
+        String tableName = null;
+        NodeReport report = null;
+        switch (op) {
+        case MetaProtocol.GET_CATALOG:
+            since = in.readLong();
+            break;
+        case MetaProtocol.WATCH_CATALOG:
+            since = in.readLong();
+            timeout = in.readLong();
+            break;
+        case MetaProtocol.PUT_CATALOG:
+            command = MetaStateMachine.command(op, MetaProtocol.readString(in),
+                    in.readInt(), MetaProtocol.readString(in),
+                    MetaProtocol.readString(in));
+            break;
+        case MetaProtocol.REMOVE_CATALOG:
+            command = MetaStateMachine.command(op, MetaProtocol.readString(in));
+            break;
+        case MetaProtocol.GET_RANGES:
+            tableName = MetaProtocol.readString(in);
+            break;
+        case MetaProtocol.PUT_RANGE:
+            command = MetaStateMachine.command(op, RangeInfo.read(in));
+            break;
+        case MetaProtocol.REMOVE_RANGE:
+            command = MetaStateMachine.command(op, in.readLong());
+            break;
+        case MetaProtocol.HEARTBEAT:
+            // the time of the leader, so that all servers agree
+            command = MetaStateMachine.command(op, in.readInt(),
+                    MetaProtocol.readString(in), System.currentTimeMillis());
+            break;
+        case MetaProtocol.GET_NODES:
+            break;
+        case MetaProtocol.GET_TIMESTAMPS:
+            count = in.readInt();
+            if (count < 1 || count > MAX_TIMESTAMPS) {
+                error(out, "Invalid number of timestamps " + count);
+                return;
+            }
+            break;
+        case MetaProtocol.REPORT:
+            report = NodeReport.read(in);
+            command = MetaStateMachine.command(MetaProtocol.HEARTBEAT,
+                    report.getNodeId(), report.getAddress(),
+                    System.currentTimeMillis());
+            break;
+        default:
+            error(out, "Unknown operation " + op);
+            return;
+        }
+        if (command != null) {
+            Object result;
+            try {
+                result = node.propose(command).get(PROPOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof NotLeaderException) {
+                    notLeader(out, ((NotLeaderException) e.getCause()).getLeaderId());
+                } else {
+                    error(out, String.valueOf(e.getCause()));
+                }
+                return;
+            } catch (TimeoutException e) {
+                error(out, "Timeout waiting for the commit");
+                return;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (report == null) {
+                out.writeInt(MetaProtocol.STATUS_OK);
+                out.writeLong((Long) result);
+                return;
+            }
+            scheduler.report(report);
+            ByteArrayOutputStream buff = new ByteArrayOutputStream();
+            scheduler.getAssignment(report.getNodeId(),
+                    stateMachine.getRanges(null)).write(new DataOutputStream(buff));
+            out.writeInt(MetaProtocol.STATUS_OK);
+            out.write(buff.toByteArray());
+            return;
+        }
+        if (!node.hasLease()) {
+            notLeader(out, node.isLeader() ? -1 : node.getLeaderId());
+            return;
+        }
+        ByteArrayOutputStream buff = new ByteArrayOutputStream();
+        DataOutputStream o = new DataOutputStream(buff);
+        switch (op) {
+        case MetaProtocol.GET_CATALOG:
+            stateMachine.getCatalog(since).write(o);
+            break;
+        case MetaProtocol.WATCH_CATALOG: {
+            CatalogChanges changes;
+            try {
+                changes = stateMachine.watchCatalog(since, timeout);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            changes.write(o);
+            break;
+        }
+        case MetaProtocol.GET_RANGES: {
+            List<RangeInfo> list = stateMachine.getRanges(tableName);
+            o.writeInt(list.size());
+            for (RangeInfo r : list) {
+                r.write(o);
+            }
+            break;
+        }
+        case MetaProtocol.GET_NODES: {
+            List<NodeInfo> list = stateMachine.getNodes(
+                    System.currentTimeMillis(), NODE_TIMEOUT);
+            o.writeInt(list.size());
+            for (NodeInfo n : list) {
+                n.write(o);
+            }
+            break;
+        }
+        case MetaProtocol.GET_TIMESTAMPS: {
+            long first = allocateTimestamps(count);
+            if (first < 0) {
+                notLeader(out, node.isLeader() ? -1 : node.getLeaderId());
+                return;
+            }
+            o.writeLong(first);
+            break;
+        }
+        default:
+            throw new IllegalStateException("op " + op);
+        }
+        out.writeInt(MetaProtocol.STATUS_OK);
+        out.write(buff.toByteArray());
+    }
+
+    /**
+     * Allocate a range of timestamps. If needed, the limit of the timestamps
+     * is raised through the log first.
+     *
+     * @param count the number of timestamps
+     * @return the first timestamp, or -1 if this server is no longer the
+     *         leader
+     */
+    long allocateTimestamps(int count) throws IOException {
+        while (true) {
+            long term = node.getTerm();
+            long now = System.currentTimeMillis();
+            long first = timestamps.allocate(term, now, count);
+            if (first >= 0) {
+                return first;
+            }
+            long limit = timestamps.getNextLimit(now, count);
+            Object previous;
+            try {
+                previous = node.propose(MetaStateMachine.command(
+                        MetaProtocol.SAVE_TIMESTAMP, limit)).get(
+                        PROPOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                return -1;
+            } catch (TimeoutException e) {
+                return -1;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            timestamps.update(term, (Long) previous, limit);
+        }
+    }
+
+    private void notLeader(DataOutputStream out, int leaderId) throws IOException {
+        out.writeInt(MetaProtocol.STATUS_NOT_LEADER);
+        MetaProtocol.writeString(out, leaderId < 0 ? null : config.getEndpoint(leaderId));
+    }
+
+    private static void error(DataOutputStream out, String message) throws IOException {
+        out.writeInt(MetaProtocol.STATUS_ERROR);
+        MetaProtocol.writeString(out, message);
+    }
+
+    /**
+     * The connection to another server. Messages are queued, so that the Raft
+     * node is never blocked by the network, and sent by a separate thread.
+     * If the connection fails, the messages are dropped (Raft retries on its
+     * own) and the connection is opened again.
+     */
+    private final class Peer implements Runnable {
+
+        private final int id;
+        private final String endpoint;
+        private final LinkedBlockingQueue<RaftMessage> queue =
+                new LinkedBlockingQueue<RaftMessage>(SEND_QUEUE_SIZE);
+        private Thread thread;
+        private Socket socket;
+
+        Peer(int id, String endpoint) {
+            this.id = id;
+            this.endpoint = endpoint;
+        }
+
+        void start() {
+            thread = startThread(this, "H2 Meta Sender " + id);
+        }
+
+        void send(RaftMessage m) {
+            // drop the message if the queue is full
+            queue.offer(m);
+        }
+
+        @Override
+        public void run() {
+            DataOutputStream out = null;
+            while (!stop) {
+                RaftMessage m;
+                try {
+                    m = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    if (out == null) {
+                        out = connect();
+                    }
+                    out.writeByte(MetaProtocol.KIND_RAFT);
+                    m.write(out);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    out = null;
+                    closeSocket();
+                    queue.clear();
+                    try {
+                        Thread.sleep(HEARTBEAT_INTERVAL);
+                    } catch (InterruptedException e2) {
+                        break;
+                    }
+                }
+            }
+            closeSocket();
+        }
+
+        private DataOutputStream connect() throws IOException {
+            String[] hostPort = MetaProtocol.parseEndpoint(endpoint);
+            Socket s = new Socket();
+            s.connect(new InetSocketAddress(hostPort[0],
+                    Integer.parseInt(hostPort[1])), ELECTION_TIMEOUT);
+            s.setTcpNoDelay(true);
+            socket = s;
+            return new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        }
+
+        private void closeSocket() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                socket = null;
+            }
+        }
+
+        void close() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.neradb.meta.CatalogChanges;
+import org.neradb.meta.CatalogEntry;
+import org.neradb.meta.MetaProtocol;
+import org.neradb.meta.NodeInfo;
+import org.neradb.meta.RangeInfo;
+import org.neradb.meta.server.raft.RaftStateMachine;
+
+/**
+ * The replicated meta data: the schema catalog, the placement of the ranges
+ * of the tables, the nodes of the cluster with their last heartbeat, and the
+ * limit of the timestamps the leader may allocate.
+ * <p>
+ * A command is the operation code (as in {@link MetaProtocol}) followed by
+ * the arguments. The result of a catalog change is the new catalog version.
+ * </p>
+ */
+public class MetaStateMachine implements RaftStateMachine {
+
+    private static final Comparator<CatalogEntry> BY_VERSION =
+            new Comparator<CatalogEntry>() {
+        @Override
+        public int compare(CatalogEntry o1, CatalogEntry o2) {
+            return Long.compare(o1.getVersion(), o2.getVersion());
+        }
+    };
+
+    private static final Comparator<RangeInfo> BY_START_KEY =
+            new Comparator<RangeInfo>() {
+        @Override
+        public int compare(RangeInfo o1, RangeInfo o2) {
+            int c = o1.getTableName().compareTo(o2.getTableName());
+            if (c != 0) {
+                return c;
+            }
+            String a = o1.getStartKey(), b = o2.getStartKey();
+            if (a == null || b == null) {
+                // unbounded first
+                return a == b ? 0 : a == null ? -1 : 1;
+            }
+            return a.compareTo(b);
+        }
+    };
+
+    private final HashMap<String, CatalogEntry> catalog =
+            new HashMap<String, CatalogEntry>();
+    private final TreeMap<Long, RangeInfo> ranges = new TreeMap<Long, RangeInfo>();
+    private final TreeMap<Integer, NodeInfo> nodes = new TreeMap<Integer, NodeInfo>();
+    private long catalogVersion;
+    private long placementVersion;
+    private long timestampLimit;
+
+    @Override
+    public synchronized Object apply(long index, byte[] command) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(command));
+            int op = in.readInt();
+            switch (op) {
+            case MetaProtocol.PUT_CATALOG: {
+                String key = MetaProtocol.readString(in);
+                int type = in.readInt();
+                String sql = MetaProtocol.readString(in);
+                String dropSql = MetaProtocol.readString(in);
+                CatalogEntry old = catalog.get(key);
+                if (old == null || old.isRemoved() || !eq(old.getSQL(), sql) ||
+                        !eq(old.getDropSQL(), dropSql)) {
+                    catalog.put(key, new CatalogEntry(key, type, sql, dropSql,
+                            ++catalogVersion, false));
+                    notifyAll();
+                }
+                return catalogVersion;
+            }
+            case MetaProtocol.REMOVE_CATALOG: {
+                String key = MetaProtocol.readString(in);
+                CatalogEntry old = catalog.get(key);
+                if (old != null && !old.isRemoved()) {
+                    catalog.put(key, new CatalogEntry(key, old.getType(), null,
+                            null, ++catalogVersion, true));
+                    notifyAll();
+                }
+                return catalogVersion;
+            }
+            case MetaProtocol.PUT_RANGE: {
+                RangeInfo r = RangeInfo.read(in);
+                ranges.put(r.getRangeId(), r);
+                return ++placementVersion;
+            }
+            case MetaProtocol.REMOVE_RANGE: {
+                ranges.remove(in.readLong());
+                return ++placementVersion;
+            }
+            case MetaProtocol.REPLACE_RANGES: {
+                long[] removed = new long[in.readInt()];
+                boolean exists = true;
+                for (int i = 0; i < removed.length; i++) {
+                    removed[i] = in.readLong();
+                    exists &= ranges.containsKey(removed[i]);
+                }
+                RangeInfo[] added = new RangeInfo[in.readInt()];
+                for (int i = 0; i < added.length; i++) {
+                    added[i] = RangeInfo.read(in);
+                }
+                if (!exists) {
+                    // for example, the table was dropped in the meantime
+                    return placementVersion;
+                }
+                for (long id : removed) {
+                    ranges.remove(id);
+                }
+                for (RangeInfo r : added) {
+                    ranges.put(r.getRangeId(), r);
+                }
+                return ++placementVersion;
+            }
+            case MetaProtocol.HEARTBEAT: {
+                int nodeId = in.readInt();
+                String address = MetaProtocol.readString(in);
+                long time = in.readLong();
+                nodes.put(nodeId, new NodeInfo(nodeId, address, time, true));
+                return time;
+            }
+            case MetaProtocol.SAVE_TIMESTAMP: {
+                long previous = timestampLimit;
+                timestampLimit = Math.max(previous, in.readLong());
+                return previous;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean eq(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Encode a command.
+     *
+     * @param op the operation
+     * @param args the arguments (String, Integer, Long, or RangeInfo)
+     * @return the command
+     */
+    public static byte[] command(int op, Object... args) {
+        ByteArrayOutputStream buff = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buff);
+        try {
+            out.writeInt(op);
+            for (Object a : args) {
+                if (a == null || a instanceof String) {
+                    MetaProtocol.writeString(out, (String) a);
+                } else if (a instanceof Integer) {
+                    out.writeInt((Integer) a);
+                } else if (a instanceof Long) {
+                    out.writeLong((Long) a);
+                } else if (a instanceof RangeInfo) {
+                    ((RangeInfo) a).write(out);
+                } else {
+                    throw new IllegalArgumentException("" + a);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buff.toByteArray();
+    }
+
+    public synchronized long getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    /**
+     * Get the limit of the timestamps that were allocated so far.
+     *
+     * @return the limit
+     */
+    public synchronized long getTimestampLimit() {
+        return timestampLimit;
+    }
+
+    /**
+     * Get the catalog entries that changed after the given version
+     * (including removed entries).
+     *
+     * @param since the version
+     * @return the changes
+     */
+    public synchronized CatalogChanges getCatalog(long since) {
+        ArrayList<CatalogEntry> list = new ArrayList<CatalogEntry>();
+        for (CatalogEntry e : catalog.values()) {
+            if (e.getVersion() > since && (since > 0 || !e.isRemoved())) {
+                list.add(e);
+            }
+        }
+        Collections.sort(list, BY_VERSION);
+        return new CatalogChanges(catalogVersion, list);
+    }
+
+    /**
+     * Wait until the catalog changes after the given version, or until the
+     * timeout.
+     *
+     * @param since the version
+     * @param timeoutMillis the timeout in milliseconds
+     * @return the changes (possibly none)
+     */
+    public synchronized CatalogChanges watchCatalog(long since, long timeoutMillis)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (catalogVersion <= since) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
+            wait(wait);
+        }
+        return getCatalog(since);
+    }
+
+    /**
+     * Get the ranges of a table, ordered by table name and start key.
+     *
+     * @param tableName the table name, or null for all tables
+     * @return the ranges
+     */
+    public synchronized List<RangeInfo> getRanges(String tableName) {
+        ArrayList<RangeInfo> list = new ArrayList<RangeInfo>();
+        for (RangeInfo r : ranges.values()) {
+            if (tableName == null || tableName.equals(r.getTableName())) {
+                list.add(r);
+            }
+        }
+        Collections.sort(list, BY_START_KEY);
+        return list;
+    }
+
+    /**
+     * Get the nodes of the cluster.
+     *
+     * @param now the current time
+     * @param liveTimeout the time in milliseconds after the last heartbeat
+     *            until a node is considered down
+     * @return the nodes
+     */
+    public synchronized List<NodeInfo> getNodes(long now, long liveTimeout) {
+        ArrayList<NodeInfo> list = new ArrayList<NodeInfo>();
+        for (NodeInfo n : nodes.values()) {
+            boolean live = now - n.getLastHeartbeat() < liveTimeout;
+            list.add(new NodeInfo(n.getNodeId(), n.getAddress(),
+                    n.getLastHeartbeat(), live));
+        }
+        return list;
+    }
+
+}
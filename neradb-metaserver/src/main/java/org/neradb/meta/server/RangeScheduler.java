@@ -0,0 +1,434 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.neradb.meta.MetaProtocol;
+import org.neradb.meta.NodeAssignment;
+import org.neradb.meta.NodeInfo;
+import org.neradb.meta.NodeReport;
+import org.neradb.meta.RangeInfo;
+import org.neradb.meta.RangeMove;
+import org.neradb.meta.RangeStats;
+
+/**
+ * Decides when ranges are split, merged, and moved to another node, based on
+ * the reports of the storage nodes. Runs on the leader of the meta servers;
+ * the reports and the moves in progress are not replicated, so a new leader
+ * starts from scratch (moves that are in progress are cancelled).
+ * <p>
+ * In each round, in this order:
+ * </p>
+ * <ul>
+ * <li>Completed moves make the target node the leader of the range.</li>
+ * <li>A range that is larger than the maximum size, or that gets more
+ * requests per second than the maximum, is split at the key reported by its
+ * node.</li>
+ * <li>Two adjacent ranges of the same table that are small and cold together
+ * are merged if they are served by the same node; otherwise the smaller one is
+ * moved to the node of the other one first.</li>
+ * <li>If the difference of the size or of the requests per second of the
+ * most and the least loaded node is too large, a range is moved from one to
+ * the other.</li>
+ * </ul>
+ * <p>
+ * Splits and merges only change the meta data, because a storage node keeps
+ * all ranges of a table in one sorted map. A range that was changed is not
+ * considered again until it was reported again with its new key range. The
+ * decisions only depend on the input, so that the scheduler can be tested
+ * without a cluster. The merge thresholds should be well below the split
+ * thresholds, so that merged ranges are not split again immediately.
+ * </p>
+ */
+public class RangeScheduler {
+
+    private long maxRangeBytes = 64L * 1024 * 1024;
+    private double maxRangeQps = 2000;
+    private long mergeBytes = 16L * 1024 * 1024;
+    private double mergeQps = 100;
+    private double imbalance = 0.25;
+    private long minImbalanceBytes = 16L * 1024 * 1024;
+    private double minImbalanceQps = 200;
+    private double maxCpuLoad = 0.9;
+    private int maxMoves = 2;
+
+    private final TreeMap<Integer, NodeReport> reports = new TreeMap<Integer, NodeReport>();
+    private final TreeMap<Long, RangeMove> moves = new TreeMap<Long, RangeMove>();
+    private final HashSet<Long> completed = new HashSet<Long>();
+
+    /**
+     * Set the size and the requests per second above which a range is split.
+     *
+     * @param bytes the size in bytes
+     * @param qps the requests per second
+     */
+    public synchronized void setSplitThreshold(long bytes, double qps) {
+        this.maxRangeBytes = bytes;
+        this.maxRangeQps = qps;
+    }
+
+    /**
+     * Set the combined size and requests per second of two adjacent ranges
+     * below which they are merged.
+     *
+     * @param bytes the size in bytes
+     * @param qps the requests per second
+     */
+    public synchronized void setMergeThreshold(long bytes, double qps) {
+        this.mergeBytes = bytes;
+        this.mergeQps = qps;
+    }
+
+    /**
+     * Set when the load of the nodes is balanced: if the difference between
+     * the most and the least loaded node is larger than the given fraction
+     * of the average load, and larger than the given minimum.
+     *
+     * @param fraction the fraction of the average
+     * @param minBytes the minimum difference of the size in bytes
+     * @param minQps the minimum difference of the requests per second
+     */
+    public synchronized void setImbalance(double fraction, long minBytes,
+            double minQps) {
+        this.imbalance = fraction;
+        this.minImbalanceBytes = minBytes;
+        this.minImbalanceQps = minQps;
+    }
+
+    /**
+     * Set the CPU load above which no ranges are moved to a node.
+     *
+     * @param load the load between 0 and 1
+     */
+    public synchronized void setMaxCpuLoad(double load) {
+        this.maxCpuLoad = load;
+    }
+
+    /**
+     * Set the maximum number of moves in progress.
+     *
+     * @param maxMoves the number of moves
+     */
+    public synchronized void setMaxMoves(int maxMoves) {
+        this.maxMoves = maxMoves;
+    }
+
+    /**
+     * Process the report of a node.
+     *
+     * @param report the report
+     */
+    public synchronized void report(NodeReport report) {
+        reports.put(report.getNodeId(), report);
+        for (long id : report.getCompletedMoves()) {
+            RangeMove m = moves.get(id);
+            if (m != null && m.getSourceNode() == report.getNodeId()) {
+                completed.add(id);
+            }
+        }
+    }
+
+    /**
+     * Get the ranges and the moves of a node.
+     *
+     * @param nodeId the node id
+     * @param ranges all ranges
+     * @return the assignment
+     */
+    public synchronized NodeAssignment getAssignment(int nodeId, List<RangeInfo> ranges) {
+        ArrayList<RangeInfo> list = new ArrayList<RangeInfo>();
+        for (RangeInfo r : ranges) {
+            if (r.getLeader() == nodeId) {
+                list.add(r);
+            }
+        }
+        ArrayList<RangeMove> m = new ArrayList<RangeMove>();
+        for (RangeMove move : moves.values()) {
+            if (move.getSourceNode() == nodeId) {
+                m.add(move);
+            }
+        }
+        return new NodeAssignment(list, m);
+    }
+
+    /**
+     * Get the moves in progress.
+     *
+     * @return the moves
+     */
+    public synchronized List<RangeMove> getMoves() {
+        return new ArrayList<RangeMove>(moves.values());
+    }
+
+    /**
+     * Forget the reports and cancel the moves, because this server is no
+     * longer the leader.
+     */
+    public synchronized void reset() {
+        reports.clear();
+        moves.clear();
+        completed.clear();
+    }
+
+    /**
+     * Run one round of the scheduler.
+     *
+     * @param ranges all ranges, ordered by table name and start key
+     * @param nodes all nodes
+     * @return the changes of the placement to commit, in this order
+     */
+    public synchronized List<Change> schedule(List<RangeInfo> ranges, List<NodeInfo> nodes) {
+        TreeMap<Integer, NodeInfo> live = new TreeMap<Integer, NodeInfo>();
+        for (NodeInfo n : nodes) {
+            if (n.isLive()) {
+                live.put(n.getNodeId(), n);
+            }
+        }
+        reports.keySet().retainAll(live.keySet());
+        HashMap<Long, RangeInfo> byId = new HashMap<Long, RangeInfo>();
+        long nextId = 0;
+        for (RangeInfo r : ranges) {
+            byId.put(r.getRangeId(), r);
+            nextId = Math.max(nextId, r.getRangeId() + 1);
+        }
+        ArrayList<Change> changes = new ArrayList<Change>();
+        HashSet<Long> busy = new HashSet<Long>();
+        for (RangeMove m : new ArrayList<RangeMove>(moves.values())) {
+            long id = m.getRangeId();
+            RangeInfo r = byId.get(id);
+            if (r == null || r.getLeader() != m.getSourceNode() ||
+                    !live.containsKey(m.getSourceNode()) ||
+                    !live.containsKey(m.getTargetNode())) {
+                moves.remove(id);
+                completed.remove(id);
+            } else if (completed.remove(id)) {
+                moves.remove(id);
+                changes.add(new Change("moved " + r, new long[] { id },
+                        withLeader(r, m.getTargetNode())));
+                busy.add(id);
+            }
+        }
+        HashMap<Long, RangeStats> stats = new HashMap<Long, RangeStats>();
+        for (NodeReport report : reports.values()) {
+            for (RangeStats s : report.getRanges()) {
+                RangeInfo r = byId.get(s.getRangeId());
+                if (r != null && r.getLeader() == report.getNodeId() &&
+                        eq(r.getStartKey(), s.getStartKey()) &&
+                        eq(r.getEndKey(), s.getEndKey())) {
+                    stats.put(r.getRangeId(), s);
+                }
+            }
+        }
+        // split
+        for (RangeInfo r : ranges) {
+            RangeStats s = stats.get(r.getRangeId());
+            if (s == null || isBusy(r, busy) ||
+                    s.getBytes() <= maxRangeBytes && s.getQps() <= maxRangeQps) {
+                continue;
+            }
+            String split = s.getSplitKey();
+            if (split == null || !isInside(r, split)) {
+                continue;
+            }
+            RangeInfo left = new RangeInfo(r.getRangeId(), r.getTableName(),
+                    r.getStartKey(), split, r.getReplicas(), r.getLeader());
+            RangeInfo right = new RangeInfo(nextId++, r.getTableName(), split,
+                    r.getEndKey(), r.getReplicas(), r.getLeader());
+            changes.add(new Change("split " + r + " at " + split,
+                    new long[] { r.getRangeId() }, left, right));
+            busy.add(r.getRangeId());
+        }
+        // merge
+        for (int i = 0; i + 1 < ranges.size(); i++) {
+            RangeInfo a = ranges.get(i), b = ranges.get(i + 1);
+            RangeStats sa = stats.get(a.getRangeId()), sb = stats.get(b.getRangeId());
+            if (sa == null || sb == null || isBusy(a, busy) || isBusy(b, busy) ||
+                    !a.getTableName().equals(b.getTableName()) ||
+                    a.getEndKey() == null || !a.getEndKey().equals(b.getStartKey()) ||
+                    sa.getBytes() + sb.getBytes() > mergeBytes ||
+                    sa.getQps() + sb.getQps() > mergeQps) {
+                continue;
+            }
+            if (a.getLeader() == b.getLeader()) {
+                RangeInfo merged = new RangeInfo(a.getRangeId(), a.getTableName(),
+                        a.getStartKey(), b.getEndKey(), a.getReplicas(), a.getLeader());
+                changes.add(new Change("merged " + a + " and " + b,
+                        new long[] { a.getRangeId(), b.getRangeId() }, merged));
+            } else if (moves.size() < maxMoves) {
+                boolean moveA = sa.getBytes() <= sb.getBytes();
+                RangeInfo r = moveA ? a : b;
+                NodeInfo target = live.get((moveA ? b : a).getLeader());
+                if (target == null) {
+                    continue;
+                }
+                addMove(r, target);
+            } else {
+                continue;
+            }
+            busy.add(a.getRangeId());
+            busy.add(b.getRangeId());
+            i++;
+        }
+        // balance
+        if (moves.size() < maxMoves) {
+            if (!balance(ranges, stats, busy, live, true)) {
+                balance(ranges, stats, busy, live, false);
+            }
+        }
+        return changes;
+    }
+
+    private boolean balance(List<RangeInfo> ranges, HashMap<Long, RangeStats> stats,
+            HashSet<Long> busy, TreeMap<Integer, NodeInfo> live, boolean bySize) {
+        if (reports.size() < 2) {
+            return false;
+        }
+        TreeMap<Integer, Double> load = new TreeMap<Integer, Double>();
+        for (int nodeId : reports.keySet()) {
+            load.put(nodeId, 0d);
+        }
+        for (RangeInfo r : ranges) {
+            Double l = load.get(r.getLeader());
+            if (l != null) {
+                load.put(r.getLeader(), l + getLoad(stats.get(r.getRangeId()), bySize));
+            }
+        }
+        int max = -1, min = -1;
+        double sum = 0;
+        for (int nodeId : load.keySet()) {
+            double l = load.get(nodeId);
+            sum += l;
+            if (max < 0 || l > load.get(max)) {
+                max = nodeId;
+            }
+            if (reports.get(nodeId).getCpuLoad() <= maxCpuLoad &&
+                    (min < 0 || l < load.get(min))) {
+                min = nodeId;
+            }
+        }
+        if (min < 0 || min == max) {
+            return false;
+        }
+        double gap = load.get(max) - load.get(min);
+        double average = sum / load.size();
+        if (gap <= imbalance * average || gap <= (bySize ? minImbalanceBytes : minImbalanceQps)) {
+            return false;
+        }
+        // the range that is closest to half the difference
+        RangeInfo best = null;
+        double bestDistance = 0;
+        for (RangeInfo r : ranges) {
+            if (r.getLeader() != max || isBusy(r, busy)) {
+                continue;
+            }
+            double l = getLoad(stats.get(r.getRangeId()), bySize);
+            if (l <= 0 || l >= gap) {
+                continue;
+            }
+            double distance = Math.abs(l - gap / 2);
+            if (best == null || distance < bestDistance) {
+                best = r;
+                bestDistance = distance;
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        addMove(best, live.get(min));
+        busy.add(best.getRangeId());
+        return true;
+    }
+
+    private static double getLoad(RangeStats s, boolean bySize) {
+        if (s == null) {
+            return 0;
+        }
+        return bySize ? s.getBytes() : s.getQps();
+    }
+
+    private void addMove(RangeInfo r, NodeInfo target) {
+        moves.put(r.getRangeId(), new RangeMove(r.getRangeId(), r.getTableName(),
+                r.getStartKey(), r.getEndKey(), r.getLeader(), target.getNodeId(),
+                target.getAddress()));
+    }
+
+    private boolean isBusy(RangeInfo r, HashSet<Long> busy) {
+        return busy.contains(r.getRangeId()) || moves.containsKey(r.getRangeId());
+    }
+
+    private static RangeInfo withLeader(RangeInfo r, int leader) {
+        return new RangeInfo(r.getRangeId(), r.getTableName(), r.getStartKey(),
+                r.getEndKey(), new int[] { leader }, leader);
+    }
+
+    /**
+     * Check whether the key is strictly within the range. Keys are hex
+     * encoded, so the order of the strings is the order of the keys.
+     */
+    private static boolean isInside(RangeInfo r, String key) {
+        return (r.getStartKey() == null || r.getStartKey().compareTo(key) < 0) &&
+                (r.getEndKey() == null || key.compareTo(r.getEndKey()) < 0);
+    }
+
+    private static boolean eq(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * A change of the placement: ranges are removed and others added, in one
+     * command.
+     */
+    public static final class Change {
+
+        private final String description;
+        private final ArrayList<Long> removed = new ArrayList<Long>();
+        private final ArrayList<RangeInfo> added = new ArrayList<RangeInfo>();
+
+        Change(String description, long[] removed, RangeInfo... added) {
+            this.description = description;
+            for (long id : removed) {
+                this.removed.add(id);
+            }
+            for (RangeInfo r : added) {
+                this.added.add(r);
+            }
+        }
+
+        public List<Long> getRemoved() {
+            return removed;
+        }
+
+        public List<RangeInfo> getAdded() {
+            return added;
+        }
+
+        /**
+         * Encode the change as a command of the state machine.
+         *
+         * @return the command
+         */
+        public byte[] toCommand() {
+            ArrayList<Object> args = new ArrayList<Object>();
+            args.add(removed.size());
+            args.addAll(removed);
+            args.add(added.size());
+            args.addAll(added);
+            return MetaStateMachine.command(MetaProtocol.REPLACE_RANGES, args.toArray());
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+
+    }
+
+}
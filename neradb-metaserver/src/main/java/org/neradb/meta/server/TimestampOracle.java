@@ -0,0 +1,87 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server;
+
+import org.neradb.meta.HybridClock;
+
+/**
+ * Allocates the timestamps of transactions on the leader of the meta
+ * servers. The timestamps are strictly increasing, also when the leader
+ * changes, and close to the physical time of the leader (in the format of
+ * {@link HybridClock}).
+ * <p>
+ * Timestamps are allocated in memory, up to a limit that is stored in the
+ * replicated state (see {@link MetaStateMachine#getTimestampLimit()}). The
+ * leader raises the limit through the log a few seconds in advance. A new
+ * leader only allocates timestamps above the limit of the previous leaders:
+ * before it allocates the first timestamp of its term, it raises the limit,
+ * and the result of this command is the limit before.
+ * </p>
+ */
+public class TimestampOracle {
+
+    /**
+     * How far (in milliseconds) the limit is raised ahead of the current
+     * time.
+     */
+    static final long SAVE_INTERVAL = 3000;
+
+    private long term = -1;
+    private long last;
+    private long limit;
+
+    /**
+     * Allocate a range of timestamps.
+     *
+     * @param term the current term of the leader
+     * @param now the current time in milliseconds
+     * @param count the number of timestamps
+     * @return the first timestamp, or -1 if the limit needs to be raised first
+     */
+    public synchronized long allocate(long term, long now, int count) {
+        if (term != this.term) {
+            return -1;
+        }
+        long first = Math.max(last + 1, HybridClock.toTimestamp(now));
+        if (first + count - 1 > limit) {
+            return -1;
+        }
+        last = first + count - 1;
+        return first;
+    }
+
+    /**
+     * Get the limit to store before the given number of timestamps can be
+     * allocated.
+     *
+     * @param now the current time in milliseconds
+     * @param count the number of timestamps
+     * @return the new limit
+     */
+    public synchronized long getNextLimit(long now, int count) {
+        long first = Math.max(last + 1, HybridClock.toTimestamp(now));
+        return Math.max(first + count, HybridClock.toTimestamp(now + SAVE_INTERVAL));
+    }
+
+    /**
+     * Update the limit after it was stored.
+     *
+     * @param term the term of the leader when the limit was proposed
+     * @param previousLimit the stored limit before
+     * @param newLimit the proposed limit
+     */
+    public synchronized void update(long term, long previousLimit, long newLimit) {
+        if (term != this.term) {
+            // the timestamps of the previous leaders are not known
+            this.term = term;
+            last = Math.max(last, previousLimit);
+            limit = Math.max(previousLimit, newLimit);
+        } else {
+            limit = Math.max(limit, newLimit);
+        }
+    }
+
+}
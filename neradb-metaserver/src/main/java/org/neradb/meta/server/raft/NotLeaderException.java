@@ -0,0 +1,33 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server.raft;
+
+/**
+ * Thrown if a command is proposed to a server that is not the leader, or if
+ * the leader lost its leadership before the command was committed (in which
+ * case the command may or may not be applied).
+ */
+public class NotLeaderException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int leaderId;
+
+    public NotLeaderException(int leaderId) {
+        super("Not the leader, leader: " + leaderId);
+        this.leaderId = leaderId;
+    }
+
+    /**
+     * Get the id of the current leader, if known.
+     *
+     * @return the server id, or -1
+     */
+    public int getLeaderId() {
+        return leaderId;
+    }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server.raft;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The replicated log and the persistent state of a Raft server (the current
+ * term and the vote).
+ * <p>
+ * The log is kept in memory, and appended to the file <code>raft.log</code>
+ * in the data directory if there is one. Each record is the length of the
+ * command, the term, a CRC32 checksum, and the command. A record that is
+ * incomplete or has a wrong checksum (because the process was killed while
+ * writing) ends the log. The term and vote are stored in the file
+ * <code>raft.state</code>, which is replaced atomically.
+ * </p>
+ * <p>
+ * The log is not compacted: the state machine is rebuilt by applying the
+ * whole log after a restart. This is fine for the meta data, which changes
+ * rarely.
+ * </p>
+ */
+public class RaftLog {
+
+    private static final int RECORD_HEADER = 4 + 8 + 4;
+
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * The file positions of the records (only if the log is persistent).
+     */
+    private final ArrayList<Long> positions = new ArrayList<Long>();
+
+    private final File dir;
+    private FileChannel channel;
+    private long fileLength;
+    private boolean dirty;
+
+    private long currentTerm;
+    private int votedFor = -1;
+
+    /**
+     * Open the log.
+     *
+     * @param dir the data directory, or null to keep the log in memory only
+     */
+    public RaftLog(File dir) throws IOException {
+        this.dir = dir;
+        if (dir == null) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        readState();
+        File logFile = new File(dir, "raft.log");
+        channel = new RandomAccessFile(logFile, "rw").getChannel();
+        readLog();
+    }
+
+    private void readState() throws IOException {
+        File f = new File(dir, "raft.state");
+        if (!f.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            currentTerm = in.readLong();
+            votedFor = in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readLog() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        long pos = 0;
+        while (pos + RECORD_HEADER <= size) {
+            header.clear();
+            readFully(header, pos);
+            header.flip();
+            int len = header.getInt();
+            long term = header.getLong();
+            int checksum = header.getInt();
+            if (len < 0 || pos + RECORD_HEADER + len > size) {
+                break;
+            }
+            ByteBuffer buff = ByteBuffer.allocate(len);
+            readFully(buff, pos + RECORD_HEADER);
+            byte[] data = buff.array();
+            if (checksum(term, data) != checksum) {
+                break;
+            }
+            entries.add(new Entry(term, data));
+            positions.add(pos);
+            pos += RECORD_HEADER + len;
+        }
+        if (pos < size) {
+            // remove the incomplete record at the end
+            channel.truncate(pos);
+        }
+        fileLength = pos;
+    }
+
+    private void readFully(ByteBuffer buff, long pos) throws IOException {
+        while (buff.hasRemaining()) {
+            int len = channel.read(buff, pos);
+            if (len < 0) {
+                throw new IOException("EOF");
+            }
+            pos += len;
+        }
+    }
+
+    private static int checksum(long term, byte[] data) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < 8; i++) {
+            crc.update((int) (term >>> (i * 8)));
+        }
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    public long getCurrentTerm() {
+        return currentTerm;
+    }
+
+    /**
+     * Get the server this server voted for in the current term.
+     *
+     * @return the server id, or -1
+     */
+    public int getVotedFor() {
+        return votedFor;
+    }
+
+    /**
+     * Store the current term and vote.
+     *
+     * @param term the term
+     * @param vote the server id, or -1
+     */
+    public void setTermAndVote(long term, int vote) throws IOException {
+        if (term == currentTerm && vote == votedFor) {
+            return;
+        }
+        currentTerm = term;
+        votedFor = vote;
+        if (dir == null) {
+            return;
+        }
+        File tmp = new File(dir, "raft.state.tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeLong(term);
+            out.writeInt(vote);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        File f = new File(dir, "raft.state");
+        if (!tmp.renameTo(f)) {
+            // not atomic on some platforms
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        }
+    }
+
+    /**
+     * Get the index of the last entry.
+     *
+     * @return the index (0 if the log is empty)
+     */
+    public long getLastIndex() {
+        return entries.size();
+    }
+
+    /**
+     * Get the term of the entry at the given index.
+     *
+     * @param index the index (0 for before the first entry)
+     * @return the term
+     */
+    public long getTerm(long index) {
+        return index == 0 ? 0 : entries.get((int) index - 1).term;
+    }
+
+    /**
+     * Get an entry.
+     *
+     * @param index the index (1 for the first entry)
+     * @return the entry
+     */
+    public Entry get(long index) {
+        return entries.get((int) index - 1);
+    }
+
+    /**
+     * Get the entries starting at the given index.
+     *
+     * @param index the first index
+     * @param max the maximum number of entries
+     * @return the entries
+     */
+    public List<Entry> getEntries(long index, int max) {
+        int from = (int) index - 1;
+        int to = Math.min(entries.size(), from + max);
+        return new ArrayList<Entry>(entries.subList(from, to));
+    }
+
+    /**
+     * Append an entry. The entry is written to the file, but the file is
+     * only synced by {@link #sync()}.
+     *
+     * @param e the entry
+     */
+    public void append(Entry e) throws IOException {
+        entries.add(e);
+        if (channel == null) {
+            return;
+        }
+        ByteArrayOutputStream buff = new ByteArrayOutputStream(RECORD_HEADER + e.data.length);
+        DataOutputStream out = new DataOutputStream(buff);
+        out.writeInt(e.data.length);
+        out.writeLong(e.term);
+        out.writeInt(checksum(e.term, e.data));
+        out.write(e.data);
+        ByteBuffer b = ByteBuffer.wrap(buff.toByteArray());
+        positions.add(fileLength);
+        long pos = fileLength;
+        while (b.hasRemaining()) {
+            pos += channel.write(b, pos);
+        }
+        fileLength = pos;
+        dirty = true;
+    }
+
+    /**
+     * Remove the entry at the given index and all entries after it (because
+     * they conflict with the log of the leader).
+     *
+     * @param index the first index to remove
+     */
+    public void truncate(long index) throws IOException {
+        int from = (int) index - 1;
+        if (from >= entries.size()) {
+            return;
+        }
+        entries.subList(from, entries.size()).clear();
+        if (channel == null) {
+            return;
+        }
+        fileLength = positions.get(from);
+        positions.subList(from, positions.size()).clear();
+        channel.truncate(fileLength);
+        dirty = true;
+    }
+
+    /**
+     * Make the appended entries durable.
+     */
+    public void sync() throws IOException {
+        if (dirty) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Close the file.
+     */
+    public void close() throws IOException {
+        if (channel != null) {
+            sync();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * An entry of the log.
+     */
+    public static final class Entry {
+
+        /**
+         * The term in which the entry was created by the leader.
+         */
+        public final long term;
+
+        /**
+         * The command (empty for the entry a new leader appends).
+         */
+        public final byte[] data;
+
+        public Entry(long term, byte[] data) {
+            this.term = term;
+            this.data = data;
+        }
+
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server.raft;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A message between Raft servers. The meaning of the fields depends on the
+ * type.
+ */
+public class RaftMessage {
+
+    /**
+     * Request a vote. The index and log term are the last index and term of
+     * the log of the candidate.
+     */
+    public static final int VOTE_REQUEST = 1;
+
+    /**
+     * The response to a vote request. Success means the vote was granted.
+     */
+    public static final int VOTE_RESPONSE = 2;
+
+    /**
+     * Append entries (or a heartbeat if there are none). The index and log
+     * term are of the entry before the new entries.
+     */
+    public static final int APPEND_REQUEST = 3;
+
+    /**
+     * The response to an append request. The index is the last index that
+     * matches the log of the leader if successful, and a hint where to
+     * continue otherwise.
+     */
+    public static final int APPEND_RESPONSE = 4;
+
+    public int type;
+    public int from;
+    public int to;
+    public long term;
+    public long index;
+    public long logTerm;
+    public long commitIndex;
+    public boolean success;
+
+    /**
+     * The time (of the leader) when an append request was sent; the response
+     * returns it, so that the leader knows how old the acknowledgement is.
+     */
+    public long sent;
+
+    public List<RaftLog.Entry> entries = Collections.emptyList();
+
+    /**
+     * Create a message.
+     *
+     * @param type the type
+     * @param from the sender
+     * @param to the receiver
+     * @param term the term of the sender
+     * @return the message
+     */
+    public static RaftMessage create(int type, int from, int to, long term) {
+        RaftMessage m = new RaftMessage();
+        m.type = type;
+        m.from = from;
+        m.to = to;
+        m.term = term;
+        return m;
+    }
+
+    /**
+     * Write the message.
+     *
+     * @param out the output
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        out.writeInt(from);
+        out.writeInt(to);
+        out.writeLong(term);
+        out.writeLong(index);
+        out.writeLong(logTerm);
+        out.writeLong(commitIndex);
+        out.writeBoolean(success);
+        out.writeLong(sent);
+        out.writeInt(entries.size());
+        for (RaftLog.Entry e : entries) {
+            out.writeLong(e.term);
+            out.writeInt(e.data.length);
+            out.write(e.data);
+        }
+    }
+
+    /**
+     * Read a message.
+     *
+     * @param in the input
+     * @return the message
+     */
+    public static RaftMessage read(DataInput in) throws IOException {
+        RaftMessage m = new RaftMessage();
+        m.type = in.readByte();
+        m.from = in.readInt();
+        m.to = in.readInt();
+        m.term = in.readLong();
+        m.index = in.readLong();
+        m.logTerm = in.readLong();
+        m.commitIndex = in.readLong();
+        m.success = in.readBoolean();
+        m.sent = in.readLong();
+        int count = in.readInt();
+        if (count > 0) {
+            ArrayList<RaftLog.Entry> list = new ArrayList<RaftLog.Entry>(count);
+            for (int i = 0; i < count; i++) {
+                long term = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                list.add(new RaftLog.Entry(term, data));
+            }
+            m.entries = list;
+        }
+        return m;
+    }
+
+    @Override
+    public String toString() {
+        return "type " + type + " " + from + "->" + to + " term " + term +
+                " index " + index + " logTerm " + logTerm + " commit " +
+                commitIndex + " success " + success + " entries " + entries.size();
+    }
+
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server.raft;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A server of a Raft cluster (Ongaro and Ousterhout, 2014): leader election,
+ * log replication, and applying committed commands to the state machine.
+ * <p>
+ * The node does not have its own threads. Time only advances when
+ * {@link #tick(long)} is called, and messages are processed when
+ * {@link #receive(RaftMessage)} is called, so that the node can be tested
+ * deterministically. The server calls both from its threads.
+ * </p>
+ * <p>
+ * A new leader appends an empty entry, so that the entries of earlier terms
+ * are committed as soon as possible. Reads can be served by the leader
+ * without going through the log as long as it has a lease: an entry of its
+ * term is committed, and a majority of the servers acknowledged messages that
+ * were sent within the minimum election timeout. A server that heard from a
+ * leader within the minimum election timeout ignores vote requests, so that
+ * no other leader can have been elected during the lease.
+ * </p>
+ */
+public class RaftNode {
+
+    /**
+     * The role of a server.
+     */
+    public enum Role {
+        FOLLOWER, CANDIDATE, LEADER
+    }
+
+    /**
+     * The maximum number of entries per append request.
+     */
+    private static final int MAX_ENTRIES = 64;
+
+    private final int id;
+    private final int[] peers;
+    private final RaftLog log;
+    private final RaftStateMachine stateMachine;
+    private final RaftTransport transport;
+    private final Random random;
+    private final int electionTimeout;
+    private final int heartbeatInterval;
+
+    private Role role = Role.FOLLOWER;
+    private int leaderId = -1;
+    private long commitIndex;
+    private long lastApplied;
+    private long now;
+    private long electionDeadline = -1;
+    private long nextHeartbeat;
+    private long lastLeaderContact = Long.MIN_VALUE;
+
+    private final HashSet<Integer> votes = new HashSet<Integer>();
+    private final HashMap<Integer, Long> nextIndex = new HashMap<Integer, Long>();
+    private final HashMap<Integer, Long> matchIndex = new HashMap<Integer, Long>();
+    private final HashMap<Integer, Long> lastAck = new HashMap<Integer, Long>();
+
+    /**
+     * The results of the commands proposed by this server, by log index.
+     */
+    private final TreeMap<Long, CompletableFuture<Object>> pending =
+            new TreeMap<Long, CompletableFuture<Object>>();
+
+    /**
+     * Create a node.
+     *
+     * @param id the id of this server
+     * @param peers the ids of the other servers
+     * @param log the log
+     * @param stateMachine the state machine
+     * @param transport the transport
+     * @param electionTimeout the minimum election timeout in milliseconds
+     *            (the actual timeout is randomly between once and twice this
+     *            value)
+     * @param heartbeatInterval the heartbeat interval in milliseconds
+     * @param random the random number generator
+     */
+    public RaftNode(int id, int[] peers, RaftLog log,
+            RaftStateMachine stateMachine, RaftTransport transport,
+            int electionTimeout, int heartbeatInterval, Random random) {
+        this.id = id;
+        this.peers = peers;
+        this.log = log;
+        this.stateMachine = stateMachine;
+        this.transport = transport;
+        this.electionTimeout = electionTimeout;
+        this.heartbeatInterval = heartbeatInterval;
+        this.random = random;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public synchronized Role getRole() {
+        return role;
+    }
+
+    public synchronized boolean isLeader() {
+        return role == Role.LEADER;
+    }
+
+    /**
+     * Get the id of the current leader, if known.
+     *
+     * @return the leader id, or -1
+     */
+    public synchronized int getLeaderId() {
+        return leaderId;
+    }
+
+    public synchronized long getTerm() {
+        return log.getCurrentTerm();
+    }
+
+    public synchronized long getCommitIndex() {
+        return commitIndex;
+    }
+
+    public synchronized long getLastApplied() {
+        return lastApplied;
+    }
+
+    /**
+     * Check whether this server is the leader, its state machine is up to
+     * date, and no other leader can exist (because a majority of the servers
+     * acknowledged messages that were sent recently).
+     *
+     * @return true if reads can be served locally
+     */
+    public synchronized boolean hasLease() {
+        if (role != Role.LEADER) {
+            return false;
+        }
+        // a new leader may not know all committed entries before that
+        if (log.getTerm(commitIndex) != log.getCurrentTerm()) {
+            return false;
+        }
+        int acks = 1;
+        for (int p : peers) {
+            Long t = lastAck.get(p);
+            if (t != null && now - t < electionTimeout) {
+                acks++;
+            }
+        }
+        return acks > (peers.length + 1) / 2;
+    }
+
+    /**
+     * Advance the time: start an election if no leader was heard from
+     * within the election timeout, or send heartbeats if this is the leader.
+     *
+     * @param time the current time in milliseconds
+     */
+    public synchronized void tick(long time) {
+        now = time;
+        if (electionDeadline < 0) {
+            resetElectionTimer();
+        }
+        if (role == Role.LEADER) {
+            if (now >= nextHeartbeat) {
+                broadcastAppend();
+            }
+        } else if (now >= electionDeadline) {
+            startElection();
+        }
+    }
+
+    /**
+     * Propose a command. The future completes with the result of the state
+     * machine when the command is applied, or fails with a
+     * {@link NotLeaderException}.
+     *
+     * @param command the command
+     * @return the future result
+     */
+    public synchronized CompletableFuture<Object> propose(byte[] command) {
+        CompletableFuture<Object> f = new CompletableFuture<Object>();
+        if (role != Role.LEADER) {
+            f.completeExceptionally(new NotLeaderException(leaderId));
+            return f;
+        }
+        // register first: a single server commits while appending
+        pending.put(log.getLastIndex() + 1, f);
+        appendLocal(command);
+        broadcastAppend();
+        return f;
+    }
+
+    /**
+     * Process a message from another server.
+     *
+     * @param m the message
+     */
+    public synchronized void receive(RaftMessage m) {
+        if (m.type == RaftMessage.VOTE_REQUEST && m.term > log.getCurrentTerm() &&
+                hasLeader()) {
+            // the leader may still have a lease: don't update the term,
+            // so that a partitioned server that comes back can't depose it
+            return;
+        }
+        if (m.term > log.getCurrentTerm()) {
+            becomeFollower(m.term, m.type == RaftMessage.APPEND_REQUEST ? m.from : -1);
+        }
+        switch (m.type) {
+        case RaftMessage.VOTE_REQUEST:
+            onVoteRequest(m);
+            break;
+        case RaftMessage.VOTE_RESPONSE:
+            onVoteResponse(m);
+            break;
+        case RaftMessage.APPEND_REQUEST:
+            onAppendRequest(m);
+            break;
+        case RaftMessage.APPEND_RESPONSE:
+            onAppendResponse(m);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown message " + m);
+        }
+    }
+
+    /**
+     * Check whether this server is the leader, or heard from the leader
+     * within the minimum election timeout.
+     *
+     * @return true if there is a leader
+     */
+    private boolean hasLeader() {
+        return role == Role.LEADER ||
+                leaderId != -1 && now - lastLeaderContact < electionTimeout;
+    }
+
+    private void onVoteRequest(RaftMessage m) {
+        long term = log.getCurrentTerm();
+        int votedFor = log.getVotedFor();
+        long lastIndex = log.getLastIndex();
+        long lastTerm = log.getTerm(lastIndex);
+        // the log of the candidate must be at least as up-to-date
+        boolean upToDate = m.logTerm > lastTerm ||
+                (m.logTerm == lastTerm && m.index >= lastIndex);
+        boolean granted = m.term == term && upToDate &&
+                (votedFor == -1 || votedFor == m.from);
+        if (granted) {
+            setTermAndVote(term, m.from);
+            resetElectionTimer();
+        }
+        RaftMessage r = RaftMessage.create(RaftMessage.VOTE_RESPONSE, id, m.from, term);
+        r.success = granted;
+        transport.send(r);
+    }
+
+    private void onVoteResponse(RaftMessage m) {
+        if (role != Role.CANDIDATE || m.term != log.getCurrentTerm() || !m.success) {
+            return;
+        }
+        votes.add(m.from);
+        if (votes.size() > (peers.length + 1) / 2) {
+            becomeLeader();
+        }
+    }
+
+    private void onAppendRequest(RaftMessage m) {
+        long term = log.getCurrentTerm();
+        RaftMessage r = RaftMessage.create(RaftMessage.APPEND_RESPONSE, id, m.from, term);
+        if (m.term < term) {
+            // from an old leader
+            r.index = log.getLastIndex();
+            transport.send(r);
+            return;
+        }
+        if (role != Role.FOLLOWER) {
+            becomeFollower(term, m.from);
+        }
+        leaderId = m.from;
+        lastLeaderContact = now;
+        r.sent = m.sent;
+        resetElectionTimer();
+        long lastIndex = log.getLastIndex();
+        if (m.index > lastIndex || log.getTerm(m.index) != m.logTerm) {
+            // the logs don't match at this position: the leader has to go back
+            r.index = Math.min(lastIndex, m.index - 1);
+            transport.send(r);
+            return;
+        }
+        long index = m.index;
+        try {
+            for (RaftLog.Entry e : m.entries) {
+                index++;
+                if (index <= log.getLastIndex()) {
+                    if (log.getTerm(index) == e.term) {
+                        // already have it
+                        continue;
+                    }
+                    log.truncate(index);
+                    failPending(index);
+                }
+                log.append(e);
+            }
+            log.sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (m.commitIndex > commitIndex) {
+            commitIndex = Math.min(m.commitIndex, index);
+            applyCommitted();
+        }
+        r.success = true;
+        r.index = index;
+        transport.send(r);
+    }
+
+    private void onAppendResponse(RaftMessage m) {
+        if (role != Role.LEADER || m.term != log.getCurrentTerm()) {
+            return;
+        }
+        // the follower received the request after it was sent, and doesn't
+        // vote for another server within the minimum election timeout after
+        // receiving it
+        Long t = lastAck.get(m.from);
+        if (t == null || m.sent > t) {
+            lastAck.put(m.from, m.sent);
+        }
+        if (m.success) {
+            if (m.index > matchIndex.get(m.from)) {
+                matchIndex.put(m.from, m.index);
+                advanceCommitIndex();
+            }
+            nextIndex.put(m.from, Math.max(nextIndex.get(m.from), m.index + 1));
+            if (nextIndex.get(m.from) <= log.getLastIndex()) {
+                // more entries to send
+                sendAppend(m.from);
+            }
+        } else {
+            long next = Math.max(1, Math.min(nextIndex.get(m.from) - 1, m.index + 1));
+            nextIndex.put(m.from, next);
+            sendAppend(m.from);
+        }
+    }
+
+    private void startElection() {
+        role = Role.CANDIDATE;
+        leaderId = -1;
+        long term = log.getCurrentTerm() + 1;
+        setTermAndVote(term, id);
+        votes.clear();
+        votes.add(id);
+        resetElectionTimer();
+        if (peers.length == 0) {
+            becomeLeader();
+            return;
+        }
+        long lastIndex = log.getLastIndex();
+        for (int p : peers) {
+            RaftMessage m = RaftMessage.create(RaftMessage.VOTE_REQUEST, id, p, term);
+            m.index = lastIndex;
+            m.logTerm = log.getTerm(lastIndex);
+            transport.send(m);
+        }
+    }
+
+    private void becomeLeader() {
+        role = Role.LEADER;
+        leaderId = id;
+        long next = log.getLastIndex() + 1;
+        for (int p : peers) {
+            nextIndex.put(p, next);
+            matchIndex.put(p, 0L);
+            lastAck.remove(p);
+        }
+        // commit the entries of earlier terms
+        appendLocal(new byte[0]);
+        broadcastAppend();
+    }
+
+    private void becomeFollower(long term, int leader) {
+        if (role == Role.LEADER) {
+            // the commands may or may not be committed by the new leader
+            failPending(0);
+        }
+        role = Role.FOLLOWER;
+        leaderId = leader;
+        if (term != log.getCurrentTerm()) {
+            // the vote is kept within a term
+            setTermAndVote(term, -1);
+        }
+        resetElectionTimer();
+    }
+
+    private void appendLocal(byte[] command) {
+        try {
+            log.append(new RaftLog.Entry(log.getCurrentTerm(), command));
+            log.sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (peers.length == 0) {
+            advanceCommitIndex();
+        }
+    }
+
+    private void broadcastAppend() {
+        for (int p : peers) {
+            sendAppend(p);
+        }
+        nextHeartbeat = now + heartbeatInterval;
+    }
+
+    private void sendAppend(int peer) {
+        long next = nextIndex.get(peer);
+        RaftMessage m = RaftMessage.create(RaftMessage.APPEND_REQUEST, id, peer,
+                log.getCurrentTerm());
+        m.index = next - 1;
+        m.logTerm = log.getTerm(next - 1);
+        m.commitIndex = commitIndex;
+        m.sent = now;
+        if (next <= log.getLastIndex()) {
+            m.entries = log.getEntries(next, MAX_ENTRIES);
+        }
+        transport.send(m);
+    }
+
+    private void advanceCommitIndex() {
+        long[] match = new long[peers.length + 1];
+        match[0] = log.getLastIndex();
+        for (int i = 0; i < peers.length; i++) {
+            match[i + 1] = matchIndex.get(peers[i]);
+        }
+        Arrays.sort(match);
+        // the highest index stored on a majority
+        long n = match[peers.length / 2];
+        // only entries of the current term are committed by counting
+        if (n > commitIndex && log.getTerm(n) == log.getCurrentTerm()) {
+            commitIndex = n;
+            applyCommitted();
+        }
+    }
+
+    private void applyCommitted() {
+        while (lastApplied < commitIndex) {
+            long index = ++lastApplied;
+            byte[] command = log.get(index).data;
+            Object result = null;
+            Throwable error = null;
+            if (command.length > 0) {
+                try {
+                    result = stateMachine.apply(index, command);
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+            }
+            CompletableFuture<Object> f = pending.remove(index);
+            if (f != null) {
+                if (error != null) {
+                    f.completeExceptionally(error);
+                } else {
+                    f.complete(result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fail the pending commands starting with the given index.
+     *
+     * @param index the first index
+     */
+    private void failPending(long index) {
+        Iterator<Map.Entry<Long, CompletableFuture<Object>>> it =
+                pending.tailMap(index, true).entrySet().iterator();
+        while (it.hasNext()) {
+            it.next().getValue().completeExceptionally(new NotLeaderException(leaderId));
+            it.remove();
+        }
+    }
+
+    private void setTermAndVote(long term, int vote) {
+        try {
+            log.setTermAndVote(term, vote);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void resetElectionTimer() {
+        electionDeadline = now + electionTimeout + random.nextInt(electionTimeout);
+    }
+
+    /**
+     * Get the log entries (for testing).
+     *
+     * @param from the first index
+     * @return the entries
+     */
+    synchronized List<RaftLog.Entry> getEntries(long from) {
+        return log.getEntries(from, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "node " + id + " " + role + " term " + log.getCurrentTerm() +
+                " commit " + commitIndex + " last " + log.getLastIndex();
+    }
+
+}
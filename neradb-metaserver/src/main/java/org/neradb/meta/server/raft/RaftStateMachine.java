@@ -0,0 +1,24 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server.raft;
+
+/**
+ * The replicated state machine. All servers apply the same commands in the
+ * same order, so the commands must be deterministic (for example, they may
+ * not read the current time; the time must be part of the command).
+ */
+public interface RaftStateMachine {
+
+    /**
+     * Apply a committed command.
+     *
+     * @param index the log index of the command
+     * @param command the command
+     * @return the result (returned to the server that proposed the command)
+     */
+    Object apply(long index, byte[] command);
+
+}
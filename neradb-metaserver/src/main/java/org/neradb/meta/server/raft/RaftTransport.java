@@ -0,0 +1,22 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server.raft;
+
+/**
+ * Sends Raft messages to other servers. Messages may be lost, delayed, or
+ * delivered more than once; the protocol tolerates that.
+ */
+public interface RaftTransport {
+
+    /**
+     * Send a message to the server {@link RaftMessage#to}. This method must
+     * not block, as it is called while the node is locked.
+     *
+     * @param message the message
+     */
+    void send(RaftMessage message);
+
+}
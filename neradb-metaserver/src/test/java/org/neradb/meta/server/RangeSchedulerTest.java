@@ -0,0 +1,418 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.neradb.meta.MetaProtocol;
+import org.neradb.meta.NodeAssignment;
+import org.neradb.meta.NodeInfo;
+import org.neradb.meta.NodeReport;
+import org.neradb.meta.RangeInfo;
+import org.neradb.meta.RangeMove;
+import org.neradb.meta.RangeStats;
+
+/**
+ * Tests the range scheduler. The storage nodes are simulated in the same
+ * process: each node keeps the keys of the ranges it serves, reports their
+ * statistics, and executes the moves. The changes are applied to a state
+ * machine directly, so that the test is deterministic.
+ */
+public class RangeSchedulerTest extends TestCase {
+
+    private static final String TABLE = "PUBLIC.TEST";
+    private static final int VALUE_SIZE = 100;
+
+    private MetaStateMachine machine;
+    private RangeScheduler scheduler;
+    private TreeMap<Integer, SimNode> nodes;
+    private long index;
+    private long time;
+
+    @Override
+    protected void setUp() {
+        machine = new MetaStateMachine();
+        scheduler = new RangeScheduler();
+        scheduler.setSplitThreshold(10 * VALUE_SIZE, 1000);
+        scheduler.setMergeThreshold(4 * VALUE_SIZE, 10);
+        scheduler.setImbalance(0.25, 4 * VALUE_SIZE, 100);
+        nodes = new TreeMap<Integer, SimNode>();
+    }
+
+    private void addNode(int id) {
+        nodes.put(id, new SimNode(id));
+        apply(MetaStateMachine.command(MetaProtocol.HEARTBEAT, id,
+                "tcp://node" + id, time));
+    }
+
+    private Object apply(byte[] command) {
+        return machine.apply(++index, command);
+    }
+
+    private void putRange(long id, String start, String end, int leader) {
+        apply(MetaStateMachine.command(MetaProtocol.PUT_RANGE, new RangeInfo(id,
+                TABLE, start, end, new int[] { leader }, leader)));
+    }
+
+    private static String key(int i) {
+        return String.format("%08x", i);
+    }
+
+    /**
+     * Run one round: all nodes report, the scheduler runs, the changes are
+     * applied, and the nodes get their new assignment.
+     *
+     * @return the number of changes
+     */
+    private int round() {
+        time += 1000;
+        for (SimNode n : nodes.values()) {
+            if (n.live) {
+                scheduler.report(n.report());
+                apply(MetaStateMachine.command(MetaProtocol.HEARTBEAT, n.id,
+                        "tcp://node" + n.id, time));
+            }
+        }
+        List<RangeScheduler.Change> changes = scheduler.schedule(
+                machine.getRanges(null), machine.getNodes(time, 1500));
+        for (RangeScheduler.Change c : changes) {
+            apply(c.toCommand());
+        }
+        List<RangeInfo> ranges = machine.getRanges(null);
+        for (SimNode n : nodes.values()) {
+            if (n.live) {
+                n.assign(scheduler.getAssignment(n.id, ranges));
+            }
+        }
+        return changes.size();
+    }
+
+    private void runUntilStable() {
+        for (int i = 0; i < 100; i++) {
+            if (round() == 0 && scheduler.getMoves().isEmpty() && round() == 0) {
+                return;
+            }
+        }
+        fail("not stable: " + machine.getRanges(null));
+    }
+
+    private static boolean contains(List<RangeInfo> ranges, String key) {
+        for (RangeInfo r : ranges) {
+            if ((r.getStartKey() == null || r.getStartKey().compareTo(key) <= 0) &&
+                    (r.getEndKey() == null || key.compareTo(r.getEndKey()) < 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check that the ranges cover the key space without gaps, and that each
+     * key is stored on the leader of its range.
+     */
+    private void checkPlacement(int keyCount) {
+        List<RangeInfo> ranges = machine.getRanges(TABLE);
+        String expectedStart = null;
+        for (RangeInfo r : ranges) {
+            assertEquals(expectedStart, r.getStartKey());
+            expectedStart = r.getEndKey();
+        }
+        assertNull(expectedStart);
+        int found = 0;
+        for (int i = 0; i < keyCount; i++) {
+            String k = key(i);
+            for (RangeInfo r : ranges) {
+                if (contains(Collections.singletonList(r), k)) {
+                    assertTrue(k + " " + r, nodes.get(r.getLeader()).data.containsKey(k));
+                    found++;
+                }
+            }
+        }
+        assertEquals(keyCount, found);
+    }
+
+    public void testSplitBySize() {
+        addNode(1);
+        putRange(1, null, null, 1);
+        round();
+        for (int i = 0; i < 40; i++) {
+            nodes.get(1).data.put(key(i), VALUE_SIZE);
+        }
+        runUntilStable();
+        List<RangeInfo> ranges = machine.getRanges(TABLE);
+        assertTrue(ranges.toString(), ranges.size() >= 4);
+        for (RangeInfo r : ranges) {
+            assertTrue(nodes.get(1).bytes(r) <= 10 * VALUE_SIZE);
+        }
+        checkPlacement(40);
+    }
+
+    public void testSplitByLoad() {
+        addNode(1);
+        putRange(1, null, null, 1);
+        round();
+        for (int i = 0; i < 8; i++) {
+            nodes.get(1).data.put(key(i), VALUE_SIZE);
+        }
+        nodes.get(1).requests.put(1L, 5000L);
+        assertEquals(1, round());
+        List<RangeInfo> ranges = machine.getRanges(TABLE);
+        assertEquals(2, ranges.size());
+        assertEquals(key(4), ranges.get(0).getEndKey());
+        assertEquals(key(4), ranges.get(1).getStartKey());
+        checkPlacement(8);
+    }
+
+    public void testMergeCold() {
+        addNode(1);
+        putRange(1, null, key(10), 1);
+        putRange(2, key(10), key(20), 1);
+        putRange(3, key(20), null, 1);
+        nodes.get(1).data.put(key(1), VALUE_SIZE);
+        nodes.get(1).data.put(key(11), VALUE_SIZE);
+        nodes.get(1).data.put(key(21), VALUE_SIZE);
+        // not known yet
+        assertEquals(0, round());
+        runUntilStable();
+        List<RangeInfo> ranges = machine.getRanges(TABLE);
+        assertEquals(1, ranges.size());
+        assertEquals(1, ranges.get(0).getRangeId());
+        checkPlacement(0);
+    }
+
+    public void testMoveThenMerge() {
+        addNode(1);
+        addNode(2);
+        putRange(1, null, key(10), 1);
+        putRange(2, key(10), null, 2);
+        nodes.get(1).data.put(key(1), VALUE_SIZE);
+        nodes.get(1).data.put(key(2), VALUE_SIZE);
+        nodes.get(2).data.put(key(11), VALUE_SIZE);
+        round();
+        assertEquals(0, round());
+        List<RangeMove> moves = scheduler.getMoves();
+        assertEquals(1, moves.size());
+        assertEquals(2, moves.get(0).getRangeId());
+        assertEquals(1, moves.get(0).getTargetNode());
+        runUntilStable();
+        List<RangeInfo> ranges = machine.getRanges(TABLE);
+        assertEquals(1, ranges.size());
+        assertEquals(1, ranges.get(0).getLeader());
+        assertTrue(nodes.get(2).data.isEmpty());
+        checkPlacement(0);
+    }
+
+    public void testBalanceBySize() {
+        addNode(1);
+        putRange(1, null, null, 1);
+        round();
+        for (int i = 0; i < 80; i++) {
+            nodes.get(1).data.put(key(i), VALUE_SIZE);
+        }
+        runUntilStable();
+        addNode(2);
+        addNode(3);
+        runUntilStable();
+        long[] bytes = new long[4];
+        for (RangeInfo r : machine.getRanges(TABLE)) {
+            bytes[r.getLeader()] += nodes.get(r.getLeader()).bytes(r);
+        }
+        for (int i = 1; i <= 3; i++) {
+            assertTrue("node " + i + " " + bytes[i], bytes[i] > 0);
+            assertTrue("node " + i + " " + bytes[i], bytes[i] < 50 * VALUE_SIZE);
+        }
+        checkPlacement(80);
+        for (SimNode n : nodes.values()) {
+            assertEquals(n.data.size(), n.ownedKeys());
+        }
+    }
+
+    public void testBalanceByLoad() {
+        addNode(1);
+        addNode(2);
+        putRange(1, null, key(10), 1);
+        putRange(2, key(10), key(20), 1);
+        putRange(3, key(20), null, 2);
+        nodes.get(1).data.put(key(1), VALUE_SIZE);
+        nodes.get(1).data.put(key(11), VALUE_SIZE);
+        nodes.get(2).data.put(key(21), VALUE_SIZE);
+        nodes.get(1).requests.put(1L, 500L);
+        nodes.get(1).requests.put(2L, 500L);
+        round();
+        nodes.get(1).requests.put(1L, 500L);
+        nodes.get(1).requests.put(2L, 500L);
+        round();
+        List<RangeMove> moves = scheduler.getMoves();
+        assertEquals(1, moves.size());
+        assertEquals(2, moves.get(0).getTargetNode());
+    }
+
+    public void testBusyNodeIsNoTarget() {
+        addNode(1);
+        addNode(2);
+        putRange(1, null, key(10), 1);
+        putRange(2, key(10), null, 1);
+        for (int i = 0; i < 20; i++) {
+            nodes.get(1).data.put(key(i), VALUE_SIZE);
+        }
+        nodes.get(2).cpuLoad = 0.95;
+        round();
+        round();
+        assertTrue(scheduler.getMoves().isEmpty());
+        nodes.get(2).cpuLoad = 0.1;
+        round();
+        assertEquals(1, scheduler.getMoves().size());
+    }
+
+    public void testMoveCancelledIfTargetDown() {
+        addNode(1);
+        addNode(2);
+        putRange(1, null, key(10), 1);
+        putRange(2, key(10), null, 1);
+        for (int i = 0; i < 20; i++) {
+            nodes.get(1).data.put(key(i), VALUE_SIZE);
+        }
+        nodes.get(1).executeMoves = false;
+        round();
+        round();
+        assertEquals(1, scheduler.getMoves().size());
+        nodes.get(2).live = false;
+        round();
+        round();
+        assertTrue(scheduler.getMoves().isEmpty());
+        assertTrue(nodes.get(1).frozen.isEmpty());
+        for (RangeInfo r : machine.getRanges(TABLE)) {
+            assertEquals(1, r.getLeader());
+        }
+    }
+
+    public void testReplaceRangesIfExists() {
+        putRange(1, null, null, 1);
+        RangeScheduler.Change c = new RangeScheduler.Change("test",
+                new long[] { 1 }, new RangeInfo(1, TABLE, null, "80",
+                        new int[] { 1 }, 1), new RangeInfo(2, TABLE, "80", null,
+                        new int[] { 1 }, 1));
+        apply(MetaStateMachine.command(MetaProtocol.REMOVE_RANGE, 1L));
+        apply(c.toCommand());
+        assertTrue(machine.getRanges(null).isEmpty());
+        putRange(1, null, null, 1);
+        apply(c.toCommand());
+        assertEquals(2, machine.getRanges(null).size());
+    }
+
+    /**
+     * A simulated storage node. Keys are the hex encoded keys of the ranges,
+     * and the value is the size of the entry.
+     */
+    private final class SimNode {
+
+        final int id;
+        final TreeMap<String, Integer> data = new TreeMap<String, Integer>();
+        final HashMap<Long, Long> requests = new HashMap<Long, Long>();
+        final HashSet<Long> frozen = new HashSet<Long>();
+        final HashSet<Long> completedMoves = new HashSet<Long>();
+        List<RangeInfo> ranges = new ArrayList<RangeInfo>();
+        double cpuLoad;
+        boolean live = true;
+        boolean executeMoves = true;
+
+        SimNode(int id) {
+            this.id = id;
+        }
+
+        Map<String, Integer> subMap(RangeInfo r) {
+            String start = r.getStartKey() == null ? "" : r.getStartKey();
+            return r.getEndKey() == null ? data.tailMap(start, true) :
+                    data.subMap(start, true, r.getEndKey(), false);
+        }
+
+        long bytes(RangeInfo r) {
+            long bytes = 0;
+            for (int size : subMap(r).values()) {
+                bytes += size;
+            }
+            return bytes;
+        }
+
+        int ownedKeys() {
+            int count = 0;
+            for (RangeInfo r : ranges) {
+                count += subMap(r).size();
+            }
+            return count;
+        }
+
+        NodeReport report() {
+            ArrayList<RangeStats> stats = new ArrayList<RangeStats>();
+            long disk = 0;
+            for (RangeInfo r : ranges) {
+                Map<String, Integer> m = subMap(r);
+                String split = null;
+                int i = 0;
+                for (String k : m.keySet()) {
+                    if (i++ == m.size() / 2 && m.size() > 1) {
+                        split = k;
+                    }
+                }
+                Long count = requests.remove(r.getRangeId());
+                long bytes = bytes(r);
+                disk += bytes;
+                stats.add(new RangeStats(r.getRangeId(), r.getStartKey(),
+                        r.getEndKey(), bytes, m.size(),
+                        count == null ? 0 : count, split));
+            }
+            long[] completed = new long[completedMoves.size()];
+            int i = 0;
+            for (long rangeId : completedMoves) {
+                completed[i++] = rangeId;
+            }
+            return new NodeReport(id, "tcp://node" + id, cpuLoad, disk, stats,
+                    completed);
+        }
+
+        void assign(NodeAssignment a) {
+            HashSet<Long> moving = new HashSet<Long>();
+            for (RangeMove m : a.getMoves()) {
+                moving.add(m.getRangeId());
+                frozen.add(m.getRangeId());
+                if (executeMoves && !completedMoves.contains(m.getRangeId())) {
+                    SimNode target = nodes.get(m.getTargetNode());
+                    RangeInfo r = new RangeInfo(m.getRangeId(), m.getTableName(),
+                            m.getStartKey(), m.getEndKey(), null, id);
+                    target.subMap(r).clear();
+                    target.data.putAll(subMap(r));
+                    completedMoves.add(m.getRangeId());
+                }
+            }
+            HashSet<Long> owned = new HashSet<Long>();
+            for (RangeInfo r : a.getRanges()) {
+                owned.add(r.getRangeId());
+            }
+            for (RangeInfo r : ranges) {
+                // remove the keys of ranges that moved away
+                for (String k : new ArrayList<String>(subMap(r).keySet())) {
+                    if (!contains(a.getRanges(), k)) {
+                        data.remove(k);
+                    }
+                }
+            }
+            frozen.retainAll(moving);
+            completedMoves.retainAll(owned);
+            completedMoves.retainAll(moving);
+            ranges = a.getRanges();
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server;
+
+import junit.framework.TestCase;
+
+import org.neradb.meta.HybridClock;
+import org.neradb.meta.MetaProtocol;
+
+/**
+ * Tests the timestamp oracle. The limit is stored by applying the commands
+ * to a state machine directly, as the leader would through the log.
+ */
+public class TimestampOracleTest extends TestCase {
+
+    private MetaStateMachine machine;
+    private long index;
+    private int saves;
+
+    @Override
+    protected void setUp() {
+        machine = new MetaStateMachine();
+    }
+
+    /**
+     * Allocate timestamps like the leader does.
+     */
+    private long allocate(TimestampOracle oracle, long term, long now, int count) {
+        while (true) {
+            long first = oracle.allocate(term, now, count);
+            if (first >= 0) {
+                return first;
+            }
+            long limit = oracle.getNextLimit(now, count);
+            Object previous = machine.apply(++index, MetaStateMachine.command(
+                    MetaProtocol.SAVE_TIMESTAMP, limit));
+            saves++;
+            oracle.update(term, (Long) previous, limit);
+        }
+    }
+
+    public void testIncreasing() {
+        TimestampOracle oracle = new TimestampOracle();
+        long now = 1000000;
+        long last = 0;
+        for (int i = 0; i < 1000; i++) {
+            // the clock may go backwards
+            now += i % 10 == 9 ? -5 : 1;
+            long first = allocate(oracle, 1, now, 100);
+            assertTrue(first > last);
+            assertTrue(first >= HybridClock.toTimestamp(now) || first == last + 1);
+            last = first + 99;
+            assertTrue(last <= machine.getTimestampLimit());
+        }
+        // the limit is raised a few seconds in advance, not per request
+        assertTrue("saves: " + saves, saves < 5);
+    }
+
+    public void testLeaderChange() {
+        TimestampOracle a = new TimestampOracle();
+        long last = 0;
+        for (int i = 0; i < 100; i++) {
+            long first = allocate(a, 1, 2000000 + i, 1000);
+            assertTrue(first > last);
+            last = first + 999;
+        }
+        // the clock of the new leader is 10 seconds behind
+        TimestampOracle b = new TimestampOracle();
+        long first = allocate(b, 2, 1990000, 1);
+        assertTrue(first > last);
+        last = first;
+        // the old leader is elected again later
+        first = allocate(a, 3, 2000200, 1);
+        assertTrue(first > last);
+        // a stale term is never used to allocate
+        assertEquals(-1, a.allocate(2, 2000200, 1));
+    }
+
+    public void testHybridClock() {
+        HybridClock clock = new HybridClock();
+        long t1 = clock.now();
+        long t2 = clock.now();
+        assertTrue(t2 > t1);
+        assertTrue(Math.abs(HybridClock.getMillis(t1) -
+                System.currentTimeMillis()) < 10000);
+        // a timestamp from a node with a clock that is ahead
+        long ahead = HybridClock.toTimestamp(System.currentTimeMillis() + 60000);
+        clock.update(ahead);
+        assertEquals(ahead + 1, clock.now());
+        clock.update(t1);
+        assertEquals(ahead + 2, clock.now());
+    }
+
+}
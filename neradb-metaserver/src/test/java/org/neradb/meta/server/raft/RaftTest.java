@@ -0,0 +1,303 @@
+/*
+ * Copyright 2004-2014 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.neradb.meta.server.raft;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.TestCase;
+
+import org.neradb.meta.CatalogChanges;
+import org.neradb.meta.CatalogEntry;
+import org.neradb.meta.MetaProtocol;
+import org.neradb.meta.server.MetaStateMachine;
+
+/**
+ * Tests the Raft implementation with a simulated network: messages are
+ * queued and delivered by the test, and the time is advanced explicitly.
+ */
+public class RaftTest extends TestCase {
+
+    private static final int ELECTION_TIMEOUT = 100;
+    private static final int HEARTBEAT = 20;
+
+    private final LinkedList<RaftMessage> network = new LinkedList<RaftMessage>();
+    private final HashSet<Integer> down = new HashSet<Integer>();
+    private int dropType;
+    private RaftNode[] nodes;
+    private MetaStateMachine[] machines;
+    private long time;
+
+    private void createCluster(int count) throws Exception {
+        nodes = new RaftNode[count];
+        machines = new MetaStateMachine[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = createNode(i, count, new RaftLog(null));
+        }
+    }
+
+    private RaftNode createNode(int id, int count, RaftLog log) {
+        int[] peers = new int[count - 1];
+        for (int i = 0, j = 0; i < count; i++) {
+            if (i != id) {
+                peers[j++] = i;
+            }
+        }
+        machines[id] = new MetaStateMachine();
+        RaftTransport transport = new RaftTransport() {
+            @Override
+            public void send(RaftMessage m) {
+                network.add(m);
+            }
+        };
+        return new RaftNode(id, peers, log, machines[id], transport,
+                ELECTION_TIMEOUT, HEARTBEAT, new Random(id));
+    }
+
+    /**
+     * Advance the time in steps of 1 ms, delivering all messages after each
+     * step (messages from and to servers that are down are lost).
+     */
+    private void run(int millis) {
+        for (int i = 0; i < millis; i++) {
+            time++;
+            for (int j = 0; j < nodes.length; j++) {
+                if (!down.contains(j)) {
+                    nodes[j].tick(time);
+                }
+            }
+            deliver();
+        }
+    }
+
+    private void deliver() {
+        while (!network.isEmpty()) {
+            RaftMessage m = network.removeFirst();
+            if (!down.contains(m.from) && !down.contains(m.to) && m.type != dropType) {
+                nodes[m.to].receive(m);
+            }
+        }
+    }
+
+    private RaftNode leader() {
+        RaftNode leader = null;
+        for (int i = 0; i < nodes.length; i++) {
+            if (!down.contains(i) && nodes[i].isLeader()) {
+                assertNull("two leaders", leader);
+                leader = nodes[i];
+            }
+        }
+        return leader;
+    }
+
+    private RaftNode awaitLeader() {
+        for (int i = 0; i < 100; i++) {
+            run(10);
+            RaftNode leader = leader();
+            if (leader != null) {
+                return leader;
+            }
+        }
+        fail("no leader");
+        return null;
+    }
+
+    private Object propose(RaftNode leader, byte[] command) throws Exception {
+        CompletableFuture<Object> f = leader.propose(command);
+        for (int i = 0; i < 100 && !f.isDone(); i++) {
+            run(1);
+        }
+        assertTrue(f.isDone());
+        return f.get();
+    }
+
+    private static byte[] put(String key, String sql) {
+        return MetaStateMachine.command(MetaProtocol.PUT_CATALOG, key, 0, sql, null);
+    }
+
+    public void testElection() throws Exception {
+        createCluster(3);
+        RaftNode leader = awaitLeader();
+        run(500);
+        // the leader is stable while the network works
+        assertSame(leader, leader());
+        assertTrue(leader.hasLease());
+        for (RaftNode n : nodes) {
+            assertEquals(leader.getTerm(), n.getTerm());
+            assertEquals(leader.getId(), n.getLeaderId());
+        }
+    }
+
+    public void testReplication() throws Exception {
+        createCluster(3);
+        RaftNode leader = awaitLeader();
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(Long.valueOf(i), propose(leader, put("t" + i, "create " + i)));
+        }
+        run(100);
+        for (int i = 0; i < nodes.length; i++) {
+            assertEquals(leader.getCommitIndex(), nodes[i].getCommitIndex());
+            assertEquals(leader.getCommitIndex(), nodes[i].getLastApplied());
+            CatalogChanges c = machines[i].getCatalog(0);
+            assertEquals(10, c.getVersion());
+            assertEquals(10, c.getEntries().size());
+        }
+        // a follower rejects the proposal
+        RaftNode follower = nodes[(leader.getId() + 1) % nodes.length];
+        try {
+            follower.propose(put("x", "x")).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NotLeaderException);
+            assertEquals(leader.getId(),
+                    ((NotLeaderException) e.getCause()).getLeaderId());
+        }
+    }
+
+    public void testFailover() throws Exception {
+        createCluster(3);
+        RaftNode leader = awaitLeader();
+        propose(leader, put("a", "create a"));
+        down.add(leader.getId());
+        RaftNode next = awaitLeader();
+        assertNotSame(leader, next);
+        assertTrue(next.getTerm() > leader.getTerm());
+        propose(next, put("b", "create b"));
+        // the old leader is isolated, so its proposal can't commit
+        CompletableFuture<Object> lost = leader.propose(put("c", "create c"));
+        assertFalse(lost.isDone());
+        down.remove(leader.getId());
+        run(300);
+        assertSame(next, leader());
+        assertTrue(lost.isCompletedExceptionally());
+        // the uncommitted entry of the old leader was replaced
+        for (int i = 0; i < nodes.length; i++) {
+            assertEquals(next.getCommitIndex(), nodes[i].getCommitIndex());
+            assertEquals(2, machines[i].getCatalog(0).getEntries().size());
+        }
+    }
+
+    public void testNoMajority() throws Exception {
+        createCluster(3);
+        RaftNode leader = awaitLeader();
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] != leader) {
+                down.add(i);
+            }
+        }
+        run(ELECTION_TIMEOUT * 2);
+        assertFalse(leader.hasLease());
+        CompletableFuture<Object> f = leader.propose(put("a", "create a"));
+        run(500);
+        assertFalse(f.isDone());
+    }
+
+    public void testLease() throws Exception {
+        createCluster(3);
+        dropType = RaftMessage.APPEND_RESPONSE;
+        RaftNode leader = awaitLeader();
+        // acknowledged, but the entry of the new term is not committed yet
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] != leader) {
+                RaftMessage m = RaftMessage.create(RaftMessage.APPEND_RESPONSE,
+                        i, leader.getId(), leader.getTerm());
+                m.success = true;
+                m.index = leader.getCommitIndex();
+                m.sent = time;
+                leader.receive(m);
+            }
+        }
+        assertFalse(leader.hasLease());
+        dropType = 0;
+        run(HEARTBEAT * 2);
+        assertTrue(leader.hasLease());
+
+        // the heartbeats are delivered late (the followers don't see the
+        // time pass): the lease is measured from when they were sent, not
+        // from when they were acknowledged
+        ArrayList<RaftMessage> late = new ArrayList<RaftMessage>();
+        for (int i = 0; i <= ELECTION_TIMEOUT + HEARTBEAT; i++) {
+            leader.tick(++time);
+            if (i <= HEARTBEAT) {
+                late.addAll(network);
+            }
+            network.clear();
+        }
+        network.addAll(late);
+        deliver();
+        assertFalse(leader.hasLease());
+    }
+
+    public void testVoteAfterLeaderContact() throws Exception {
+        createCluster(3);
+        RaftNode leader = awaitLeader();
+        run(HEARTBEAT);
+        RaftNode follower = nodes[(leader.getId() + 1) % nodes.length];
+        long term = leader.getTerm();
+        int candidate = (leader.getId() + 2) % nodes.length;
+        RaftMessage m = RaftMessage.create(RaftMessage.VOTE_REQUEST,
+                candidate, follower.getId(), term + 5);
+        m.index = follower.getCommitIndex() + 100;
+        m.logTerm = term;
+        // the follower heard from the leader recently: the request is ignored
+        follower.receive(m);
+        assertTrue(network.isEmpty());
+        assertEquals(term, follower.getTerm());
+        // the same request is granted once the leader is gone
+        down.add(leader.getId());
+        run(ELECTION_TIMEOUT / 2);
+        assertEquals(term, follower.getTerm());
+        for (int i = 0; i < ELECTION_TIMEOUT; i++) {
+            follower.tick(++time);
+            network.clear();
+        }
+        follower.receive(m);
+        assertEquals(term + 5, follower.getTerm());
+        assertEquals(1, network.size());
+        assertTrue(network.getFirst().success);
+        network.clear();
+    }
+
+    public void testRestart() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "raftTest" + System.nanoTime());
+        try {
+            nodes = new RaftNode[1];
+            machines = new MetaStateMachine[1];
+            RaftLog log = new RaftLog(dir);
+            nodes[0] = createNode(0, 1, log);
+            RaftNode leader = awaitLeader();
+            propose(leader, put("a", "create a"));
+            propose(leader, put("b", "create b"));
+            long term = leader.getTerm();
+            log.close();
+
+            log = new RaftLog(dir);
+            assertEquals(term, log.getCurrentTerm());
+            nodes[0] = createNode(0, 1, log);
+            leader = awaitLeader();
+            assertTrue(leader.getTerm() > term);
+            // the log was applied again
+            List<String> keys = new ArrayList<String>();
+            for (CatalogEntry e : machines[0].getCatalog(0).getEntries()) {
+                keys.add(e.getKey());
+            }
+            assertEquals("[a, b]", keys.toString());
+            log.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+}
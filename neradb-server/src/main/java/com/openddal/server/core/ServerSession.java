@@ -48,6 +48,7 @@ public class ServerSession implements AutoCloseable {
     private final long uptime;
     private Session dbSession;
     private QueryDispatcher dispatcher;
+    private int readStaleness;
 
 
     public ServerSession(NettyServer server) {
@@ -190,6 +191,18 @@ public class ServerSession implements AutoCloseable {
     public long getThreadId() {
         return threadId;
     }
+
+    /**
+     * @return how old (in milliseconds) the data read by SELECT statements in
+     *         autocommit mode may be, or 0 to read the latest data
+     */
+    public int getReadStaleness() {
+        return readStaleness;
+    }
+
+    public void setReadStaleness(int readStaleness) {
+        this.readStaleness = readStaleness;
+    }
     
     public QueryResult executeQuery(String query) throws ServerException {
         QueryProcessor processor = dispatcher.dispatch(query);
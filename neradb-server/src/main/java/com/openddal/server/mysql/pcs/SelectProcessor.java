@@ -25,6 +25,7 @@ import com.openddal.result.SimpleResultSet;
 import com.openddal.server.NettyServer;
 import com.openddal.server.core.QueryProcessor;
 import com.openddal.server.core.QueryResult;
+import com.openddal.server.core.ServerSession;
 import com.openddal.server.mysql.MySQLServer;
 import com.openddal.server.util.StringUtil;
 import com.openddal.util.New;
@@ -45,11 +46,35 @@ public final class SelectProcessor implements QueryProcessor {
     public QueryResult process(String query) {
         QueryResult result = localProcess(query);
         if (result == null) {
-            result = target.process(query);
+            result = isStaleReadAllowed() ? staleProcess(query) : target.process(query);
         }
         return result;
     }
 
+    /**
+     * A query in autocommit mode is a transaction of its own that only reads,
+     * so it may read stale data if the session allows it (SET read_staleness).
+     */
+    private boolean isStaleReadAllowed() {
+        ServerSession session = target.getSession();
+        return session.getReadStaleness() > 0 && session.getDbSession().getAutoCommit();
+    }
+
+    /**
+     * Run the query on a stale snapshot, which the storage nodes serve without
+     * a timestamp from the meta server and without waiting for transactions
+     * that are being committed.
+     */
+    private QueryResult staleProcess(String query) {
+        ServerSession session = target.getSession();
+        session.getDbSession().setReadStaleness(session.getReadStaleness());
+        try {
+            return target.process(query);
+        } finally {
+            session.getDbSession().setReadStaleness(0);
+        }
+    }
+
     public QueryResult localProcess(String query) {
         List<SQLSelectItem> selectList = parseLocalItem(query);
         if (selectList == null) {
@@ -188,6 +213,8 @@ public final class SelectProcessor implements QueryProcessor {
             expr.putAttribute(EVAL_VALUE, String.valueOf(value));
         } else if ("version_comment".equals(name)) {
             expr.putAttribute(EVAL_VALUE, MySQLServer.VERSION_COMMENT);
+        } else if ("read_staleness".equals(name)) {
+            expr.putAttribute(EVAL_VALUE, String.valueOf(target.getSession().getReadStaleness()));
         } else {
             expr.putAttribute(EVAL_VALUE, variables.get(name));
         }
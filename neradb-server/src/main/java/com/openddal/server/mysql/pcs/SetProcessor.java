@@ -74,6 +74,8 @@ public final class SetProcessor implements QueryProcessor {
                         setIsolation(value);
                     } else if ("tx_read_only".equalsIgnoreCase(key)) {
                         setReadOnly(value);
+                    } else if ("read_staleness".equalsIgnoreCase(key)) {
+                        setReadStaleness(value);
                     } else {
                         result.setWarnings((short) 1);
                         result.setMessage(query + " ignored.");
@@ -133,6 +135,20 @@ public final class SetProcessor implements QueryProcessor {
         }
     }
 
+    private void setReadStaleness(String staleness) {
+        int millis;
+        try {
+            millis = Integer.parseInt(staleness);
+        } catch (NumberFormatException e) {
+            millis = -1;
+        }
+        if (millis < 0) {
+            throw ServerException.get(ErrorCode.ER_WRONG_VALUE_FOR_VAR,
+                    "Variable 'read_staleness' can't be set to the value of '" + staleness + "'");
+        }
+        target.getSession().setReadStaleness(millis);
+    }
+
     private void setCharset(String charset) {
         ServerSession session = target.getSession();
         session.setCharset(charset);